@@ -27,6 +27,8 @@ import java.util.Map;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.redhat.lightblue.metadata.CachingMetadata;
+import com.redhat.lightblue.metadata.Metadata;
 import com.redhat.lightblue.metadata.MetadataConstants;
 import com.redhat.lightblue.metadata.MetadataRole;
 import com.redhat.lightblue.metadata.parser.DataStoreParser;
@@ -48,6 +50,11 @@ public abstract class AbstractMetadataConfiguration implements MetadataConfigura
     private final List<Map.Entry<String, PropertyParser>> propertyParsers = new ArrayList<>();
     private final Map<MetadataRole, List<String>> roleMap = new HashMap<>();
     private boolean validateRequests = false;
+    private long cacheTTLMs = 0;
+    private long cacheRefreshAheadMs = 0;
+    private int cacheRefreshThreads = CachingMetadata.DEFAULT_REFRESH_THREADS;
+    private CachingMetadata.ChangeTokenProvider cacheChangeTokenProvider = null;
+    private long cacheChangeTokenCheckMs = 1000;
 
     @Override
     public boolean isValidateRequests() {
@@ -77,6 +84,79 @@ public abstract class AbstractMetadataConfiguration implements MetadataConfigura
         return roleMap;
     }
 
+    /**
+     * Returns how long metadata is cached, in milliseconds. If not positive,
+     * metadata is not cached.
+     */
+    public long getCacheTTLMs() {
+        return cacheTTLMs;
+    }
+
+    public void setCacheTTLMs(long l) {
+        cacheTTLMs = l;
+    }
+
+    /**
+     * Returns the age after which cached metadata is reloaded
+     * asynchronously, in milliseconds. If not positive, metadata is
+     * reloaded only when it expires.
+     */
+    public long getCacheRefreshAheadMs() {
+        return cacheRefreshAheadMs;
+    }
+
+    public void setCacheRefreshAheadMs(long l) {
+        cacheRefreshAheadMs = l;
+    }
+
+    /**
+     * Returns the maximum number of threads reloading cached metadata
+     * asynchronously
+     */
+    public int getCacheRefreshThreads() {
+        return cacheRefreshThreads;
+    }
+
+    public void setCacheRefreshThreads(int n) {
+        cacheRefreshThreads = n;
+    }
+
+    /**
+     * Returns the change token provider used to detect metadata changes on
+     * other nodes, or null if there isn't one
+     */
+    public CachingMetadata.ChangeTokenProvider getCacheChangeTokenProvider() {
+        return cacheChangeTokenProvider;
+    }
+
+    public void setCacheChangeTokenProvider(CachingMetadata.ChangeTokenProvider p) {
+        cacheChangeTokenProvider = p;
+    }
+
+    public long getCacheChangeTokenCheckMs() {
+        return cacheChangeTokenCheckMs;
+    }
+
+    public void setCacheChangeTokenCheckMs(long l) {
+        cacheChangeTokenCheckMs = l;
+    }
+
+    /**
+     * Wraps the metadata with a CachingMetadata if caching is configured
+     */
+    @Override
+    public Metadata wrapMetadata(Metadata md) {
+        if (cacheTTLMs > 0) {
+            CachingMetadata cmd = new CachingMetadata(md, cacheTTLMs, cacheRefreshAheadMs, cacheRefreshThreads);
+            if (cacheChangeTokenProvider != null) {
+                cmd.setChangeTokenProvider(cacheChangeTokenProvider, cacheChangeTokenCheckMs);
+            }
+            return cmd;
+        } else {
+            return md;
+        }
+    }
+
     @Override
     public void initializeFromJson(JsonNode node) {
         if (node != null) {
@@ -172,6 +252,41 @@ public abstract class AbstractMetadataConfiguration implements MetadataConfigura
             if (x != null) {
                 validateRequests = x.booleanValue();
             }
+
+            JsonNode cacheJs = node.get("cache");
+            if (cacheJs != null) {
+                x = cacheJs.get("ttlMs");
+                if (x != null) {
+                    cacheTTLMs = x.asLong();
+                }
+                x = cacheJs.get("refreshAheadMs");
+                if (x != null) {
+                    cacheRefreshAheadMs = x.asLong();
+                }
+                x = cacheJs.get("refreshThreads");
+                if (x != null) {
+                    cacheRefreshThreads = x.asInt();
+                }
+                x = cacheJs.get("changeTokenCheckMs");
+                if (x != null) {
+                    cacheChangeTokenCheckMs = x.asLong();
+                }
+                x = cacheJs.get("changeTokenProvider");
+                if (x != null) {
+                    String clazz = x.asText();
+                    Object o;
+                    try {
+                        o = Thread.currentThread().getContextClassLoader().loadClass(clazz).newInstance();
+                    } catch (InstantiationException | IllegalAccessException | ClassNotFoundException ex) {
+                        throw Error.get(MetadataConstants.ERR_CONFIG_NOT_VALID, ex);
+                    }
+                    if (o instanceof CachingMetadata.ChangeTokenProvider) {
+                        cacheChangeTokenProvider = (CachingMetadata.ChangeTokenProvider) o;
+                    } else {
+                        throw Error.get(MetadataConstants.ERR_CONFIG_NOT_VALID, "Class not instance of ChangeTokenProvider: " + clazz);
+                    }
+                }
+            }
         }
     }
 
@@ -22,12 +22,16 @@ import java.io.Serializable;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
+import com.redhat.lightblue.hooks.AsyncHookDispatcher;
+import com.redhat.lightblue.mediator.BulkScheduler;
 import com.redhat.lightblue.util.JsonInitializable;
 
 /**
@@ -48,7 +52,32 @@ public class CrudConfiguration implements JsonInitializable, Serializable {
     private SavedSearchConfiguration savedSearch;
     private boolean validateRequests = false;
     private int bulkParallelExecutions = 3;
+    private int bulkMaxConcurrency = 16;
+    private int bulkMaxQueueDepth = 1024;
+    private BulkScheduler.OverflowPolicy bulkOverflowPolicy = BulkScheduler.OverflowPolicy.CALLER_RUNS;
+    private BulkScheduler.Fairness bulkFairness = BulkScheduler.Fairness.CALLER;
     private int memoryIndexThreshold = 16;
+    private int compositeParallelism = 9;
+    private int compositeExecutorParallelism = 0;
+    private int compositeBatchSize = 256;
+    private int compositePrefetchBatches = 0;
+    private boolean compositeAdaptiveBatching = true;
+    private int compositeMinBatchSize = 16;
+    private int compositeMaxBatchSize = 1024;
+    private int compositeMaxQuerySize = 4096;
+    private long compositeBatchTargetLatencyMs = 1000;
+    private long compositeMaxBatchBytes = 16 * 1024 * 1024;
+    private int compositePlanCacheSize = 1024;
+    private boolean compositePlanStatistics = false;
+    private int validationBatchSize = 256;
+    private int validationExecutorParallelism = 0;
+    private boolean asyncHooks = false;
+    private int hookQueueCapacity = 1024;
+    private int hookWorkers = 1;
+    private int hookBatchSize = 128;
+    private AsyncHookDispatcher.OverflowPolicy hookOverflowPolicy = AsyncHookDispatcher.OverflowPolicy.BLOCK;
+    private final Map<String, Integer> entityCompositeBatchSize = new HashMap<>();
+    private final Map<String, Integer> entityCompositePrefetchBatches = new HashMap<>();
     private int maxResultSetSizeForReadsB = 50 * 1024 * 1024; // 50 MB
     private int maxResultSetSizeForWritesB = 50 * 1024 * 1024; // 50 MB
     private int warnResultSetSizeB = 10 * 1024 * 1024; // 10 MB
@@ -69,6 +98,38 @@ public class CrudConfiguration implements JsonInitializable, Serializable {
         bulkParallelExecutions = i;
     }
 
+    public int getBulkMaxConcurrency() {
+        return bulkMaxConcurrency;
+    }
+
+    public void setBulkMaxConcurrency(int i) {
+        bulkMaxConcurrency = i;
+    }
+
+    public int getBulkMaxQueueDepth() {
+        return bulkMaxQueueDepth;
+    }
+
+    public void setBulkMaxQueueDepth(int i) {
+        bulkMaxQueueDepth = i;
+    }
+
+    public BulkScheduler.OverflowPolicy getBulkOverflowPolicy() {
+        return bulkOverflowPolicy;
+    }
+
+    public void setBulkOverflowPolicy(BulkScheduler.OverflowPolicy p) {
+        bulkOverflowPolicy = p;
+    }
+
+    public BulkScheduler.Fairness getBulkFairness() {
+        return bulkFairness;
+    }
+
+    public void setBulkFairness(BulkScheduler.Fairness f) {
+        bulkFairness = f;
+    }
+
     public SavedSearchConfiguration getSavedSearch() {
         return savedSearch;
     }
@@ -127,6 +188,22 @@ public class CrudConfiguration implements JsonInitializable, Serializable {
             if (x != null) {
                 bulkParallelExecutions = x.intValue();
             }
+            x = node.get("bulkMaxConcurrency");
+            if (x != null) {
+                bulkMaxConcurrency = x.intValue();
+            }
+            x = node.get("bulkMaxQueueDepth");
+            if (x != null) {
+                bulkMaxQueueDepth = x.intValue();
+            }
+            x = node.get("bulkOverflowPolicy");
+            if (x != null) {
+                bulkOverflowPolicy = BulkScheduler.OverflowPolicy.valueOf(x.asText().toUpperCase());
+            }
+            x = node.get("bulkFairness");
+            if (x != null) {
+                bulkFairness = BulkScheduler.Fairness.valueOf(x.asText().toUpperCase());
+            }
 
             x = node.get("savedSearch");
             if(x instanceof ObjectNode) {
@@ -139,6 +216,118 @@ public class CrudConfiguration implements JsonInitializable, Serializable {
                 memoryIndexThreshold = x.intValue();
             }
 
+            x = node.get("compositeParallelism");
+            if (x != null) {
+                compositeParallelism = x.intValue();
+            }
+
+            x = node.get("compositeExecutorParallelism");
+            if (x != null) {
+                compositeExecutorParallelism = x.intValue();
+            }
+
+            x = node.get("compositeBatchSize");
+            if (x != null) {
+                compositeBatchSize = x.intValue();
+            }
+
+            x = node.get("compositePrefetchBatches");
+            if (x != null) {
+                compositePrefetchBatches = x.intValue();
+            }
+
+            x = node.get("compositeAdaptiveBatching");
+            if (x != null) {
+                compositeAdaptiveBatching = x.booleanValue();
+            }
+
+            x = node.get("compositeMinBatchSize");
+            if (x != null) {
+                compositeMinBatchSize = x.intValue();
+            }
+
+            x = node.get("compositeMaxBatchSize");
+            if (x != null) {
+                compositeMaxBatchSize = x.intValue();
+            }
+
+            x = node.get("compositeMaxQuerySize");
+            if (x != null) {
+                compositeMaxQuerySize = x.intValue();
+            }
+
+            x = node.get("compositeBatchTargetLatencyMs");
+            if (x != null) {
+                compositeBatchTargetLatencyMs = x.longValue();
+            }
+
+            x = node.get("compositeMaxBatchBytes");
+            if (x != null) {
+                compositeMaxBatchBytes = x.longValue();
+            }
+
+            x = node.get("compositePlanCacheSize");
+            if (x != null) {
+                compositePlanCacheSize = x.intValue();
+            }
+
+            x = node.get("compositePlanStatistics");
+            if (x != null) {
+                compositePlanStatistics = x.booleanValue();
+            }
+
+            x = node.get("validationBatchSize");
+            if (x != null) {
+                validationBatchSize = x.intValue();
+            }
+
+            x = node.get("validationExecutorParallelism");
+            if (x != null) {
+                validationExecutorParallelism = x.intValue();
+            }
+
+            x = node.get("asyncHooks");
+            if (x != null) {
+                asyncHooks = x.booleanValue();
+            }
+
+            x = node.get("hookQueueCapacity");
+            if (x != null) {
+                hookQueueCapacity = x.intValue();
+            }
+
+            x = node.get("hookWorkers");
+            if (x != null) {
+                hookWorkers = x.intValue();
+            }
+
+            x = node.get("hookBatchSize");
+            if (x != null) {
+                hookBatchSize = x.intValue();
+            }
+
+            x = node.get("hookOverflowPolicy");
+            if (x != null) {
+                hookOverflowPolicy = AsyncHookDispatcher.OverflowPolicy.valueOf(x.asText().toUpperCase());
+            }
+
+            x = node.get("compositeEntitySettings");
+            if (x instanceof ObjectNode) {
+                for (Iterator<Map.Entry<String, JsonNode>> itr = x.fields(); itr.hasNext();) {
+                    Map.Entry<String, JsonNode> entry = itr.next();
+                    JsonNode y = entry.getValue().get("batchSize");
+                    if (y != null) {
+                        entityCompositeBatchSize.put(entry.getKey(), y.intValue());
+                    }
+                    y = entry.getValue().get("prefetchBatches");
+                    if (y != null) {
+                        entityCompositePrefetchBatches.put(entry.getKey(), y.intValue());
+                    }
+                }
+            } else if (x != null) {
+                throw new IllegalArgumentException("'compositeEntitySettings' must be instanceof ObjectNode: " + node.toString());
+            }
+
             x = node.get("maxResultSetSizeForReadsB");
             if (x != null) {
                 maxResultSetSizeForReadsB = x.intValue();
@@ -164,6 +353,237 @@ public class CrudConfiguration implements JsonInitializable, Serializable {
         this.memoryIndexThreshold = memoryIndexThreshold;
     }
 
+    /**
+     * Maximum number of threads a single composite find can use
+     */
+    public int getCompositeParallelism() {
+        return compositeParallelism;
+    }
+
+    public void setCompositeParallelism(int compositeParallelism) {
+        this.compositeParallelism = compositeParallelism;
+    }
+
+    /**
+     * Number of threads of the executor shared by all composite finds.
+     * If 0, the number of available processors is used.
+     */
+    public int getCompositeExecutorParallelism() {
+        return compositeExecutorParallelism;
+    }
+
+    public void setCompositeExecutorParallelism(int compositeExecutorParallelism) {
+        this.compositeExecutorParallelism = compositeExecutorParallelism;
+    }
+
+    /**
+     * Number of documents or join tuples combined into a single search
+     * during composite finds
+     */
+    public int getCompositeBatchSize() {
+        return compositeBatchSize;
+    }
+
+    public void setCompositeBatchSize(int compositeBatchSize) {
+        this.compositeBatchSize = compositeBatchSize;
+    }
+
+    /**
+     * Number of batches retrieved in advance while the current batch
+     * is consumed during composite finds. If 0, batches are retrieved
+     * one at a time.
+     */
+    public int getCompositePrefetchBatches() {
+        return compositePrefetchBatches;
+    }
+
+    public void setCompositePrefetchBatches(int compositePrefetchBatches) {
+        this.compositePrefetchBatches = compositePrefetchBatches;
+    }
+
+    /**
+     * Whether composite find batch sizes are adjusted based on observed
+     * batch latency, result size, and query size
+     */
+    public boolean isCompositeAdaptiveBatching() {
+        return compositeAdaptiveBatching;
+    }
+
+    public void setCompositeAdaptiveBatching(boolean compositeAdaptiveBatching) {
+        this.compositeAdaptiveBatching = compositeAdaptiveBatching;
+    }
+
+    public int getCompositeMinBatchSize() {
+        return compositeMinBatchSize;
+    }
+
+    public void setCompositeMinBatchSize(int compositeMinBatchSize) {
+        this.compositeMinBatchSize = compositeMinBatchSize;
+    }
+
+    public int getCompositeMaxBatchSize() {
+        return compositeMaxBatchSize;
+    }
+
+    public void setCompositeMaxBatchSize(int compositeMaxBatchSize) {
+        this.compositeMaxBatchSize = compositeMaxBatchSize;
+    }
+
+    /**
+     * Maximum number of terms in a combined composite find batch query
+     */
+    public int getCompositeMaxQuerySize() {
+        return compositeMaxQuerySize;
+    }
+
+    public void setCompositeMaxQuerySize(int compositeMaxQuerySize) {
+        this.compositeMaxQuerySize = compositeMaxQuerySize;
+    }
+
+    /**
+     * Batches slower than this are made smaller by adaptive batching
+     */
+    public long getCompositeBatchTargetLatencyMs() {
+        return compositeBatchTargetLatencyMs;
+    }
+
+    public void setCompositeBatchTargetLatencyMs(long compositeBatchTargetLatencyMs) {
+        this.compositeBatchTargetLatencyMs = compositeBatchTargetLatencyMs;
+    }
+
+    /**
+     * Approximate maximum size of the results of a composite find batch
+     */
+    public long getCompositeMaxBatchBytes() {
+        return compositeMaxBatchBytes;
+    }
+
+    public void setCompositeMaxBatchBytes(long compositeMaxBatchBytes) {
+        this.compositeMaxBatchBytes = compositeMaxBatchBytes;
+    }
+
+    /**
+     * Maximum number of query shapes whose composite find query plans
+     * are cached. 0 disables the cache.
+     */
+    public int getCompositePlanCacheSize() {
+        return compositePlanCacheSize;
+    }
+
+    public void setCompositePlanCacheSize(int compositePlanCacheSize) {
+        this.compositePlanCacheSize = compositePlanCacheSize;
+    }
+
+    /**
+     * If true, composite find query plans are scored using the result
+     * counts and latencies observed by earlier composite finds
+     */
+    public boolean isCompositePlanStatistics() {
+        return compositePlanStatistics;
+    }
+
+    public void setCompositePlanStatistics(boolean compositePlanStatistics) {
+        this.compositePlanStatistics = compositePlanStatistics;
+    }
+
+    /**
+     * Number of documents validated by a single task during constraint
+     * validation. Larger document lists are validated in parallel. 0
+     * disables parallel validation.
+     */
+    public int getValidationBatchSize() {
+        return validationBatchSize;
+    }
+
+    public void setValidationBatchSize(int validationBatchSize) {
+        this.validationBatchSize = validationBatchSize;
+    }
+
+    /**
+     * Number of threads of the executor shared by all parallel
+     * constraint validations. If 0, the number of available processors
+     * is used.
+     */
+    public int getValidationExecutorParallelism() {
+        return validationExecutorParallelism;
+    }
+
+    public void setValidationExecutorParallelism(int validationExecutorParallelism) {
+        this.validationExecutorParallelism = validationExecutorParallelism;
+    }
+
+    /**
+     * If true, hooks are called asynchronously
+     */
+    public boolean isAsyncHooks() {
+        return asyncHooks;
+    }
+
+    public void setAsyncHooks(boolean asyncHooks) {
+        this.asyncHooks = asyncHooks;
+    }
+
+    /**
+     * Maximum number of hook calls queued for a hook worker
+     */
+    public int getHookQueueCapacity() {
+        return hookQueueCapacity;
+    }
+
+    public void setHookQueueCapacity(int hookQueueCapacity) {
+        this.hookQueueCapacity = hookQueueCapacity;
+    }
+
+    /**
+     * Number of worker threads for every asynchronous hook
+     */
+    public int getHookWorkers() {
+        return hookWorkers;
+    }
+
+    public void setHookWorkers(int hookWorkers) {
+        this.hookWorkers = hookWorkers;
+    }
+
+    /**
+     * Maximum number of documents of queued hook calls combined into a
+     * single hook call
+     */
+    public int getHookBatchSize() {
+        return hookBatchSize;
+    }
+
+    public void setHookBatchSize(int hookBatchSize) {
+        this.hookBatchSize = hookBatchSize;
+    }
+
+    /**
+     * What happens when a hook queue is full: BLOCK, DROP, or SPILL
+     * (call the hook synchronously)
+     */
+    public AsyncHookDispatcher.OverflowPolicy getHookOverflowPolicy() {
+        return hookOverflowPolicy;
+    }
+
+    public void setHookOverflowPolicy(AsyncHookDispatcher.OverflowPolicy hookOverflowPolicy) {
+        this.hookOverflowPolicy = hookOverflowPolicy;
+    }
+
+    /**
+     * Composite find batch sizes configured for individual entities
+     */
+    public Map<String, Integer> getEntityCompositeBatchSize() {
+        return entityCompositeBatchSize;
+    }
+
+    /**
+     * Composite find prefetch batches configured for individual
+     * entities
+     */
+    public Map<String, Integer> getEntityCompositePrefetchBatches() {
+        return entityCompositePrefetchBatches;
+    }
+
     public int getMaxResultSetSizeForReadsB() {
         return maxResultSetSizeForReadsB;
     }
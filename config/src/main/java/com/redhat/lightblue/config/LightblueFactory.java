@@ -171,7 +171,36 @@ public final class LightblueFactory implements Serializable {
 
             Factory f = new Factory();
             f.setBulkParallelExecutions(crudConfiguration.getBulkParallelExecutions());
+            f.setBulkMaxConcurrency(crudConfiguration.getBulkMaxConcurrency());
+            f.setBulkMaxQueueDepth(crudConfiguration.getBulkMaxQueueDepth());
+            f.setBulkOverflowPolicy(crudConfiguration.getBulkOverflowPolicy());
+            f.setBulkFairness(crudConfiguration.getBulkFairness());
             f.setMemoryIndexThreshold(crudConfiguration.getMemoryIndexThreshold());
+            f.setCompositeParallelism(crudConfiguration.getCompositeParallelism());
+            f.setCompositeExecutorParallelism(crudConfiguration.getCompositeExecutorParallelism());
+            f.setCompositeBatchSize(crudConfiguration.getCompositeBatchSize());
+            f.setCompositePrefetchBatches(crudConfiguration.getCompositePrefetchBatches());
+            f.setCompositeAdaptiveBatching(crudConfiguration.isCompositeAdaptiveBatching());
+            f.setCompositeMinBatchSize(crudConfiguration.getCompositeMinBatchSize());
+            f.setCompositeMaxBatchSize(crudConfiguration.getCompositeMaxBatchSize());
+            f.setCompositeMaxQuerySize(crudConfiguration.getCompositeMaxQuerySize());
+            f.setCompositeBatchTargetLatencyMs(crudConfiguration.getCompositeBatchTargetLatencyMs());
+            f.setCompositeMaxBatchBytes(crudConfiguration.getCompositeMaxBatchBytes());
+            f.setCompositePlanCacheSize(crudConfiguration.getCompositePlanCacheSize());
+            f.setCompositePlanStatistics(crudConfiguration.isCompositePlanStatistics());
+            f.setValidationBatchSize(crudConfiguration.getValidationBatchSize());
+            f.setValidationExecutorParallelism(crudConfiguration.getValidationExecutorParallelism());
+            f.setAsyncHooks(crudConfiguration.isAsyncHooks());
+            f.setHookQueueCapacity(crudConfiguration.getHookQueueCapacity());
+            f.setHookWorkers(crudConfiguration.getHookWorkers());
+            f.setHookBatchSize(crudConfiguration.getHookBatchSize());
+            f.setHookOverflowPolicy(crudConfiguration.getHookOverflowPolicy());
+            for (Map.Entry<String, Integer> entry : crudConfiguration.getEntityCompositeBatchSize().entrySet()) {
+                f.setCompositeBatchSize(entry.getKey(), entry.getValue());
+            }
+            for (Map.Entry<String, Integer> entry : crudConfiguration.getEntityCompositePrefetchBatches().entrySet()) {
+                f.setCompositePrefetchBatches(entry.getKey(), entry.getValue());
+            }
             f.addFieldConstraintValidators(new DefaultFieldConstraintValidators());
             f.setMaxResultSetSizeForReadsB(crudConfiguration.getMaxResultSetSizeForReadsB());
             f.setWarnResultSetSizeB(crudConfiguration.getWarnResultSetSizeB());
@@ -205,7 +234,7 @@ public final class LightblueFactory implements Serializable {
             getJsonTranslator().setValidation(EntitySchema.class, cfg.isValidateRequests());
             getJsonTranslator().setValidation(EntityInfo.class, cfg.isValidateRequests());
 
-            metadata = cfg.createMetadata(datasources, getJSONParser(), this);
+            metadata = cfg.wrapMetadata(cfg.createMetadata(datasources, getJSONParser(), this));
 
             factory.setHookResolver(new SimpleHookResolver(cfg.getHookConfigurationParsers(), this));
         }
@@ -402,6 +431,16 @@ public final class LightblueFactory implements Serializable {
         return jsonTranslator;
     }
 
+    /**
+     * Stops the shared executors and schedulers of the CRUD factory
+     */
+    public void close() {
+        Factory f = factory;
+        if (f != null) {
+            f.close();
+        }
+    }
+
     void injectDependencies(Object o) {
 
         if (o instanceof LightblueFactoryAware) {
@@ -45,6 +45,14 @@ public interface MetadataConfiguration extends JsonInitializable {
      */
     Metadata createMetadata(DataSourcesConfiguration ds, JSONMetadataParser parser, LightblueFactory mgr);
 
+    /**
+     * Wraps the metadata instance created by createMetadata, for instance,
+     * to cache it. The default implementation returns the metadata as is.
+     */
+    default Metadata wrapMetadata(Metadata md) {
+        return md;
+    }
+
     /**
      * returns the list of configured hooks
      */
@@ -28,6 +28,7 @@ import org.junit.Test;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.redhat.lightblue.Response;
+import com.redhat.lightblue.metadata.CachingMetadata;
 import com.redhat.lightblue.metadata.EntityInfo;
 import com.redhat.lightblue.metadata.EntityMetadata;
 import com.redhat.lightblue.metadata.Metadata;
@@ -144,4 +145,32 @@ public class MetadataConfigurationTest {
         Assert.assertNotNull(metadata.extensions.getPropertyParser("TestPropertyParser"));
         Assert.assertNotNull(metadata.extensions.getDataStoreParser("TestDataStoreParser"));
     }
+
+    public static class TestChangeTokenProvider implements CachingMetadata.ChangeTokenProvider {
+        @Override
+        public Object getChangeToken() {
+            return "token";
+        }
+    }
+
+    @Test
+    public void testCache() throws Exception {
+        TestConfig config = new TestConfig();
+        config.initializeFromJson(json("{}"));
+        Metadata md = new TestMetadata(null);
+        Assert.assertSame(md, config.wrapMetadata(md));
+
+        config = new TestConfig();
+        config.initializeFromJson(json("{\"cache\":{\"ttlMs\":60000,\"refreshAheadMs\":10000,\"refreshThreads\":3,\"changeTokenCheckMs\":500,"
+                + "\"changeTokenProvider\":\"com.redhat.lightblue.config.MetadataConfigurationTest$TestChangeTokenProvider\"}}"));
+        Assert.assertEquals(60000, config.getCacheTTLMs());
+        Assert.assertEquals(10000, config.getCacheRefreshAheadMs());
+        Assert.assertEquals(3, config.getCacheRefreshThreads());
+        Assert.assertEquals(500, config.getCacheChangeTokenCheckMs());
+        Assert.assertTrue(config.getCacheChangeTokenProvider() instanceof TestChangeTokenProvider);
+        Metadata wrapped = config.wrapMetadata(md);
+        Assert.assertTrue(wrapped instanceof CachingMetadata);
+        Assert.assertSame(md, ((CachingMetadata) wrapped).getMetadata());
+        Assert.assertEquals(3, ((CachingMetadata) wrapped).getRefreshThreads());
+    }
 }
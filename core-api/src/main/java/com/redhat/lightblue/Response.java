@@ -123,16 +123,36 @@ public class Response extends BaseResponse  {
                 memoryMonitor.apply(doc);
             }
 
-            if(entityData==null) {
-                entityData=JsonNodeFactory.instance.arrayNode();
+            appendEntityData(doc);
+        }
+    }
+
+    /**
+     * Adds a document, or array of documents to the entity data, whose size
+     * is already known. The size is used for the result size thresholds
+     * instead of computing it again.
+     */
+    public void addEntityData(JsonNode doc, int sizeB) {
+        if(doc!=null) {
+
+            if (memoryMonitor != null) {
+                memoryMonitor.apply(doc, sizeB);
             }
-            if(doc instanceof ArrayNode) {
-                for(Iterator<JsonNode> itr=doc.elements();itr.hasNext();) {
-                    ((ArrayNode)entityData).add(itr.next());
-                }
-            } else {
-                ((ArrayNode)entityData).add(doc);
+
+            appendEntityData(doc);
+        }
+    }
+
+    private void appendEntityData(JsonNode doc) {
+        if(entityData==null) {
+            entityData=JsonNodeFactory.instance.arrayNode();
+        }
+        if(doc instanceof ArrayNode) {
+            for(Iterator<JsonNode> itr=doc.elements();itr.hasNext();) {
+                ((ArrayNode)entityData).add(itr.next());
             }
+        } else {
+            ((ArrayNode)entityData).add(doc);
         }
     }
 
@@ -383,6 +383,27 @@ public class ResponseTest {
         assertTrue(response.toJson().equals(expectedNode));
     }
 
+    @Test
+    public void testAddEntityDataWithKnownSize() {
+        response.setResultSizeThresholds(100, 0, null);
+        ObjectNode doc = JsonObject.getFactory().objectNode();
+        doc.put("field", "value");
+
+        response.addEntityData(doc, 60);
+        assertEquals(60, response.getResponseDataSizeB());
+        assertEquals(1, response.getEntityData().size());
+
+        try {
+            response.addEntityData(doc, 60);
+            fail();
+        } catch (Error e) {
+            assertEquals(Response.ERR_RESULT_SIZE_TOO_LARGE, e.getErrorCode());
+            assertEquals("120B > 100B", e.getMsg());
+        }
+        assertEquals(OperationStatus.ERROR, response.getStatus());
+        assertEquals(0, response.getEntityData().size());
+    }
+
     private List<DataError> getPopulatedDataErrors(int numberOfErrors) {
         List<DataError> dataErrors = new ArrayList<>();
 
@@ -24,11 +24,16 @@ import java.util.List;
 import java.util.ArrayList;
 import java.util.Arrays;
 
-import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
 import com.redhat.lightblue.query.QueryExpression;
 
 import com.redhat.lightblue.crud.CRUDFindResponse;
@@ -43,7 +48,8 @@ import com.redhat.lightblue.mediator.OperationContext;
 import com.redhat.lightblue.mediator.Mediator;
 
 import com.redhat.lightblue.assoc.scorers.IndexedFieldScorer;
-import com.redhat.lightblue.assoc.iterators.BruteForceQueryPlanIterator;
+import com.redhat.lightblue.assoc.scorers.StatisticsScorer;
+import com.redhat.lightblue.assoc.iterators.GreedyQueryPlanIterator;
 import com.redhat.lightblue.assoc.scorers.SimpleScorer;
 import com.redhat.lightblue.assoc.iterators.First;
 
@@ -74,6 +80,7 @@ import com.redhat.lightblue.util.JsonDoc;
 public class CompositeFindImpl implements Finder {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(CompositeFindImpl.class);
+    private static final Logger METRICS = LoggerFactory.getLogger("metrics." + CompositeFindImpl.class.getName());
 
     private final CompositeMetadata root;
 
@@ -87,8 +94,12 @@ public class CompositeFindImpl implements Finder {
     // retrieves the found documents
     private transient QueryPlan searchQPlan;
     private transient QueryPlan retrievalQPlan;
+    // The query plan chosen for all entities while selecting the search plan, if any
+    private transient QueryPlan fullQPlan;
 
     private transient ExecutionPlan executionPlan;
+    // Execution statistics used to score query plans, null if disabled
+    private transient ExecutionStatistics statistics;
     private int parallelism = 1;
 
     public CompositeFindImpl(CompositeMetadata md) {
@@ -96,17 +107,31 @@ public class CompositeFindImpl implements Finder {
     }
 
     /**
-     * Set maximum number of threads that can run in parallel. There's a hard
-     * limit on 10
+     * Set maximum number of threads that can run in parallel. The
+     * actual number of threads used for a find can be lower, see
+     * {@link #getEffectiveParallelism(ThreadPoolExecutor)}
      */
     public void setParallelism(int n) {
         parallelism = n;
         if (parallelism < 1) {
             parallelism = 1;
         }
-        if (parallelism > 10) {
-            parallelism = 10;
+    }
+
+    /**
+     * Returns the number of threads to use for the execution plan. This
+     * is at most the configured parallelism, and at most the number of
+     * execution blocks, since there can't be more steps running in
+     * parallel than there are blocks. If more than half of the executor
+     * threads are busy, the parallelism is halved, so that the
+     * concurrent finds share the executor.
+     */
+    protected int getEffectiveParallelism(ThreadPoolExecutor executor) {
+        int n = Math.min(parallelism, Math.max(1, executionPlan.getNumBlocks()));
+        if (executor.getActiveCount() * 2 > executor.getMaximumPoolSize()) {
+            n = Math.max(1, n / 2);
         }
+        return n;
     }
 
     private void initialize(OperationContext ctx,
@@ -125,7 +150,8 @@ public class CompositeFindImpl implements Finder {
             Set<CompositeMetadata> minimalTree = findMinimalSetOfQueryEntities(req.getQuery(),
                                                                                ctx.getTopLevelEntityMetadata());
             
-            selectQueryPlan(req.getQuery(), minimalTree);
+            statistics = ctx.getFactory().getExecutionStatistics();
+            selectQueryPlan(req.getQuery(), minimalTree, ctx.getFactory().getQueryPlanCache());
             LOGGER.debug("Search query plan:{}, retrieval query plan:{}", searchQPlan, retrievalQPlan);
             
             executionPlan = new ExecutionPlan(req.getQuery(),
@@ -145,7 +171,11 @@ public class CompositeFindImpl implements Finder {
                         CRUDFindRequest req) {
         initialize(ctx,req);
         ExecutionContext executionContext = new ExecutionContext(ctx,null);
-        JsonDoc doc=new JsonDoc(executionPlan.explain(executionContext));
+        JsonNode explain=executionPlan.explain(executionContext);
+        if(statistics!=null&&explain instanceof ObjectNode) {
+            ((ObjectNode)explain).set("statistics",statistics.toJson(QueryPlanCache.getEntities(root)));
+        }
+        JsonDoc doc=new JsonDoc(explain);
         ctx.setDocumentStream(new ListDocumentStream<DocCtx>(Arrays.asList(new DocCtx(doc))));
     }
     
@@ -160,8 +190,10 @@ public class CompositeFindImpl implements Finder {
         LOGGER.debug("Execution plan:{}", executionPlan);
 
         CRUDFindResponse response = new CRUDFindResponse();
+        ThreadPoolExecutor executor = ctx.getFactory().getCompositeExecutor();
         ExecutionContext executionContext = new ExecutionContext(ctx,
-                Executors.newWorkStealingPool(parallelism));
+                executor,
+                getEffectiveParallelism(executor));
         try {
             StepResult<ResultDocument> results = executionPlan.getResults(executionContext);
             ctx.setDocumentStream(new StepResultDocumentStream(new MakeDocCtx(results)));            	
@@ -170,6 +202,27 @@ public class CompositeFindImpl implements Finder {
             return response;
         } finally {
             executionContext.close();
+            METRICS.debug("composite find {}: blocks={}, {}", root.getName(), executionPlan.getNumBlocks(), executionContext);
+            recordMetrics(ctx.getFactory().getMetricRegistry(), executionContext);
+        }
+    }
+
+    /**
+     * Records the concurrency metrics of the execution under
+     * composite.&lt;entity&gt;: the effective parallelism, the maximum
+     * number of tasks that ran concurrently, the number of tasks run on
+     * the executor and in the calling thread, and the time spent waiting
+     * for task results.
+     */
+    private void recordMetrics(MetricRegistry metrics, ExecutionContext executionContext) {
+        if (metrics != null) {
+            String entity = root.getName();
+            long inline = executionContext.getInlineTaskCount();
+            metrics.histogram(MetricRegistry.name("composite", entity, "parallelism")).update(executionContext.getParallelism());
+            metrics.histogram(MetricRegistry.name("composite", entity, "maxConcurrentTasks")).update(executionContext.getMaxConcurrentTaskCount());
+            metrics.counter(MetricRegistry.name("composite", entity, "executorTasks")).inc(executionContext.getSubmittedTaskCount() - inline);
+            metrics.counter(MetricRegistry.name("composite", entity, "inlineTasks")).inc(inline);
+            metrics.timer(MetricRegistry.name("composite", entity, "wait")).update(executionContext.getWaitNanos(), TimeUnit.NANOSECONDS);
         }
     }
 
@@ -184,36 +237,58 @@ public class CompositeFindImpl implements Finder {
      * search plan can both search and retrieve the entities, there will be only
      * a retrieval plan.
      *
-     *
+     * If there is a query plan cache, the plans chosen for an earlier
+     * query with the same shape are reused.
      */
     private void selectQueryPlan(QueryExpression requestQuery,
-                                 Set<CompositeMetadata> minimalTree) {
-        searchQPlan = retrievalQPlan = null;
+                                 Set<CompositeMetadata> minimalTree,
+                                 QueryPlanCache cache) {
+        String key = null;
+        QueryPlanCache.CachedPlans cached = null;
+        if (cache != null && minimalTree.size() > 1) {
+            key = QueryPlanCache.getKey(root, requestQuery);
+            if (statistics != null) {
+                // Choose the plans again as the statistics change
+                key = key + "#" + statistics.getEpoch();
+            }
+            cached = cache.get(key);
+            LOGGER.debug("Cached query plans for {}: {}", key, cached);
+        }
+        selectQueryPlan(requestQuery, minimalTree, cached);
+        if (key != null && cached == null) {
+            cache.put(key, new QueryPlanCache.CachedPlans(searchQPlan == null ? null : searchQPlan.getConnMx(),
+                    fullQPlan == null ? null : fullQPlan.getConnMx(),
+                    QueryPlanCache.getEntities(root)));
+        }
+    }
+
+    private void selectQueryPlan(QueryExpression requestQuery,
+                                 Set<CompositeMetadata> minimalTree,
+                                 QueryPlanCache.CachedPlans cached) {
+        searchQPlan = retrievalQPlan = fullQPlan = null;
 
         if (minimalTree.size() > 1) {
             // There are multiple entities required to evaluate the query
 
             // Choose a query plan
-            QueryPlan searchQP = new QueryPlanChooser(root,
-                    new BruteForceQueryPlanIterator(),
-                    new IndexedFieldScorer(),
-                    requestQuery,
-                    minimalTree).choose();
-            LOGGER.debug("Candidate plan: {}", searchQP);
+            QueryPlan searchQP;
+            if (cached != null && cached.getSearchPlan() == null) {
+                // The plan for all entities was used before, no need to choose the search plan
+                searchQP = null;
+            } else {
+                searchQP = choose(requestQuery, minimalTree, cached == null ? null : cached.getSearchPlan());
+                LOGGER.debug("Candidate plan: {}", searchQP);
+            }
             // If the query plan has only one source, and that source is the root, then
             // we don't need to search and retrieve in two separate steps, we can simply
             // retrieve everything while we search
-            QueryPlanNode[] roots = searchQP.getSources();
-            if (roots.length == 1 && roots[0].getMetadata() == root) {
+            QueryPlanNode[] roots = searchQP == null ? null : searchQP.getSources();
+            if (searchQP == null || (roots.length == 1 && roots[0].getMetadata() == root)) {
                 LOGGER.debug("Search is trivial, root node is at query plan root, so search and retrieve");
                 // Build a new query plan containing all entities. This plan should
                 // have the same root as before. If not, something must be
                 // wrong, and we fall back to a search/retrieve query
-                QueryPlan fullPlan = new QueryPlanChooser(root,
-                        new BruteForceQueryPlanIterator(),
-                        new IndexedFieldScorer(),
-                        requestQuery,
-                        null).choose();
+                QueryPlan fullPlan = fullQPlan = choose(requestQuery, null, cached == null ? null : cached.getFullPlan());
                 // This plan must also have a single root
                 roots = fullPlan.getSources();
                 if (roots.length == 1 && roots[0].getMetadata() == root) {
@@ -252,6 +327,22 @@ public class CompositeFindImpl implements Finder {
         }
     }
 
+    /**
+     * Chooses a query plan for the given entities. If the directions
+     * of the query plan edges are given, the plan with those directions
+     * is returned without scoring other plans.
+     */
+    private QueryPlan choose(QueryExpression requestQuery,
+                             Set<CompositeMetadata> filter,
+                             ConnMx directions) {
+        QueryPlanChooser chooser = new QueryPlanChooser(root,
+                new GreedyQueryPlanIterator(),
+                statistics == null ? new IndexedFieldScorer() : new StatisticsScorer(statistics),
+                requestQuery,
+                filter);
+        return directions == null ? chooser.choose() : chooser.choose(directions);
+    }
+
     /**
      * Determine which entities are required to evaluate the given query
      */
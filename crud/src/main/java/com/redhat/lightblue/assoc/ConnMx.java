@@ -51,6 +51,21 @@ public class ConnMx implements Serializable {
         }
     }
 
+    /**
+     * Copies the connections of the source matrix into this matrix
+     *
+     * @throws IllegalArgumentException if the matrices have different
+     * sizes
+     */
+    public void copyFrom(ConnMx source) {
+        if (source.connMx.length != connMx.length) {
+            throw new IllegalArgumentException("Expected " + connMx.length + " nodes, got " + source.connMx.length);
+        }
+        for (int i = 0; i < connMx.length; i++) {
+            System.arraycopy(source.connMx[i], 0, connMx[i], 0, connMx.length);
+        }
+    }
+
     /**
      * Returns the sources of the given node
      */
@@ -0,0 +1,302 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.assoc;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import com.redhat.lightblue.query.NaryLogicalExpression;
+import com.redhat.lightblue.query.NaryLogicalOperator;
+import com.redhat.lightblue.query.QueryExpression;
+
+/**
+ * Result counts and latencies observed by the searches of composite
+ * finds, kept per entity, and per entity and query shape.
+ *
+ * Every search reports the number of probes it ran, the number of
+ * documents it found, and how long it took. A probe is a single query
+ * combined into the search: a search for the root documents is one
+ * probe, and a batch of n join tuples or n child retrievals is n
+ * probes. The query shape is the query of the query plan node, with
+ * the literal values removed, see {@link #getQueryShape(List)}.
+ *
+ * All observations decay exponentially, so recent searches weigh more
+ * than old ones, and the estimates follow changes in the data. The
+ * number of query shapes kept for an entity is bounded, the least
+ * recently used shapes are dropped first.
+ */
+public class ExecutionStatistics {
+
+    /**
+     * Weight of the existing observations when a new one is recorded
+     */
+    public static final double DEFAULT_DECAY = 0.95;
+
+    /**
+     * Maximum number of query shapes kept per entity
+     */
+    public static final int MAX_SHAPES_PER_ENTITY = 256;
+
+    /**
+     * The statistics epoch advances after this many searches
+     */
+    public static final int EPOCH_SIZE = 1024;
+
+    private static final int NUM_BUCKETS = 32;
+
+    /**
+     * Decaying statistics for a set of searches
+     */
+    public static class Stat {
+        private double searches;
+        private double probes;
+        private double results;
+        private double latencyMs;
+        private long count;
+        // histogram[0] counts probes with no results, histogram[i]
+        // counts probes with 2^(i-1) to 2^i-1 results
+        private final double[] histogram = new double[NUM_BUCKETS];
+
+        private void record(double decay, int numProbes, long numResults, long elapsedMs) {
+            searches = searches * decay + 1;
+            probes = probes * decay + numProbes;
+            results = results * decay + numResults;
+            latencyMs = latencyMs * decay + elapsedMs;
+            for (int i = 0; i < histogram.length; i++) {
+                histogram[i] *= decay;
+            }
+            long perProbe = numResults / Math.max(1, numProbes);
+            histogram[Math.min(NUM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(perProbe))] += numProbes;
+            count++;
+        }
+
+        private Stat copy() {
+            Stat s = new Stat();
+            s.searches = searches;
+            s.probes = probes;
+            s.results = results;
+            s.latencyMs = latencyMs;
+            s.count = count;
+            System.arraycopy(histogram, 0, s.histogram, 0, histogram.length);
+            return s;
+        }
+
+        /**
+         * Number of searches observed, without decay
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Estimated number of documents returned by a single probe
+         */
+        public double getResultsPerProbe() {
+            return probes > 0 ? results / probes : 0;
+        }
+
+        /**
+         * Estimated latency of a search, in milliseconds
+         */
+        public double getLatencyMsPerSearch() {
+            return searches > 0 ? latencyMs / searches : 0;
+        }
+
+        /**
+         * Returns an estimate of the given percentile of the number of
+         * documents returned by a probe, using the upper bound of the
+         * histogram bucket containing the percentile
+         */
+        public long getResultsPerProbePercentile(double p) {
+            double total = 0;
+            for (double x : histogram) {
+                total += x;
+            }
+            double n = 0;
+            for (int i = 0; i < histogram.length; i++) {
+                n += histogram[i];
+                if (n >= total * p) {
+                    return i == 0 ? 0 : (1l << i) - 1;
+                }
+            }
+            return (1l << (NUM_BUCKETS - 1)) - 1;
+        }
+
+        public JsonNode toJson() {
+            ObjectNode node = JsonNodeFactory.instance.objectNode();
+            node.put("count", count);
+            node.put("resultsPerProbe", getResultsPerProbe());
+            node.put("resultsPerProbeP90", getResultsPerProbePercentile(0.9));
+            node.put("latencyMsPerSearch", getLatencyMsPerSearch());
+            return node;
+        }
+
+        @Override
+        public String toString() {
+            return toJson().toString();
+        }
+    }
+
+    private static class EntityStats {
+        private final Stat all = new Stat();
+        private final LinkedHashMap<String, Stat> byQuery = new LinkedHashMap<String, Stat>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Stat> eldest) {
+                return size() > MAX_SHAPES_PER_ENTITY;
+            }
+        };
+    }
+
+    private final double decay;
+    private final Map<String, EntityStats> entities = new HashMap<>();
+    private long numSearches;
+
+    public ExecutionStatistics() {
+        this(DEFAULT_DECAY);
+    }
+
+    /**
+     * @param decay Weight of the existing observations when a new one
+     * is recorded, between 0 and 1
+     */
+    public ExecutionStatistics(double decay) {
+        if (decay < 0 || decay > 1) {
+            throw new IllegalArgumentException("decay=" + decay);
+        }
+        this.decay = decay;
+    }
+
+    /**
+     * Records the results of a search
+     *
+     * @param entityName The entity searched
+     * @param queryShape The query shape of the query plan node
+     * @param probes Number of queries combined in the search
+     * @param results Number of documents found
+     * @param elapsedMs Duration of the search
+     */
+    public synchronized void record(String entityName, String queryShape, int probes, long results, long elapsedMs) {
+        EntityStats e = entities.get(entityName);
+        if (e == null) {
+            entities.put(entityName, e = new EntityStats());
+        }
+        e.all.record(decay, probes, results, elapsedMs);
+        Stat s = e.byQuery.get(queryShape);
+        if (s == null) {
+            e.byQuery.put(queryShape, s = new Stat());
+        }
+        s.record(decay, probes, results, elapsedMs);
+        numSearches++;
+    }
+
+    /**
+     * Returns a copy of the statistics for the entity and query shape,
+     * or null if there aren't any
+     */
+    public synchronized Stat getStat(String entityName, String queryShape) {
+        EntityStats e = entities.get(entityName);
+        if (e != null) {
+            Stat s = e.byQuery.get(queryShape);
+            if (s != null) {
+                return s.copy();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns a copy of the statistics for all searches on the entity,
+     * or null if there aren't any
+     */
+    public synchronized Stat getStat(String entityName) {
+        EntityStats e = entities.get(entityName);
+        return e == null ? null : e.all.copy();
+    }
+
+    /**
+     * Returns the statistics epoch. The epoch advances after every
+     * {@link #EPOCH_SIZE} searches, so anything derived from the
+     * statistics can be recomputed periodically.
+     */
+    public synchronized long getEpoch() {
+        return numSearches / EPOCH_SIZE;
+    }
+
+    public synchronized void clear() {
+        entities.clear();
+        numSearches = 0;
+    }
+
+    /**
+     * Returns the statistics of the given entities as JSON
+     */
+    public synchronized JsonNode toJson(Collection<String> entityNames) {
+        ObjectNode node = JsonNodeFactory.instance.objectNode();
+        for (String name : entityNames) {
+            EntityStats e = entities.get(name);
+            if (e != null) {
+                ObjectNode entityNode = (ObjectNode) e.all.toJson();
+                ArrayNode queries = JsonNodeFactory.instance.arrayNode();
+                for (Map.Entry<String, Stat> entry : e.byQuery.entrySet()) {
+                    ObjectNode q = (ObjectNode) entry.getValue().toJson();
+                    q.put("query", entry.getKey());
+                    queries.add(q);
+                }
+                entityNode.set("queries", queries);
+                node.set(name, entityNode);
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Returns the query shape of the conjuncts of a query plan node:
+     * the conjunction of the clauses, with literal values removed
+     */
+    public static String getQueryShape(List<Conjunct> conjuncts) {
+        if (conjuncts == null || conjuncts.isEmpty()) {
+            return "";
+        }
+        QueryExpression q;
+        if (conjuncts.size() == 1) {
+            q = conjuncts.get(0).getClause();
+        } else {
+            List<QueryExpression> l = new ArrayList<>(conjuncts.size());
+            for (Conjunct c : conjuncts) {
+                l.add(c.getClause());
+            }
+            q = new NaryLogicalExpression(NaryLogicalOperator._and, l);
+        }
+        return QueryPlanCache.getQueryShape(q.toJson()).toString();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ExecutionStatistics [entities=" + entities.keySet() + ", searches=" + numSearches + "]";
+    }
+}
@@ -22,6 +22,7 @@ import java.io.Serializable;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Set;
 import java.util.Map;
 import java.util.HashMap;
@@ -198,7 +199,10 @@ public class QueryPlan implements Serializable {
         int from = md.size();
         if (filter == null || filter.contains(root)) {
             md.add(root);
-            Set<Path> children = root.getChildPaths();
+            // Child paths are kept in a set. Use a predictable order, so
+            // the node indexes are the same for all query plans built
+            // for the same entities, and cached plans can be reused
+            List<Path> children = getSortedChildPaths(root);
             LOGGER.debug("Children:{}", children);
             for (Path p : children) {
                 CompositeMetadata child = root.getChildMetadata(p);
@@ -210,6 +214,16 @@ public class QueryPlan implements Serializable {
         }
     }
 
+    /**
+     * Returns the child paths of the metadata, sorted by their string
+     * representation
+     */
+    static List<Path> getSortedChildPaths(CompositeMetadata md) {
+        List<Path> children = new ArrayList<>(md.getChildPaths());
+        Collections.sort(children, (x, y) -> x.toString().compareTo(y.toString()));
+        return children;
+    }
+
     /**
      * Copy constructor.
      *
@@ -308,6 +322,33 @@ public class QueryPlan implements Serializable {
         }
     }
 
+    /**
+     * Returns a copy of the connection matrix of the query plan. The
+     * connection matrix determines the directions of the edges.
+     */
+    public ConnMx getConnMx() {
+        return new ConnMx(mx);
+    }
+
+    /**
+     * Sets the directions of the edges of this query plan from the
+     * given connection matrix, obtained from a query plan built for
+     * the same entities
+     *
+     * @throws IllegalArgumentException if the connection matrix
+     * connects nodes that are not connected in this query plan
+     */
+    public void setConnMx(ConnMx source) {
+        for (int i = 0; i < nodes.length; i++) {
+            for (int j = i + 1; j < nodes.length; j++) {
+                if (source.isUndirectedConnected(i, j) != mx.isUndirectedConnected(i, j)) {
+                    throw new IllegalArgumentException("Connection matrix does not match query plan");
+                }
+            }
+        }
+        mx.copyFrom(source);
+    }
+
     /**
      * Returns true if node from is connected to node to in the query
      * plan, as well as the metadata. Returns false otherwise
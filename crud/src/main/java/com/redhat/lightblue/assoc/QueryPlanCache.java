@@ -0,0 +1,256 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.assoc;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+
+import com.redhat.lightblue.metadata.CompositeMetadata;
+import com.redhat.lightblue.metadata.Index;
+import com.redhat.lightblue.metadata.IndexSortKey;
+import com.redhat.lightblue.metadata.Indexes;
+import com.redhat.lightblue.query.QueryExpression;
+import com.redhat.lightblue.util.Path;
+
+/**
+ * A bounded LRU cache of the query plans chosen for composite finds.
+ *
+ * Choosing a query plan means scoring many candidate plans. The chosen
+ * plan depends only on the composite metadata and on the fields and
+ * operators of the request query, not on the values the query compares
+ * against. So the plans chosen for a query can be reused for all
+ * queries with the same shape. The cache key combines:
+ * <ul>
+ * <li>The names, versions, entity paths and indexes of all the entities
+ * in the composite metadata. The composite metadata already reflects
+ * the request projection. Since the key changes when the metadata
+ * changes, stale plans are never used, and they age out of the
+ * cache.</li>
+ * <li>The request query with all literal values replaced by '?'</li>
+ * </ul>
+ * Only the directions of the query plan edges are cached. The request
+ * query is still assigned to the nodes of a new query plan for every
+ * request, so the literal values of the request are used.
+ */
+public class QueryPlanCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(QueryPlanCache.class);
+
+    private static final TextNode PARAMETER = TextNode.valueOf("?");
+
+    /**
+     * The query plans chosen for a composite find
+     */
+    public static class CachedPlans {
+        private final ConnMx searchPlan;
+        private final ConnMx fullPlan;
+        private final Set<String> entities;
+
+        /**
+         * @param searchPlan The search query plan chosen for the minimal
+         * set of entities required to evaluate the query, or null if
+         * there is no search plan
+         * @param fullPlan The query plan chosen for all entities, or
+         * null if there is none
+         * @param entities Names of the entities in the composite
+         * metadata
+         */
+        public CachedPlans(ConnMx searchPlan, ConnMx fullPlan, Set<String> entities) {
+            this.searchPlan = searchPlan == null ? null : new ConnMx(searchPlan);
+            this.fullPlan = fullPlan == null ? null : new ConnMx(fullPlan);
+            this.entities = entities;
+        }
+
+        public ConnMx getSearchPlan() {
+            return searchPlan;
+        }
+
+        public ConnMx getFullPlan() {
+            return fullPlan;
+        }
+
+        public Set<String> getEntities() {
+            return entities;
+        }
+    }
+
+    private final int maxSize;
+    private final LinkedHashMap<String, CachedPlans> cache;
+    private long hits;
+    private long misses;
+
+    /**
+     * @param maxSize Maximum number of query shapes to keep
+     */
+    public QueryPlanCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.cache = new LinkedHashMap<String, CachedPlans>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedPlans> eldest) {
+                return size() > QueryPlanCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached plans for the key, or null if there aren't any
+     */
+    public synchronized CachedPlans get(String key) {
+        CachedPlans plans = cache.get(key);
+        if (plans == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return plans;
+    }
+
+    public synchronized void put(String key, CachedPlans plans) {
+        cache.put(key, plans);
+    }
+
+    /**
+     * Removes all cached plans involving the given entity
+     */
+    public synchronized void invalidate(String entityName) {
+        LOGGER.debug("Invalidating query plans for {}", entityName);
+        for (Iterator<CachedPlans> itr = cache.values().iterator(); itr.hasNext();) {
+            if (itr.next().getEntities().contains(entityName)) {
+                itr.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        cache.clear();
+    }
+
+    public synchronized int size() {
+        return cache.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns the cache key for the composite metadata and request query
+     */
+    public static String getKey(CompositeMetadata md, QueryExpression query) {
+        StringBuilder bld = new StringBuilder(256);
+        appendMetadata(bld, md);
+        bld.append('|');
+        if (query != null) {
+            bld.append(getQueryShape(query.toJson()));
+        }
+        return bld.toString();
+    }
+
+    /**
+     * Returns the names of all the entities in the composite metadata
+     */
+    public static Set<String> getEntities(CompositeMetadata md) {
+        Set<String> names = new HashSet<>();
+        addEntities(names, md);
+        return names;
+    }
+
+    private static void addEntities(Set<String> names, CompositeMetadata md) {
+        names.add(md.getName());
+        for (Path p : md.getChildPaths()) {
+            addEntities(names, md.getChildMetadata(p));
+        }
+    }
+
+    private static void appendMetadata(StringBuilder bld, CompositeMetadata md) {
+        bld.append(md.getName()).append(':');
+        if (md.getVersion() != null) {
+            bld.append(md.getVersion().getValue());
+        }
+        bld.append('@').append(md.getEntityPath()).append('[');
+        Indexes indexes = md.getEntityInfo().getIndexes();
+        if (indexes != null) {
+            for (Index index : indexes.getIndexes()) {
+                bld.append('(');
+                for (IndexSortKey key : index.getFields()) {
+                    bld.append(key.getField()).append(key.isDesc() ? '-' : '+').append(',');
+                }
+                bld.append(')');
+            }
+        }
+        bld.append(']');
+        // Use the same order query plans use to assign node indexes
+        for (Path p : QueryPlan.getSortedChildPaths(md)) {
+            bld.append('{');
+            appendMetadata(bld, md.getChildMetadata(p));
+            bld.append('}');
+        }
+    }
+
+    /**
+     * Returns a copy of the query JSON with all literal values replaced
+     * by '?'
+     */
+    public static JsonNode getQueryShape(JsonNode query) {
+        if (query instanceof ObjectNode) {
+            ObjectNode ret = ((ObjectNode) query).objectNode();
+            for (Iterator<Map.Entry<String, JsonNode>> itr = query.fields(); itr.hasNext();) {
+                Map.Entry<String, JsonNode> entry = itr.next();
+                switch (entry.getKey()) {
+                    case "rvalue":
+                    case "values":
+                    case "regex":
+                        ret.set(entry.getKey(), PARAMETER);
+                        break;
+                    default:
+                        ret.set(entry.getKey(), getQueryShape(entry.getValue()));
+                }
+            }
+            return ret;
+        } else if (query instanceof ArrayNode) {
+            ArrayNode ret = ((ArrayNode) query).arrayNode();
+            for (JsonNode x : query) {
+                ret.add(getQueryShape(x));
+            }
+            return ret;
+        } else {
+            return query;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "QueryPlanCache [size=" + cache.size() + ", maxSize=" + maxSize + ", hits=" + hits + ", misses=" + misses + "]";
+    }
+}
@@ -293,6 +293,7 @@ public class QueryPlanChooser {
 
         bestPlan = qplan.deepCopy();
         bestPlanScore = scorer.score(bestPlan);
+        qplanIterator.scored(bestPlanScore);
         LOGGER.debug("Storing initial plan as the best plan:{}", bestPlan);
 
     }
@@ -301,10 +302,12 @@ public class QueryPlanChooser {
      * Chooses the best query play after scoring all possible plans.
      */
     public QueryPlan choose() {
-        while (qplanIterator.next()) {
+        Comparable lowerBound = scorer.getLowerBound();
+        while (!isAtLowerBound(lowerBound) && qplanIterator.next()) {
             LOGGER.debug("Scoring plan {}", qplan);
             Comparable score = scorer.score(qplan);
-            if (null != score && score.compareTo(bestPlanScore) < 0) {
+            qplanIterator.scored(score);
+            if (null != score && (bestPlanScore == null || score.compareTo(bestPlanScore) < 0)) {
                 LOGGER.debug("Score is better, storing this plan");
                 bestPlan = qplan.deepCopy();
                 bestPlanScore = score;
@@ -314,4 +317,27 @@ public class QueryPlanChooser {
 
         return bestPlan;
     }
+
+    /**
+     * Returns the query plan with the given edge directions without
+     * iterating over the other query plans. This is used to reuse a
+     * query plan chosen earlier for a query with the same shape.
+     *
+     * @param directions The connection matrix of a query plan built for
+     * the same entities
+     */
+    public QueryPlan choose(ConnMx directions) {
+        qplan.setConnMx(directions);
+        bestPlan = qplan.deepCopy();
+        bestPlanScore = null;
+        return bestPlan;
+    }
+
+    private boolean isAtLowerBound(Comparable lowerBound) {
+        if (lowerBound != null && bestPlanScore != null && bestPlanScore.compareTo(lowerBound) <= 0) {
+            LOGGER.debug("Best plan score {} is at lower bound, stopping", bestPlanScore);
+            return true;
+        }
+        return false;
+    }
 }
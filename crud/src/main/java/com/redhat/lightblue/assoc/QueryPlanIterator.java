@@ -43,4 +43,13 @@ public interface QueryPlanIterator {
      * iterator construction, and the iteration is expected to stop.
      */
     public boolean next();
+
+    /**
+     * Called by the query plan chooser after the current query plan is
+     * scored, starting with the initial query plan. Iterators can use
+     * the score to decide which plans to visit next. The score can be
+     * null.
+     */
+    default void scored(Comparable score) {
+    }
 }
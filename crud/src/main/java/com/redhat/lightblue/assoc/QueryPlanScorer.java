@@ -43,4 +43,13 @@ public interface QueryPlanScorer {
      * Returns a score for the query plan
      */
     Comparable score(QueryPlan p);
+
+    /**
+     * Returns a score no query plan can improve on, or null if there
+     * is no such bound. Once a plan with this score is found, the query
+     * plan chooser stops iterating.
+     */
+    default Comparable getLowerBound() {
+        return null;
+    }
 }
@@ -47,6 +47,7 @@ import com.redhat.lightblue.crud.CRUDFindRequest;
 import com.redhat.lightblue.crud.CRUDFindResponse;
 import com.redhat.lightblue.crud.DocumentStream;
 import com.redhat.lightblue.assoc.Conjunct;
+import com.redhat.lightblue.assoc.ExecutionStatistics;
 
 /**
  * Shared functionality for search steps
@@ -60,6 +61,7 @@ public abstract class AbstractSearchStep extends Step<ResultDocument> {
     protected Sort sort;
     protected Long from, to;
     protected List<Conjunct> conjuncts;
+    protected String queryShape = "";
     protected boolean recordResultSetSize = false;
 
     public AbstractSearchStep(ExecutionBlock block) {
@@ -92,6 +94,7 @@ public abstract class AbstractSearchStep extends Step<ResultDocument> {
         } else {
             query = new NaryLogicalExpression(NaryLogicalOperator._and, l);
         }
+        queryShape = ExecutionStatistics.getQueryShape(conjuncts);
     }
 
     @Override
@@ -112,6 +115,34 @@ public abstract class AbstractSearchStep extends Step<ResultDocument> {
 
 
     public OperationContext search(ExecutionBlock block, ExecutionContext ctx, CRUDFindRequest req) {
+        return search(block, ctx, req, 1);
+    }
+
+    /**
+     * Runs the search, and if execution statistics are enabled, records
+     * its results
+     *
+     * @param probes Number of queries combined in this search
+     */
+    public OperationContext search(ExecutionBlock block, ExecutionContext ctx, CRUDFindRequest req, int probes) {
+        OperationContext searchCtx = runSearch(block, ctx, req, probes);
+        if (searchCtx.hasErrors()) {
+            ctx.getOperationContext().addErrors(searchCtx.getErrors());
+            searchCtx = null;
+        }
+        return searchCtx;
+    }
+
+    /**
+     * Runs the search, but does not add the search errors to the
+     * operation context of the execution context. The caller must
+     * check the returned search context for errors. This can be
+     * called from a thread other than the one owning the operation
+     * context.
+     *
+     * @param probes Number of queries combined in this search
+     */
+    protected OperationContext runSearch(ExecutionBlock block, ExecutionContext ctx, CRUDFindRequest req, int probes) {
         OperationContext searchCtx = ctx.getOperationContext().
                 getDerivedOperationContext(block.getMetadata().getName(), req);
         LOGGER.debug("SearchStep {}: entity={}, query={}, projection={}, sort={}, from={}, to={}",
@@ -124,12 +155,15 @@ public abstract class AbstractSearchStep extends Step<ResultDocument> {
                 req.getTo());
 
         Finder finder = new SimpleFindImpl(block.getMetadata(), searchCtx.getFactory());
+        long start = System.currentTimeMillis();
         CRUDFindResponse response = finder.find(searchCtx, req);
+        ExecutionStatistics stats = searchCtx.getFactory().getExecutionStatistics();
+        if (stats != null && !searchCtx.hasErrors()) {
+            stats.record(block.getMetadata().getName(), queryShape, probes, response.getSize(),
+                    System.currentTimeMillis() - start);
+        }
 
-        if (searchCtx.hasErrors()) {
-            ctx.getOperationContext().addErrors(searchCtx.getErrors());
-            searchCtx = null;
-        } else {
+        if (!searchCtx.hasErrors()) {
             if (recordResultSetSize) {
                 ctx.setMatchCount((int) response.getSize());
             }
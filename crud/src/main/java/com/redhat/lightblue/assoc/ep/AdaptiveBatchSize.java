@@ -0,0 +1,256 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.assoc.ep;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.redhat.lightblue.crud.Factory;
+import com.redhat.lightblue.query.AllMatchExpression;
+import com.redhat.lightblue.query.ArrayContainsExpression;
+import com.redhat.lightblue.query.ArrayMatchExpression;
+import com.redhat.lightblue.query.FieldComparisonExpression;
+import com.redhat.lightblue.query.NaryFieldRelationalExpression;
+import com.redhat.lightblue.query.NaryLogicalExpression;
+import com.redhat.lightblue.query.NaryValueRelationalExpression;
+import com.redhat.lightblue.query.QueryExpression;
+import com.redhat.lightblue.query.QueryIteratorSkeleton;
+import com.redhat.lightblue.query.RegexMatchExpression;
+import com.redhat.lightblue.query.UnaryLogicalExpression;
+import com.redhat.lightblue.query.ValueComparisonExpression;
+import com.redhat.lightblue.util.Path;
+
+/**
+ * Controls the size of the batches used to retrieve documents during
+ * composite finds.
+ *
+ * A batch combines the queries of a number of documents or join
+ * tuples into a single $or query. After each batch, the observed
+ * latency, the approximate size of the results, and the size of the
+ * combined query are reported, and the batch size for the next batch
+ * is adjusted:
+ * <ul>
+ * <li>If the combined query has more terms than maxQuerySize, the
+ * batch size is reduced so that the next query fits.</li>
+ * <li>If the batch took longer than the target latency, the batch
+ * size is halved.</li>
+ * <li>If the results were larger than maxBatchBytes, the batch size
+ * is reduced proportionally.</li>
+ * <li>If the batch was full, and took less than half the target
+ * latency, the batch size grows by half, as long as the projected
+ * query and result sizes stay within the limits.</li>
+ * </ul>
+ * The batch size always stays between the minimum and maximum batch
+ * sizes. If adaptive batching is disabled, the batch size never
+ * changes.
+ */
+public class AdaptiveBatchSize {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AdaptiveBatchSize.class);
+
+    private final boolean adaptive;
+    private final int minBatchSize;
+    private final int maxBatchSize;
+    private final int maxQuerySize;
+    private final long targetLatencyMs;
+    private final long maxBatchBytes;
+
+    private int batchSize;
+
+    /**
+     * Creates a fixed batch size
+     */
+    public AdaptiveBatchSize(int batchSize) {
+        this.adaptive = false;
+        this.batchSize = Math.max(1, batchSize);
+        this.minBatchSize = this.batchSize;
+        this.maxBatchSize = this.batchSize;
+        this.maxQuerySize = Integer.MAX_VALUE;
+        this.targetLatencyMs = Long.MAX_VALUE;
+        this.maxBatchBytes = Long.MAX_VALUE;
+    }
+
+    /**
+     * Creates an adaptive batch size
+     *
+     * @param initialBatchSize The batch size of the first batch
+     * @param minBatchSize Batch size never goes below this
+     * @param maxBatchSize Batch size never goes above this
+     * @param maxQuerySize Maximum number of terms in a combined query
+     * @param targetLatencyMs Batches taking longer than this are made
+     * smaller
+     * @param maxBatchBytes Approximate maximum size of the results of a
+     * batch
+     */
+    public AdaptiveBatchSize(int initialBatchSize,
+                             int minBatchSize,
+                             int maxBatchSize,
+                             int maxQuerySize,
+                             long targetLatencyMs,
+                             long maxBatchBytes) {
+        this.adaptive = true;
+        this.minBatchSize = Math.max(1, minBatchSize);
+        this.maxBatchSize = Math.max(this.minBatchSize, maxBatchSize);
+        this.maxQuerySize = maxQuerySize > 0 ? maxQuerySize : Integer.MAX_VALUE;
+        this.targetLatencyMs = targetLatencyMs > 0 ? targetLatencyMs : Long.MAX_VALUE;
+        this.maxBatchBytes = maxBatchBytes > 0 ? maxBatchBytes : Long.MAX_VALUE;
+        this.batchSize = clamp(initialBatchSize);
+    }
+
+    /**
+     * Returns the batch size controller for searches on the given
+     * entity using the composite batch settings of the factory
+     */
+    public static AdaptiveBatchSize forEntity(Factory factory, String entityName) {
+        int initial = factory.getCompositeBatchSize(entityName);
+        if (factory.isCompositeAdaptiveBatching()) {
+            return new AdaptiveBatchSize(initial,
+                    factory.getCompositeMinBatchSize(),
+                    factory.getCompositeMaxBatchSize(),
+                    factory.getCompositeMaxQuerySize(),
+                    factory.getCompositeBatchTargetLatencyMs(),
+                    factory.getCompositeMaxBatchBytes());
+        } else {
+            return new AdaptiveBatchSize(initial);
+        }
+    }
+
+    /**
+     * Returns the size of the next batch
+     */
+    public synchronized int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Reports the results of a batch, and adjusts the batch size
+     *
+     * @param items Number of documents or join tuples in the batch
+     * @param querySize Number of terms in the combined query
+     * @param elapsedMs Time it took to run the batch
+     * @param resultBytes Approximate size of the batch results
+     */
+    public synchronized void update(int items, int querySize, long elapsedMs, long resultBytes) {
+        if (!adaptive || items <= 0) {
+            return;
+        }
+        int old = batchSize;
+        if (querySize > maxQuerySize) {
+            batchSize = clamp(scale(items, maxQuerySize, querySize));
+        } else if (elapsedMs > targetLatencyMs) {
+            batchSize = clamp(Math.min(batchSize, items) / 2);
+        } else if (resultBytes > maxBatchBytes) {
+            batchSize = clamp(scale(items, maxBatchBytes, resultBytes));
+        } else if (items >= batchSize && elapsedMs < targetLatencyMs / 2) {
+            int next = batchSize + Math.max(1, batchSize / 2);
+            // Do not grow beyond the projected query or result size limits
+            if (querySize > 0) {
+                next = Math.min(next, scale(items, maxQuerySize, querySize));
+            }
+            if (resultBytes > 0) {
+                next = Math.min(next, scale(items, maxBatchBytes, resultBytes));
+            }
+            batchSize = clamp(Math.max(next, batchSize));
+        }
+        if (old != batchSize) {
+            LOGGER.debug("Batch size {} -> {}: items={}, querySize={}, elapsedMs={}, resultBytes={}",
+                    old, batchSize, items, querySize, elapsedMs, resultBytes);
+        }
+    }
+
+    private static int scale(int items, long limit, long actual) {
+        return (int) Math.min(Integer.MAX_VALUE, items * limit / actual);
+    }
+
+    private int clamp(int n) {
+        return Math.max(minBatchSize, Math.min(maxBatchSize, n));
+    }
+
+    /**
+     * Returns the number of terms in a query. Each comparison counts
+     * as one, and each value of an $in/$nin or $all/$any list counts as
+     * one.
+     */
+    public static int querySize(QueryExpression q) {
+        return q == null ? 0 : QUERY_SIZE.iterate(q);
+    }
+
+    private static final QueryIteratorSkeleton<Integer> QUERY_SIZE = new QueryIteratorSkeleton<Integer>() {
+        @Override
+        protected Integer itrAllMatchExpression(AllMatchExpression q, Path context) {
+            return 1;
+        }
+
+        @Override
+        protected Integer itrValueComparisonExpression(ValueComparisonExpression q, Path context) {
+            return 1;
+        }
+
+        @Override
+        protected Integer itrFieldComparisonExpression(FieldComparisonExpression q, Path context) {
+            return 1;
+        }
+
+        @Override
+        protected Integer itrRegexMatchExpression(RegexMatchExpression q, Path context) {
+            return 1;
+        }
+
+        @Override
+        protected Integer itrNaryValueRelationalExpression(NaryValueRelationalExpression q, Path context) {
+            return Math.max(1, q.getValues().size());
+        }
+
+        @Override
+        protected Integer itrNaryFieldRelationalExpression(NaryFieldRelationalExpression q, Path context) {
+            return 1;
+        }
+
+        @Override
+        protected Integer itrArrayContainsExpression(ArrayContainsExpression q, Path context) {
+            return Math.max(1, q.getValues().size());
+        }
+
+        @Override
+        protected Integer itrUnaryLogicalExpression(UnaryLogicalExpression q, Path context) {
+            return iterate(q.getQuery(), context);
+        }
+
+        @Override
+        protected Integer itrNaryLogicalExpression(NaryLogicalExpression q, Path context) {
+            int n = 0;
+            for (QueryExpression x : q.getQueries()) {
+                n += iterate(x, context);
+            }
+            return n;
+        }
+
+        @Override
+        protected Integer itrArrayMatchExpression(ArrayMatchExpression q, Path context) {
+            return iterate(q.getElemMatch(), context);
+        }
+    };
+
+    @Override
+    public synchronized String toString() {
+        return "AdaptiveBatchSize [adaptive=" + adaptive + ", batchSize=" + batchSize + ", minBatchSize=" + minBatchSize
+                + ", maxBatchSize=" + maxBatchSize + ", maxQuerySize=" + maxQuerySize + ", targetLatencyMs="
+                + targetLatencyMs + ", maxBatchBytes=" + maxBatchBytes + "]";
+    }
+}
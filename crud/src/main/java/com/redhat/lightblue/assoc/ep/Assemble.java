@@ -46,10 +46,12 @@ import com.redhat.lightblue.assoc.QueryFieldInfo;
 import com.redhat.lightblue.assoc.AnalyzeQuery;
 
 import com.redhat.lightblue.mindex.MemDocIndex;
+import com.redhat.lightblue.mindex.SortedMemDocIndex;
 import com.redhat.lightblue.mindex.GetIndexLookupSpec;
 import com.redhat.lightblue.mindex.KeySpec;
 import com.redhat.lightblue.mindex.LookupSpec;
 
+import com.redhat.lightblue.eval.QueryCompiler;
 import com.redhat.lightblue.eval.QueryEvaluator;
 
 import com.redhat.lightblue.util.Path;
@@ -76,21 +78,51 @@ public class Assemble extends Step<ResultDocument> {
     private final Source<ResultDocument> source;
     private Map<ExecutionBlock, Assemble> destinations;
 
+    /**
+     * Controls the number of queries combined into a single retrieval
+     * from this block
+     */
+    private final AdaptiveBatchSize retrievalBatchSize;
+
     public Assemble(ExecutionBlock block,
                     Source<ResultDocument> source,
                     ExecutionBlock[] destinationBlocks,
                     int memoryIndexThreshold) {
+        this(block, source, destinationBlocks, memoryIndexThreshold, new AdaptiveBatchSize(256));
+    }
+
+    public Assemble(ExecutionBlock block,
+                    Source<ResultDocument> source,
+                    ExecutionBlock[] destinationBlocks,
+                    int memoryIndexThreshold,
+                    AdaptiveBatchSize retrievalBatchSize) {
         super(block);
         this.source = source;
         this.destinationBlocks = destinationBlocks;
         this.memoryIndexThreshold = memoryIndexThreshold;
+        this.retrievalBatchSize = retrievalBatchSize;
+    }
+
+    public AdaptiveBatchSize getRetrievalBatchSize() {
+        return retrievalBatchSize;
     }
 
     public List<ResultDocument> getResultList(QueryExpression q, ExecutionContext ctx) {
+        return getResultList(q, 1, ctx);
+    }
+
+    /**
+     * Retrieves the documents of this block matching q
+     *
+     * @param q The query
+     * @param probes Number of queries combined in q
+     * @param ctx Execution context
+     */
+    public List<ResultDocument> getResultList(QueryExpression q, int probes, ExecutionContext ctx) {
         LOGGER.debug("getResultList q={} block={}", q, block);
         Retrieve r = block.getStep(Retrieve.class);
         if (r != null) {
-            r.setQuery(q);
+            r.setQuery(q, probes);
             StepResult<ResultDocument> results = block.getResultStep().getResults(ctx);
             return results.stream().collect(Collectors.toList());
         } else {
@@ -128,8 +160,8 @@ public class Assemble extends Step<ResultDocument> {
         for (Map.Entry<ExecutionBlock, Assemble> destination : destinations.entrySet()) {
             AssociationQuery aq = destination.getKey().getAssociationQueryForEdge(block);
             LOGGER.debug("Scheduling batch assembler with aq={} block={}", aq, destination.getKey());
-            BatchAssembler batchAssembler = new BatchAssembler(256, aq, destination.getValue(), ctx);
-            assemblers.add(ctx.getExecutor().submit(() -> {
+            BatchAssembler batchAssembler = new BatchAssembler(destination.getValue().retrievalBatchSize, aq, destination.getValue(), ctx);
+            assemblers.add(ctx.submit(() -> {
                 if (aq.getQuery() == null) {
                     if(aq.isAlwaysTrue()) {
                         results.stream().forEach(batchAssembler::addDoc);
@@ -149,7 +181,7 @@ public class Assemble extends Step<ResultDocument> {
         }
         try {
             for (Future x : assemblers) {
-                x.get();
+                ctx.await(x);
             }
         } catch (Exception ie) {
             throw new RuntimeException(ie);
@@ -173,12 +205,12 @@ public class Assemble extends Step<ResultDocument> {
     private class BatchAssembler {
         private List<DocAndQ> docs = new ArrayList<>();
         private List<QueryExpression> queries = new ArrayList<>();
-        private final int batchSize;
+        private final AdaptiveBatchSize batchSize;
         private final AssociationQuery aq;
         private final Assemble dest;
         private final ExecutionContext ctx;
 
-        public BatchAssembler(int batchSize, AssociationQuery aq, Assemble dest, ExecutionContext ctx) {
+        public BatchAssembler(AdaptiveBatchSize batchSize, AssociationQuery aq, Assemble dest, ExecutionContext ctx) {
             this.batchSize = batchSize;
             this.dest = dest;
             this.aq = aq;
@@ -195,7 +227,7 @@ public class Assemble extends Step<ResultDocument> {
         }
 
         public void endDoc() {
-            if (queries.size() >= batchSize) {
+            if (queries.size() >= batchSize.getBatchSize()) {
                 commit();
             }
         }
@@ -209,7 +241,18 @@ public class Assemble extends Step<ResultDocument> {
                 } else {
                     combinedQuery = null;
                 }
-                List<ResultDocument> destResults = dest.getResultList(combinedQuery, ctx);
+                long start = System.currentTimeMillis();
+                List<ResultDocument> destResults = dest.getResultList(combinedQuery, Math.max(1, queries.size()), ctx);
+                if (!queries.isEmpty()) {
+                    long resultBytes = 0;
+                    for (ResultDocument child : destResults) {
+                        resultBytes += child.getDocSizeB();
+                    }
+                    batchSize.update(queries.size(),
+                            AdaptiveBatchSize.querySize(combinedQuery),
+                            System.currentTimeMillis() - start,
+                            resultBytes);
+                }
                 int numSlots=0;
                 for (DocAndQ parentDocAndQ : docs) {
                     List<ChildSlot> slots=parentDocAndQ.doc.getSlots().get(aq.getReference());
@@ -223,7 +266,8 @@ public class Assemble extends Step<ResultDocument> {
                     LOGGER.debug("In-memory index key spec:{}",keySpec);
                     if(keySpec!=null) {
                         // There is a key spec, meaning we can index the docs
-                        docIndex=new MemDocIndex(keySpec);
+                        // Range and prefix lookups walk a sorted index instead of scanning all keys
+                        docIndex=aq.hasRangeLookups()?new SortedMemDocIndex(keySpec):new MemDocIndex(keySpec);
                         for(ResultDocument child:destResults) {
                             docIndex.add(child.getDoc());
                         }
@@ -274,10 +318,24 @@ public class Assemble extends Step<ResultDocument> {
                 if (binders.getBindings().isEmpty()||(aq.getAlways()!=null && aq.getAlways()) ) {
                     associateAllDocs(parentDoc,childDocs,slot.getSlotFieldName());
                 } else if(aq.getAlways()==null||!aq.getAlways()) { // If query is not always false
-                    if(childIndex==null)
-                        associateDocs(childMetadata,parentDoc,slot.getSlotFieldName(),binders,childDocs,aq.getQuery());
-                    else 
-                        associateDocsWithIndex(childMetadata,parentDoc,slot.getSlotFieldName(),binders,childDocs,aq,childIndex);
+                    if(aq.getQueryTemplate()==null) {
+                        if(childIndex==null)
+                            associateDocs(childMetadata,parentDoc,slot.getSlotFieldName(),binders,childDocs,aq.getQuery());
+                        else 
+                            associateDocsWithIndex(childMetadata,parentDoc,slot.getSlotFieldName(),binders,childDocs,aq,childIndex);
+                    } else {
+                        // Bind the precompiled association query instead of
+                        // rewriting, analyzing and compiling it for every slot
+                        Object[] values=aq.getBindingValues(binders);
+                        QueryEvaluator qeval=aq.getQueryTemplate().bind(values);
+                        List<ResultDocument> candidates=childDocs;
+                        if(childIndex!=null&&aq.getLookupSpecTemplate()!=null) {
+                            LookupSpec ls=aq.getLookupSpecTemplate().bind(values);
+                            LOGGER.debug("Lookup spec:{}",ls);
+                            candidates=reorder(childDocs,childIndex.find(ls));
+                        }
+                        associateDocs(parentDoc,slot.getSlotFieldName(),qeval,candidates);
+                    }
                 }
             }
         }
@@ -291,6 +349,8 @@ public class Assemble extends Step<ResultDocument> {
     }
 
     private static ArrayNode ensureDestNodeExists(ResultDocument doc,ArrayNode destNode,Path fieldName) {
+        // Child documents will be added, so the cached size is stale
+        doc.resetDocSizeB();
         if (destNode == null) {
             destNode = JsonNodeFactory.instance.arrayNode();
             doc.getDoc().modify(fieldName, destNode, true);
@@ -322,10 +382,21 @@ public class Assemble extends Step<ResultDocument> {
         LOGGER.debug("Associating docs");
         QueryExpression boundQuery = binders.iterate(query);
         LOGGER.debug("Association query:{}", boundQuery);
-        QueryEvaluator qeval = QueryEvaluator.getInstance(boundQuery, childMetadata);
+        QueryEvaluator qeval = QueryCompiler.compile(boundQuery, childMetadata);
+        associateDocs(parentDoc,destFieldName,qeval,childDocs);
+    }
+
+    /**
+     * Adds the child documents matching the bound association query to
+     * the parent document
+     */
+    private static void associateDocs(ResultDocument parentDoc,
+                                      Path destFieldName,
+                                      QueryEvaluator qeval,
+                                      List<ResultDocument> childDocs) {
         ArrayNode destNode=null;
         for (ResultDocument childDoc : childDocs) {
-            if (qeval.evaluate(childDoc.getDoc()).getResult()) {
+            if (qeval.matches(childDoc.getDoc())) {
                 destNode=ensureDestNodeExists(parentDoc,destNode,destFieldName);
                 destNode.add(childDoc.getDoc().getRoot());
             }
@@ -342,21 +413,14 @@ public class Assemble extends Step<ResultDocument> {
         LOGGER.debug("Associating docs using index");
         QueryExpression boundQuery = binders.iterate(aq.getQuery());
         LOGGER.debug("Association query:{}", boundQuery);
-        QueryEvaluator qeval = QueryEvaluator.getInstance(boundQuery, childMetadata);
+        QueryEvaluator qeval = QueryCompiler.compile(boundQuery, childMetadata);
         AnalyzeQuery analyzer=new AnalyzeQuery(block.rootMd,aq.getReference());
         analyzer.iterate(boundQuery);
         List<QueryFieldInfo> qfi=analyzer.getFieldInfo();
         GetIndexLookupSpec gils=new GetIndexLookupSpec(qfi);
         LookupSpec ls=gils.iterate(boundQuery);
         LOGGER.debug("Lookup spec:"+ls);
-        List<ResultDocument> docs=reorder(childDocs,childIndex.find(ls));
-        ArrayNode destNode=null;
-        for (ResultDocument childDoc : docs) {
-            if (qeval.evaluate(childDoc.getDoc()).getResult()) {
-                destNode=ensureDestNodeExists(parentDoc,destNode,destFieldName);
-                destNode.add(childDoc.getDoc().getRoot());
-            }
-        }
+        associateDocs(parentDoc,destFieldName,qeval,reorder(childDocs,childIndex.find(ls)));
     }
     
     /**
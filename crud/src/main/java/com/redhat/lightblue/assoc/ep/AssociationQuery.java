@@ -6,14 +6,21 @@ import java.util.ArrayList;
 import com.redhat.lightblue.metadata.CompositeMetadata;
 import com.redhat.lightblue.metadata.ResolvedReferenceField;
 
+import com.redhat.lightblue.assoc.Binder;
+import com.redhat.lightblue.assoc.BindQuery;
 import com.redhat.lightblue.assoc.BoundObject;
 import com.redhat.lightblue.assoc.Conjunct;
 import com.redhat.lightblue.assoc.RewriteQuery;
 import com.redhat.lightblue.assoc.QueryFieldInfo;
 import com.redhat.lightblue.assoc.AnalyzeQuery;
 
+import com.redhat.lightblue.eval.CompiledQueryTemplate;
+import com.redhat.lightblue.eval.QueryCompiler;
+
 import com.redhat.lightblue.mindex.GetIndexKeySpec;
+import com.redhat.lightblue.mindex.GetIndexLookupSpecTemplate;
 import com.redhat.lightblue.mindex.KeySpec;
+import com.redhat.lightblue.mindex.LookupSpecTemplate;
 
 import com.redhat.lightblue.query.QueryExpression;
 
@@ -30,6 +37,13 @@ public class AssociationQuery {
     private final List<QueryFieldInfo> qfi;
     // In-memory index key spec
     private final KeySpec keySpec;
+    // If true, the index will be used for range or prefix lookups
+    private final boolean rangeLookups;
+    // The query compiled with the field bindings as parameters. Null if
+    // the query cannot be compiled
+    private final CompiledQueryTemplate queryTemplate;
+    // In-memory index lookup spec with the field bindings as parameters
+    private final LookupSpecTemplate lookupSpecTemplate;
 
     public AssociationQuery(CompositeMetadata root,
                             CompositeMetadata currentEntity,
@@ -67,11 +81,17 @@ public class AssociationQuery {
                 always=null;
             }
             keySpec=null;
+            rangeLookups=false;
+            queryTemplate=null;
+            lookupSpecTemplate=null;
         } else {
             query = Searches.and(queries);
             GetIndexKeySpec giks=new GetIndexKeySpec(qfi);
             keySpec=giks.iterate(query);
+            rangeLookups=giks.hasRangeLookups();
             always=null;
+            queryTemplate=QueryCompiler.compileTemplate(query,currentEntity.getFieldTreeRoot(),fieldBindings);
+            lookupSpecTemplate=keySpec==null?null:new GetIndexLookupSpecTemplate(qfi,fieldBindings).iterate(query);
         }
     }
 
@@ -79,6 +99,52 @@ public class AssociationQuery {
         return keySpec;
     }
     
+    /**
+     * Returns true if the association query has range or prefix
+     * predicates on the indexed fields, so a sorted in-memory index
+     * should be used
+     */
+    public boolean hasRangeLookups() {
+        return rangeLookups;
+    }
+
+    /**
+     * Returns the association query compiled with the field bindings as
+     * parameters, or null if the query cannot be compiled. Bind it to
+     * the values returned by {@link #getBindingValues(BindQuery)}.
+     */
+    public CompiledQueryTemplate getQueryTemplate() {
+        return queryTemplate;
+    }
+
+    /**
+     * Returns the in-memory index lookup spec template with the field
+     * bindings as parameters, or null if there is no key spec
+     */
+    public LookupSpecTemplate getLookupSpecTemplate() {
+        return lookupSpecTemplate;
+    }
+
+    /**
+     * Returns the values of the binders in the order of the field
+     * bindings of this query. A field binding without a binder keeps
+     * its placeholder value, as it does in the query bound by BindQuery.
+     */
+    public Object[] getBindingValues(BindQuery binders) {
+        Object[] values=new Object[fieldBindings.size()];
+        for(int i=0;i<values.length;i++) {
+            BoundObject binding=fieldBindings.get(i);
+            values[i]=binding;
+            for(Binder binder:binders.getBindings()) {
+                if(binder.getBinding()==binding) {
+                    values[i]=binder.getValue();
+                    break;
+                }
+            }
+        }
+        return values;
+    }
+
     public List<QueryFieldInfo> getQueryFieldInfo() {
         return qfi;
     }
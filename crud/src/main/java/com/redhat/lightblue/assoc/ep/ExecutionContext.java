@@ -18,21 +18,68 @@
  */
 package com.redhat.lightblue.assoc.ep;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.redhat.lightblue.mediator.OperationContext;
 
 /**
- * Keeps state information for the execution
+ * Keeps state information for the execution.
+ *
+ * Steps submit asynchronous tasks using the submit methods of the
+ * execution context. At most <code>parallelism</code> tasks of an
+ * execution run on the executor at the same time. When that many
+ * tasks are already running, the submitted task runs in the calling
+ * thread instead. The task also runs in the calling thread if the
+ * executor rejects it, which happens when a bounded executor shared by
+ * many executions has no idle thread. Tasks are never queued behind
+ * busy threads, so a task waiting for another task cannot deadlock
+ * the executor. Steps wait for the results of the submitted tasks using
+ * {@link #await(Future)}. The context keeps counters of the submitted
+ * tasks and the time spent waiting for them, which can be used to tune
+ * parallelism.
  */
 public class ExecutionContext {
     private final OperationContext opctx;
     private final ExecutorService executor;
+    private final boolean ownsExecutor;
+    private final int parallelism;
     private int matchCount;
 
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private final AtomicLong submittedTasks = new AtomicLong();
+    private final AtomicLong inlineTasks = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    /**
+     * Creates an execution context that owns the executor. The
+     * executor is shut down when the context is closed, and the number
+     * of parallel tasks is limited only by the executor.
+     */
     public ExecutionContext(OperationContext ctx, ExecutorService executor) {
         this.opctx = ctx;
         this.executor = executor;
+        this.ownsExecutor = true;
+        this.parallelism = Integer.MAX_VALUE;
+    }
+
+    /**
+     * Creates an execution context using a shared executor. At most
+     * parallelism tasks run on the executor at the same time, and the
+     * executor is not shut down when the context is closed.
+     */
+    public ExecutionContext(OperationContext ctx, ExecutorService executor, int parallelism) {
+        this.opctx = ctx;
+        this.executor = executor;
+        this.ownsExecutor = false;
+        this.parallelism = Math.max(1, parallelism);
     }
 
     public OperationContext getOperationContext() {
@@ -43,6 +90,112 @@ public class ExecutionContext {
         return executor;
     }
 
+    /**
+     * Returns the maximum number of tasks that can run on the executor
+     * at the same time for this execution
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Submits a task. If there is no executor, if the parallelism
+     * limit is reached, or if the executor rejects the task, the task
+     * runs in the caller thread, and a completed future is returned.
+     */
+    public <T> Future<T> submit(Callable<T> task) {
+        submittedTasks.incrementAndGet();
+        if (executor != null && acquire()) {
+            try {
+                return executor.submit(() -> {
+                    try {
+                        return task.call();
+                    } finally {
+                        inFlight.decrementAndGet();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                inFlight.decrementAndGet();
+            }
+        }
+        inlineTasks.incrementAndGet();
+        CompletableFuture<T> f = new CompletableFuture<>();
+        try {
+            f.complete(task.call());
+        } catch (Exception e) {
+            f.completeExceptionally(e);
+        }
+        return f;
+    }
+
+    /**
+     * Submits a task, see {@link #submit(Callable)}
+     */
+    public Future<?> submit(Runnable task) {
+        return submit(() -> {
+            task.run();
+            return null;
+        });
+    }
+
+    /**
+     * Waits for the result of a submitted task, and adds the time spent
+     * waiting to the wait time of the execution
+     */
+    public <T> T await(Future<T> future) throws InterruptedException, ExecutionException {
+        if (future.isDone()) {
+            return future.get();
+        }
+        long start = System.nanoTime();
+        try {
+            return future.get();
+        } finally {
+            waitNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private boolean acquire() {
+        int n;
+        do {
+            n = inFlight.get();
+            if (n >= parallelism) {
+                return false;
+            }
+        } while (!inFlight.compareAndSet(n, n + 1));
+        maxInFlight.accumulateAndGet(n + 1, Math::max);
+        return true;
+    }
+
+    /**
+     * Returns the total number of tasks submitted
+     */
+    public long getSubmittedTaskCount() {
+        return submittedTasks.get();
+    }
+
+    /**
+     * Returns the number of tasks that ran in the caller thread
+     */
+    public long getInlineTaskCount() {
+        return inlineTasks.get();
+    }
+
+    /**
+     * Returns the maximum number of tasks that ran on the executor at
+     * the same time
+     */
+    public int getMaxConcurrentTaskCount() {
+        return maxInFlight.get();
+    }
+
+    /**
+     * Returns the total time spent waiting for the results of submitted
+     * tasks, in nanoseconds
+     */
+    public long getWaitNanos() {
+        return waitNanos.get();
+    }
+
     public boolean hasErrors() {
         return opctx.hasErrors();
     }
@@ -60,6 +213,14 @@ public class ExecutionContext {
     }
 
     public void close() {
-        executor.shutdown();
+        if (ownsExecutor && executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "parallelism=" + parallelism + ", submittedTasks=" + submittedTasks + ", inlineTasks=" + inlineTasks
+                + ", maxConcurrentTasks=" + maxInFlight + ", waitMs=" + waitNanos.get() / 1000000;
     }
 }
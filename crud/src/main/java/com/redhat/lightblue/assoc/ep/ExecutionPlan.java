@@ -79,6 +79,7 @@ public class ExecutionPlan {
     static private final Logger LOGGER = LoggerFactory.getLogger(ExecutionPlan.class);
 
     private Step<ResultDocument> resultStep;
+    private int numBlocks;
 
     /**
      * Creates an execution plan
@@ -199,7 +200,10 @@ public class ExecutionPlan {
                             map(Source<ResultDocument>::new).
                             collect(Collectors.toList());
                     Join join = new Join(block, list.toArray(new Source[list.size()]));
-                    search = new JoinSearch(block, new Source<>(join));
+                    String entityName = block.getMetadata().getName();
+                    search = new JoinSearch(block, new Source<>(join),
+                            AdaptiveBatchSize.forEntity(ctx.getFactory(), entityName),
+                            ctx.getFactory().getCompositePrefetchBatches(entityName));
                     block.setResultStep(search);
                 }
                 // Now that we have the search, we set the queries, projection, and limits
@@ -235,7 +239,12 @@ public class ExecutionPlan {
                         Source<ResultDocument> last = new Source<>(u);
                         // Sort the results
                         if (requestSort != null) {
-                            last = new Source<>(new SortResults(block, last, requestSort));
+                            if (to != null && to.intValue() < Integer.MAX_VALUE && !needsFinalFiltering) {
+                                // Results are limited, keep only the first to+1 docs while sorting
+                                last = new Source<>(new TopKSortResults(block, last, requestSort, to.intValue() + 1));
+                            } else {
+                                last = new Source<>(new SortResults(block, last, requestSort));
+                            }
                         }
                         if(!needsFinalFiltering) {
                         	if (from != null) {
@@ -321,7 +330,8 @@ public class ExecutionPlan {
                 fields.addAll(getIncludedFieldsOfEntityForProjection(block, rootMd, requestProjection));
                 search.setProjection(writeProjection(fields));
                 search.setQueries(node.getData().getConjuncts());
-                resultStep = new Assemble(block, last, destinationBlocks, ctx.getFactory().getMemoryIndexThreshold());
+                resultStep = new Assemble(block, last, destinationBlocks, ctx.getFactory().getMemoryIndexThreshold(),
+                        AdaptiveBatchSize.forEntity(ctx.getFactory(), block.getMetadata().getName()));
                 if(needsFinalFiltering) {
                     resultStep = new Filter(block, new Source<>(resultStep), requestQuery);
                     ((Filter)resultStep).setRecordResultSetSize(true);
@@ -353,10 +363,12 @@ public class ExecutionPlan {
                 Set<Path> fields = getIncludedFieldsOfEntityForSearch(block, qfi);
                 fields.addAll(getIncludedFieldsOfEntityForProjection(block, rootMd, requestProjection));
                 search.setProjection(writeProjection(fields));
-                block.setResultStep(new Assemble(block, new Source<>(search), destinationBlocks, ctx.getFactory().getMemoryIndexThreshold()));
+                block.setResultStep(new Assemble(block, new Source<>(search), destinationBlocks, ctx.getFactory().getMemoryIndexThreshold(),
+                        AdaptiveBatchSize.forEntity(ctx.getFactory(), block.getMetadata().getName())));
             }
         }
 
+        numBlocks = qp2BlockMap.size();
         for (ExecutionBlock block : qp2BlockMap.values()) {
             block.linkBlocks();
         }
@@ -369,6 +381,14 @@ public class ExecutionPlan {
         return resultStep.getResults(ctx);
     }
 
+    /**
+     * Returns the number of execution blocks in this plan. This is the
+     * upper bound for the number of steps that can run in parallel.
+     */
+    public int getNumBlocks() {
+        return numBlocks;
+    }
+
     private List<QueryFieldInfo> getAllQueryFieldInfo(QueryPlan qp) {
         // Build a list of all query field info to determine projections
         List<QueryFieldInfo> qfi = new ArrayList<>();
@@ -27,6 +27,7 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
+import com.redhat.lightblue.eval.QueryCompiler;
 import com.redhat.lightblue.eval.QueryEvaluator;
 import com.redhat.lightblue.query.QueryExpression;
 
@@ -44,7 +45,7 @@ public class Filter extends Step<ResultDocument> {
         super(block);
         this.source = source;
         this.q = q;
-        this.qe = QueryEvaluator.getInstance(q, block.getMetadata());
+        this.qe = QueryCompiler.compile(q, block.getMetadata());
     }
 
     @Override
@@ -53,7 +54,7 @@ public class Filter extends Step<ResultDocument> {
                 @Override
                 public Stream<ResultDocument> stream() {
                     return super.stream().filter(doc -> {
-                            boolean ret=qe.evaluate(doc.getDoc()).getResult();
+                            boolean ret=qe.matches(doc.getDoc());
                             if(ret&&recordResultSetSize)
                                 ctx.setMatchCount(ctx.getMatchCount()+1);		
                             return ret;
@@ -82,7 +82,7 @@ public class Join extends Step<JoinTuple> {
             if (source.getStep().getBlock().getMetadata() == block.getMetadata().getParent()) {
                 parentIndex = i;
             }
-            futureResults[i++] = ctx.getExecutor().submit(() -> {
+            futureResults[i++] = ctx.submit(() -> {
                 return source.getStep().getResults(ctx);
             });
         }
@@ -92,7 +92,7 @@ public class Join extends Step<JoinTuple> {
         for (Future<StepResult<ResultDocument>> futureResult : futureResults) {
             tuples.add(() -> {
                 try {
-                    return futureResult.get().stream().iterator();
+                    return ctx.await(futureResult).stream().iterator();
                 } catch (InterruptedException x) {
                     throw new RuntimeException(x);
                 } catch (ExecutionException ex) {
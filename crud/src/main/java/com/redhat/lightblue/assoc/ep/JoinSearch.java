@@ -19,9 +19,12 @@
 package com.redhat.lightblue.assoc.ep;
 
 import java.util.List;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.function.Consumer;
 
 import com.fasterxml.jackson.databind.JsonNode;
@@ -38,6 +41,7 @@ import com.redhat.lightblue.mediator.OperationContext;
 import com.redhat.lightblue.crud.CRUDFindRequest;
 import com.redhat.lightblue.crud.DocumentStream;
 import com.redhat.lightblue.crud.DocCtx;
+import com.redhat.lightblue.util.Error;
 
 /**
  * Performs searches based on the n-tuple of result documents obtained from the
@@ -49,16 +53,90 @@ public class JoinSearch extends AbstractSearchStep {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(JoinSearch.class);
 
+    public static final int DEFAULT_BATCH_SIZE = 256;
+
     private final Source<JoinTuple> source;
+    private final AdaptiveBatchSize batchSize;
+    private final int prefetchBatches;
 
     public JoinSearch(ExecutionBlock block, Source<JoinTuple> source) {
+        this(block, source, new AdaptiveBatchSize(DEFAULT_BATCH_SIZE), 0);
+    }
+
+    /**
+     * @param block The execution block
+     * @param source The source of join tuples
+     * @param batchSize Controls the number of join tuples combined into
+     * a single search
+     * @param prefetchBatches Number of batches to retrieve in advance
+     * while the current batch is being consumed. If 0, batches are
+     * retrieved one by one when needed.
+     */
+    public JoinSearch(ExecutionBlock block, Source<JoinTuple> source, AdaptiveBatchSize batchSize, int prefetchBatches) {
         super(block);
         this.source = source;
+        this.batchSize = batchSize;
+        this.prefetchBatches = Math.max(0, prefetchBatches);
+    }
+
+    public AdaptiveBatchSize getBatchSize() {
+        return batchSize;
+    }
+
+    public int getPrefetchBatches() {
+        return prefetchBatches;
     }
 
     @Override
     protected DocumentStream<ResultDocument> getSearchResults(final ExecutionContext ctx) {
-        return new BatchQueryIterator(256,ctx);
+        return new BatchQueryIterator(ctx);
+    }
+
+    /**
+     * A batch of join tuples, and the results of the search for them
+     */
+    private static class Batch {
+        private final CRUDFindRequest request;
+        private final int numTuples;
+        private final int querySize;
+        private DocumentStream<DocCtx> results;
+        private List<Error> errors;
+        private long searchNanos;
+        private long retrievalNanos;
+        private long resultBytes;
+
+        Batch(CRUDFindRequest request, int numTuples, int querySize) {
+            this.request = request;
+            this.numTuples = numTuples;
+            this.querySize = querySize;
+        }
+
+        boolean hasNext() {
+            long start=System.nanoTime();
+            try {
+                return results.hasNext();
+            } finally {
+                retrievalNanos+=System.nanoTime()-start;
+            }
+        }
+
+        DocCtx next() {
+            long start=System.nanoTime();
+            try {
+                return results.next();
+            } finally {
+                retrievalNanos+=System.nanoTime()-start;
+            }
+        }
+
+        /**
+         * Returns the time spent running the search and retrieving
+         * its results. The time the consumer spends processing the
+         * results is not included.
+         */
+        long getElapsedMs() {
+            return (searchNanos+retrievalNanos)/1000000;
+        }
     }
 
     /**
@@ -66,19 +144,27 @@ public class JoinSearch extends AbstractSearchStep {
      *
      * When the results are retrieved from the stream, executes a
      * batch of queries, computes results, and streams them to the
-     * caller
+     * caller. Once a batch is consumed, its latency (time spent
+     * running the search and reading all of its results) and result
+     * size is reported to the batch size controller, and the next
+     * batch is built using the updated batch size.
+     *
+     * If prefetchBatches is greater than 0, the searches for the next
+     * prefetchBatches batches are submitted to the execution context
+     * while the current batch is consumed. The join tuples are still
+     * read in the consumer thread, and the batches are streamed in
+     * order.
      */
     private class BatchQueryIterator implements DocumentStream<ResultDocument> {
-        private final int batchSize;
         private final ExecutionContext ctx;
         private final Iterator<JoinTuple> sourceStream;
         private final ArrayList<Consumer<ResultDocument>> listeners=new ArrayList<>();
+        private final ArrayDeque<Future<Batch>> inFlight=new ArrayDeque<>();
 
-        private DocumentStream<DocCtx> currentIterator;
+        private Batch currentBatch;
         private boolean done=false; // Are we still iterating, or are we done?
         
-        public BatchQueryIterator(int batchSize,ExecutionContext ctx) {
-            this.batchSize=batchSize;
+        public BatchQueryIterator(ExecutionContext ctx) {
             this.ctx=ctx;
             sourceStream=source.getStep().getResults(ctx).stream().iterator();
         }
@@ -86,12 +172,12 @@ public class JoinSearch extends AbstractSearchStep {
         @Override
         public boolean hasNext() {
             if(!done) {
-                if(currentIterator==null||!currentIterator.hasNext())
+                if(currentBatch==null||!currentBatch.hasNext())
                     retrieveNextBatch();
                 if(done)
                     return false;
                 else
-                    return currentIterator.hasNext();
+                    return currentBatch.hasNext();
             } else {
                 return false;
             }
@@ -100,10 +186,14 @@ public class JoinSearch extends AbstractSearchStep {
         @Override
         public ResultDocument next() {
             if(!done) {
-                if(currentIterator==null||!currentIterator.hasNext())
+                if(currentBatch==null||!currentBatch.hasNext())
                     retrieveNextBatch();
-                if(currentIterator!=null) {
-                    ResultDocument doc=new ResultDocument(block,currentIterator.next().getOutputDocument());
+                if(currentBatch!=null) {
+                    DocCtx resultDoc=currentBatch.next();
+                    int sizeB=resultDoc.getOutputDocumentSizeB();
+                    currentBatch.resultBytes+=sizeB;
+                    ResultDocument doc=new ResultDocument(block,resultDoc.getOutputDocument());
+                    doc.setDocSizeB(sizeB);
                     for(Consumer<ResultDocument> l:listeners)
                         l.accept(doc);
                     return doc;
@@ -114,8 +204,18 @@ public class JoinSearch extends AbstractSearchStep {
 
         @Override
         public void close() {
-            if(currentIterator!=null)
-                currentIterator.close();
+            if(currentBatch!=null)
+                currentBatch.results.close();
+            // Close the streams of the batches retrieved in advance
+            while(!inFlight.isEmpty()) {
+                try {
+                    Batch batch=inFlight.removeFirst().get();
+                    if(batch.results!=null)
+                        batch.results.close();
+                } catch (Exception e) {
+                    LOGGER.debug("Ignoring prefetched batch error on close: {}",e);
+                }
+            }
         }
 
         @Override
@@ -124,40 +224,110 @@ public class JoinSearch extends AbstractSearchStep {
         }
         
         private void retrieveNextBatch() {
+            if(currentBatch!=null) {
+                currentBatch.results.close();
+                batchSize.update(currentBatch.numTuples,currentBatch.querySize,currentBatch.getElapsedMs(),currentBatch.resultBytes);
+                currentBatch=null;
+            }
             do {
-                int n=0;
-                ArrayList<QueryExpression> qBatch=new ArrayList<>(batchSize);
-                if(currentIterator!=null) {
-                    currentIterator.close();
-                    currentIterator=null;
-                }
-                while(sourceStream.hasNext()&&n<batchSize) {
-                    JoinTuple t=sourceStream.next();
-                    qBatch.addAll(Searches.writeQueriesForJoinTuple(t, block));
-                    n++;
+                Batch batch;
+                if(prefetchBatches==0) {
+                    batch=nextBatch();
+                    if(batch!=null) {
+                        execute(batch);
+                    } else {
+                        done=true;
+                    }
+                } else {
+                    // Keep the current batch and prefetchBatches more in flight
+                    while(inFlight.size()<=prefetchBatches) {
+                        Batch b=nextBatch();
+                        if(b==null)
+                            break;
+                        inFlight.addLast(ctx.submit(() -> execute(b)));
+                    }
+                    if(inFlight.isEmpty()) {
+                        batch=null;
+                        done=true;
+                    } else {
+                        batch=getBatch(inFlight.removeFirst());
+                    }
                 }
-                if(!qBatch.isEmpty()) {
-                    QueryExpression q = Searches.combine(NaryLogicalOperator._or, qBatch);
-                    CRUDFindRequest findRequest = new CRUDFindRequest();
-                    findRequest.setQuery(Searches.and(q, query));
-                    findRequest.setProjection(projection);
-                    findRequest.setSort(sort);
-                    findRequest.setFrom(from);
-                    findRequest.setTo(to);
-                    OperationContext opctx = search(ctx, findRequest);
-                    if(opctx!=null) {
-                        currentIterator=opctx.getDocumentStream();
-                        if(!currentIterator.hasNext()) {
-                            currentIterator.close();
-                            currentIterator=null;
-                        }
+                if(batch!=null) {
+                    if(batch.errors!=null) {
+                        ctx.getOperationContext().addErrors(batch.errors);
                     }
+                    if(batch.results!=null) {
+                        currentBatch=batch;
+                    } else {
+                        batchSize.update(batch.numTuples,batch.querySize,batch.getElapsedMs(),0);
+                    }
+                }
+            } while(!done&&currentBatch==null);
+        }
+
+        /**
+         * Reads the next batch of join tuples from the source, and
+         * builds the search request for them. Returns null if there
+         * are no more join tuples.
+         */
+        private Batch nextBatch() {
+            int n=0;
+            int size=batchSize.getBatchSize();
+            ArrayList<QueryExpression> qBatch=new ArrayList<>(size);
+            while(sourceStream.hasNext()&&n<size) {
+                JoinTuple t=sourceStream.next();
+                qBatch.addAll(Searches.writeQueriesForJoinTuple(t, block));
+                n++;
+            }
+            if(qBatch.isEmpty()) {
+                return null;
+            }
+            QueryExpression q = Searches.combine(NaryLogicalOperator._or, qBatch);
+            CRUDFindRequest findRequest = new CRUDFindRequest();
+            findRequest.setQuery(Searches.and(q, query));
+            findRequest.setProjection(projection);
+            findRequest.setSort(sort);
+            findRequest.setFrom(from);
+            findRequest.setTo(to);
+            return new Batch(findRequest,n,AdaptiveBatchSize.querySize(q));
+        }
+
+        /**
+         * Runs the search for the batch. If the search fails or
+         * returns no documents, batch results are left null.
+         */
+        private Batch execute(Batch batch) {
+            long start=System.nanoTime();
+            // This may run in an executor thread, so errors are kept
+            // in the batch, and added to the operation context by
+            // the consumer thread
+            OperationContext opctx = runSearch(block, ctx, batch.request, batch.numTuples);
+            if(opctx.hasErrors()) {
+                batch.errors=opctx.getErrors();
+            } else {
+                DocumentStream<DocCtx> stream=opctx.getDocumentStream();
+                if(stream.hasNext()) {
+                    batch.results=stream;
                 } else {
-                    done=true;
+                    stream.close();
                 }
-            } while(!done&&currentIterator==null);
-        }   
-            
+            }
+            batch.searchNanos=System.nanoTime()-start;
+            return batch;
+        }
+
+        private Batch getBatch(Future<Batch> future) {
+            try {
+                return ctx.await(future);
+            } catch (InterruptedException x) {
+                throw new RuntimeException(x);
+            } catch (ExecutionException x) {
+                if(x.getCause() instanceof RuntimeException)
+                    throw (RuntimeException)x.getCause();
+                throw new RuntimeException(x.getCause());
+            }
+        }
     }
 
     @Override
@@ -24,6 +24,7 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
+import com.redhat.lightblue.eval.ProjectionCompiler;
 import com.redhat.lightblue.eval.Projector;
 import com.redhat.lightblue.query.Projection;
 
@@ -40,7 +41,7 @@ public class Project extends Step<ResultDocument> {
         super(block);
         this.source = source;
         this.projection = projection;
-        this.p = Projector.getInstance(projection, block.getMetadata());
+        this.p = ProjectionCompiler.compile(projection, block.getMetadata());
     }
 
     @Override
@@ -14,6 +14,7 @@ import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 
 import com.redhat.lightblue.util.JsonDoc;
+import com.redhat.lightblue.util.JsonUtils;
 import com.redhat.lightblue.util.Path;
 import com.redhat.lightblue.util.KeyValueCursor;
 import com.redhat.lightblue.util.Tuples;
@@ -41,6 +42,7 @@ public class ResultDocument {
     private final ExecutionBlock block;
     private DocId docId;
     private Map<ResolvedReferenceField, List<ChildSlot>> slots = new HashMap<>();
+    private int docSizeB = -1;
 
     public ResultDocument(ExecutionBlock block, JsonDoc doc) {
         this.doc = doc;
@@ -63,6 +65,33 @@ public class ResultDocument {
         return doc;
     }
 
+    /**
+     * Returns the approximate size of the document in bytes, see
+     * {@link JsonUtils#size(JsonNode)}. The size is computed once, and
+     * cached until child documents are inserted into this document.
+     */
+    public int getDocSizeB() {
+        if (docSizeB < 0) {
+            docSizeB = JsonUtils.size(doc.getRoot());
+        }
+        return docSizeB;
+    }
+
+    /**
+     * Sets the size of the document, if it is already known
+     */
+    public void setDocSizeB(int sizeB) {
+        docSizeB = sizeB;
+    }
+
+    /**
+     * Discards the cached document size. This must be called when the
+     * document is modified.
+     */
+    public void resetDocSizeB() {
+        docSizeB = -1;
+    }
+
     /**
      * Returns the execution block produced this document
      */
@@ -222,6 +251,7 @@ public class ResultDocument {
      */
     public void insertChildDocs(ChildSlot slot,
                                 Stream<ResultDocument> childDocs) {
+        docSizeB = -1;
         ObjectNode containerField;
         if (slot.getLocalContainerName().isEmpty()) {
             containerField = (ObjectNode) doc.getRoot();
@@ -36,13 +36,30 @@ public class Retrieve extends Search {
     private static final Logger LOGGER = LoggerFactory.getLogger(Retrieve.class);
 
     private QueryExpression searchQuery;
+    private int probes = 1;
 
     public Retrieve(ExecutionBlock block) {
         super(block);
     }
 
     public void setQuery(QueryExpression q) {
+        setQuery(q, 1);
+    }
+
+    /**
+     * Sets the search criteria for the next retrieval
+     *
+     * @param q The query
+     * @param probes Number of queries combined in q
+     */
+    public void setQuery(QueryExpression q, int probes) {
         this.searchQuery = q;
+        this.probes = probes;
+    }
+
+    @Override
+    protected int getProbes() {
+        return probes;
     }
 
     protected CRUDFindRequest buildFindRequest(ExecutionContext ctx) {
@@ -62,12 +62,19 @@ public class Search extends AbstractSearchStep {
     public OperationContext search(ExecutionContext ctx) {
         CRUDFindRequest req = buildFindRequest(ctx);
         if (req != null) {
-            return search(ctx, req);
+            return search(block, ctx, req, getProbes());
         } else {
             return null;
         }
     }
 
+    /**
+     * Returns the number of queries combined in the search
+     */
+    protected int getProbes() {
+        return 1;
+    }
+
     protected CRUDFindRequest buildFindRequest(ExecutionContext ctx) {
         CRUDFindRequest findRequest = new CRUDFindRequest();
         findRequest.setQuery(query);
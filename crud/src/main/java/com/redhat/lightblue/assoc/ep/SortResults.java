@@ -58,7 +58,7 @@ public class SortResults extends Step<ResultDocument> {
         };
     }
 
-    private static class SortableDoc extends SortableItem {
+    static class SortableDoc extends SortableItem {
         private final ResultDocument doc;
 
         public SortableDoc(ResultDocument doc, SortFieldInfo[] fields) {
@@ -0,0 +1,130 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.assoc.ep;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.stream.Stream;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import com.redhat.lightblue.query.Sort;
+
+import com.redhat.lightblue.eval.SortFieldInfo;
+
+/**
+ * Sorts the result set, and returns only the first k results.
+ *
+ * This is used instead of SortResults when the sorted results are
+ * limited. Only the best k documents seen so far are kept in a heap,
+ * so it uses O(k) memory and O(n log k) time instead of O(n) memory
+ * and O(n log n) time. Documents that compare equal are returned in
+ * the order they are received, the same as SortResults.
+ *
+ * The source is always read to the end, so steps before this one
+ * still see all the documents.
+ */
+public class TopKSortResults extends Step<ResultDocument> {
+
+    private final SortFieldInfo[] sortFields;
+    private final Sort sort;
+    private final int k;
+    private final Source<ResultDocument> source;
+
+    /**
+     * @param k Number of results to keep. If the results are later
+     * skipped and limited using from and to, this is to+1
+     */
+    public TopKSortResults(ExecutionBlock block, Source<ResultDocument> source, Sort sort, int k) {
+        super(block);
+        this.source = source;
+        this.sort = sort;
+        this.k = Math.max(0, k);
+        this.sortFields = SortFieldInfo.buildSortFields(sort, block.getMetadata());
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    @Override
+    public StepResult<ResultDocument> getResults(ExecutionContext ctx) {
+        return new StepResultWrapper<ResultDocument>(source.getStep().getResults(ctx)) {
+            @Override
+            public Stream<ResultDocument> stream() {
+                return topK(super.stream()).stream().map(d -> d.doc.getDoc());
+            }
+        };
+    }
+
+    private static class RankedDoc {
+        private final SortResults.SortableDoc doc;
+        private final long seq;
+
+        RankedDoc(SortResults.SortableDoc doc, long seq) {
+            this.doc = doc;
+            this.seq = seq;
+        }
+    }
+
+    private static final Comparator<RankedDoc> ORDER = (x, y) -> {
+        int c = x.doc.compareTo(y.doc);
+        return c == 0 ? Long.compare(x.seq, y.seq) : c;
+    };
+
+    private List<RankedDoc> topK(Stream<ResultDocument> docs) {
+        // Max-heap, the head is the worst document kept
+        PriorityQueue<RankedDoc> heap = new PriorityQueue<>(Math.max(1, Math.min(k, 1024)), ORDER.reversed());
+        long[] seq = new long[1];
+        docs.forEach(d -> {
+            RankedDoc doc = new RankedDoc(new SortResults.SortableDoc(d, sortFields), seq[0]++);
+            if (heap.size() < k) {
+                heap.add(doc);
+            } else if (k > 0 && ORDER.compare(doc, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(doc);
+            }
+        });
+        List<RankedDoc> list = new ArrayList<>(heap);
+        list.sort(ORDER);
+        return list;
+    }
+
+    @Override
+    public JsonNode toJson() {
+        ObjectNode o = JsonNodeFactory.instance.objectNode();
+        o.set("sort", sort.toJson());
+        o.set("k", JsonNodeFactory.instance.numberNode(k));
+        o.set("source", source.getStep().toJson());
+        return o;
+    }
+
+    @Override
+    public JsonNode explain(ExecutionContext ctx) {
+        ObjectNode o = JsonNodeFactory.instance.objectNode();
+        o.set("sort", sort.toJson());
+        o.set("k", JsonNodeFactory.instance.numberNode(k));
+        o.set("source", source.getStep().explain(ctx));
+        return o;
+    }
+}
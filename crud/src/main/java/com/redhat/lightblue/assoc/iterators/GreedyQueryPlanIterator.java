@@ -0,0 +1,316 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.assoc.iterators;
+
+import java.io.Serializable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.redhat.lightblue.assoc.QueryPlan;
+import com.redhat.lightblue.assoc.QueryPlanIterator;
+import com.redhat.lightblue.assoc.QueryPlanNode;
+
+/**
+ * Iterates over query plans using scorer feedback, visiting a
+ * polynomial number of plans instead of all 2^edges plans.
+ *
+ * If the query plan has at most <code>exhaustiveEdgeLimit</code>
+ * edges, this behaves exactly like {@link BruteForceQueryPlanIterator}.
+ * Otherwise, the search runs in two phases:
+ * <ol>
+ * <li>For every node, the plan where all edges are directed away from
+ * that node is scored. These are the plans with a single source, and
+ * they include the plans that reverse the path from a queried node
+ * to the root, which can take many edge flips to reach
+ * otherwise.</li>
+ * <li>Starting from each of these plans, best first, all plans that
+ * differ from it by a single edge are scored. If one of them is
+ * better, the search continues from the best of them. The search from
+ * a starting plan stops when no neighbor is better, or after as many
+ * rounds as there are edges. Starting from every single-source plan
+ * avoids getting stuck at the local optimum of the best one.</li>
+ * </ol>
+ * A plan is never scored twice. The query plan chooser can also stop
+ * the iteration early once a plan reaches the lower bound of the
+ * scorer.
+ */
+public class GreedyQueryPlanIterator implements QueryPlanIterator, Serializable {
+
+    private static final long serialVersionUID = 1l;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(GreedyQueryPlanIterator.class);
+
+    /**
+     * Plans with at most this many edges are iterated exhaustively
+     */
+    public static final int DEFAULT_EXHAUSTIVE_EDGE_LIMIT = 4;
+
+    private enum Phase {
+        SOURCES, NEIGHBORS, DONE
+    }
+
+    private final int exhaustiveEdgeLimit;
+
+    private QueryPlan qp;
+    private QueryPlanNode[] nodes;
+    private QueryPlanNode[][] edges;
+    private final Map<QueryPlanNode, List<QueryPlanNode>> adjacency = new IdentityHashMap<>();
+    private BruteForceQueryPlanIterator exhaustive;
+
+    private Phase phase;
+    private int index;
+    private int rounds;
+    private BitSet current;
+    private BitSet pending;
+    private BitSet roundBase;
+    private final List<BitSet> starts = new ArrayList<>();
+    private int startIndex;
+    private final Set<BitSet> visited = new HashSet<>();
+    private final Map<BitSet, Comparable> scores = new HashMap<>();
+
+    public GreedyQueryPlanIterator() {
+        this(DEFAULT_EXHAUSTIVE_EDGE_LIMIT);
+    }
+
+    /**
+     * @param exhaustiveEdgeLimit Query plans with at most this many
+     * edges are iterated exhaustively
+     */
+    public GreedyQueryPlanIterator(int exhaustiveEdgeLimit) {
+        this.exhaustiveEdgeLimit = exhaustiveEdgeLimit;
+    }
+
+    private void findEdges(List<QueryPlanNode[]> l, QueryPlanNode from) {
+        for (QueryPlanNode to : from.getDestinations()) {
+            l.add(new QueryPlanNode[]{from, to});
+            findEdges(l, to);
+        }
+    }
+
+    @Override
+    public void reset(QueryPlan qp) {
+        this.qp = qp;
+        List<QueryPlanNode[]> edgeList = new ArrayList<>(16);
+        for (QueryPlanNode x : qp.getSources()) {
+            findEdges(edgeList, x);
+        }
+        edges = edgeList.toArray(new QueryPlanNode[edgeList.size()][]);
+        nodes = qp.getAllNodes();
+        adjacency.clear();
+        for (QueryPlanNode[] edge : edges) {
+            adjacency.computeIfAbsent(edge[0], k -> new ArrayList<>()).add(edge[1]);
+            adjacency.computeIfAbsent(edge[1], k -> new ArrayList<>()).add(edge[0]);
+        }
+        visited.clear();
+        scores.clear();
+        starts.clear();
+        if (edges.length <= exhaustiveEdgeLimit) {
+            exhaustive = new BruteForceQueryPlanIterator();
+            exhaustive.reset(qp);
+        } else {
+            exhaustive = null;
+            current = new BitSet();
+            // The initial plan is scored by the chooser first
+            pending = current;
+            visited.add(current);
+            starts.add(current);
+            phase = Phase.SOURCES;
+            index = 0;
+            rounds = 0;
+        }
+    }
+
+    @Override
+    public void scored(Comparable score) {
+        if (exhaustive == null && pending != null) {
+            if (score != null) {
+                scores.put(pending, score);
+            }
+            pending = null;
+        }
+    }
+
+    @Override
+    public boolean next() {
+        if (exhaustive != null) {
+            return exhaustive.next();
+        }
+        pending = null;
+        while (true) {
+            switch (phase) {
+                case SOURCES:
+                    while (index < nodes.length) {
+                        BitSet plan = singleSourcePlan(nodes[index++]);
+                        if (!starts.contains(plan)) {
+                            starts.add(plan);
+                        }
+                        if (tryPlan(plan)) {
+                            return true;
+                        }
+                    }
+                    // Unscored plans go last
+                    starts.sort((x, y) -> compare(scores.get(x), scores.get(y)));
+                    phase = Phase.NEIGHBORS;
+                    startIndex = 0;
+                    startClimb();
+                    break;
+                case NEIGHBORS:
+                    while (index < edges.length) {
+                        BitSet plan = (BitSet) roundBase.clone();
+                        plan.flip(index++);
+                        if (tryPlan(plan)) {
+                            return true;
+                        }
+                    }
+                    BitSet next = bestNeighbor(roundBase);
+                    if (next != null && ++rounds < edges.length) {
+                        // Found a better plan, continue from there
+                        roundBase = next;
+                        index = 0;
+                    } else if (++startIndex < starts.size()) {
+                        startClimb();
+                    } else {
+                        phase = Phase.DONE;
+                    }
+                    break;
+                default:
+                    LOGGER.debug("Scored {} plans for {} edges", visited.size(), edges.length);
+                    apply(new BitSet());
+                    return false;
+            }
+        }
+    }
+
+    private void startClimb() {
+        roundBase = starts.get(startIndex);
+        index = 0;
+        rounds = 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int compare(Comparable x, Comparable y) {
+        if (x == null) {
+            return y == null ? 0 : 1;
+        } else if (y == null) {
+            return -1;
+        } else {
+            return x.compareTo(y);
+        }
+    }
+
+    /**
+     * Returns the best plan that differs from the given plan by a
+     * single edge and scores better than it, or null if there is none
+     */
+    private BitSet bestNeighbor(BitSet plan) {
+        BitSet ret = null;
+        Comparable retScore = scores.get(plan);
+        for (int i = 0; i < edges.length; i++) {
+            BitSet neighbor = (BitSet) plan.clone();
+            neighbor.flip(i);
+            Comparable score = scores.get(neighbor);
+            if (score != null && compare(score, retScore) < 0) {
+                ret = neighbor;
+                retScore = score;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Configures the query plan according to the given plan, unless it
+     * has already been visited
+     */
+    private boolean tryPlan(BitSet plan) {
+        if (visited.add(plan)) {
+            apply(plan);
+            pending = plan;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the plan where all edges are directed away from the
+     * given node
+     */
+    private BitSet singleSourcePlan(QueryPlanNode source) {
+        Map<QueryPlanNode, Integer> distance = new IdentityHashMap<>();
+        ArrayDeque<QueryPlanNode> queue = new ArrayDeque<>();
+        distance.put(source, 0);
+        queue.add(source);
+        while (!queue.isEmpty()) {
+            QueryPlanNode node = queue.removeFirst();
+            List<QueryPlanNode> neighbors = adjacency.get(node);
+            if (neighbors != null) {
+                for (QueryPlanNode n : neighbors) {
+                    if (!distance.containsKey(n)) {
+                        distance.put(n, distance.get(node) + 1);
+                        queue.addLast(n);
+                    }
+                }
+            }
+        }
+        BitSet plan = new BitSet();
+        for (int i = 0; i < edges.length; i++) {
+            Integer from = distance.get(edges[i][0]);
+            Integer to = distance.get(edges[i][1]);
+            if (from != null && to != null && to < from) {
+                plan.set(i);
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Flips the edges of the query plan so that it matches the given
+     * plan
+     */
+    private void apply(BitSet plan) {
+        BitSet diff = (BitSet) current.clone();
+        diff.xor(plan);
+        for (int i = diff.nextSetBit(0); i >= 0; i = diff.nextSetBit(i + 1)) {
+            qp.flip(edges[i][0], edges[i][1]);
+        }
+        current = plan;
+    }
+
+    @Override
+    public String toString() {
+        if (exhaustive != null) {
+            return exhaustive.toString();
+        }
+        StringBuilder bld = new StringBuilder();
+        for (int i = 0; i < edges.length; i++) {
+            bld.append(current.get(i) ? '0' : '1');
+        }
+        return bld.toString();
+    }
+}
@@ -151,6 +151,15 @@ public class IndexedFieldScorer implements QueryPlanScorer, Serializable {
         return finalCost;
     }
 
+    /**
+     * Costs and penalties are never negative, so no plan can do better
+     * than zero
+     */
+    @Override
+    public Comparable getLowerBound() {
+        return BigInteger.ZERO;
+    }
+
     private boolean aboveRoot(QueryPlanNode node,QueryPlanNode root) {
         QueryPlanNode[] sources=root.getSources();
         if(sources!=null) {
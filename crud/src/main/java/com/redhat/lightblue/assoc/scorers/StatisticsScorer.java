@@ -0,0 +1,95 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.assoc.scorers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.redhat.lightblue.assoc.ExecutionStatistics;
+import com.redhat.lightblue.assoc.QueryPlanChooser;
+import com.redhat.lightblue.assoc.QueryPlanData;
+import com.redhat.lightblue.assoc.QueryPlanNode;
+
+/**
+ * Query plan scorer that uses the result counts and latencies observed
+ * by earlier composite finds.
+ *
+ * This uses the same cost model as IndexedFieldScorer, but the result
+ * size of a query plan node is estimated from the execution statistics
+ * for the node entity and node query shape, if there are at least
+ * minSamples observations. Nodes without enough observations use the
+ * index based estimates. So plans adapt to the actual data
+ * distribution as the statistics are collected.
+ *
+ * Observed latencies are in milliseconds, and cannot be compared to
+ * the heuristic costs of the index based estimates. So the observed
+ * latencies are used as node costs only if all the nodes of the query
+ * plan have enough observations. Otherwise, all nodes use the
+ * heuristic costs.
+ */
+public class StatisticsScorer extends IndexedFieldScorer {
+
+    private static final long serialVersionUID = 1l;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StatisticsScorer.class);
+
+    /**
+     * Statistics with fewer observations than this are not used
+     */
+    public static final int DEFAULT_MIN_SAMPLES = 3;
+
+    private final transient ExecutionStatistics stats;
+    private final int minSamples;
+
+    public StatisticsScorer(ExecutionStatistics stats) {
+        this(stats, DEFAULT_MIN_SAMPLES);
+    }
+
+    public StatisticsScorer(ExecutionStatistics stats, int minSamples) {
+        this.stats = stats;
+        this.minSamples = minSamples;
+    }
+
+    @Override
+    public QueryPlanData newDataInstance() {
+        return new StatisticsScorerData();
+    }
+
+    @Override
+    public void reset(QueryPlanChooser c) {
+        super.reset(c);
+        boolean allObserved = true;
+        QueryPlanNode[] nodes = c.getQueryPlan().getAllNodes();
+        for (QueryPlanNode node : nodes) {
+            StatisticsScorerData data = (StatisticsScorerData) node.getData();
+            ExecutionStatistics.Stat stat = stats == null ? null
+                    : stats.getStat(node.getMetadata().getName(), ExecutionStatistics.getQueryShape(data.getConjuncts()));
+            if (stat != null && stat.getCount() < minSamples) {
+                stat = null;
+            }
+            LOGGER.debug("Statistics for node {}: {}", node.getName(), stat);
+            data.setStat(stat);
+            allObserved &= stat != null;
+        }
+        LOGGER.debug("Using observed costs: {}", allObserved);
+        for (QueryPlanNode node : nodes) {
+            ((StatisticsScorerData) node.getData()).setObservedCost(allObserved);
+        }
+    }
+}
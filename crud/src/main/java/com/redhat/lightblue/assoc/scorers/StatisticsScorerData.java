@@ -0,0 +1,109 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.assoc.scorers;
+
+import java.math.BigInteger;
+
+import com.redhat.lightblue.assoc.ExecutionStatistics;
+import com.redhat.lightblue.assoc.QueryPlanData;
+
+/**
+ * Query plan node data for the statistics scorer. If there are
+ * execution statistics for the node, the result size estimate comes
+ * from the statistics. The cost estimate comes from the statistics
+ * only if observed costs are enabled for the node. Otherwise, the
+ * estimates of IndexedFieldScorerData are used.
+ */
+public class StatisticsScorerData extends IndexedFieldScorerData {
+
+    private transient ExecutionStatistics.Stat stat;
+
+    private transient boolean observedCost = false;
+
+    private transient CostAndSize statCs = null;
+
+    /**
+     * The execution statistics for the entity and query of this node,
+     * or null if there are none
+     */
+    public ExecutionStatistics.Stat getStat() {
+        return stat;
+    }
+
+    public void setStat(ExecutionStatistics.Stat stat) {
+        this.stat = stat;
+        statCs = null;
+    }
+
+    /**
+     * If true, and there are statistics for this node, the cost is the
+     * observed search latency
+     */
+    public boolean isObservedCost() {
+        return observedCost;
+    }
+
+    public void setObservedCost(boolean b) {
+        observedCost = b;
+        statCs = null;
+    }
+
+    /**
+     * The size is the observed number of documents returned by a
+     * single probe, the same unit as the heuristic size estimates. If
+     * observed costs are enabled, the cost is the observed search
+     * latency in milliseconds, otherwise it is the heuristic cost of
+     * IndexedFieldScorerData. The two costs are in different units, so
+     * the scorer must use the same kind of cost for all nodes of a
+     * query plan. Both are at least 1.
+     */
+    @Override
+    public CostAndSize getCostAndSize() {
+        if (stat == null) {
+            return super.getCostAndSize();
+        }
+        if (statCs == null) {
+            BigInteger cost = observedCost ? BigInteger.valueOf(Math.max(1, Math.round(stat.getLatencyMsPerSearch())))
+                    : super.getCostAndSize().cost;
+            statCs = new CostAndSize(cost, BigInteger.valueOf(Math.max(1, (long) Math.ceil(stat.getResultsPerProbe()))));
+        }
+        return statCs;
+    }
+
+    @Override
+    public QueryPlanData newInstance() {
+        return new StatisticsScorerData();
+    }
+
+    @Override
+    public void copyFrom(QueryPlanData source) {
+        super.copyFrom(source);
+        if (source instanceof StatisticsScorerData) {
+            StatisticsScorerData s = (StatisticsScorerData) source;
+            stat = s.stat;
+            observedCost = s.observedCost;
+            statCs = s.statCs;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return super.toString() + " stat:" + stat + " observedCost:" + observedCost;
+    }
+}
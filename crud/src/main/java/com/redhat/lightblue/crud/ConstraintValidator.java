@@ -20,8 +20,12 @@ package com.redhat.lightblue.crud;
 
 import java.util.List;
 import java.util.Map;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -34,14 +38,11 @@ import com.redhat.lightblue.util.Path;
 import com.redhat.lightblue.util.Error;
 import com.redhat.lightblue.util.KeyValueCursor;
 
+import com.redhat.lightblue.metadata.DocumentFieldPlan;
 import com.redhat.lightblue.metadata.EntityMetadata;
 import com.redhat.lightblue.metadata.FieldTreeNode;
 import com.redhat.lightblue.metadata.FieldConstraint;
 import com.redhat.lightblue.metadata.EntityConstraint;
-import com.redhat.lightblue.metadata.Field;
-import com.redhat.lightblue.metadata.FieldCursor;
-import com.redhat.lightblue.metadata.SimpleArrayElement;
-import com.redhat.lightblue.metadata.ResolvedReferenceField;
 
 public class ConstraintValidator {
 
@@ -50,8 +51,10 @@ public class ConstraintValidator {
     private final Registry<String, FieldConstraintChecker> fRegistry;
     private final Registry<String, EntityConstraintChecker> eRegistry;
     private final EntityMetadata md;
+    private final Supplier<? extends ExecutorService> executor;
+    private final int batchSize;
 
-    private final Map<JsonDoc, List<Error>> docErrors = new HashMap<>();
+    private final Map<JsonDoc, List<Error>> docErrors = new LinkedHashMap<>();
     private final List<Error> errors = new ArrayList<>();
 
     private List<? extends JsonDoc> currentDocList;
@@ -60,13 +63,30 @@ public class ConstraintValidator {
     private Path currentFieldPath;
     private FieldConstraint currentFieldConstraint;
     private EntityConstraint currentEntityConstraint;
+    private CompiledConstraints compiledConstraints;
 
     protected ConstraintValidator(Registry<String, FieldConstraintChecker> r,
                                   Registry<String, EntityConstraintChecker> e,
                                   EntityMetadata md) {
+        this(r, e, md, null, 0);
+    }
+
+    /**
+     * Constructs a validator that validates document lists larger than
+     * batchSize in parallel, batchSize documents per task, using the
+     * executor returned by the given supplier. The executor is requested
+     * only if a document list is large enough.
+     */
+    protected ConstraintValidator(Registry<String, FieldConstraintChecker> r,
+                                  Registry<String, EntityConstraintChecker> e,
+                                  EntityMetadata md,
+                                  Supplier<? extends ExecutorService> executor,
+                                  int batchSize) {
         this.fRegistry = r;
         this.eRegistry = e;
         this.md = md;
+        this.executor = executor;
+        this.batchSize = batchSize;
     }
 
     public void clearErrors() {
@@ -142,8 +162,12 @@ public class ConstraintValidator {
         LOGGER.debug("validateDocs() enter with {} docs", docList.size());
         Error.push("validateDocs");
         try {
-            for (JsonDoc doc : docList) {
-                validateDoc(doc);
+            if (executor != null && batchSize > 0 && docList.size() > batchSize) {
+                validateInParallel(docList);
+            } else {
+                for (JsonDoc doc : docList) {
+                    validateDoc(doc);
+                }
             }
         } catch (Error e) {
             // rethrow lightblue error
@@ -158,6 +182,67 @@ public class ConstraintValidator {
         LOGGER.debug("validateDocs() complete");
     }
 
+    /**
+     * Splits the document list into batches, and validates each batch
+     * with a separate validator, so checkers see the state of their own
+     * task only. The first batch is validated by the calling thread. The
+     * errors are merged in document order. If validation of a batch
+     * fails, the failure of the earliest batch is rethrown.
+     */
+    private void validateInParallel(List<? extends JsonDoc> docList) {
+        int n = docList.size();
+        LOGGER.debug("Validating {} docs in batches of {}", n, batchSize);
+        List<String> context = Error.getCurrentContext();
+        ExecutorService pool = executor.get();
+        CompiledConstraints compiled = getCompiledConstraints();
+        List<Future<ConstraintValidator>> futures = new ArrayList<>();
+        for (int from = batchSize; from < n; from += batchSize) {
+            List<? extends JsonDoc> batch = docList.subList(from, Math.min(n, from + batchSize));
+            futures.add(pool.submit(() -> {
+                ConstraintValidator validator = new ConstraintValidator(fRegistry, eRegistry, md);
+                validator.currentDocList = docList;
+                validator.compiledConstraints = compiled;
+                for (String x : context) {
+                    Error.push(x);
+                }
+                try {
+                    for (JsonDoc doc : batch) {
+                        validator.validateDoc(doc);
+                    }
+                } finally {
+                    Error.reset();
+                }
+                return validator;
+            }));
+        }
+        try {
+            for (JsonDoc doc : docList.subList(0, batchSize)) {
+                validateDoc(doc);
+            }
+            for (Future<ConstraintValidator> future : futures) {
+                ConstraintValidator validator;
+                try {
+                    validator = future.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Error) {
+                        throw (Error) e.getCause();
+                    }
+                    LOGGER.error(e.getCause().getMessage(), e.getCause());
+                    throw Error.get(CrudConstants.ERR_CRUD, e.getCause().getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw Error.get(CrudConstants.ERR_CRUD, e.getMessage());
+                }
+                docErrors.putAll(validator.docErrors);
+                errors.addAll(validator.errors);
+            }
+        } finally {
+            for (Future<ConstraintValidator> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
     public void validateDoc(JsonDoc doc) {
         currentDoc = doc;
         Error.push("validateDoc");
@@ -190,17 +275,15 @@ public class ConstraintValidator {
 
     private void checkEntityConstraints(JsonDoc doc) {
         LOGGER.debug("checking entity constraints");
-        for (EntityConstraint x : md.getConstraints()) {
-            currentEntityConstraint = x;
-            String constraintType = currentEntityConstraint.getType();
-            LOGGER.debug("checking entity constraint " + constraintType);
-            Error.push(constraintType);
+        for (CompiledConstraint<EntityConstraint, EntityConstraintChecker> x : getCompiledConstraints().entityConstraints) {
+            currentEntityConstraint = x.constraint;
+            LOGGER.debug("checking entity constraint {}", x.type);
+            Error.push(x.type);
             try {
-                EntityConstraintChecker checker = eRegistry.find(constraintType);
-                if (checker == null) {
+                if (x.checker == null) {
                     throw Error.get(CrudConstants.ERR_NO_CONSTRAINT);
                 }
-                checker.checkConstraint(this, currentEntityConstraint, doc);
+                x.checker.checkConstraint(this, currentEntityConstraint, doc);
             } catch (Error e) {
                 // rethrow lightblue error
                 throw e;
@@ -216,57 +299,39 @@ public class ConstraintValidator {
 
     private void checkConstraints(JsonDoc doc, Path currentValuePath, JsonNode currentValue) {
         LOGGER.debug("checking field constraints");
-        FieldCursor cursor = md.getFieldCursor();
-        Path skip=null;
-        while (cursor.next()) {
-            currentFieldNode = cursor.getCurrentNode();
-            currentFieldPath = cursor.getCurrentPath();
-            // Skip any fields reached by crossing entity boundaries
-            if(skip!=null) {
-                if(!currentFieldPath.prefix(skip.numSegments()).equals(skip))
-                    skip=null;
-            }
-            if(skip==null) {
-                if(currentFieldNode instanceof ResolvedReferenceField)
-                    skip=currentFieldNode.getFullPath();
-            } 
-            if(skip==null) {
-                LOGGER.debug("checking field {} for {} - {}", currentFieldPath,currentFieldNode);
-                Error.push(currentFieldPath.toString());
-                try {
-                    List<FieldConstraint> constraints = null;
-                    if (currentFieldNode instanceof Field) {
-                        constraints = ((Field) currentFieldNode).getConstraints();
-                    } else if (currentFieldNode instanceof SimpleArrayElement) {
-                        constraints = ((SimpleArrayElement) currentFieldNode).getConstraints();
-                    }
-                    LOGGER.debug("Constraints:{}",constraints);
-                    if (constraints != null && !constraints.isEmpty()) {
-                        checkFieldConstraints(doc, constraints, currentValuePath, currentValue);
-                    }
-                } catch (Error e) {
-                    // rethrow lightblue error
-                    throw e;
-                } catch (Exception e) {
-                    // throw new Error (preserves current error context)
-                    LOGGER.error(e.getMessage(), e);
-                    throw Error.get(CrudConstants.ERR_CRUD, e.getMessage());
-                } finally {
-                    Error.pop();
-                }
+        // The plan lists the fields with constraints, skipping any
+        // fields reached by crossing entity boundaries
+        for (CompiledField field : getCompiledConstraints().fields) {
+            currentFieldNode = field.field.getNode();
+            currentFieldPath = field.field.getPath();
+            LOGGER.debug("checking field {} for {}", currentFieldPath, currentFieldNode);
+            Error.push(field.context);
+            try {
+                checkFieldConstraints(doc, field.constraints, currentValuePath, currentValue);
+            } catch (Error e) {
+                // rethrow lightblue error
+                throw e;
+            } catch (Exception e) {
+                // throw new Error (preserves current error context)
+                LOGGER.error(e.getMessage(), e);
+                throw Error.get(CrudConstants.ERR_CRUD, e.getMessage());
+            } finally {
+                Error.pop();
             }
         }
     }
 
-    private void checkFieldConstraints(JsonDoc doc, List<FieldConstraint> constraints, Path currentValuePath, JsonNode currentValue) {
+    private void checkFieldConstraints(JsonDoc doc,
+                                       List<CompiledConstraint<FieldConstraint, FieldConstraintChecker>> constraints,
+                                       Path currentValuePath,
+                                       JsonNode currentValue) {
 
-        for (FieldConstraint x : constraints) {
-            currentFieldConstraint = x;
-            String constraintType = currentFieldConstraint.getType();
-            LOGGER.debug("checking constraint " + constraintType);
-            Error.push(constraintType);
+        for (CompiledConstraint<FieldConstraint, FieldConstraintChecker> x : constraints) {
+            currentFieldConstraint = x.constraint;
+            LOGGER.debug("checking constraint {}", x.type);
+            Error.push(x.type);
             try {
-                FieldConstraintChecker checker = fRegistry.find(constraintType);
+                FieldConstraintChecker checker = x.checker;
                 if (checker == null) {
                     throw Error.get(CrudConstants.ERR_NO_CONSTRAINT);
                 }
@@ -304,7 +369,8 @@ public class ConstraintValidator {
             fieldValues.next();
             currentValuePath = fieldValues.getCurrentKey();
             currentValue = fieldValues.getCurrentValue();
-            Error.push(currentValuePath.toString());
+            // The path string is built only if an error is reported
+            Error.push(currentValuePath);
             try {
                 ((FieldConstraintValueChecker) checker).checkConstraint(this,
                         currentFieldNode,
@@ -326,6 +392,104 @@ public class ConstraintValidator {
         }
     }
 
+    /**
+     * Returns the constraints of the entity with their checkers. They
+     * are built once per entity metadata and checker registries, and
+     * cached with the entity metadata.
+     */
+    private CompiledConstraints getCompiledConstraints() {
+        if (compiledConstraints == null) {
+            compiledConstraints = md.getDerivedData(new CompiledConstraintsKey(fRegistry, eRegistry),
+                    m -> new CompiledConstraints(m, fRegistry, eRegistry));
+        }
+        return compiledConstraints;
+    }
+
+    /**
+     * The key of the compiled constraints in the derived data of the
+     * entity metadata. The same metadata can be validated using
+     * different checker registries.
+     */
+    private static final class CompiledConstraintsKey {
+        private final Registry<String, FieldConstraintChecker> fRegistry;
+        private final Registry<String, EntityConstraintChecker> eRegistry;
+
+        CompiledConstraintsKey(Registry<String, FieldConstraintChecker> fRegistry,
+                               Registry<String, EntityConstraintChecker> eRegistry) {
+            this.fRegistry = fRegistry;
+            this.eRegistry = eRegistry;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof CompiledConstraintsKey
+                    && ((CompiledConstraintsKey) o).fRegistry == fRegistry
+                    && ((CompiledConstraintsKey) o).eRegistry == eRegistry;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(fRegistry) * 31 + System.identityHashCode(eRegistry);
+        }
+    }
+
+    /**
+     * A constraint, and its checker resolved from the registry. The
+     * checker is null if there is no checker for the constraint type.
+     */
+    private static final class CompiledConstraint<C, K> {
+        private final C constraint;
+        private final String type;
+        private final K checker;
+
+        CompiledConstraint(C constraint, String type, K checker) {
+            this.constraint = constraint;
+            this.type = type;
+            this.checker = checker;
+        }
+    }
+
+    /**
+     * A field with constraints, and its error context
+     */
+    private static final class CompiledField {
+        private final DocumentFieldPlan.ConstrainedField field;
+        private final String context;
+        private final List<CompiledConstraint<FieldConstraint, FieldConstraintChecker>> constraints = new ArrayList<>();
+
+        CompiledField(DocumentFieldPlan.ConstrainedField field) {
+            this.field = field;
+            this.context = field.getPath().toString();
+        }
+    }
+
+    /**
+     * The entity and field constraints of an entity, in the order they
+     * are checked, with their checkers. These are built once for an
+     * entity, and shared by all validators of that entity.
+     */
+    private static final class CompiledConstraints {
+        private final List<CompiledConstraint<EntityConstraint, EntityConstraintChecker>> entityConstraints = new ArrayList<>();
+        private final List<CompiledField> fields = new ArrayList<>();
+
+        CompiledConstraints(EntityMetadata md,
+                            Registry<String, FieldConstraintChecker> fRegistry,
+                            Registry<String, EntityConstraintChecker> eRegistry) {
+            for (EntityConstraint x : md.getConstraints()) {
+                String type = x.getType();
+                entityConstraints.add(new CompiledConstraint<>(x, type, eRegistry.find(type)));
+            }
+            for (DocumentFieldPlan.ConstrainedField f : md.getDocumentFieldPlan().getConstrainedFields()) {
+                CompiledField field = new CompiledField(f);
+                for (FieldConstraint x : f.getConstraints()) {
+                    String type = x.getType();
+                    field.constraints.add(new CompiledConstraint<>(x, type, fRegistry.find(type)));
+                }
+                fields.add(field);
+            }
+        }
+    }
+
     public EntityMetadata getEntityMetadata() {
         return md;
     }
@@ -26,6 +26,7 @@ import java.util.HashMap;
 
 import com.redhat.lightblue.util.Error;
 import com.redhat.lightblue.util.JsonDoc;
+import com.redhat.lightblue.util.JsonUtils;
 
 import com.redhat.lightblue.DataError;
 import com.redhat.lightblue.ResultMetadata;
@@ -47,6 +48,11 @@ import com.redhat.lightblue.ResultMetadata;
  * has to be explicitly set (expected on the update & save operations). </li>
  * <li>resultMetadata: Result specific metadata</li>
  * </ul>
+ *
+ * The approximate sizes of the output document and the original
+ * document are computed when they are first requested, and cached until
+ * those documents are replaced. The size of this instance is never
+ * cached, because it is the document that is modified.
  */
 public class DocCtx extends JsonDoc {
 
@@ -57,6 +63,8 @@ public class DocCtx extends JsonDoc {
     private CRUDOperation CRUDOperationPerformed;
     private final Map<String, Object> propertyMap = new HashMap<>();
     private ResultMetadata resultMetadata;
+    private int outputDocSizeB = -1;
+    private int originalDocSizeB = -1;
 
     public DocCtx(JsonDoc doc) {
         super(doc.getRoot());
@@ -107,6 +115,22 @@ public class DocCtx extends JsonDoc {
      */
     public void setOutputDocument(JsonDoc doc) {
         this.outputDoc = doc;
+        outputDocSizeB = -1;
+    }
+
+    /**
+     * Returns the approximate size of the output document in bytes, see
+     * {@link JsonUtils#size(com.fasterxml.jackson.databind.JsonNode)}. The
+     * size is cached, unless the output document is this instance.
+     */
+    public int getOutputDocumentSizeB() {
+        if (outputDoc == this) {
+            return JsonUtils.size(getRoot());
+        }
+        if (outputDocSizeB < 0) {
+            outputDocSizeB = outputDoc == null ? 0 : JsonUtils.size(outputDoc.getRoot());
+        }
+        return outputDocSizeB;
     }
 
     /**
@@ -121,6 +145,7 @@ public class DocCtx extends JsonDoc {
      */
     public void copyOriginalFromThis() {
         originalDoc = copy();
+        originalDocSizeB = -1;
     }
 
     /**
@@ -144,6 +169,29 @@ public class DocCtx extends JsonDoc {
      */
     public void setOriginalDocument(JsonDoc doc) {
         originalDoc = doc;
+        originalDocSizeB = -1;
+    }
+
+    /**
+     * Returns the approximate size of the original document in bytes. The
+     * size is cached, unless the original document is this instance. If the
+     * original document is also the output document, the size of the output
+     * document is used.
+     */
+    public int getOriginalDocumentSizeB() {
+        if (originalDoc == this) {
+            return JsonUtils.size(getRoot());
+        }
+        if (originalDocSizeB < 0) {
+            if (originalDoc == null) {
+                originalDocSizeB = 0;
+            } else if (originalDoc == outputDoc) {
+                originalDocSizeB = getOutputDocumentSizeB();
+            } else {
+                originalDocSizeB = JsonUtils.size(originalDoc.getRoot());
+            }
+        }
+        return originalDocSizeB;
     }
 
     /**
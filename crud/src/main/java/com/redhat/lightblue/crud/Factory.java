@@ -21,22 +21,39 @@ package com.redhat.lightblue.crud;
 import java.io.Serializable;
 
 import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.Map;
 import java.util.HashMap;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.MetricRegistry;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 
 import com.redhat.lightblue.util.DefaultRegistry;
 import com.redhat.lightblue.util.Resolver;
+import com.redhat.lightblue.util.metrics.MetricRegistryFactory;
 
 import com.redhat.lightblue.metadata.EntityMetadata;
 import com.redhat.lightblue.metadata.ValueGenerator;
 
+import com.redhat.lightblue.hooks.AsyncHookDispatcher;
 import com.redhat.lightblue.hooks.HookResolver;
 import com.redhat.lightblue.hooks.CRUDHook;
 
 import com.redhat.lightblue.interceptor.InterceptorManager;
 
+import com.redhat.lightblue.mediator.BulkScheduler;
+
+import com.redhat.lightblue.assoc.ExecutionStatistics;
+import com.redhat.lightblue.assoc.QueryPlanCache;
+
 import com.redhat.lightblue.crud.valuegenerators.GeneratorsRegistry;
 import com.redhat.lightblue.extensions.valuegenerator.ValueGeneratorSupport;
 import com.redhat.lightblue.extensions.ExtensionSupport;
@@ -45,11 +62,18 @@ import com.redhat.lightblue.extensions.ExtensionSupport;
  * Factory class should be configured on initialization with all the validators
  * and hooks from all the subsystems, and used as a shared singleton object by
  * all threads.
+ *
+ * The shared executors and schedulers are created on first use from the
+ * settings of the factory, and are stopped by {@link #close()}.
  */
-public class Factory implements Serializable {
+public class Factory implements Serializable, AutoCloseable {
 
     private static final long serialVersionUID = 1L;
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(Factory.class);
+
+    private static final long HOOK_SHUTDOWN_TIMEOUT_MS = 10000;
+
     private final DefaultRegistry<String, FieldConstraintChecker> fieldConstraintValidatorRegistry = new DefaultRegistry<>();
     private final DefaultRegistry<String, EntityConstraintChecker> entityConstraintValidatorRegistry = new DefaultRegistry<>();
 
@@ -61,7 +85,38 @@ public class Factory implements Serializable {
 
     private JsonNodeFactory nodeFactory;
     private int bulkParallelExecutions = 3;
+    private int bulkMaxConcurrency = 16;
+    private int bulkMaxQueueDepth = 1024;
+    private BulkScheduler.OverflowPolicy bulkOverflowPolicy = BulkScheduler.OverflowPolicy.CALLER_RUNS;
+    private BulkScheduler.Fairness bulkFairness = BulkScheduler.Fairness.CALLER;
+    private transient volatile BulkScheduler bulkScheduler;
     private int memoryIndexThreshold = 16;
+    private int compositeParallelism = 9;
+    private int compositeExecutorParallelism = 0;
+    private transient volatile ThreadPoolExecutor compositeExecutor;
+    private int compositeBatchSize = 256;
+    private int compositePrefetchBatches = 0;
+    private boolean compositeAdaptiveBatching = true;
+    private int compositeMinBatchSize = 16;
+    private int compositeMaxBatchSize = 1024;
+    private int compositeMaxQuerySize = 4096;
+    private long compositeBatchTargetLatencyMs = 1000;
+    private long compositeMaxBatchBytes = 16 * 1024 * 1024;
+    private int compositePlanCacheSize = 1024;
+    private transient volatile QueryPlanCache queryPlanCache;
+    private boolean compositePlanStatistics = false;
+    private transient volatile ExecutionStatistics executionStatistics;
+    private int validationBatchSize = 256;
+    private int validationExecutorParallelism = 0;
+    private transient volatile ForkJoinPool validationExecutor;
+    private boolean asyncHooks = false;
+    private int hookQueueCapacity = 1024;
+    private int hookWorkers = 1;
+    private int hookBatchSize = 128;
+    private AsyncHookDispatcher.OverflowPolicy hookOverflowPolicy = AsyncHookDispatcher.OverflowPolicy.BLOCK;
+    private transient volatile AsyncHookDispatcher hookDispatcher;
+    private final Map<String, Integer> entityCompositeBatchSize = new ConcurrentHashMap<>();
+    private final Map<String, Integer> entityCompositePrefetchBatches = new ConcurrentHashMap<>();
     private int maxResultSetSizeForReadsB;
     private int warnResultSetSizeB;
     private int maxResultSetSizeForWritesB;
@@ -107,13 +162,92 @@ public class Factory implements Serializable {
     }
 
     public void setBulkParallelExecutions(int i) {
+        checkBulkSchedulerNotCreated();
         bulkParallelExecutions = i;
     }
 
+    /**
+     * Returns the maximum number of requests of a single caller (or
+     * entity, based on bulk fairness setting) that can run in
+     * parallel in the bulk scheduler
+     */
     public int getBulkParallelExecutions() {
         return bulkParallelExecutions;
     }
 
+    /**
+     * Returns the maximum number of bulk request entries running in
+     * parallel across all bulk requests
+     */
+    public int getBulkMaxConcurrency() {
+        return bulkMaxConcurrency;
+    }
+
+    public void setBulkMaxConcurrency(int i) {
+        checkBulkSchedulerNotCreated();
+        bulkMaxConcurrency = i;
+    }
+
+    /**
+     * Returns the maximum number of bulk request entries waiting to be
+     * executed across all bulk requests
+     */
+    public int getBulkMaxQueueDepth() {
+        return bulkMaxQueueDepth;
+    }
+
+    public void setBulkMaxQueueDepth(int i) {
+        checkBulkSchedulerNotCreated();
+        bulkMaxQueueDepth = i;
+    }
+
+    public BulkScheduler.OverflowPolicy getBulkOverflowPolicy() {
+        return bulkOverflowPolicy;
+    }
+
+    public void setBulkOverflowPolicy(BulkScheduler.OverflowPolicy p) {
+        checkBulkSchedulerNotCreated();
+        bulkOverflowPolicy = p;
+    }
+
+    public BulkScheduler.Fairness getBulkFairness() {
+        return bulkFairness;
+    }
+
+    public void setBulkFairness(BulkScheduler.Fairness f) {
+        checkBulkSchedulerNotCreated();
+        bulkFairness = f;
+    }
+
+    private void checkBulkSchedulerNotCreated() {
+        if (bulkScheduler != null) {
+            throw new IllegalStateException("Bulk settings cannot be changed after the bulk scheduler is created");
+        }
+    }
+
+    /**
+     * Returns the bulk scheduler shared by all bulk requests. The
+     * scheduler is created on first call using the bulk settings of
+     * this factory, and the bulk settings cannot be changed after
+     * that.
+     */
+    public BulkScheduler getBulkScheduler() {
+        BulkScheduler s = bulkScheduler;
+        if (s == null) {
+            synchronized (this) {
+                s = bulkScheduler;
+                if (s == null) {
+                    bulkScheduler = s = new BulkScheduler(bulkMaxConcurrency,
+                            bulkParallelExecutions,
+                            bulkMaxQueueDepth,
+                            bulkOverflowPolicy,
+                            getMetricRegistry());
+                }
+            }
+        }
+        return s;
+    }
+
     /**
      * Returns a constraint validator containing field and entity constraint
      * validators for the given entity
@@ -121,7 +255,9 @@ public class Factory implements Serializable {
     public ConstraintValidator getConstraintValidator(EntityMetadata md) {
         return new ConstraintValidator(fieldConstraintValidatorRegistry,
                 entityConstraintValidatorRegistry,
-                md);
+                md,
+                this::getValidationExecutor,
+                validationBatchSize);
     }
 
     /**
@@ -231,6 +367,383 @@ public class Factory implements Serializable {
         this.memoryIndexThreshold = memoryIndexThreshold;
     }
 
+    /**
+     * Returns the maximum number of threads a single composite find
+     * can use
+     */
+    public int getCompositeParallelism() {
+        return compositeParallelism;
+    }
+
+    public void setCompositeParallelism(int compositeParallelism) {
+        this.compositeParallelism = compositeParallelism;
+    }
+
+    /**
+     * Returns the number of threads of the executor shared by all
+     * composite finds. If 0, the number of available processors is
+     * used.
+     */
+    public int getCompositeExecutorParallelism() {
+        return compositeExecutorParallelism;
+    }
+
+    public void setCompositeExecutorParallelism(int compositeExecutorParallelism) {
+        this.compositeExecutorParallelism = compositeExecutorParallelism;
+    }
+
+    /**
+     * Returns the executor shared by all composite finds. The executor
+     * is created on first call. It has a bounded number of threads, and
+     * no queue: a task submitted when all threads are busy is rejected,
+     * and the composite find runs it in the calling thread. This way
+     * composite find tasks blocked on searches, or waiting for other
+     * tasks, cannot starve each other.
+     */
+    public ThreadPoolExecutor getCompositeExecutor() {
+        ThreadPoolExecutor p = compositeExecutor;
+        if (p == null) {
+            synchronized (this) {
+                p = compositeExecutor;
+                if (p == null) {
+                    int n = compositeExecutorParallelism > 0 ? compositeExecutorParallelism
+                            : Runtime.getRuntime().availableProcessors();
+                    AtomicInteger threadNumber = new AtomicInteger();
+                    p = new ThreadPoolExecutor(n, n, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+                        Thread t = new Thread(r, "lightblue-composite-" + threadNumber.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    });
+                    p.allowCoreThreadTimeOut(true);
+                    compositeExecutor = p;
+                }
+            }
+        }
+        return p;
+    }
+
+    /**
+     * Returns the registry the metrics of the shared executors,
+     * schedulers and dispatchers, and of composite finds are registered to
+     */
+    public MetricRegistry getMetricRegistry() {
+        return MetricRegistryFactory.getJmxMetricRegistry();
+    }
+
+    /**
+     * Returns the number of documents validated by a single task during
+     * constraint validation. Larger document lists are validated in
+     * parallel. If 0, documents are validated by the calling thread.
+     */
+    public int getValidationBatchSize() {
+        return validationBatchSize;
+    }
+
+    public void setValidationBatchSize(int validationBatchSize) {
+        this.validationBatchSize = validationBatchSize;
+    }
+
+    /**
+     * Returns the number of threads of the executor shared by all
+     * parallel constraint validations. If 0, the number of available
+     * processors is used.
+     */
+    public int getValidationExecutorParallelism() {
+        return validationExecutorParallelism;
+    }
+
+    public void setValidationExecutorParallelism(int validationExecutorParallelism) {
+        this.validationExecutorParallelism = validationExecutorParallelism;
+    }
+
+    /**
+     * Returns the executor shared by all parallel constraint
+     * validations. The executor is created on first call.
+     */
+    public ForkJoinPool getValidationExecutor() {
+        ForkJoinPool p = validationExecutor;
+        if (p == null) {
+            synchronized (this) {
+                p = validationExecutor;
+                if (p == null) {
+                    validationExecutor = p = new ForkJoinPool(validationExecutorParallelism > 0 ? validationExecutorParallelism
+                            : Runtime.getRuntime().availableProcessors());
+                }
+            }
+        }
+        return p;
+    }
+
+    /**
+     * Returns the default number of documents or join tuples combined
+     * into a single search during composite finds
+     */
+    public int getCompositeBatchSize() {
+        return compositeBatchSize;
+    }
+
+    public void setCompositeBatchSize(int compositeBatchSize) {
+        this.compositeBatchSize = compositeBatchSize;
+    }
+
+    /**
+     * Returns the composite find batch size for the given entity. If
+     * there is no batch size configured for the entity, returns the
+     * default.
+     */
+    public int getCompositeBatchSize(String entityName) {
+        Integer i = entityCompositeBatchSize.get(entityName);
+        return i == null ? compositeBatchSize : i;
+    }
+
+    public void setCompositeBatchSize(String entityName, int batchSize) {
+        entityCompositeBatchSize.put(entityName, batchSize);
+    }
+
+    /**
+     * Returns the default number of batches retrieved in advance while
+     * the current batch is consumed during composite finds. If 0,
+     * batches are retrieved one at a time.
+     */
+    public int getCompositePrefetchBatches() {
+        return compositePrefetchBatches;
+    }
+
+    public void setCompositePrefetchBatches(int compositePrefetchBatches) {
+        this.compositePrefetchBatches = compositePrefetchBatches;
+    }
+
+    /**
+     * Returns the number of batches retrieved in advance for the given
+     * entity. If there is no value configured for the entity, returns
+     * the default.
+     */
+    public int getCompositePrefetchBatches(String entityName) {
+        Integer i = entityCompositePrefetchBatches.get(entityName);
+        return i == null ? compositePrefetchBatches : i;
+    }
+
+    public void setCompositePrefetchBatches(String entityName, int prefetchBatches) {
+        entityCompositePrefetchBatches.put(entityName, prefetchBatches);
+    }
+
+    /**
+     * Returns whether composite find batch sizes are adjusted based on
+     * observed batch latency, result size, and query size. If false,
+     * the composite batch size is used for all batches.
+     */
+    public boolean isCompositeAdaptiveBatching() {
+        return compositeAdaptiveBatching;
+    }
+
+    public void setCompositeAdaptiveBatching(boolean compositeAdaptiveBatching) {
+        this.compositeAdaptiveBatching = compositeAdaptiveBatching;
+    }
+
+    public int getCompositeMinBatchSize() {
+        return compositeMinBatchSize;
+    }
+
+    public void setCompositeMinBatchSize(int compositeMinBatchSize) {
+        this.compositeMinBatchSize = compositeMinBatchSize;
+    }
+
+    public int getCompositeMaxBatchSize() {
+        return compositeMaxBatchSize;
+    }
+
+    public void setCompositeMaxBatchSize(int compositeMaxBatchSize) {
+        this.compositeMaxBatchSize = compositeMaxBatchSize;
+    }
+
+    /**
+     * Returns the maximum number of terms in a combined composite find
+     * batch query. Adaptive batching keeps batch queries below this
+     * size.
+     */
+    public int getCompositeMaxQuerySize() {
+        return compositeMaxQuerySize;
+    }
+
+    public void setCompositeMaxQuerySize(int compositeMaxQuerySize) {
+        this.compositeMaxQuerySize = compositeMaxQuerySize;
+    }
+
+    /**
+     * Returns the batch latency adaptive batching aims for. Batches
+     * slower than this are made smaller.
+     */
+    public long getCompositeBatchTargetLatencyMs() {
+        return compositeBatchTargetLatencyMs;
+    }
+
+    public void setCompositeBatchTargetLatencyMs(long compositeBatchTargetLatencyMs) {
+        this.compositeBatchTargetLatencyMs = compositeBatchTargetLatencyMs;
+    }
+
+    /**
+     * Returns the approximate maximum size of the results of a batch,
+     * see {@link com.redhat.lightblue.util.JsonUtils#size}
+     */
+    public long getCompositeMaxBatchBytes() {
+        return compositeMaxBatchBytes;
+    }
+
+    public void setCompositeMaxBatchBytes(long compositeMaxBatchBytes) {
+        this.compositeMaxBatchBytes = compositeMaxBatchBytes;
+    }
+
+    /**
+     * Returns the maximum number of query shapes whose composite find
+     * query plans are cached. If 0, query plans are not cached.
+     */
+    public int getCompositePlanCacheSize() {
+        return compositePlanCacheSize;
+    }
+
+    public void setCompositePlanCacheSize(int compositePlanCacheSize) {
+        this.compositePlanCacheSize = compositePlanCacheSize;
+    }
+
+    /**
+     * Returns the query plan cache shared by all composite finds, or
+     * null if query plans are not cached. The cache is created on first
+     * call.
+     */
+    public QueryPlanCache getQueryPlanCache() {
+        if (compositePlanCacheSize <= 0) {
+            return null;
+        }
+        QueryPlanCache c = queryPlanCache;
+        if (c == null) {
+            synchronized (this) {
+                c = queryPlanCache;
+                if (c == null) {
+                    queryPlanCache = c = new QueryPlanCache(compositePlanCacheSize);
+                }
+            }
+        }
+        return c;
+    }
+
+    /**
+     * If true, the result counts and latencies of composite find
+     * searches are recorded, and composite find query plans are scored
+     * using them
+     */
+    public boolean isCompositePlanStatistics() {
+        return compositePlanStatistics;
+    }
+
+    public void setCompositePlanStatistics(boolean compositePlanStatistics) {
+        this.compositePlanStatistics = compositePlanStatistics;
+    }
+
+    /**
+     * Returns the execution statistics shared by all composite finds,
+     * or null if composite plan statistics are disabled. The statistics
+     * are created on first call.
+     */
+    public ExecutionStatistics getExecutionStatistics() {
+        if (!compositePlanStatistics) {
+            return null;
+        }
+        ExecutionStatistics s = executionStatistics;
+        if (s == null) {
+            synchronized (this) {
+                s = executionStatistics;
+                if (s == null) {
+                    executionStatistics = s = new ExecutionStatistics();
+                }
+            }
+        }
+        return s;
+    }
+
+    /**
+     * If true, hooks are called asynchronously by a dispatcher shared by
+     * all requests. Hooks annotated with SynchronousHook are always
+     * called synchronously.
+     */
+    public boolean isAsyncHooks() {
+        return asyncHooks;
+    }
+
+    public void setAsyncHooks(boolean asyncHooks) {
+        this.asyncHooks = asyncHooks;
+    }
+
+    /**
+     * Returns the maximum number of hook calls queued for a hook worker
+     */
+    public int getHookQueueCapacity() {
+        return hookQueueCapacity;
+    }
+
+    public void setHookQueueCapacity(int hookQueueCapacity) {
+        this.hookQueueCapacity = hookQueueCapacity;
+    }
+
+    /**
+     * Returns the number of worker threads for every asynchronous hook
+     */
+    public int getHookWorkers() {
+        return hookWorkers;
+    }
+
+    public void setHookWorkers(int hookWorkers) {
+        this.hookWorkers = hookWorkers;
+    }
+
+    /**
+     * Returns the maximum number of documents of queued hook calls combined
+     * into a single hook call. If 0, calls are not combined.
+     */
+    public int getHookBatchSize() {
+        return hookBatchSize;
+    }
+
+    public void setHookBatchSize(int hookBatchSize) {
+        this.hookBatchSize = hookBatchSize;
+    }
+
+    /**
+     * Returns what happens to an asynchronous hook call when the queue of
+     * its worker is full
+     */
+    public AsyncHookDispatcher.OverflowPolicy getHookOverflowPolicy() {
+        return hookOverflowPolicy;
+    }
+
+    public void setHookOverflowPolicy(AsyncHookDispatcher.OverflowPolicy hookOverflowPolicy) {
+        this.hookOverflowPolicy = hookOverflowPolicy;
+    }
+
+    /**
+     * Returns the dispatcher shared by all asynchronous hook calls, or null
+     * if hooks are called synchronously. The dispatcher is created on first
+     * call.
+     */
+    public AsyncHookDispatcher getHookDispatcher() {
+        if (!asyncHooks) {
+            return null;
+        }
+        AsyncHookDispatcher d = hookDispatcher;
+        if (d == null) {
+            synchronized (this) {
+                d = hookDispatcher;
+                if (d == null) {
+                    hookDispatcher = d = new AsyncHookDispatcher(hookQueueCapacity,
+                            hookWorkers,
+                            hookBatchSize,
+                            hookOverflowPolicy,
+                            getMetricRegistry());
+                }
+            }
+        }
+        return d;
+    }
+
     public int getMaxResultSetSizeForReadsB() {
         return maxResultSetSizeForReadsB;
     }
@@ -255,12 +768,60 @@ public class Factory implements Serializable {
         this.maxResultSetSizeForWritesB = maxResultSetSizeForWritesB;
     }
 
+    /**
+     * Stops the shared executors and schedulers created by this factory,
+     * waiting for the queued asynchronous hooks to be processed. They are
+     * created again if they are used after this call.
+     */
+    @Override
+    public synchronized void close() {
+        if (bulkScheduler != null) {
+            LOGGER.debug("Shutting down bulk scheduler");
+            bulkScheduler.shutdown();
+            bulkScheduler = null;
+        }
+        if (compositeExecutor != null) {
+            LOGGER.debug("Shutting down composite find executor");
+            compositeExecutor.shutdown();
+            compositeExecutor = null;
+        }
+        if (validationExecutor != null) {
+            LOGGER.debug("Shutting down validation executor");
+            validationExecutor.shutdown();
+            validationExecutor = null;
+        }
+        if (hookDispatcher != null) {
+            LOGGER.debug("Shutting down hook dispatcher");
+            try {
+                if (!hookDispatcher.shutdown(HOOK_SHUTDOWN_TIMEOUT_MS)) {
+                    LOGGER.warn("Hook dispatcher did not process all queued hooks in {}ms", HOOK_SHUTDOWN_TIMEOUT_MS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            hookDispatcher = null;
+        }
+    }
+
     @Override
     public String toString() {
         return "Factory [fieldConstraintValidatorRegistry=" + fieldConstraintValidatorRegistry + ", entityConstraintValidatorRegistry="
                 + entityConstraintValidatorRegistry + ", crudControllers=" + crudControllers + ", hookResolver=" + hookResolver + ", interceptors="
                 + interceptors + ", generators=" + generators + ", nodeFactory=" + nodeFactory + ", bulkParallelExecutions=" + bulkParallelExecutions
-                + ", memoryIndexThreshold=" + memoryIndexThreshold + ", maxResultSetSizeForReadsB=" + maxResultSetSizeForReadsB + ", warnResultSetSizeB="
+                + ", bulkMaxConcurrency=" + bulkMaxConcurrency + ", bulkMaxQueueDepth=" + bulkMaxQueueDepth
+                + ", bulkOverflowPolicy=" + bulkOverflowPolicy + ", bulkFairness=" + bulkFairness
+                + ", memoryIndexThreshold=" + memoryIndexThreshold + ", compositeParallelism=" + compositeParallelism
+                + ", compositeExecutorParallelism=" + compositeExecutorParallelism
+                + ", compositeBatchSize=" + compositeBatchSize + ", compositePrefetchBatches=" + compositePrefetchBatches
+                + ", compositeAdaptiveBatching=" + compositeAdaptiveBatching + ", compositeMinBatchSize=" + compositeMinBatchSize
+                + ", compositeMaxBatchSize=" + compositeMaxBatchSize + ", compositeMaxQuerySize=" + compositeMaxQuerySize
+                + ", compositeBatchTargetLatencyMs=" + compositeBatchTargetLatencyMs + ", compositeMaxBatchBytes=" + compositeMaxBatchBytes
+                + ", compositePlanCacheSize=" + compositePlanCacheSize + ", compositePlanStatistics=" + compositePlanStatistics
+                + ", validationBatchSize=" + validationBatchSize + ", validationExecutorParallelism=" + validationExecutorParallelism
+                + ", asyncHooks=" + asyncHooks + ", hookQueueCapacity=" + hookQueueCapacity + ", hookWorkers=" + hookWorkers
+                + ", hookBatchSize=" + hookBatchSize + ", hookOverflowPolicy=" + hookOverflowPolicy
+                + ", entityCompositeBatchSize=" + entityCompositeBatchSize + ", entityCompositePrefetchBatches=" + entityCompositePrefetchBatches
+                + ", maxResultSetSizeForReadsB=" + maxResultSetSizeForReadsB + ", warnResultSetSizeB="
                 + warnResultSetSizeB + ", maxResultSetSizeForWritesB=" + maxResultSetSizeForWritesB + "]";
     }
 }
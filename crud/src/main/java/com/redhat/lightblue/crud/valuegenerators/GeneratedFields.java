@@ -20,8 +20,7 @@ package com.redhat.lightblue.crud.valuegenerators;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.NullNode;
-import com.redhat.lightblue.metadata.FieldCursor;
-import com.redhat.lightblue.metadata.FieldTreeNode;
+import com.redhat.lightblue.metadata.DocumentFieldPlan;
 import com.redhat.lightblue.metadata.FieldConstraint;
 import com.redhat.lightblue.metadata.ValueGenerator;
 import com.redhat.lightblue.metadata.SimpleField;
@@ -56,33 +55,27 @@ public final class GeneratedFields {
     private static final Logger LOGGER = LoggerFactory.getLogger(GeneratedFields.class);
 
     public static void initializeGeneratedFields(Factory factory, EntityMetadata md, JsonDoc doc) {
-        FieldCursor cursor = md.getFieldCursor();
-        while (cursor.next()) {
-            FieldTreeNode node = cursor.getCurrentNode();
-            // Process all generated fields
-            if (node instanceof SimpleField) {
-                SimpleField field = (SimpleField) node;
-                ValueGenerator generator = field.getValueGenerator();
-                if (generator != null) {
-                    Path p = cursor.getCurrentPath();
-                    LOGGER.debug("Processing generated field {}", p);
-                    if (required(field)) {
-                        LOGGER.debug("Field {} is required", p);
-                        setRequiredField(factory, doc, field, p, 1, null, md, generator.isOverwrite());
-                    } else {
-                        LOGGER.debug("Field {} is not required", p);
-                        KeyValueCursor<Path, JsonNode> nodeCursor = doc.getAllNodes(p);
-                        while (nodeCursor.hasNext()) {
-                            nodeCursor.next();
-                            JsonNode valueNode = nodeCursor.getCurrentValue();
-                            if (valueNode.isNull() || generator.isOverwrite()) {
-                                JsonNode value = generate(factory,
-                                        field,
-                                        md);
-                                LOGGER.debug("Setting {} to {}", nodeCursor.getCurrentKey(), value);
-                                doc.modify(nodeCursor.getCurrentKey(), value, true);
-                            }
-                        }
+        // Process all generated fields
+        for (DocumentFieldPlan.PlannedField planned : md.getDocumentFieldPlan().getGeneratedFields()) {
+            SimpleField field = (SimpleField) planned.getNode();
+            ValueGenerator generator = field.getValueGenerator();
+            Path p = planned.getPath();
+            LOGGER.debug("Processing generated field {}", p);
+            if (required(field)) {
+                LOGGER.debug("Field {} is required", p);
+                setRequiredField(factory, doc, field, p, 1, null, md, generator.isOverwrite());
+            } else {
+                LOGGER.debug("Field {} is not required", p);
+                KeyValueCursor<Path, JsonNode> nodeCursor = doc.getAllNodes(p);
+                while (nodeCursor.hasNext()) {
+                    nodeCursor.next();
+                    JsonNode valueNode = nodeCursor.getCurrentValue();
+                    if (valueNode.isNull() || generator.isOverwrite()) {
+                        JsonNode value = generate(factory,
+                                field,
+                                md);
+                        LOGGER.debug("Setting {} to {}", nodeCursor.getCurrentKey(), value);
+                        doc.modify(nodeCursor.getCurrentKey(), value, true);
                     }
                 }
             }
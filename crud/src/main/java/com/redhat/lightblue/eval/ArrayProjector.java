@@ -95,6 +95,14 @@ public abstract class ArrayProjector extends Projector {
         return lastMatch ? nestedProjector : null;
     }
 
+    /**
+     * Returns the projector for the included array elements, regardless of
+     * the result of the last project() call
+     */
+    Projector getElementProjector() {
+        return nestedProjector;
+    }
+
     @Override
     public Projection.Inclusion project(Path p, QueryEvaluationContext ctx) {
         lastMatch = false;
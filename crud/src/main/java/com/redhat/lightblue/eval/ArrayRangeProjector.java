@@ -49,8 +49,15 @@ public class ArrayRangeProjector extends ArrayProjector {
 
     @Override
     protected Projection.Inclusion projectArray(Path p, QueryEvaluationContext ctx) {
+        return projectIndex(p.getIndex(p.numSegments() - 1));
+    }
+
+    /**
+     * Checks if the array element at the given index is in range. This is
+     * projectArray without the path, for callers that already know the index.
+     */
+    Projection.Inclusion projectIndex(int index) {
         // Is this array element in range?
-        int index = p.getIndex(p.numSegments() - 1);
         if (to == null) {
             if (index >= from) {
                 // This array element is selected.
@@ -0,0 +1,131 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.eval;
+
+import java.util.function.BiPredicate;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import com.redhat.lightblue.util.Path;
+
+/**
+ * A field path resolved once for evaluating compiled queries. It
+ * walks the JSON tree from a context node the same way
+ * JsonDoc.getAllNodes does, but without allocating a cursor, a path,
+ * or an iterator per lookup.
+ *
+ * $parent and $this are not supported, the query compiler falls back
+ * to the interpretive evaluators for those paths.
+ */
+final class CompiledPath {
+
+    private final Path path;
+    private final String[] segments;
+    private final boolean[] any;
+    private final boolean hasAny;
+
+    CompiledPath(Path p) {
+        this.path = p;
+        int n = p.numSegments();
+        segments = new String[n];
+        any = new boolean[n];
+        boolean a = false;
+        for (int i = 0; i < n; i++) {
+            String s = p.head(i);
+            if (Path.PARENT.equals(s) || Path.THIS.equals(s)) {
+                throw new UnsupportedOperationException(p.toString());
+            }
+            segments[i] = s;
+            any[i] = Path.ANY.equals(s);
+            a |= any[i];
+        }
+        hasAny = a;
+    }
+
+    boolean hasAny() {
+        return hasAny;
+    }
+
+    /**
+     * Returns true if the predicate is true for any of the nodes
+     * matching the path under the given node. If
+     * <code>returnMissingNodes</code> is set, a missing last field
+     * is tested as null, like JsonDoc.getAllNodes(p,true). The
+     * parameters are passed to the predicate as they are.
+     */
+    boolean anyMatch(JsonNode node, boolean returnMissingNodes, BiPredicate<JsonNode, Object[]> predicate, Object[] params) {
+        return anyMatch(node, 0, returnMissingNodes, predicate, params);
+    }
+
+    private boolean anyMatch(JsonNode node, int level, boolean returnMissingNodes, BiPredicate<JsonNode, Object[]> predicate, Object[] params) {
+        int n = segments.length;
+        for (int l = level; l < n; l++) {
+            JsonNode next;
+            if (any[l]) {
+                if (node instanceof ArrayNode && node.size() > 0) {
+                    for (int i = 0; i < node.size(); i++) {
+                        if (anyMatch(node.get(i), l + 1, returnMissingNodes, predicate, params)) {
+                            return true;
+                        }
+                    }
+                    return false;
+                }
+                next = null;
+            } else {
+                next = child(node, l);
+            }
+            if (next == null) {
+                return returnMissingNodes && l == n - 1 && predicate.test(null, params);
+            }
+            node = next;
+        }
+        return predicate.test(node, params);
+    }
+
+    /**
+     * Returns the node at this path under the given node, or null if
+     * there isn't one. The path cannot contain '*'.
+     */
+    JsonNode get(JsonNode node) {
+        for (int l = 0; l < segments.length && node != null; l++) {
+            node = child(node, l);
+        }
+        return node;
+    }
+
+    private JsonNode child(JsonNode node, int level) {
+        if (node instanceof ArrayNode) {
+            // Path keeps the parsed index, and fails the same way the
+            // interpretive evaluators do if the segment is not an index
+            int index = path.getIndex(level);
+            return node.get(index < 0 ? node.size() + index : index);
+        } else if (node instanceof ObjectNode) {
+            return node.get(segments[level]);
+        } else {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return path.toString();
+    }
+}
@@ -0,0 +1,534 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.eval;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import com.redhat.lightblue.metadata.FieldTreeNode;
+import com.redhat.lightblue.query.Projection;
+import com.redhat.lightblue.util.JsonDoc;
+import com.redhat.lightblue.util.MutablePath;
+import com.redhat.lightblue.util.Path;
+
+/**
+ * A projector built by the ProjectionCompiler. Use
+ * ProjectionCompiler.compile to get an instance.
+ *
+ * There is a plan for the top level projector, and for every nested
+ * projector used to project array elements. A plan is a tree of nodes,
+ * one for every field that can be included, built as documents are
+ * projected. A node is identified by the field name with array indexes
+ * replaced by '*', so the same node is used for all elements of an
+ * array. The decision for a node is evaluated once using the
+ * interpretive projector, except for array elements that are selected
+ * by array projections. Those are evaluated for every element.
+ *
+ * Like the interpretive projector, this is a stateful class, and an
+ * instance should not be used by multiple threads at the same time.
+ */
+public final class CompiledProjector extends Projector {
+
+    /**
+     * The maximum number of cached child nodes of a node whose children
+     * are not known in advance. Children over the limit are built every
+     * time they are seen.
+     */
+    private static final int MAX_CACHED_CHILDREN = 1024;
+
+    private final Projector projector;
+    private final Map<Projector, Plan> plans = new IdentityHashMap<>();
+    private final Plan plan;
+
+    CompiledProjector(Projector projector, Path ctxPath, FieldTreeNode ctx, Map<Projector, List<Projector>> leaves) {
+        super(ctxPath, ctx);
+        this.projector = projector;
+        for (Map.Entry<Projector, List<Projector>> entry : leaves.entrySet()) {
+            plans.put(entry.getKey(), new Plan(entry.getKey(), entry.getValue()));
+        }
+        this.plan = plans.get(projector);
+    }
+
+    @Override
+    public Projector getNestedProjector() {
+        return projector.getNestedProjector();
+    }
+
+    @Override
+    public Projection.Inclusion project(Path p, QueryEvaluationContext ctx) {
+        return projector.project(p, ctx);
+    }
+
+    @Override
+    public JsonDoc project(JsonDoc doc, JsonNodeFactory factory) {
+        JsonNode root = doc.getRoot();
+        if (root instanceof ObjectNode) {
+            try {
+                JsonNode result = projectChildren(plan, plan.root, root, false,
+                        new Walk(factory, new QueryEvaluationContext(root)));
+                return new JsonDoc(result == null ? factory.objectNode() : result);
+            } catch (UncompiledFieldException e) {
+                // Field names that do not parse as a single path segment
+            }
+        }
+        return projector.project(doc, factory);
+    }
+
+    /**
+     * Projects the children of an object or array node at the given plan
+     * node. Returns null if nothing is included.
+     */
+    private JsonNode projectChildren(Plan plan,
+                                     Node node,
+                                     JsonNode container,
+                                     boolean processingArray,
+                                     Walk walk) {
+        JsonNode parentNode = null;
+        if (processingArray) {
+            Node child = node.element();
+            if (child != null) {
+                int depth = walk.push();
+                int index = 0;
+                for (Iterator<JsonNode> itr = container.elements(); itr.hasNext(); index++) {
+                    walk.indexes[depth] = index;
+                    JsonNode newNode = projectField(plan, child, itr.next(), walk);
+                    if (newNode != null) {
+                        if (parentNode == null) {
+                            parentNode = walk.factory.arrayNode();
+                        }
+                        ((ArrayNode) parentNode).add(newNode);
+                    }
+                }
+                walk.pop();
+            }
+        } else if (node.hasFields()) {
+            for (Iterator<Map.Entry<String, JsonNode>> itr = container.fields(); itr.hasNext();) {
+                Map.Entry<String, JsonNode> field = itr.next();
+                Node child = node.field(field.getKey());
+                if (child != null) {
+                    JsonNode newNode = projectField(plan, child, field.getValue(), walk);
+                    if (newNode != null) {
+                        if (parentNode == null) {
+                            parentNode = walk.factory.objectNode();
+                        }
+                        ((ObjectNode) parentNode).set(field.getKey(), newNode);
+                    }
+                }
+            }
+        }
+        return parentNode;
+    }
+
+    /**
+     * Projects a field, and returns the projected node, or null if the
+     * field is not included
+     */
+    private JsonNode projectField(Plan plan, Node node, JsonNode fieldNode, Walk walk) {
+        Projection.Inclusion result;
+        Plan childPlan = plan;
+        Node childNode = node;
+        if (node.elementDeciders == null) {
+            result = node.inclusion;
+        } else {
+            result = node.inclusion;
+            for (ArrayProjector p : node.elementDeciders) {
+                Projection.Inclusion r;
+                if (p instanceof ArrayRangeProjector) {
+                    r = ((ArrayRangeProjector) p).projectIndex(walk.indexes[walk.depth - 1]);
+                } else {
+                    r = p.project(walk.elementPath(node), walk.ctx);
+                }
+                if (r != Projection.Inclusion.undecided) {
+                    result = r;
+                    if (isIncluded(r)) {
+                        childPlan = plans.get(p.getElementProjector());
+                        childNode = node.nestedNode(childPlan);
+                    }
+                    break;
+                }
+            }
+        }
+        if (result == Projection.Inclusion.undecided) {
+            if (fieldNode instanceof ObjectNode || fieldNode instanceof ArrayNode) {
+                if (fieldNode.size() > 0) {
+                    return projectChildren(plan, node, fieldNode, fieldNode instanceof ArrayNode, walk);
+                }
+            }
+        } else if (isIncluded(result)) {
+            if (fieldNode instanceof ObjectNode) {
+                if (fieldNode.size() > 0) {
+                    return projectChildren(childPlan, childNode, fieldNode, false, walk);
+                }
+            } else if (fieldNode instanceof ArrayNode) {
+                if (fieldNode.size() > 0) {
+                    return projectChildren(childPlan, childNode, fieldNode, true, walk);
+                } else {
+                    return walk.factory.arrayNode();
+                }
+            } else {
+                return fieldNode;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isIncluded(Projection.Inclusion result) {
+        return result == Projection.Inclusion.implicit_inclusion
+                || result == Projection.Inclusion.explicit_inclusion;
+    }
+
+    /**
+     * A field name can be used as a plan node name if it parses as a
+     * single, non-wildcard path segment
+     */
+    private static boolean isSimpleName(String name) {
+        int n = name.length();
+        if (n == 0 || Path.ANY.equals(name)) {
+            return false;
+        }
+        for (int i = 0; i < n; i++) {
+            char c = name.charAt(i);
+            if (c == '.' || Character.isWhitespace(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Thrown when a document contains a field name that cannot be
+     * projected using the plan. The document is then projected by the
+     * interpretive projector.
+     */
+    private static final class UncompiledFieldException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        UncompiledFieldException() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final UncompiledFieldException UNCOMPILED_FIELD = new UncompiledFieldException();
+
+    /**
+     * Per-document projection state
+     */
+    private static final class Walk {
+        private final JsonNodeFactory factory;
+        private final QueryEvaluationContext ctx;
+        /**
+         * The indexes of the array elements being projected, outermost
+         * first
+         */
+        private int[] indexes = new int[8];
+        private int depth = 0;
+
+        Walk(JsonNodeFactory factory, QueryEvaluationContext ctx) {
+            this.factory = factory;
+            this.ctx = ctx;
+        }
+
+        int push() {
+            if (depth == indexes.length) {
+                int[] x = new int[depth * 2];
+                System.arraycopy(indexes, 0, x, 0, depth);
+                indexes = x;
+            }
+            return depth++;
+        }
+
+        void pop() {
+            depth--;
+        }
+
+        /**
+         * Returns the absolute path of the array element at the given
+         * node, replacing the '*' in the node name with the current array
+         * indexes
+         */
+        Path elementPath(Node node) {
+            MutablePath p = new MutablePath(node.name);
+            int[] anys = node.anys;
+            for (int i = 0; i < anys.length; i++) {
+                p.set(anys[i], indexes[i]);
+            }
+            return p;
+        }
+    }
+
+    /**
+     * The plan for a projector
+     */
+    private static final class Plan {
+        private final Projector projector;
+        private final List<Projector> leaves;
+        /**
+         * Fields whose ancestors can be included: the fields of the
+         * inclusion projections, and the elements of the arrays of the
+         * array projections
+         */
+        private final List<Path> includes = new ArrayList<>();
+        /**
+         * Fields of the recursive inclusion projections. All the
+         * descendants of these fields can be included.
+         */
+        private final List<Path> recursiveIncludes = new ArrayList<>();
+        private final List<ArrayProjector> arrays = new ArrayList<>();
+        private final Node root;
+
+        Plan(Projector projector, List<Projector> leaves) {
+            this.projector = projector;
+            this.leaves = leaves;
+            for (Projector x : leaves) {
+                if (x instanceof FieldProjector) {
+                    FieldProjector f = (FieldProjector) x;
+                    if (f.isInclude()) {
+                        includes.add(f.getField());
+                        if (f.isRecursive()) {
+                            recursiveIncludes.add(f.getField());
+                        }
+                    }
+                } else {
+                    ArrayProjector a = (ArrayProjector) x;
+                    arrays.add(a);
+                    includes.add(new Path(a.getArrayFieldPattern(), Path.ANYPATH));
+                }
+            }
+            root = new Node(this, Path.EMPTY);
+        }
+    }
+
+    /**
+     * A field in a plan
+     */
+    private static final class Node {
+        private static final Node NOT_INCLUDED = new Node();
+
+        private final Plan plan;
+        /**
+         * Field name, with '*' for array indexes
+         */
+        private final Path name;
+        /**
+         * Positions of '*' in the name
+         */
+        private final int[] anys;
+        /**
+         * The inclusion decision for the field. For array elements
+         * selected by array projections, this is the decision if none of
+         * the array projections decide.
+         */
+        private final Projection.Inclusion inclusion;
+        /**
+         * If non-null, the array projections that select this array
+         * element, evaluated in this order
+         */
+        private final ArrayProjector[] elementDeciders;
+        /**
+         * If true, any child field can be included
+         */
+        private final boolean open;
+        /**
+         * The child fields that can be included if not open
+         */
+        private final Set<String> childNames;
+        private Map<String, Node> children;
+        private Node element;
+        private Plan nestedPlan;
+        private Node nestedNode;
+
+        private Node() {
+            plan = null;
+            name = null;
+            anys = null;
+            inclusion = Projection.Inclusion.undecided;
+            elementDeciders = null;
+            open = false;
+            childNames = null;
+        }
+
+        Node(Plan plan, Path name) {
+            this.plan = plan;
+            this.name = name;
+            int n = name.numSegments();
+            boolean anyChild = false;
+            Set<String> names = null;
+            for (Path p : plan.includes) {
+                if (p.numSegments() > n && name.matchingPrefix(p)) {
+                    String s = p.head(n);
+                    if (Path.ANY.equals(s)) {
+                        anyChild = true;
+                    } else {
+                        if (names == null) {
+                            names = new HashSet<>();
+                        }
+                        names.add(s);
+                    }
+                }
+            }
+            for (Path p : plan.recursiveIncludes) {
+                if (n >= p.numSegments() && name.prefix(p.numSegments()).matches(p)) {
+                    anyChild = true;
+                }
+            }
+            open = anyChild;
+            childNames = names;
+
+            List<ArrayProjector> deciders = null;
+            for (ArrayProjector a : plan.arrays) {
+                Path pattern = a.getArrayFieldPattern();
+                if (n == pattern.numSegments() + 1 && name.matchingDescendant(pattern)) {
+                    deciders = new ArrayList<>();
+                    break;
+                }
+            }
+            if (deciders == null) {
+                elementDeciders = null;
+                inclusion = plan.projector.project(name, null);
+            } else {
+                // Evaluate the leaves last to first, as the list
+                // projector does. The decisions of the field projections
+                // do not depend on the array index, so evaluation stops
+                // at the first field projection that decides.
+                Projection.Inclusion result = Projection.Inclusion.undecided;
+                ListIterator<Projector> itr = plan.leaves.listIterator(plan.leaves.size());
+                while (itr.hasPrevious()) {
+                    Projector x = itr.previous();
+                    if (x instanceof ArrayProjector) {
+                        Path pattern = ((ArrayProjector) x).getArrayFieldPattern();
+                        if (n == pattern.numSegments() + 1 && name.matchingDescendant(pattern)) {
+                            deciders.add((ArrayProjector) x);
+                        }
+                    } else {
+                        result = x.project(name, null);
+                        if (result != Projection.Inclusion.undecided) {
+                            break;
+                        }
+                    }
+                }
+                elementDeciders = deciders.toArray(new ArrayProjector[deciders.size()]);
+                inclusion = result;
+            }
+            List<Integer> anyList = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                if (Path.ANY.equals(name.head(i))) {
+                    anyList.add(i);
+                }
+            }
+            anys = new int[anyList.size()];
+            for (int i = 0; i < anys.length; i++) {
+                anys[i] = anyList.get(i);
+            }
+        }
+
+        boolean hasFields() {
+            return open || childNames != null;
+        }
+
+        /**
+         * Returns the node for the child field, or null if the child
+         * field cannot be included
+         */
+        Node field(String fieldName) {
+            Node node = children == null ? null : children.get(fieldName);
+            if (node == null) {
+                if (!isSimpleName(fieldName)) {
+                    throw UNCOMPILED_FIELD;
+                }
+                if (open || childNames.contains(fieldName)) {
+                    node = new Node(plan, new Path(name, new Path(fieldName)));
+                } else {
+                    node = NOT_INCLUDED;
+                }
+                if (children == null) {
+                    children = new HashMap<>();
+                }
+                if (children.size() < MAX_CACHED_CHILDREN) {
+                    children.put(fieldName, node);
+                }
+            }
+            return node == NOT_INCLUDED ? null : node;
+        }
+
+        /**
+         * Returns the node for the array elements, or null if no array
+         * element can be included
+         */
+        Node element() {
+            if (element == null && open) {
+                element = new Node(plan, new Path(name, Path.ANYPATH));
+            }
+            return element;
+        }
+
+        /**
+         * Returns the node for this field in the given nested plan
+         */
+        Node nestedNode(Plan p) {
+            if (nestedPlan != p) {
+                Node node = p.root;
+                int n = name.numSegments();
+                for (int i = 0; i < n; i++) {
+                    String s = name.head(i);
+                    node = Path.ANY.equals(s) ? node.child(new Path(node.name, Path.ANYPATH), true)
+                            : node.child(new Path(node.name, new Path(s)), false);
+                }
+                nestedPlan = p;
+                nestedNode = node;
+            }
+            return nestedNode;
+        }
+
+        /**
+         * Returns the child node, creating it even if the child cannot be
+         * included
+         */
+        private Node child(Path childName, boolean isElement) {
+            if (isElement) {
+                if (element == null) {
+                    element = new Node(plan, childName);
+                }
+                return element;
+            }
+            String s = childName.tail(0);
+            Node node = children == null ? null : children.get(s);
+            if (node == null || node == NOT_INCLUDED) {
+                node = new Node(plan, childName);
+                if (children == null) {
+                    children = new HashMap<>();
+                }
+                children.put(s, node);
+            }
+            return node;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.eval;
+
+import java.util.function.BiPredicate;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import com.redhat.lightblue.query.QueryExpression;
+import com.redhat.lightblue.util.JsonDoc;
+
+/**
+ * A query evaluator built by the QueryCompiler. Use
+ * {@link #matches(JsonDoc)} to evaluate a document without allocating
+ * an evaluation context.
+ */
+public class CompiledQueryEvaluator extends QueryEvaluator {
+
+    private final QueryExpression query;
+    private final BiPredicate<JsonNode, Object[]> predicate;
+    // Prepared parameter values if this is a bound query template
+    private final Object[] params;
+
+    CompiledQueryEvaluator(QueryExpression query, BiPredicate<JsonNode, Object[]> predicate, Object[] params) {
+        this.query = query;
+        this.predicate = predicate;
+        this.params = params;
+    }
+
+    /**
+     * Evaluates the query with the context node of the evaluation
+     * context
+     */
+    @Override
+    public boolean evaluate(QueryEvaluationContext ctx) {
+        boolean ret = predicate.test(ctx.getNode(), params);
+        ctx.setResult(ret);
+        return ret;
+    }
+
+    @Override
+    public boolean matches(JsonDoc doc) {
+        return predicate.test(doc.getRoot(), params);
+    }
+
+    @Override
+    public String toString() {
+        return "compiled:" + query;
+    }
+}
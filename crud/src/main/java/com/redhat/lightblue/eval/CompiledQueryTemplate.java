@@ -0,0 +1,70 @@
+ /*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.eval;
+
+import java.util.List;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import com.redhat.lightblue.query.QueryExpression;
+
+/**
+ * A query compiled with parameter placeholders. The template is
+ * compiled once using QueryCompiler.compileTemplate, and then bound to
+ * parameter values to get an evaluator. Binding converts the parameter
+ * values to the field types, it does not rewrite or recompile the query.
+ */
+public class CompiledQueryTemplate {
+
+    private final QueryExpression query;
+    private final BiPredicate<JsonNode, Object[]> predicate;
+    private final int[] useParameter;
+    private final Function<Object, Object>[] usePreparer;
+
+    @SuppressWarnings("unchecked")
+    CompiledQueryTemplate(QueryExpression query,
+                          BiPredicate<JsonNode, Object[]> predicate,
+                          int[] useParameter,
+                          List<Function<Object, Object>> usePreparer) {
+        this.query = query;
+        this.predicate = predicate;
+        this.useParameter = useParameter;
+        this.usePreparer = usePreparer.toArray(new Function[usePreparer.size()]);
+    }
+
+    /**
+     * Returns an evaluator for the query with the given parameter
+     * values. Each value is either a Value, or a list of Values, in the
+     * order of the parameters given to the compiler.
+     */
+    public QueryEvaluator bind(Object[] values) {
+        Object[] params = new Object[useParameter.length];
+        for (int i = 0; i < params.length; i++) {
+            params[i] = usePreparer[i].apply(values[useParameter[i]]);
+        }
+        return new CompiledQueryEvaluator(query, predicate, params);
+    }
+
+    @Override
+    public String toString() {
+        return "template:" + query;
+    }
+}
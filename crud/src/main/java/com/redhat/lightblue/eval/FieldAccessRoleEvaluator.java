@@ -24,6 +24,7 @@ import java.util.List;
 import java.util.ArrayList;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
 import com.redhat.lightblue.metadata.EntityMetadata;
 import com.redhat.lightblue.metadata.FieldCursor;
@@ -40,6 +41,7 @@ import com.redhat.lightblue.query.ProjectionList;
 import com.redhat.lightblue.query.FieldProjection;
 
 import com.redhat.lightblue.util.Path;
+import com.redhat.lightblue.util.MutablePath;
 import com.redhat.lightblue.util.JsonDoc;
 import com.redhat.lightblue.util.KeyValueCursor;
 import com.redhat.lightblue.util.JsonCompare;
@@ -50,6 +52,11 @@ public class FieldAccessRoleEvaluator {
     private final Set<String> roles;
     private JsonCompare comparator;
     private DocComparator.Difference<JsonNode> diff;
+    private DocComparator.Difference<JsonNode> scopedDiff;
+    private JsonDoc lastNewDoc;
+    private JsonDoc lastOldDoc;
+    private Set<Path> inaccessibleUpdateFields;
+    private List<Path> updateDiffScopes;
 
     public static enum Operation {
         insert, update, insert_and_update, find
@@ -123,73 +130,190 @@ public class FieldAccessRoleEvaluator {
         return ret;
     }
 
+    /**
+     * Returns the differences between the documents passed to the last
+     * call to getInaccessibleFields_Update, if that call had fields to
+     * check. getInaccessibleFields_Update compares only the subtrees
+     * containing inaccessible fields, so the full comparison is done on
+     * the first call to this method. The documents should not be
+     * modified in between.
+     */
     public DocComparator.Difference<JsonNode> getLastDiff() {
+        if (diff == null && lastOldDoc != null) {
+            try {
+                diff = comparator.compareNodes(lastOldDoc.getRoot(), lastNewDoc.getRoot());
+            } catch (Exception e) {
+                // Any exception at this point is a bug
+                throw new RuntimeException(e);
+            }
+        }
         return diff;
     }
 
+    /**
+     * Returns the differences computed by the last call to
+     * getInaccessibleFields_Update. Only the subtrees containing fields
+     * inaccessible for update are compared, so the differences of other
+     * fields are not included.
+     */
+    public DocComparator.Difference<JsonNode> getLastScopedDiff() {
+        return scopedDiff;
+    }
+
     /**
      * Returns a list of fields in the doc inaccessible to the current user
      * during update.
      *
+     * Only the subtrees of the inaccessible fields are compared. If an
+     * inaccessible field is under an array, the outermost such array is
+     * compared, so array elements are associated the same way as a full
+     * document comparison would.
+     *
      * @param newDoc The new version of the document
      * @param oldDoc The old version of the document
      */
     public Set<Path> getInaccessibleFields_Update(JsonDoc newDoc, JsonDoc oldDoc) {
+        Set<Path> ret = new HashSet<>();
         // Initialize the comparator if not already
         if (comparator == null) {
             comparator = md.getEntitySchema().getDocComparator();
         }
-        Set<Path> inaccessibleFields = getInaccessibleFields(Operation.update);
-        Set<Path> ret = new HashSet<>();
-        if (!inaccessibleFields.isEmpty()) {
-            try {
-                diff = comparator.compareNodes(oldDoc.getRoot(), newDoc.getRoot());
-            } catch (Exception e) {
-                // Any exception at this point is a bug
-                throw new RuntimeException(e);
+        if (inaccessibleUpdateFields == null) {
+            inaccessibleUpdateFields = getInaccessibleFields(Operation.update);
+            updateDiffScopes = getDiffScopes(inaccessibleUpdateFields);
+        }
+        if (!inaccessibleUpdateFields.isEmpty()) {
+            diff = null;
+            lastNewDoc = newDoc;
+            lastOldDoc = oldDoc;
+            scopedDiff = new DocComparator.Difference<>();
+            for (Path scope : updateDiffScopes) {
+                DocComparator.Difference<JsonNode> scopeDiff = new DocComparator.Difference<>();
+                try {
+                    compareScope(scope, oldDoc.getRoot(), newDoc.getRoot(), scopeDiff);
+                } catch (Exception e) {
+                    // Any exception at this point is a bug
+                    throw new RuntimeException(e);
+                }
+                scopedDiff.add(scopeDiff);
+                for (DocComparator.Delta<JsonNode> d : scopeDiff.getDelta()) {
+                    checkUpdateDelta(d, inaccessibleUpdateFields, ret);
+                }
             }
-            for (DocComparator.Delta<JsonNode> d : diff.getDelta()) {
-                if ((d instanceof DocComparator.Addition
-                        && ((DocComparator.Addition<JsonNode>) d).getAddedNode().isValueNode())
-                        || (d instanceof DocComparator.Removal
-                        && ((DocComparator.Removal<JsonNode>) d).getRemovedNode().isValueNode())
-                        || (d instanceof DocComparator.Modification
-                        && ((DocComparator.Modification<JsonNode>) d).getUnmodifiedNode().isValueNode())) {
-                    FieldTreeNode fieldMd = md.resolve(d.getField());
-                    boolean modified = true;
-                    if (d instanceof JsonCompare.Modification) {
-                        // Is it really modified
-                        Object o1 = fieldMd.getType().fromJson(((DocComparator.Modification<JsonNode>) d).getUnmodifiedNode());
-                        Object o2 = fieldMd.getType().fromJson(((DocComparator.Modification<JsonNode>) d).getModifiedNode());
-                        if (o1.equals(o2)) {
-                            modified = false;
-                        }
-                    }
-                    if (modified && inaccessibleFields.contains(fieldMd.getFullPath())) {
-                        ret.add(d.getField());
+        }
+        return ret;
+    }
+
+    /**
+     * Adds the inaccessible fields changed by the delta to ret
+     */
+    private void checkUpdateDelta(DocComparator.Delta<JsonNode> d, Set<Path> inaccessibleFields, Set<Path> ret) {
+        if ((d instanceof DocComparator.Addition
+                && ((DocComparator.Addition<JsonNode>) d).getAddedNode().isValueNode())
+                || (d instanceof DocComparator.Removal
+                && ((DocComparator.Removal<JsonNode>) d).getRemovedNode().isValueNode())
+                || (d instanceof DocComparator.Modification
+                && ((DocComparator.Modification<JsonNode>) d).getUnmodifiedNode().isValueNode())) {
+            FieldTreeNode fieldMd = md.resolve(d.getField());
+            if (inaccessibleFields.contains(fieldMd.getFullPath())) {
+                boolean modified = true;
+                if (d instanceof JsonCompare.Modification) {
+                    // Is it really modified
+                    Object o1 = fieldMd.getType().fromJson(((DocComparator.Modification<JsonNode>) d).getUnmodifiedNode());
+                    Object o2 = fieldMd.getType().fromJson(((DocComparator.Modification<JsonNode>) d).getModifiedNode());
+                    if (o1.equals(o2)) {
+                        modified = false;
                     }
                 }
-                // In case of an addition, removal, or move, check if the parent node is an object or an array
-                // that is not accesible.
-                if (d instanceof DocComparator.Addition
-                        || d instanceof DocComparator.Removal
-                        || d instanceof DocComparator.Move) {
-                    Path field = d.getField();
-                    if (field.numSegments() > 2) { // Not a top-level or first level variable
-                        // That means, it's parent is not the root level, so we can check access
-                        // to the parent itself.
-                        Path parent = md.resolve(field.prefix(-1)).getFullPath();
+                if (modified) {
+                    ret.add(d.getField());
+                }
+            }
+        }
+        // In case of an addition, removal, or move, check if the parent node is an object or an array
+        // that is not accesible.
+        if (d instanceof DocComparator.Addition
+                || d instanceof DocComparator.Removal
+                || d instanceof DocComparator.Move) {
+            Path field = d.getField();
+            if (field.numSegments() > 2) { // Not a top-level or first level variable
+                // That means, it's parent is not the root level, so we can check access
+                // to the parent itself.
+                Path parent = md.resolve(field.prefix(-1)).getFullPath();
 
-                        if (inaccessibleFields.contains(parent)) {
-                            ret.add(parent);
-                        }
-                    }
+                if (inaccessibleFields.contains(parent)) {
+                    ret.add(parent);
                 }
             }
         }
+    }
+
+    /**
+     * Returns the roots of the subtrees that have to be compared to find
+     * the changes to the given fields. For a field under an array, this is
+     * the outermost array containing it. Scopes nested under other scopes
+     * are dropped.
+     */
+    private static List<Path> getDiffScopes(Set<Path> fields) {
+        Set<Path> roots = new HashSet<>();
+        for (Path x : fields) {
+            int n = x.numSegments();
+            int i = 0;
+            while (i < n && !Path.ANY.equals(x.head(i))) {
+                i++;
+            }
+            roots.add(i == n ? x : x.prefix(i));
+        }
+        List<Path> ret = new ArrayList<>(roots.size());
+        for (Path x : roots) {
+            boolean nested = false;
+            for (int i = 1; i < x.numSegments() && !nested; i++) {
+                nested = roots.contains(x.prefix(i));
+            }
+            if (!nested) {
+                ret.add(x);
+            }
+        }
         return ret;
     }
 
+    /**
+     * Adds the differences under the scope to diff. If the scope does not
+     * exist in one of the documents, the difference is recorded at the
+     * first missing or mismatching ancestor, as a full comparison would.
+     */
+    private void compareScope(Path scope, JsonNode root1, JsonNode root2, DocComparator.Difference<JsonNode> diff)
+            throws DocComparator.InvalidArrayIdentity, DocComparator.DuplicateArrayIdentity {
+        MutablePath field1 = new MutablePath();
+        MutablePath field2 = new MutablePath();
+        JsonNode node1 = root1;
+        JsonNode node2 = root2;
+        int n = scope.numSegments();
+        for (int i = 0; i < n; i++) {
+            if (!(node1 instanceof ObjectNode && node2 instanceof ObjectNode)) {
+                diff.add(comparator.compareNodes(field1, node1, field2, node2));
+                return;
+            }
+            String name = scope.head(i);
+            JsonNode value1 = node1.get(name);
+            JsonNode value2 = node2.get(name);
+            field1.push(name);
+            field2.push(name);
+            if (value1 == null) {
+                if (value2 != null) {
+                    diff.add(new DocComparator.Addition<>(field2, value2));
+                }
+                return;
+            } else if (value2 == null) {
+                diff.add(new DocComparator.Removal<>(field1, value1));
+                return;
+            }
+            node1 = value1;
+            node2 = value2;
+        }
+        diff.add(comparator.compareNodes(field1, node1, field2, node2));
+    }
+
     /**
      * Returns a projection that excludes the fields the caller does not have
      * access to based on the operation
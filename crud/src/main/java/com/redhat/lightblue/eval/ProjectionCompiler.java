@@ -0,0 +1,140 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.eval;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.metadata.FieldTreeNode;
+import com.redhat.lightblue.query.Projection;
+import com.redhat.lightblue.util.Path;
+
+/**
+ * Compiles a projection into a projection plan that can be applied to
+ * documents repeatedly.
+ *
+ * The interpretive projector returned by Projector.getInstance evaluates
+ * the projection for every field of the document, building the absolute
+ * path of each field. The compiled projector resolves the projection
+ * into a tree of field names. Every node of the tree holds the inclusion
+ * decision for the field, and the names of the child fields that can be
+ * included. Fields that cannot be included are skipped without visiting
+ * their subtrees. The decisions for array elements selected by range and
+ * query projections are evaluated for each element. The results are the
+ * same as the interpretive projector.
+ *
+ * Projections containing array indexes, $parent or $this in field names,
+ * and array projections with sort are not compiled. If the projection
+ * contains any of those, the interpretive projector is returned instead.
+ */
+public final class ProjectionCompiler {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ProjectionCompiler.class);
+
+    private ProjectionCompiler() {
+    }
+
+    public static Projector compile(Projection projection, EntityMetadata md) {
+        return compile(projection, Path.EMPTY, md.getFieldTreeRoot());
+    }
+
+    /**
+     * Returns a compiled projector for the projection, or the interpretive
+     * projector if the projection cannot be compiled
+     */
+    public static Projector compile(Projection projection, Path ctxPath, FieldTreeNode ctx) {
+        Projector projector = Projector.getInstance(projection, ctxPath, ctx);
+        // Leaf projectors of every projector that can be used to
+        // project a subtree: the top level projector, and the
+        // projectors for the array elements
+        Map<Projector, List<Projector>> leaves = new IdentityHashMap<>();
+        if (collect(projector, leaves)) {
+            return new CompiledProjector(projector, ctxPath, ctx, leaves);
+        } else {
+            LOGGER.debug("Projection cannot be compiled, using interpretive projector: {}", projection);
+            return projector;
+        }
+    }
+
+    /**
+     * Collects the leaf projectors of the given projector and the nested
+     * projectors under it. Returns false if any of them cannot be
+     * compiled.
+     */
+    private static boolean collect(Projector projector, Map<Projector, List<Projector>> leaves) {
+        List<Projector> list = new ArrayList<>();
+        if (!flatten(projector, list)) {
+            return false;
+        }
+        leaves.put(projector, list);
+        for (Projector x : list) {
+            if (x instanceof ArrayProjector) {
+                if (!collect(((ArrayProjector) x).getElementProjector(), leaves)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Flattens the nested projection lists in evaluation order. The last
+     * leaf deciding about a field is the one that would decide in the
+     * nested lists.
+     */
+    private static boolean flatten(Projector projector, List<Projector> dest) {
+        if (projector instanceof ListProjector) {
+            for (Projector x : ((ListProjector) projector).getItems()) {
+                if (!flatten(x, dest)) {
+                    return false;
+                }
+            }
+            return true;
+        } else if (projector instanceof FieldProjector) {
+            dest.add(projector);
+            return isCompilable(((FieldProjector) projector).getField());
+        } else if (projector instanceof ArrayProjector) {
+            ArrayProjector p = (ArrayProjector) projector;
+            dest.add(projector);
+            return p.getSort() == null && isCompilable(p.getArrayFieldPattern());
+        }
+        return false;
+    }
+
+    /**
+     * A field name can be compiled if the decisions for it do not depend
+     * on array indexes, and do not require resolving relative paths
+     */
+    private static boolean isCompilable(Path field) {
+        int n = field.numSegments();
+        for (int i = 0; i < n; i++) {
+            String s = field.head(i);
+            if (field.isIndex(i) || Path.PARENT.equals(s) || Path.THIS.equals(s)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,443 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.eval;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.NullNode;
+
+import com.redhat.lightblue.metadata.ArrayElement;
+import com.redhat.lightblue.metadata.ArrayField;
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.metadata.FieldTreeNode;
+import com.redhat.lightblue.metadata.SimpleArrayElement;
+import com.redhat.lightblue.metadata.Type;
+import com.redhat.lightblue.query.ArrayContainsExpression;
+import com.redhat.lightblue.query.ArrayMatchExpression;
+import com.redhat.lightblue.query.BinaryComparisonOperator;
+import com.redhat.lightblue.query.ContainsOperator;
+import com.redhat.lightblue.query.NaryLogicalExpression;
+import com.redhat.lightblue.query.NaryLogicalOperator;
+import com.redhat.lightblue.query.NaryRelationalOperator;
+import com.redhat.lightblue.query.NaryValueRelationalExpression;
+import com.redhat.lightblue.query.QueryExpression;
+import com.redhat.lightblue.query.RegexMatchExpression;
+import com.redhat.lightblue.query.UnaryLogicalExpression;
+import com.redhat.lightblue.query.UnaryLogicalOperator;
+import com.redhat.lightblue.query.Value;
+import com.redhat.lightblue.query.ValueComparisonExpression;
+import com.redhat.lightblue.util.Path;
+
+/**
+ * Compiles a query expression into a tree of predicates that can be
+ * evaluated repeatedly without per-document allocation.
+ *
+ * The interpretive evaluators returned by QueryEvaluator.getInstance
+ * allocate a context, a JsonDoc and a path cursor for every field
+ * lookup of every document, and convert the literal values of the
+ * query on every comparison. The compiled query resolves the fields and
+ * paths, and converts the literal values to the field types once. The
+ * results are the same as the interpretive evaluators.
+ *
+ * Field comparisons, n-ary field relations, and paths containing
+ * $parent or $this are not compiled. If the query contains any of
+ * those, the interpretive evaluator is returned instead. Errors in the
+ * query are reported by the interpretive evaluator as well.
+ *
+ * A query can also be compiled as a template with parameters. The
+ * parameters are value placeholders of the query, identified by object
+ * identity: a Value used as the right-hand side of a value comparison,
+ * or a value list used in an n-ary value relation or an array contains
+ * expression. The template is compiled once, and bound to actual
+ * parameter values using {@link CompiledQueryTemplate#bind}. The bound
+ * evaluator returns the same results as the query built by replacing
+ * the placeholders with the values, as done by BindQuery: a parameter
+ * value can be a Value, or a list of Values. A value comparison with a
+ * list value is evaluated as $in for $eq, and as a disjunction of the
+ * comparisons with each value for other operators.
+ */
+public final class QueryCompiler {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(QueryCompiler.class);
+
+    /**
+     * Parameter index by parameter object identity
+     */
+    private final Map<Object, Integer> parameters = new IdentityHashMap<>();
+    /**
+     * For every parameter use in the query, the index of the parameter
+     */
+    private final List<Integer> useParameter = new ArrayList<>();
+    /**
+     * For every parameter use in the query, converts the parameter value
+     * to the form used by the compiled predicate
+     */
+    private final List<Function<Object, Object>> usePreparer = new ArrayList<>();
+
+    private QueryCompiler(List<?> parameters) {
+        for (int i = 0; i < parameters.size(); i++) {
+            this.parameters.put(parameters.get(i), i);
+        }
+    }
+
+    public static QueryEvaluator compile(QueryExpression expr, EntityMetadata md) {
+        return compile(expr, md.getFieldTreeRoot());
+    }
+
+    /**
+     * Returns a compiled evaluator for the query, or the interpretive
+     * evaluator if the query cannot be compiled
+     */
+    public static QueryEvaluator compile(QueryExpression expr, FieldTreeNode context) {
+        if (expr != null) {
+            try {
+                return new CompiledQueryEvaluator(expr, new QueryCompiler(new ArrayList<>()).compileQuery(expr, context), null);
+            } catch (RuntimeException e) {
+                LOGGER.debug("Cannot compile {}: {}", expr, e.toString());
+            }
+        }
+        return QueryEvaluator.getInstance(expr, context);
+    }
+
+    /**
+     * Compiles a query template with the given parameters. Returns null
+     * if the query cannot be compiled, in which case the caller should
+     * bind the query and evaluate it using {@link #compile}.
+     *
+     * @param expr The query containing the parameter placeholders
+     * @param context The field tree node the query is evaluated at
+     * @param parameters The parameter placeholders. The parameter values
+     * passed to CompiledQueryTemplate.bind are in the same order.
+     */
+    public static CompiledQueryTemplate compileTemplate(QueryExpression expr, FieldTreeNode context, List<?> parameters) {
+        if (expr != null) {
+            try {
+                QueryCompiler compiler = new QueryCompiler(parameters);
+                BiPredicate<JsonNode, Object[]> predicate = compiler.compileQuery(expr, context);
+                int[] useParameter = new int[compiler.useParameter.size()];
+                for (int i = 0; i < useParameter.length; i++) {
+                    useParameter[i] = compiler.useParameter.get(i);
+                }
+                return new CompiledQueryTemplate(expr, predicate, useParameter, compiler.usePreparer);
+            } catch (RuntimeException e) {
+                LOGGER.debug("Cannot compile template {}: {}", expr, e.toString());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * If value is a parameter, records a use of it and returns the index
+     * of the use in the prepared parameter array. Otherwise, returns -1.
+     */
+    private int parameterUse(Object value, Function<Object, Object> preparer) {
+        Integer index = parameters.get(value);
+        if (index == null) {
+            return -1;
+        }
+        useParameter.add(index);
+        usePreparer.add(preparer);
+        return useParameter.size() - 1;
+    }
+
+    private BiPredicate<JsonNode, Object[]> compileQuery(QueryExpression expr, FieldTreeNode context) {
+        if (expr instanceof ValueComparisonExpression) {
+            return compileValueComparison((ValueComparisonExpression) expr, context);
+        } else if (expr instanceof RegexMatchExpression) {
+            return compileRegex((RegexMatchExpression) expr, context);
+        } else if (expr instanceof NaryValueRelationalExpression) {
+            return compileNaryValueRelational((NaryValueRelationalExpression) expr, context);
+        } else if (expr instanceof UnaryLogicalExpression) {
+            return compileUnaryLogical((UnaryLogicalExpression) expr, context);
+        } else if (expr instanceof NaryLogicalExpression) {
+            return compileNaryLogical((NaryLogicalExpression) expr, context);
+        } else if (expr instanceof ArrayContainsExpression) {
+            return compileArrayContains((ArrayContainsExpression) expr, context);
+        } else if (expr instanceof ArrayMatchExpression) {
+            return compileArrayMatch((ArrayMatchExpression) expr, context);
+        }
+        throw new UnsupportedOperationException(expr.getClass().getName());
+    }
+
+    private static FieldTreeNode resolve(FieldTreeNode context, Path field) {
+        FieldTreeNode node = context.resolve(field);
+        if (node == null) {
+            throw new UnsupportedOperationException(field.toString());
+        }
+        return node;
+    }
+
+    /**
+     * See ValueComparisonEvaluator
+     */
+    private BiPredicate<JsonNode, Object[]> compileValueComparison(ValueComparisonExpression expr, FieldTreeNode context) {
+        CompiledPath path = new CompiledPath(expr.getField());
+        Type type = resolve(context, expr.getField()).getType();
+        BinaryComparisonOperator op = expr.getOp();
+        int use = parameterUse(expr.getRvalue(), v -> boundComparison(path, type, op, v));
+        if (use >= 0) {
+            return (ctx, params) -> ((Predicate<JsonNode>) params[use]).test(ctx);
+        } else {
+            Predicate<JsonNode> test = comparison(path, type, op, expr.getRvalue().getValue());
+            return (ctx, params) -> test.test(ctx);
+        }
+    }
+
+    /**
+     * Builds the comparison with a parameter value. A list value is
+     * evaluated as $in for $eq, and as a disjunction of comparisons with
+     * each value for other operators.
+     */
+    @SuppressWarnings("unchecked")
+    private static Predicate<JsonNode> boundComparison(CompiledPath path, Type type, BinaryComparisonOperator op, Object value) {
+        if (value instanceof List) {
+            List<Value> list = (List<Value>) value;
+            if (op == BinaryComparisonOperator._eq) {
+                BiPredicate<JsonNode, Object[]> test = in(type, list);
+                return ctx -> path.anyMatch(ctx, true, test, null);
+            } else {
+                List<Predicate<JsonNode>> tests = new ArrayList<>(list.size());
+                for (Value x : list) {
+                    tests.add(comparison(path, type, op, x.getValue()));
+                }
+                return ctx -> {
+                    for (Predicate<JsonNode> test : tests) {
+                        if (test.test(ctx)) {
+                            return true;
+                        }
+                    }
+                    return false;
+                };
+            }
+        } else {
+            return comparison(path, type, op, value == null ? null : ((Value) value).getValue());
+        }
+    }
+
+    private static Predicate<JsonNode> comparison(CompiledPath path, Type type, BinaryComparisonOperator op, Object rvalue) {
+        if (rvalue == null) {
+            BiPredicate<JsonNode, Object[]> test = (node, params) -> op.apply(node == null || node instanceof NullNode ? 0 : -1);
+            if (op == BinaryComparisonOperator._eq) {
+                // Nonexistence of a field matches null
+                return ctx -> path.anyMatch(ctx, false, test, null) || !path.anyMatch(ctx, false, EXISTS, null);
+            } else {
+                return ctx -> path.anyMatch(ctx, false, test, null);
+            }
+        } else {
+            Object value = type.cast(rvalue);
+            BiPredicate<JsonNode, Object[]> test = (node, params) -> op.apply(type.compare(type.fromJson(node), value));
+            return ctx -> path.anyMatch(ctx, false, test, null);
+        }
+    }
+
+    private static final BiPredicate<JsonNode, Object[]> EXISTS = (node, params) -> true;
+
+    /**
+     * Returns the test for a value to be in the list of values
+     */
+    private static BiPredicate<JsonNode, Object[]> in(Type type, List<Value> list) {
+        Set<Object> values = new HashSet<>();
+        for (Value x : list) {
+            values.add(type.cast(x.getValue()));
+        }
+        return (node, params) -> values.contains(type.fromJson(node));
+    }
+
+    /**
+     * See RegexEvaluator
+     */
+    private BiPredicate<JsonNode, Object[]> compileRegex(RegexMatchExpression expr, FieldTreeNode context) {
+        CompiledPath path = new CompiledPath(expr.getField());
+        Type type = resolve(context, expr.getField()).getType();
+        int flags = 0;
+        if (expr.isCaseInsensitive()) {
+            flags |= Pattern.CASE_INSENSITIVE;
+        }
+        if (expr.isMultiline()) {
+            flags |= Pattern.MULTILINE;
+        }
+        if (expr.isExtended()) {
+            flags |= Pattern.COMMENTS;
+        }
+        if (expr.isDotAll()) {
+            flags |= Pattern.DOTALL;
+        }
+        Pattern regex = Pattern.compile(expr.getRegex(), flags);
+        BiPredicate<JsonNode, Object[]> test = (node, params) -> {
+            Object value = type.fromJson(node);
+            return value != null && regex.matcher(value.toString()).matches();
+        };
+        return (ctx, params) -> path.anyMatch(ctx, false, test, null);
+    }
+
+    /**
+     * See NaryValueRelationalExpressionEvaluator
+     */
+    @SuppressWarnings("unchecked")
+    private BiPredicate<JsonNode, Object[]> compileNaryValueRelational(NaryValueRelationalExpression expr, FieldTreeNode context) {
+        CompiledPath path = new CompiledPath(expr.getField());
+        Type type = resolve(context, expr.getField()).getType();
+        NaryRelationalOperator op = expr.getOp();
+        int use = parameterUse(expr.getValues(), v -> in(type, (List<Value>) v));
+        if (use >= 0) {
+            return (ctx, params) -> op.apply(path.anyMatch(ctx, true, (BiPredicate<JsonNode, Object[]>) params[use], null));
+        } else {
+            BiPredicate<JsonNode, Object[]> test = in(type, expr.getValues());
+            return (ctx, params) -> op.apply(path.anyMatch(ctx, true, test, null));
+        }
+    }
+
+    private BiPredicate<JsonNode, Object[]> compileUnaryLogical(UnaryLogicalExpression expr, FieldTreeNode context) {
+        BiPredicate<JsonNode, Object[]> nested = compileQuery(expr.getQuery(), context);
+        UnaryLogicalOperator op = expr.getOp();
+        return (ctx, params) -> op.apply(nested.test(ctx, params));
+    }
+
+    private BiPredicate<JsonNode, Object[]> compileNaryLogical(NaryLogicalExpression expr, FieldTreeNode context) {
+        List<QueryExpression> queries = expr.getQueries();
+        List<BiPredicate<JsonNode, Object[]>> list = new ArrayList<>(queries.size());
+        for (QueryExpression q : queries) {
+            list.add(compileQuery(q, context));
+        }
+        @SuppressWarnings("unchecked")
+        BiPredicate<JsonNode, Object[]>[] nested = list.toArray(new BiPredicate[list.size()]);
+        if (expr.getOp() == NaryLogicalOperator._and) {
+            return (ctx, params) -> {
+                for (BiPredicate<JsonNode, Object[]> p : nested) {
+                    if (!p.test(ctx, params)) {
+                        return false;
+                    }
+                }
+                return true;
+            };
+        } else {
+            return (ctx, params) -> {
+                for (BiPredicate<JsonNode, Object[]> p : nested) {
+                    if (p.test(ctx, params)) {
+                        return true;
+                    }
+                }
+                return false;
+            };
+        }
+    }
+
+    /**
+     * See ArrayContainsEvaluator
+     */
+    @SuppressWarnings("unchecked")
+    private BiPredicate<JsonNode, Object[]> compileArrayContains(ArrayContainsExpression expr, FieldTreeNode context) {
+        CompiledPath path = new CompiledPath(expr.getArray());
+        if (path.hasAny()) {
+            throw new UnsupportedOperationException(expr.getArray().toString());
+        }
+        FieldTreeNode node = resolve(context, expr.getArray());
+        if (!(node instanceof ArrayField) || !(((ArrayField) node).getElement() instanceof SimpleArrayElement)) {
+            throw new UnsupportedOperationException(expr.getArray().toString());
+        }
+        Type type = ((ArrayField) node).getElement().getType();
+        ContainsOperator op = expr.getOp();
+        int use = parameterUse(expr.getValues(), v -> castValues(type, (List<Value>) v));
+        if (use >= 0) {
+            return (ctx, params) -> contains(path.get(ctx), type, op, (Object[]) params[use]);
+        } else {
+            Object[] castValues = castValues(type, expr.getValues());
+            return (ctx, params) -> contains(path.get(ctx), type, op, castValues);
+        }
+    }
+
+    private static Object[] castValues(Type type, List<Value> values) {
+        Object[] castValues = new Object[values.size()];
+        for (int i = 0; i < castValues.length; i++) {
+            Object v = values.get(i).getValue();
+            castValues[i] = v == null ? null : type.cast(v);
+        }
+        return castValues;
+    }
+
+    private static boolean contains(JsonNode array, Type type, ContainsOperator op, Object[] castValues) {
+        if (array instanceof ArrayNode) {
+            int numElementsContained = 0;
+            for (int i = 0; i < array.size(); i++) {
+                JsonNode element = array.get(i);
+                boolean isNull = element instanceof NullNode;
+                for (Object v : castValues) {
+                    if (isNull ? v == null : v != null && type.compare(v, type.fromJson(element)) == 0) {
+                        numElementsContained++;
+                        break;
+                    }
+                }
+            }
+            switch (op) {
+                case _any:
+                    return numElementsContained > 0;
+                case _all:
+                    return numElementsContained == castValues.length;
+                case _none:
+                    return numElementsContained == 0;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * See ArrayMatchEvaluator. The nested query is evaluated with the
+     * array element as the context node.
+     */
+    private BiPredicate<JsonNode, Object[]> compileArrayMatch(ArrayMatchExpression expr, FieldTreeNode context) {
+        CompiledPath path = new CompiledPath(expr.getArray());
+        // The interpretive evaluator keeps the '*' in the nested context
+        // path, so nested fields are looked up in all arrays matching
+        // the path. Leave that to the interpretive evaluator.
+        if (path.hasAny()) {
+            throw new UnsupportedOperationException(expr.getArray().toString());
+        }
+        FieldTreeNode node = resolve(context, expr.getArray());
+        if (!(node instanceof ArrayField)) {
+            throw new UnsupportedOperationException(expr.getArray().toString());
+        }
+        ArrayElement elem = ((ArrayField) node).getElement();
+        BiPredicate<JsonNode, Object[]> nested = compileQuery(expr.getElemMatch(), elem);
+        BiPredicate<JsonNode, Object[]> test = (array, params) -> {
+            if (array instanceof ArrayNode) {
+                for (int i = 0; i < array.size(); i++) {
+                    if (nested.test(array.get(i), params)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        };
+        return (ctx, params) -> path.anyMatch(ctx, false, test, params);
+    }
+}
@@ -51,6 +51,13 @@ public abstract class QueryEvaluator {
         return ctx;
     }
 
+    /**
+     * Returns true if the document matches the query
+     */
+    public boolean matches(JsonDoc doc) {
+        return evaluate(doc).getResult();
+    }
+
     public static QueryEvaluator getInstance(QueryExpression expr,
                                              EntityMetadata md) {
         return getInstance(expr, md.getFieldTreeRoot());
@@ -0,0 +1,386 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.hooks;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.metadata.HookConfiguration;
+
+/**
+ * Calls hooks asynchronously, on worker threads shared by all requests.
+ *
+ * Every hook has its own set of workers, and every worker has a bounded
+ * queue. The calls for an entity always go to the same worker of a hook,
+ * so a hook receives the documents of an entity in the order they were
+ * dispatched. A worker combines the queued calls for the same hook and
+ * entity version into a single call, up to batchSize documents.
+ *
+ * If the queue of a worker is full, the overflow policy decides what
+ * happens: the caller waits for space in the queue (block), the call is
+ * dropped (drop), or the hook is called by the calling thread (spill).
+ * Before the calling thread calls the hook, it calls the queued calls of
+ * the same entity, so the order of the calls for an entity is preserved.
+ *
+ * Exceptions thrown by hooks called asynchronously are logged, and do not
+ * stop the processing of other hooks. Hooks that need to stop hook
+ * processing with a {@link StopHookProcessing} exception are annotated
+ * with {@link SynchronousHook}, and are always called synchronously by
+ * {@link HookManager}.
+ *
+ * The queue depth, the lag (the age of the oldest queued call in
+ * milliseconds), and the number of dropped and spilled calls are
+ * registered in the metric registry as hooks.&lt;hook&gt;.queueDepth,
+ * hooks.&lt;hook&gt;.lagMs, hooks.&lt;hook&gt;.dropped and
+ * hooks.&lt;hook&gt;.spilled.
+ */
+public class AsyncHookDispatcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncHookDispatcher.class);
+
+    public static enum OverflowPolicy {
+        BLOCK, DROP, SPILL
+    }
+
+    private final int queueCapacity;
+    private final int workersPerHook;
+    private final int batchSize;
+    private final OverflowPolicy overflowPolicy;
+    private final MetricRegistry metrics;
+
+    private final ConcurrentHashMap<String, HookWorkers> hookWorkers = new ConcurrentHashMap<>();
+
+    private volatile boolean shutdown = false;
+
+    /**
+     * A queued hook call
+     */
+    private static final class HookCall {
+        final CRUDHook hook;
+        final EntityMetadata md;
+        final HookConfiguration cfg;
+        final List<HookDoc> docs;
+        final long queuedAt = System.currentTimeMillis();
+
+        HookCall(CRUDHook hook, EntityMetadata md, HookConfiguration cfg, List<HookDoc> docs) {
+            this.hook = hook;
+            this.md = md;
+            this.cfg = cfg;
+            this.docs = docs;
+        }
+
+        /**
+         * Returns if the documents of the call can be passed to the hook
+         * together with the documents of this call
+         */
+        boolean canCombine(HookCall call) {
+            return hook == call.hook
+                    && cfg == call.cfg
+                    && (md == call.md
+                    || (Objects.equals(md.getName(), call.md.getName())
+                    && md.getVersion() != null && call.md.getVersion() != null
+                    && Objects.equals(md.getVersion().getValue(), call.md.getVersion().getValue())));
+        }
+
+        void call() {
+            try {
+                hook.processHook(md, cfg, docs);
+            } catch (RuntimeException e) {
+                LOGGER.error("Exception while processing hook of type: " + hook.getClass(), e);
+            }
+        }
+    }
+
+    /**
+     * The workers of a hook
+     */
+    private final class HookWorkers {
+        final String name;
+        final Worker[] workers;
+        final Counter dropped = new Counter();
+        final Counter spilled = new Counter();
+
+        HookWorkers(String name) {
+            this.name = name;
+            workers = new Worker[workersPerHook];
+            for (int i = 0; i < workers.length; i++) {
+                workers[i] = new Worker("lightblue-hook-" + name + "-" + i);
+                workers[i].start();
+            }
+        }
+
+        Worker getWorker(EntityMetadata md) {
+            return workers[(Objects.hashCode(md.getName()) & Integer.MAX_VALUE) % workers.length];
+        }
+
+        int getQueueDepth() {
+            int n = 0;
+            for (Worker w : workers) {
+                n += w.queue.size();
+            }
+            return n;
+        }
+
+        long getLagMs() {
+            long now = System.currentTimeMillis();
+            long lag = 0;
+            for (Worker w : workers) {
+                HookCall call = w.queue.peek();
+                if (call != null) {
+                    lag = Math.max(lag, now - call.queuedAt);
+                }
+            }
+            return lag;
+        }
+    }
+
+    /**
+     * A worker thread calling the hooks in its queue in order. The worker
+     * holds its lock while it takes calls from its queue and processes them,
+     * so a thread holding the lock can process the queued calls in order.
+     */
+    private final class Worker extends Thread {
+        final BlockingQueue<HookCall> queue = new LinkedBlockingQueue<>(queueCapacity);
+        final ReentrantLock lock = new ReentrantLock(true);
+
+        Worker(String name) {
+            super(name);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (!shutdown || !queue.isEmpty()) {
+                lock.lock();
+                try {
+                    HookCall call = queue.poll(1, TimeUnit.SECONDS);
+                    if (call != null) {
+                        combine(call).call();
+                    }
+                } catch (InterruptedException e) {
+                    // Check shutdown, and poll again
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        /**
+         * Calls the hook on the calling thread. The queued calls for the
+         * same entity are removed from the queue and called first, so the
+         * calls of the entity are processed in order.
+         */
+        void callInOrder(HookCall call) {
+            lock.lock();
+            try {
+                String entityName = call.md.getName();
+                for (Iterator<HookCall> itr = queue.iterator(); itr.hasNext();) {
+                    HookCall queued = itr.next();
+                    if (Objects.equals(entityName, queued.md.getName())) {
+                        itr.remove();
+                        queued.call();
+                    }
+                }
+                call.call();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Combines the calls at the head of the queue that can be combined
+         * with the given call
+         */
+        private HookCall combine(HookCall call) {
+            HookCall next = queue.peek();
+            if (next == null || !call.canCombine(next) || call.docs.size() + next.docs.size() > batchSize) {
+                return call;
+            }
+            List<HookDoc> docs = new ArrayList<>(call.docs);
+            do {
+                queue.poll();
+                docs.addAll(next.docs);
+                next = queue.peek();
+            } while (next != null && call.canCombine(next) && docs.size() + next.docs.size() <= batchSize);
+            return new HookCall(call.hook, call.md, call.cfg, docs);
+        }
+    }
+
+    /**
+     * Constructs a dispatcher
+     *
+     * @param queueCapacity The maximum number of calls queued for a worker
+     * @param workersPerHook Number of worker threads for every hook
+     * @param batchSize Maximum number of documents combined into a single
+     * hook call
+     * @param overflowPolicy What to do when the queue of a worker is full
+     * @param metrics The registry the metrics are registered to, can be null
+     */
+    public AsyncHookDispatcher(int queueCapacity,
+                               int workersPerHook,
+                               int batchSize,
+                               OverflowPolicy overflowPolicy,
+                               MetricRegistry metrics) {
+        this.queueCapacity = queueCapacity > 0 ? queueCapacity : 1;
+        this.workersPerHook = workersPerHook > 0 ? workersPerHook : 1;
+        this.batchSize = batchSize;
+        this.overflowPolicy = overflowPolicy == null ? OverflowPolicy.BLOCK : overflowPolicy;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Queues a hook call
+     *
+     * @param hook The hook
+     * @param md Entity metadata
+     * @param cfg Hook configuration
+     * @param docs The documents passed to the hook
+     */
+    public void dispatch(CRUDHook hook, EntityMetadata md, HookConfiguration cfg, List<HookDoc> docs) {
+        if (shutdown) {
+            throw new IllegalStateException("Hook dispatcher is shut down");
+        }
+        HookWorkers w = getHookWorkers(hook.getName());
+        HookCall call = new HookCall(hook, md, cfg, docs);
+        Worker worker = w.getWorker(md);
+        BlockingQueue<HookCall> queue = worker.queue;
+        if (!queue.offer(call)) {
+            switch (overflowPolicy) {
+                case BLOCK:
+                    try {
+                        queue.put(call);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        LOGGER.warn("Interrupted while queueing hook {}, calling synchronously", w.name);
+                        worker.callInOrder(call);
+                    }
+                    break;
+                case DROP:
+                    w.dropped.inc();
+                    LOGGER.warn("Hook queue for {} is full, dropping {} documents", w.name, docs.size());
+                    break;
+                case SPILL:
+                    w.spilled.inc();
+                    LOGGER.debug("Hook queue for {} is full, calling synchronously", w.name);
+                    worker.callInOrder(call);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of calls queued for the hook
+     */
+    public int getQueueDepth(String hookName) {
+        HookWorkers w = hookWorkers.get(hookName);
+        return w == null ? 0 : w.getQueueDepth();
+    }
+
+    /**
+     * Returns the age of the oldest call queued for the hook in
+     * milliseconds
+     */
+    public long getLagMs(String hookName) {
+        HookWorkers w = hookWorkers.get(hookName);
+        return w == null ? 0 : w.getLagMs();
+    }
+
+    /**
+     * Returns the number of calls dropped for the hook because its queue
+     * was full
+     */
+    public long getDropped(String hookName) {
+        HookWorkers w = hookWorkers.get(hookName);
+        return w == null ? 0 : w.dropped.getCount();
+    }
+
+    /**
+     * Returns the number of calls made by the calling thread for the hook
+     * because its queue was full
+     */
+    public long getSpilled(String hookName) {
+        HookWorkers w = hookWorkers.get(hookName);
+        return w == null ? 0 : w.spilled.getCount();
+    }
+
+    /**
+     * Stops accepting new calls, and waits until the queued calls are
+     * processed, or the timeout expires. Returns true if all queued calls
+     * are processed.
+     */
+    public boolean shutdown(long timeoutMs) throws InterruptedException {
+        shutdown = true;
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        for (HookWorkers w : hookWorkers.values()) {
+            for (Worker x : w.workers) {
+                x.join(Math.max(1, deadline - System.currentTimeMillis()));
+                if (x.isAlive()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private HookWorkers getHookWorkers(String hookName) {
+        HookWorkers w = hookWorkers.get(hookName);
+        if (w == null) {
+            synchronized (hookWorkers) {
+                w = hookWorkers.get(hookName);
+                if (w == null) {
+                    w = new HookWorkers(hookName);
+                    registerMetrics(w);
+                    hookWorkers.put(hookName, w);
+                }
+            }
+        }
+        return w;
+    }
+
+    private void registerMetrics(HookWorkers w) {
+        if (metrics != null) {
+            register(MetricRegistry.name("hooks", w.name, "queueDepth"), (Gauge<Integer>) w::getQueueDepth);
+            register(MetricRegistry.name("hooks", w.name, "lagMs"), (Gauge<Long>) w::getLagMs);
+            register(MetricRegistry.name("hooks", w.name, "dropped"), w.dropped);
+            register(MetricRegistry.name("hooks", w.name, "spilled"), w.spilled);
+        }
+    }
+
+    private void register(String name, Metric metric) {
+        // A dispatcher replaces the metrics of an earlier dispatcher
+        metrics.remove(name);
+        metrics.register(name, metric);
+    }
+}
@@ -33,6 +33,7 @@ import com.redhat.lightblue.crud.CrudConstants;
 import com.redhat.lightblue.crud.DocCtx;
 import com.redhat.lightblue.crud.DocumentStream;
 import com.redhat.lightblue.crud.RewindableDocumentStream;
+import com.redhat.lightblue.eval.ProjectionCompiler;
 import com.redhat.lightblue.eval.Projector;
 import com.redhat.lightblue.mediator.OperationContext;
 import com.redhat.lightblue.metadata.EntityMetadata;
@@ -57,13 +58,17 @@ import com.redhat.lightblue.util.MemoryMonitor.ThresholdMonitor;
  * that operation share the document copies. Because of this, hooks must treat
  * documents as read-only.
  *
- *
+ * If the hook manager is constructed with an {@link AsyncHookDispatcher},
+ * the hooks are queued to the dispatcher, and called asynchronously. Hooks
+ * annotated with {@link SynchronousHook} are still called by
+ * callQueuedHooks.
  */
 public class HookManager {
     private static final Logger LOGGER = LoggerFactory.getLogger(HookManager.class);
 
     private final HookResolver resolver;
     private final JsonNodeFactory factory;
+    private final AsyncHookDispatcher dispatcher;
 
     private final List<QueuedHook> queuedHooks = new ArrayList<>();
 
@@ -98,6 +103,13 @@ public class HookManager {
 
     }
 
+    /**
+     * The pre- and post- update versions of a document passed to the hooks.
+     * A HookDocInfo is created once for a document, and shared by all the
+     * hooks queued for it. The post-update version shares the parts that
+     * are not changed with the pre-update version, so only the changed
+     * parts are copied.
+     */
     private static final class HookDocInfo {
         private final JsonDoc pre;
         private final JsonDoc post;
@@ -120,11 +132,11 @@ public class HookManager {
             if (op == CRUDOperation.DELETE) {
                 post = null;
             } else if (doc.getUpdatedDocument() != null) {
-                post = doc.getUpdatedDocument().copy();
+                post = doc.getUpdatedDocument().copySharing(pre);
             } else if (doc.getOriginalDocument() == doc && pre != null) {
                 post = pre;
             } else {
-                post = doc.copy();
+                post = doc.copySharing(pre);
             }
         }
     }
@@ -147,7 +159,7 @@ public class HookManager {
             List<HookDoc> processedDocuments = new ArrayList<>(docList.size());
             if (hook.getProjection() != null) {
                 // Project the docs
-                Projector projector = Projector.getInstance(hook.getProjection(), md);
+                Projector projector = ProjectionCompiler.compile(hook.getProjection(), md);
                 for (HookDocInfo doc : docList) {
                     processedDocuments.add(new HookDoc(md,
                                                        project(doc.pre, projector),
@@ -165,13 +177,17 @@ public class HookManager {
                 }
             }
             if(!processedDocuments.isEmpty()) {
-                try {
-                    resolvedHook.processHook(md, hook.getConfiguration(), processedDocuments);
-                } catch (RuntimeException e) {
-                    if (e.getClass().isAnnotationPresent(StopHookProcessing.class)) {
-                        throw e;
-                    } else {
-                        LOGGER.error("Exception while processing hook of type: " + resolvedHook.getClass(), e);
+                if (dispatcher != null && !resolvedHook.getClass().isAnnotationPresent(SynchronousHook.class)) {
+                    dispatcher.dispatch(resolvedHook, md, hook.getConfiguration(), processedDocuments);
+                } else {
+                    try {
+                        resolvedHook.processHook(md, hook.getConfiguration(), processedDocuments);
+                    } catch (RuntimeException e) {
+                        if (e.getClass().isAnnotationPresent(StopHookProcessing.class)) {
+                            throw e;
+                        } else {
+                            LOGGER.error("Exception while processing hook of type: " + resolvedHook.getClass(), e);
+                        }
                     }
                 }
             }
@@ -198,8 +214,18 @@ public class HookManager {
      * Construct hooks with the given hook resolver
      */
     public HookManager(HookResolver r, JsonNodeFactory factory) {
+        this(r, factory, null);
+    }
+
+    /**
+     * Construct hooks with the given hook resolver, calling hooks
+     * asynchronously using the dispatcher. If the dispatcher is null, hooks
+     * are called synchronously.
+     */
+    public HookManager(HookResolver r, JsonNodeFactory factory, AsyncHookDispatcher dispatcher) {
         resolver = r;
         this.factory = factory;
+        this.dispatcher = dispatcher;
     }
 
     /**
@@ -256,7 +282,9 @@ public class HookManager {
     /**
      * Calls all queued hooks, and then clears the queued hooks. Any hook that
      * failed will be logged, but hook execution will continue unless one of the
-     * hooks throws an exception with @StopHookProcessing annotation.
+     * hooks throws an exception with @StopHookProcessing annotation. If there
+     * is an asynchronous dispatcher, the hooks not annotated with
+     * @SynchronousHook are passed to the dispatcher instead.
      */
     public void callQueuedHooks() {
         for (QueuedHook q: queuedHooks) {
@@ -268,6 +296,8 @@ public class HookManager {
     
     private void addDocument(List<HookAndDocs> hooks,DocCtx doc) {
         if(!doc.hasErrors()) {
+            // The document copies are shared by all the hooks
+            HookDocInfo hdi = null;
             for(HookAndDocs hook:hooks) {
                 boolean queue=false;
                 if(doc.getCRUDOperationPerformed()!=null) {
@@ -277,21 +307,31 @@ public class HookManager {
                     case DELETE: queue=hook.hook.isDelete();break;
                     }
                     if(queue) {
-                        HookDocInfo hdi = new HookDocInfo(doc);
-
-                        if (monitor != null) {
-
-                            LOGGER.debug("Checking original doc size");
-                            monitor.apply(doc.getRoot());
-
-                            if (hdi.pre != null && doc.getRoot() != hdi.pre.getRoot()) {
-                                LOGGER.debug("Checking pre copy size");
-                                monitor.apply(hdi.pre.getRoot());
-                            }
-
-                            if (hdi.post != null && doc.getRoot() != hdi.post.getRoot()) {
-                                LOGGER.debug("Checking post copy size");
-                                monitor.apply(hdi.post.getRoot());
+                        if (hdi == null) {
+                            hdi = new HookDocInfo(doc);
+
+                            if (monitor != null) {
+
+                                LOGGER.debug("Checking original doc size");
+                                // Use the sizes cached in the DocCtx where possible
+                                if (doc.getOutputDocument() == doc) {
+                                    monitor.apply(doc.getRoot(), doc.getOutputDocumentSizeB());
+                                } else {
+                                    monitor.apply(doc.getRoot());
+                                }
+
+                                if (hdi.pre != null && doc.getRoot() != hdi.pre.getRoot()) {
+                                    LOGGER.debug("Checking pre copy size");
+                                    // pre is a copy of the original document
+                                    monitor.apply(hdi.pre.getRoot(), doc.getOriginalDocumentSizeB());
+                                }
+
+                                if (hdi.post != null && doc.getRoot() != hdi.post.getRoot()) {
+                                    LOGGER.debug("Checking post copy size");
+                                    // Only the parts not shared with the pre copy are counted
+                                    monitor.apply(hdi.post.getRoot(),
+                                                  JsonUtils.size(hdi.post.getRoot(), hdi.pre == null ? null : hdi.pre.getRoot()));
+                                }
                             }
                         }
 
@@ -0,0 +1,338 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mediator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.redhat.lightblue.Request;
+import com.redhat.lightblue.crud.CRUDOperation;
+import com.redhat.lightblue.crud.DocRequest;
+import com.redhat.lightblue.crud.WithQuery;
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.metadata.EntitySchema;
+import com.redhat.lightblue.metadata.Field;
+import com.redhat.lightblue.metadata.FieldCursor;
+import com.redhat.lightblue.metadata.FieldTreeNode;
+import com.redhat.lightblue.metadata.Metadata;
+import com.redhat.lightblue.metadata.PredefinedFields;
+import com.redhat.lightblue.metadata.ReferenceField;
+import com.redhat.lightblue.metadata.types.StringType;
+import com.redhat.lightblue.metadata.types.UIDType;
+import com.redhat.lightblue.query.BinaryComparisonOperator;
+import com.redhat.lightblue.query.NaryLogicalExpression;
+import com.redhat.lightblue.query.NaryLogicalOperator;
+import com.redhat.lightblue.query.NaryRelationalOperator;
+import com.redhat.lightblue.query.NaryValueRelationalExpression;
+import com.redhat.lightblue.query.QueryExpression;
+import com.redhat.lightblue.query.Value;
+import com.redhat.lightblue.query.ValueComparisonExpression;
+import com.redhat.lightblue.util.JsonDoc;
+import com.redhat.lightblue.util.Path;
+
+/**
+ * Builds the dependency graph of an ordered bulk request.
+ *
+ * Entry j depends on an earlier entry i if executing them
+ * concurrently could produce a different result than executing them
+ * in order. Two entries conflict if at least one of them is a write,
+ * and the write modifies an entity the other one reads or writes. A
+ * composite find reads the root entity and all the entities
+ * referenced from it, so a write to any of those entities conflicts
+ * with the find. Updates and deletes may run a composite search, so
+ * they read the same entities as a find. Inserts and saves only write
+ * the root entity.
+ *
+ * Two requests that touch the same root entity do not conflict if
+ * both of them are known to touch a disjoint set of documents. This is
+ * determined using the identity values: for inserts and saves, the
+ * identities of the documents, and for queries, identity equality
+ * and $in comparisons. This is only done for entities with a single,
+ * string valued identity field. Anything that cannot be analyzed is
+ * assumed to conflict.
+ */
+public class BulkDependencyAnalyzer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BulkDependencyAnalyzer.class);
+
+    private final Metadata metadata;
+
+    private final Map<String, EntityInfo> entityInfoCache = new HashMap<>();
+
+    /**
+     * Information extracted from entity metadata
+     */
+    private static final class EntityInfo {
+        /**
+         * All entities referenced from this entity, directly or
+         * indirectly. Null if this cannot be determined.
+         */
+        Set<String> references;
+
+        /**
+         * The identity field of the entity, if the entity has a single
+         * string identity field. Null otherwise.
+         */
+        Path identityField;
+    }
+
+    /**
+     * Information about a bulk request entry
+     */
+    private static final class Entry {
+        final String root;
+        final boolean write;
+        /**
+         * Referenced entities read by this entry. Null if unknown, in
+         * which case the entry conflicts with all writes.
+         */
+        final Set<String> references;
+        /**
+         * Identities of root entity documents touched by this entry,
+         * null if unknown
+         */
+        final Set<String> keys;
+
+        Entry(String root, boolean write, Set<String> references, Set<String> keys) {
+            this.root = root;
+            this.write = write;
+            this.references = references;
+            this.keys = keys;
+        }
+    }
+
+    public BulkDependencyAnalyzer(Metadata metadata) {
+        this.metadata = metadata;
+    }
+
+    /**
+     * Returns the dependencies of each request. The returned list
+     * contains one element for each request, and that element is the
+     * list of indexes of the earlier requests that must be completed
+     * before the request can start.
+     */
+    public List<List<Integer>> analyze(List<Request> requests) {
+        int n = requests.size();
+        Entry[] entries = new Entry[n];
+        List<List<Integer>> deps = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            entries[i] = getEntry(requests.get(i));
+            List<Integer> list = new ArrayList<>();
+            for (int j = 0; j < i; j++) {
+                if (conflicts(entries[j], entries[i])) {
+                    list.add(j);
+                }
+            }
+            deps.add(list);
+        }
+        LOGGER.debug("Bulk request dependencies: {}", deps);
+        return deps;
+    }
+
+    private static boolean conflicts(Entry a, Entry b) {
+        if (!a.write && !b.write) {
+            return false;
+        }
+        if (a.root == null || b.root == null || a.references == null || b.references == null) {
+            return true;
+        }
+        if (a.write && (b.references.contains(a.root) || (a.root.equals(b.root) && !disjoint(a, b)))) {
+            return true;
+        }
+        if (b.write && (a.references.contains(b.root) || (b.root.equals(a.root) && !disjoint(a, b)))) {
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean disjoint(Entry a, Entry b) {
+        return a.keys != null && b.keys != null && Collections.disjoint(a.keys, b.keys);
+    }
+
+    private Entry getEntry(Request req) {
+        String entity = req.getEntityVersion() == null ? null : req.getEntityVersion().getEntity();
+        boolean write = req.getOperation() != CRUDOperation.FIND;
+        if (entity == null) {
+            return new Entry(null, write, null, null);
+        }
+        EntityInfo info = getEntityInfo(entity, req.getEntityVersion().getVersion());
+        Set<String> keys = null;
+        Set<String> references = info.references;
+        if (req instanceof DocRequest) {
+            // Inserts and saves only write the root entity
+            if (references != null) {
+                references = Collections.emptySet();
+            }
+            if (info.identityField != null) {
+                keys = getDocKeys(((DocRequest) req).getEntityData(), info.identityField);
+            }
+        } else if (req instanceof WithQuery && info.identityField != null) {
+            keys = getQueryKeys(((WithQuery) req).getQuery(), info.identityField);
+        }
+        return new Entry(entity, write, references, keys);
+    }
+
+    /**
+     * Returns the identities of the documents. Documents without an
+     * identity will be assigned a new one, so they cannot overlap
+     * with other requests.
+     */
+    private static Set<String> getDocKeys(JsonNode data, Path identityField) {
+        Set<String> keys = new HashSet<>();
+        if (data instanceof ArrayNode) {
+            for (Iterator<JsonNode> itr = data.elements(); itr.hasNext();) {
+                addDocKey(keys, itr.next(), identityField);
+            }
+        } else if (data != null) {
+            addDocKey(keys, data, identityField);
+        }
+        return keys;
+    }
+
+    private static void addDocKey(Set<String> keys, JsonNode doc, Path identityField) {
+        JsonNode value = new JsonDoc(doc).get(identityField);
+        if (value != null && !value.isNull()) {
+            keys.add(value.asText());
+        }
+    }
+
+    /**
+     * Returns the identity values the query is restricted to, or null
+     * if the query is not restricted by identity
+     */
+    private static Set<String> getQueryKeys(QueryExpression q, Path identityField) {
+        if (q instanceof ValueComparisonExpression) {
+            ValueComparisonExpression vc = (ValueComparisonExpression) q;
+            if (vc.getOp() == BinaryComparisonOperator._eq && vc.getField().equals(identityField)) {
+                Set<String> keys = new HashSet<>();
+                addQueryKey(keys, vc.getRvalue());
+                return keys;
+            }
+        } else if (q instanceof NaryValueRelationalExpression) {
+            NaryValueRelationalExpression nv = (NaryValueRelationalExpression) q;
+            if (nv.getOp() == NaryRelationalOperator._in && nv.getField().equals(identityField)) {
+                Set<String> keys = new HashSet<>();
+                for (Value v : nv.getValues()) {
+                    addQueryKey(keys, v);
+                }
+                return keys;
+            }
+        } else if (q instanceof NaryLogicalExpression) {
+            NaryLogicalExpression nl = (NaryLogicalExpression) q;
+            if (nl.getOp() == NaryLogicalOperator._and) {
+                // Any restricted conjunct restricts the whole query
+                for (QueryExpression x : nl.getQueries()) {
+                    Set<String> keys = getQueryKeys(x, identityField);
+                    if (keys != null) {
+                        return keys;
+                    }
+                }
+            } else {
+                // All disjuncts must be restricted
+                Set<String> keys = new HashSet<>();
+                for (QueryExpression x : nl.getQueries()) {
+                    Set<String> k = getQueryKeys(x, identityField);
+                    if (k == null) {
+                        return null;
+                    }
+                    keys.addAll(k);
+                }
+                return keys;
+            }
+        }
+        return null;
+    }
+
+    private static void addQueryKey(Set<String> keys, Value v) {
+        if (v != null && v.getValue() != null) {
+            keys.add(v.getValue().toString());
+        }
+    }
+
+    private EntityInfo getEntityInfo(String entity, String version) {
+        String key = entity + ":" + version;
+        EntityInfo info = entityInfoCache.get(key);
+        if (info == null) {
+            info = new EntityInfo();
+            try {
+                EntityMetadata md = metadata.getEntityMetadata(entity, version);
+                if (md != null) {
+                    info.identityField = getIdentityField(md.getEntitySchema());
+                    Set<String> refs = new HashSet<>();
+                    if (collectReferences(md, refs, new HashSet<>())) {
+                        info.references = refs;
+                    }
+                }
+            } catch (Exception e) {
+                LOGGER.debug("Cannot analyze dependencies for {}:{}: {}", entity, version, e);
+            }
+            entityInfoCache.put(key, info);
+        }
+        return info;
+    }
+
+    private static Path getIdentityField(EntitySchema schema) {
+        Path ret = null;
+        for (Field f : schema.getIdentityFields()) {
+            Path p = schema.getEntityRelativeFieldName(f);
+            if (!p.equals(PredefinedFields.OBJECTTYPE_PATH)) {
+                if (ret != null
+                        || !(f.getType() instanceof StringType || f.getType() instanceof UIDType)) {
+                    return null;
+                }
+                ret = p;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Collects all entities referenced from md. Returns false if a
+     * referenced entity cannot be loaded.
+     */
+    private boolean collectReferences(EntityMetadata md, Set<String> refs, Set<String> visited) {
+        if (!visited.add(md.getName() + ":" + md.getVersion().getValue())) {
+            return true;
+        }
+        FieldCursor cursor = md.getFieldCursor();
+        while (cursor.next()) {
+            FieldTreeNode node = cursor.getCurrentNode();
+            if (node instanceof ReferenceField) {
+                ReferenceField ref = (ReferenceField) node;
+                refs.add(ref.getEntityName());
+                EntityMetadata refMd = metadata.getEntityMetadata(ref.getEntityName(), ref.getVersionValue());
+                if (refMd == null || !collectReferences(refMd, refs, visited)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+}
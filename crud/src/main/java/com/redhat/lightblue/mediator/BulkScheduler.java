@@ -0,0 +1,451 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mediator;
+
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * A long-lived scheduler shared by all bulk requests.
+ *
+ * The scheduler runs a fixed number of worker threads, which is the
+ * global concurrency limit for bulk execution. Submitted tasks are
+ * queued under a fairness key (the caller, or the entity), and the
+ * workers pick tasks from the key queues in round-robin order, so a
+ * single large bulk request cannot starve others. The number of
+ * tasks running concurrently for the same key is also limited.
+ *
+ * When the total number of queued tasks reaches the maximum queue
+ * depth, the overflow policy decides what happens: the task is either
+ * executed in the submitting thread (which slows down the submitter),
+ * or rejected.
+ *
+ * If a metric registry is given, the queue depth, the number of active
+ * tasks, and the number of submitted, completed, rejected and caller-run
+ * tasks are registered as bulk.scheduler.queueDepth,
+ * bulk.scheduler.active, bulk.scheduler.submitted,
+ * bulk.scheduler.completed, bulk.scheduler.rejected and
+ * bulk.scheduler.callerRuns.
+ */
+public class BulkScheduler {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BulkScheduler.class);
+
+    public enum OverflowPolicy {
+        /**
+         * Run the task in the caller thread when the queue is full
+         */
+        CALLER_RUNS,
+        /**
+         * Reject the task with a RejectedExecutionException when the
+         * queue is full
+         */
+        REJECT
+    }
+
+    /**
+     * Determines how tasks are grouped for fair queueing
+     */
+    public enum Fairness {
+        /**
+         * Tasks of the same caller share a queue
+         */
+        CALLER,
+        /**
+         * Tasks for the same entity share a queue
+         */
+        ENTITY
+    }
+
+    private static final AtomicInteger SCHEDULER_NUMBER = new AtomicInteger(0);
+
+    private final int maxConcurrency;
+    private final int maxConcurrencyPerKey;
+    private final int maxQueueDepth;
+    private final OverflowPolicy overflowPolicy;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+
+    /**
+     * Pending tasks per fairness key. Keys with pending tasks are kept
+     * in round-robin order: a key is moved to the end after one of its
+     * tasks is dispatched.
+     */
+    private final LinkedHashMap<String, Deque<FutureTask<?>>> queues = new LinkedHashMap<>();
+    private final Map<String, Integer> running = new HashMap<>();
+    private final List<Thread> workers = new ArrayList<>();
+
+    private int queueDepth = 0;
+    private int maxObservedQueueDepth = 0;
+    private int activeCount = 0;
+    private boolean shutdown = false;
+
+    private final Counter submittedCount = new Counter();
+    private final Counter completedCount = new Counter();
+    private final Counter rejectedCount = new Counter();
+    private final Counter callerRunsCount = new Counter();
+    private final MetricRegistry metrics;
+    private final List<Metric> registeredMetrics = new ArrayList<>();
+
+    /**
+     * Creates a scheduler
+     *
+     * @param maxConcurrency Number of worker threads, i.e. the maximum
+     * number of tasks running at the same time
+     * @param maxConcurrencyPerKey Maximum number of tasks running at the
+     * same time with the same fairness key
+     * @param maxQueueDepth Maximum number of tasks waiting to be run
+     * @param overflowPolicy What to do when the queue is full
+     */
+    public BulkScheduler(int maxConcurrency,
+                         int maxConcurrencyPerKey,
+                         int maxQueueDepth,
+                         OverflowPolicy overflowPolicy) {
+        this(maxConcurrency, maxConcurrencyPerKey, maxQueueDepth, overflowPolicy, null);
+    }
+
+    /**
+     * Creates a scheduler, and registers its metrics
+     *
+     * @param maxConcurrency Number of worker threads, i.e. the maximum
+     * number of tasks running at the same time
+     * @param maxConcurrencyPerKey Maximum number of tasks running at the
+     * same time with the same fairness key
+     * @param maxQueueDepth Maximum number of tasks waiting to be run
+     * @param overflowPolicy What to do when the queue is full
+     * @param metrics The registry the metrics are registered to, can be null
+     */
+    public BulkScheduler(int maxConcurrency,
+                         int maxConcurrencyPerKey,
+                         int maxQueueDepth,
+                         OverflowPolicy overflowPolicy,
+                         MetricRegistry metrics) {
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+        this.maxConcurrencyPerKey = maxConcurrencyPerKey <= 0 ? this.maxConcurrency : maxConcurrencyPerKey;
+        this.maxQueueDepth = Math.max(1, maxQueueDepth);
+        this.overflowPolicy = overflowPolicy == null ? OverflowPolicy.CALLER_RUNS : overflowPolicy;
+        this.metrics = metrics;
+        registerMetrics();
+        int n = SCHEDULER_NUMBER.incrementAndGet();
+        for (int i = 0; i < this.maxConcurrency; i++) {
+            Thread t = new Thread(this::work, "lightblue-bulk-" + n + "-" + i);
+            t.setDaemon(true);
+            workers.add(t);
+            t.start();
+        }
+        LOGGER.debug("Bulk scheduler started: maxConcurrency={}, maxConcurrencyPerKey={}, maxQueueDepth={}, overflow={}",
+                this.maxConcurrency, this.maxConcurrencyPerKey, this.maxQueueDepth, this.overflowPolicy);
+    }
+
+    /**
+     * Submits a task under the given fairness key.
+     *
+     * @throws RejectedExecutionException if the queue is full and the
+     * overflow policy is REJECT, or if the scheduler is shut down
+     */
+    public <T> Future<T> submit(String key, Callable<T> task) {
+        return submit(key, task, null);
+    }
+
+    /**
+     * Submits a task under the given fairness key. If onDone is not null,
+     * it is called when the task completes, or when it is cancelled
+     * because the scheduler is shut down before the task runs. It is not
+     * called if the task is rejected.
+     *
+     * @throws RejectedExecutionException if the queue is full and the
+     * overflow policy is REJECT, or if the scheduler is shut down
+     */
+    public <T> Future<T> submit(String key, Callable<T> task, Runnable onDone) {
+        FutureTask<T> ftask = onDone == null ? new FutureTask<>(task) : new FutureTask<T>(task) {
+            @Override
+            protected void done() {
+                onDone.run();
+            }
+        };
+        String k = key == null ? "" : key;
+        boolean runHere = false;
+        lock.lock();
+        try {
+            if (shutdown) {
+                throw new RejectedExecutionException("Bulk scheduler is shut down");
+            }
+            if (queueDepth >= maxQueueDepth) {
+                if (overflowPolicy == OverflowPolicy.REJECT) {
+                    rejectedCount.inc();
+                    throw new RejectedExecutionException("Bulk queue is full: " + queueDepth);
+                }
+                runHere = true;
+            } else {
+                Deque<FutureTask<?>> q = queues.get(k);
+                if (q == null) {
+                    q = new ArrayDeque<>();
+                    queues.put(k, q);
+                }
+                q.addLast(ftask);
+                queueDepth++;
+                if (queueDepth > maxObservedQueueDepth) {
+                    maxObservedQueueDepth = queueDepth;
+                }
+                available.signal();
+            }
+            submittedCount.inc();
+        } finally {
+            lock.unlock();
+        }
+        if (runHere) {
+            LOGGER.debug("Bulk queue is full, running task in caller thread");
+            callerRunsCount.inc();
+            ftask.run();
+            completedCount.inc();
+        }
+        return ftask;
+    }
+
+    private void registerMetrics() {
+        if (metrics != null) {
+            register("queueDepth", (Gauge<Integer>) this::getQueueDepth);
+            register("active", (Gauge<Integer>) this::getActiveCount);
+            register("submitted", submittedCount);
+            register("completed", completedCount);
+            register("rejected", rejectedCount);
+            register("callerRuns", callerRunsCount);
+        }
+    }
+
+    private void register(String name, Metric metric) {
+        String fullName = MetricRegistry.name("bulk", "scheduler", name);
+        // A scheduler replaces the metrics of an earlier scheduler
+        metrics.remove(fullName);
+        metrics.register(fullName, metric);
+        registeredMetrics.add(metric);
+    }
+
+    /**
+     * Stops the worker threads. Tasks that are still queued are
+     * cancelled, and their completion callbacks are called. The metrics of the scheduler are removed from the
+     * registry.
+     */
+    public void shutdown() {
+        List<FutureTask<?>> cancelled = new ArrayList<>();
+        lock.lock();
+        try {
+            shutdown = true;
+            for (Deque<FutureTask<?>> q : queues.values()) {
+                cancelled.addAll(q);
+            }
+            queues.clear();
+            queueDepth = 0;
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        // Cancel outside the lock, completion callbacks may call back into the scheduler
+        for (FutureTask<?> t : cancelled) {
+            t.cancel(false);
+        }
+        if (metrics != null) {
+            // Only the metrics of this scheduler, not those of a scheduler replacing it
+            metrics.removeMatching((name, metric) -> registeredMetrics.contains(metric));
+        }
+    }
+
+    private void work() {
+        while (true) {
+            String key;
+            FutureTask<?> task;
+            lock.lock();
+            try {
+                Map.Entry<String, FutureTask<?>> next;
+                while ((next = nextTask()) == null) {
+                    if (shutdown) {
+                        return;
+                    }
+                    available.awaitUninterruptibly();
+                }
+                key = next.getKey();
+                task = next.getValue();
+                activeCount++;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                task.run();
+            } finally {
+                completedCount.inc();
+                lock.lock();
+                try {
+                    activeCount--;
+                    int r = running.get(key) - 1;
+                    if (r == 0) {
+                        running.remove(key);
+                    } else {
+                        running.put(key, r);
+                    }
+                    // A slot for this key is free, wake up a worker
+                    available.signal();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Picks the next runnable task in round-robin order over the keys,
+     * skipping keys that are at their concurrency limit. Must be called
+     * with the lock held.
+     */
+    private Map.Entry<String, FutureTask<?>> nextTask() {
+        for (Iterator<Map.Entry<String, Deque<FutureTask<?>>>> itr = queues.entrySet().iterator(); itr.hasNext();) {
+            Map.Entry<String, Deque<FutureTask<?>>> entry = itr.next();
+            String key = entry.getKey();
+            Integer r = running.get(key);
+            int nRunning = r == null ? 0 : r;
+            if (nRunning < maxConcurrencyPerKey) {
+                Deque<FutureTask<?>> q = entry.getValue();
+                FutureTask<?> task = q.removeFirst();
+                queueDepth--;
+                running.put(key, nRunning + 1);
+                // Move the key to the end of the round-robin order
+                itr.remove();
+                if (!q.isEmpty()) {
+                    queues.put(key, q);
+                }
+                return new AbstractMap.SimpleImmutableEntry<>(key, task);
+            }
+        }
+        return null;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public int getMaxConcurrencyPerKey() {
+        return maxConcurrencyPerKey;
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Returns the number of tasks waiting to be run
+     */
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return queueDepth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of tasks waiting to be run for the given key
+     */
+    public int getQueueDepth(String key) {
+        lock.lock();
+        try {
+            Deque<FutureTask<?>> q = queues.get(key == null ? "" : key);
+            return q == null ? 0 : q.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the highest queue depth observed since the scheduler was
+     * created
+     */
+    public int getMaxObservedQueueDepth() {
+        lock.lock();
+        try {
+            return maxObservedQueueDepth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of tasks currently running on worker threads
+     */
+    public int getActiveCount() {
+        lock.lock();
+        try {
+            return activeCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getSubmittedCount() {
+        return submittedCount.getCount();
+    }
+
+    public long getCompletedCount() {
+        return completedCount.getCount();
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.getCount();
+    }
+
+    /**
+     * Returns the number of tasks that ran in the submitting thread
+     * because the queue was full
+     */
+    public long getCallerRunsCount() {
+        return callerRunsCount.getCount();
+    }
+
+    @Override
+    public String toString() {
+        return "BulkScheduler [maxConcurrency=" + maxConcurrency + ", maxConcurrencyPerKey=" + maxConcurrencyPerKey
+                + ", maxQueueDepth=" + maxQueueDepth + ", overflowPolicy=" + overflowPolicy + "]";
+    }
+}
@@ -18,17 +18,23 @@
  */
 package com.redhat.lightblue.mediator;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.redhat.lightblue.BaseResponse;
 import com.redhat.lightblue.DataError;
 import com.redhat.lightblue.OperationStatus;
 import com.redhat.lightblue.Request;
@@ -424,7 +430,7 @@ public class Mediator {
 
         OperationContext findCtx = new OperationContext(freq, CRUDOperation.FIND, ctx);
         CompositeFindImpl finder = new CompositeFindImpl(md);
-        finder.setParallelism(9);
+        finder.setParallelism(factory.getCompositeParallelism());
         CRUDFindResponse response = finder.find(findCtx, freq.getCRUDFindRequest());
         if(findCtx.hasErrors()) {
             ctx.addErrors(findCtx.getErrors());
@@ -496,7 +502,7 @@ public class Mediator {
                 for(;docStream.hasNext();) {
                     DocCtx doc=docStream.next();
                     if(!doc.hasErrors()) {
-                        response.addEntityData(doc.getOutputDocument().getRoot());
+                        response.addEntityData(doc.getOutputDocument().getRoot(), doc.getOutputDocumentSizeB());
                         rmd.add(doc.getResultMetadata());
                     } else {
                         DataError error=doc.getDataError();
@@ -549,6 +555,48 @@ public class Mediator {
         }
     }
 
+    /**
+     * Finds documents, and writes the response to the output stream as
+     * the documents are retrieved, without building the result set in
+     * memory. See {@link StreamingResponseWriter} for the output format.
+     *
+     * @param req Find request
+     * @param out The output stream. It is not closed.
+     *
+     * @return The status of the operation. The entity data, result metadata
+     * and data errors are written to the stream, and not returned.
+     */
+    @StopWatch(loggerName = "stopwatch.com.redhat.lightblue.mediator.Mediator")
+    public BaseResponse findAndWrite(FindRequest req, OutputStream out) throws IOException {
+        LOGGER.debug("findAndWrite {}", req.getEntityVersion());
+        Error.push("findAndWrite(" + req.getEntityVersion().toString() + ")");
+        OperationContext ctx=null;
+        StreamingResponse response;
+        try {
+            try {
+                ctx = newCtx(req, CRUDOperation.FIND);
+                ctx.measure.begin("find");
+                response=_findAndStream(req, ctx);
+            } catch (Error e) {
+                LOGGER.debug("Error during find:{}", e);
+                response=StreamingResponse.withError(factory.getNodeFactory(), e);
+            } catch (Exception e) {
+                LOGGER.debug("Exception during find:{}", e);
+                response=StreamingResponse.withError(factory.getNodeFactory(), Error.get(CrudConstants.ERR_CRUD, e));
+            }
+            StreamingResponseWriter writer=new StreamingResponseWriter(factory.getNodeFactory());
+            writer.setResultSizeThresholds(factory.getMaxResultSetSizeForReadsB(), factory.getWarnResultSetSizeB(), req);
+            writer.write(response, out);
+            return response;
+        } finally {
+            if(ctx!=null) {
+                ctx.measure.end("find");
+                METRICS.debug("find: {}",ctx.measure);
+            }
+            Error.pop();
+        }
+    }
+
     private StreamingResponse _findAndStream(FindRequest req, OperationContext ctx) {
         StreamingResponse response = new StreamingResponse(factory.getNodeFactory(), OperationStatus.ERROR);
         response.setEntity(ctx.getTopLevelEntityName(),ctx.getTopLevelEntityVersion());
@@ -566,8 +614,7 @@ public class Mediator {
             } else {
                 LOGGER.debug("Composite entity");
                 finder = new CompositeFindImpl(md);
-                // This can be read from a configuration
-                ((CompositeFindImpl) finder).setParallelism(9);
+                ((CompositeFindImpl) finder).setParallelism(factory.getCompositeParallelism());
             }
             
             ctx.measure.begin("finder.find");
@@ -610,8 +657,7 @@ public class Mediator {
             } else {
                 LOGGER.debug("Composite entity");
                 finder = new CompositeFindImpl(md);
-                // This can be read from a configuration
-                ((CompositeFindImpl) finder).setParallelism(9);
+                ((CompositeFindImpl) finder).setParallelism(factory.getCompositeParallelism());
             }
             
             finder.explain(ctx, req.getCRUDFindRequest());
@@ -643,19 +689,6 @@ public class Mediator {
         return response;        
     }
 
-    protected void wait(BulkExecutionContext ctx) {
-        for (int i = 0; i < ctx.futures.length; i++) {
-            if (ctx.futures[i] != null) {
-                try {
-                    LOGGER.debug("Waiting for a find request to complete");
-                    ctx.setResponseAt(i, ctx.futures[i].get());
-                } catch (Exception e) {
-                    LOGGER.debug("Find request wait failed", e);
-                }
-            }
-        }
-    }
-
     protected Callable<Response> getFutureRequest(final Request req, RequestMetrics metrics) {
         return new Callable<Response>() {
             @Override
@@ -688,61 +721,109 @@ public class Mediator {
         };
     }
 
+    /**
+     * Returns the key used to queue the request fairly in the bulk
+     * scheduler
+     */
+    protected String getBulkFairnessKey(Request req) {
+        if (factory.getBulkFairness() == BulkScheduler.Fairness.ENTITY) {
+            return req.getEntityVersion() == null ? null : req.getEntityVersion().getEntity();
+        } else {
+            return req.getClientId() == null ? null : req.getClientId().getPrincipal();
+        }
+    }
+
+    private Future<Response> scheduleBulkRequest(BulkScheduler scheduler,
+                                                 Request req,
+                                                 RequestMetrics metrics,
+                                                 int index,
+                                                 BlockingQueue<Integer> completed) {
+        Callable<Response> call = getFutureRequest(req, metrics);
+        try {
+            // The completion is signalled also if the entry is cancelled before it runs
+            return scheduler.submit(getBulkFairnessKey(req), call, () -> completed.add(index));
+        } catch (RejectedExecutionException e) {
+            LOGGER.debug("Bulk request entry rejected", e);
+            Response response = new Response(factory.getNodeFactory(), OperationStatus.ERROR);
+            response.getErrors().add(Error.get(CrudConstants.ERR_BULK_QUEUE_FULL, e.getMessage()));
+            completed.add(index);
+            return CompletableFuture.completedFuture(response);
+        }
+    }
+
+    /**
+     * Executes a bulk request. In an unordered bulk request all
+     * requests are executed in parallel. In an ordered bulk request,
+     * a request is started only after all the earlier requests it
+     * conflicts with are completed, so independent requests still run
+     * in parallel.
+     */
     public BulkResponse bulkRequest(BulkRequest requests, RequestMetrics metrics) {
         LOGGER.debug("Bulk request start");
         Error.push("bulk operation");
-        ExecutorService executor = Executors.newFixedThreadPool(factory.getBulkParallelExecutions());
+        BulkScheduler scheduler = factory.getBulkScheduler();
         try {
-            LOGGER.debug("Executing up to {} requests in parallel, ordered = {}", factory.getBulkParallelExecutions(), requests.isOrdered());
+            LOGGER.debug("Executing requests using {}, ordered = {}", scheduler, requests.isOrdered());
             List<Request> requestList = requests.getEntries();
             int n = requestList.size();
             BulkExecutionContext ctx = new BulkExecutionContext(n);
             ctx.setResultSizeThresholds(factory.getMaxResultSetSizeForReadsB(), factory.getWarnResultSetSizeB(), requests);
+
+            // Number of unfinished requests each request is waiting for
+            int[] waitingFor = new int[n];
+            List<List<Integer>> dependents = new ArrayList<>(n);
             for (int i = 0; i < n; i++) {
-            	Response resp = null;
-                Request req = requestList.get(i);
-                if (requests.isOrdered()) {
-                    // ordered - only consecutive finds in parallel
-                    if (req.getOperation() == CRUDOperation.FIND) {
-                        ctx.futures[i] = executor.submit(getFutureRequest(req, metrics));
-                    } else {
-                        wait(ctx);
-                        RequestMetrics.Context metricCtx = metrics.startCrudRequest(req.getOperation().toString().toLowerCase(), req.getEntityVersion().getEntity(), req.getEntityVersion().getVersion());
-                        switch (req.getOperation()) {
-                            case INSERT:
-                            	resp = insert((InsertionRequest) req);
-                                ctx.setResponseAt(i, resp);
-                                break;
-                            case DELETE:
-                                resp = delete((DeleteRequest) req);
-                                ctx.setResponseAt(i, resp);
-                                break;
-                            case UPDATE:
-                                resp = update((UpdateRequest) req);
-                                ctx.setResponseAt(i, resp);
-                                break;
-                            case SAVE:
-                                resp = save((SaveRequest) req);
-                                ctx.setResponseAt(i, resp);
-                                break;
-                        }
-                        metricCtx.markAllErrorsAndEndRequestMonitoring(resp.getErrors());  
+                dependents.add(new ArrayList<>());
+            }
+            if (requests.isOrdered()) {
+                List<List<Integer>> deps = new BulkDependencyAnalyzer(metadata).analyze(requestList);
+                for (int i = 0; i < n; i++) {
+                    waitingFor[i] = deps.get(i).size();
+                    for (Integer d : deps.get(i)) {
+                        dependents.get(d).add(i);
+                    }
+                }
+            }
+
+            BlockingQueue<Integer> completed = new LinkedBlockingQueue<>();
+            for (int i = 0; i < n; i++) {
+                if (waitingFor[i] == 0) {
+                    LOGGER.debug("Scheduling request {}", i);
+                    ctx.futures[i] = scheduleBulkRequest(scheduler, requestList.get(i), metrics, i, completed);
+                }
+            }
+            for (int remaining = n; remaining > 0; remaining--) {
+                int i = completed.take();
+                ctx.setResponseAt(i, getBulkResponse(ctx.futures[i]));
+                ctx.futures[i] = null;
+                for (Integer d : dependents.get(i)) {
+                    if (--waitingFor[d] == 0) {
+                        LOGGER.debug("Scheduling request {}", d);
+                        ctx.futures[d] = scheduleBulkRequest(scheduler, requestList.get(d), metrics, d, completed);
                     }
-                } else {
-                    LOGGER.debug("Scheduling a future operation");
-                    // unordered - do them all in parallel
-                    ctx.futures[i] = executor.submit(getFutureRequest(req, metrics));
                 }
             }
 
-            wait(ctx);
             LOGGER.debug("Bulk execution completed");
             BulkResponse response = new BulkResponse();
             response.setEntries(ctx.getResponses());
-            Error.pop();
             return response;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Error.get(CrudConstants.ERR_CRUD, e);
         } finally {
-            executor.shutdown();
+            Error.pop();
+        }
+    }
+
+    private Response getBulkResponse(Future<Response> future) {
+        try {
+            return future.get();
+        } catch (Exception e) {
+            LOGGER.debug("Bulk request entry failed", e);
+            Response response = new Response(factory.getNodeFactory(), OperationStatus.ERROR);
+            response.getErrors().add(Error.get(CrudConstants.ERR_CRUD, e));
+            return response;
         }
     }
 
@@ -852,7 +933,7 @@ public class Mediator {
                 DocCtx doc=docStream.next();
                 if(!doc.hasErrors()) {                
                     if(ix>=f&&ix<=t) {                
-                        response.addEntityData(doc.getOutputDocument().getRoot());
+                        response.addEntityData(doc.getOutputDocument().getRoot(), doc.getOutputDocumentSizeB());
                         rmd.add(doc.getResultMetadata());
                     }
                     ix++;
@@ -0,0 +1,202 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mediator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+
+import com.redhat.lightblue.DataError;
+import com.redhat.lightblue.OperationStatus;
+import com.redhat.lightblue.Request;
+import com.redhat.lightblue.Response;
+import com.redhat.lightblue.ResultMetadata;
+import com.redhat.lightblue.crud.CrudConstants;
+import com.redhat.lightblue.crud.DocCtx;
+import com.redhat.lightblue.crud.DocumentStream;
+import com.redhat.lightblue.util.Error;
+import com.redhat.lightblue.util.JsonUtils;
+
+/**
+ * Writes a streaming response to an output stream as a find response,
+ * without building the response in memory. The documents are written to
+ * the "processed" array as they are read from the document stream, so
+ * only one document is in memory at a time.
+ *
+ * The output contains the same fields as {@link Response#toJson()}, but
+ * "processed" is written first, and the other fields after all the
+ * documents are written, because the status, the data errors and the
+ * result metadata are known only after the document stream is consumed.
+ *
+ * The size of the result set is the number of UTF-8 bytes the documents
+ * are serialized to. Every document is serialized to a string before it is
+ * written, and if writing it would exceed the maximum, it is not written,
+ * the status is set to ERROR, and an {@link Response#ERR_RESULT_SIZE_TOO_LARGE}
+ * error is added. The documents written before the limit was reached
+ * remain in the output.
+ */
+public class StreamingResponseWriter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StreamingResponseWriter.class);
+
+    private static final String PROPERTY_PROCESSED = "processed";
+    private static final String PROPERTY_RESULT_METADATA = "resultMetadata";
+
+    private final JsonNodeFactory nodeFactory;
+    private int maxResultSetSizeB;
+    private int warnResultSetSizeB;
+    private Request forRequest;
+
+    private long dataSizeB;
+
+    public StreamingResponseWriter(JsonNodeFactory nodeFactory) {
+        this.nodeFactory = nodeFactory;
+    }
+
+    /**
+     * Sets the result size thresholds in bytes. A threshold less than or
+     * equal to 0 is disabled.
+     *
+     * @param maxResultSetSizeB error when this threshold is breached
+     * @param warnResultSetSizeB log a warning when this threshold is breached
+     * @param forRequest request which resulted in this response, for logging purposes
+     */
+    public void setResultSizeThresholds(int maxResultSetSizeB, int warnResultSetSizeB, Request forRequest) {
+        this.maxResultSetSizeB = maxResultSetSizeB;
+        this.warnResultSetSizeB = warnResultSetSizeB;
+        this.forRequest = forRequest;
+    }
+
+    /**
+     * Returns the number of bytes written for the documents by the last
+     * call to write
+     */
+    public long getResponseDataSizeB() {
+        return dataSizeB;
+    }
+
+    /**
+     * Writes the response to the output stream, and closes the document
+     * stream of the response. The output stream is not closed.
+     */
+    public void write(StreamingResponse response, OutputStream out) throws IOException {
+        try (JsonGenerator gen = JsonUtils.getObjectMapper().getFactory().createGenerator(out)) {
+            gen.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            write(response, gen);
+        }
+    }
+
+    private void write(StreamingResponse response, JsonGenerator gen) throws IOException {
+        dataSizeB = 0;
+        ObjectWriter docWriter = JsonUtils.getObjectMapper().writer();
+        boolean warned = false;
+        List<ResultMetadata> rmd = null;
+        gen.writeStartObject();
+        DocumentStream<DocCtx> docStream = response.documentStream;
+        if (response.getErrors().isEmpty() && docStream != null) {
+            rmd = new ArrayList<>();
+            gen.writeArrayFieldStart(PROPERTY_PROCESSED);
+            try {
+                while (docStream.hasNext()) {
+                    DocCtx doc = docStream.next();
+                    if (!doc.hasErrors()) {
+                        String docStr = docWriter.writeValueAsString(doc.getOutputDocument().getRoot());
+                        long sizeB = dataSizeB + utf8Length(docStr);
+                        if (maxResultSetSizeB > 0 && sizeB > maxResultSetSizeB) {
+                            response.setStatus(OperationStatus.ERROR);
+                            response.getErrors().add(Error.get(Response.ERR_RESULT_SIZE_TOO_LARGE, sizeB + "B > " + maxResultSetSizeB + "B"));
+                            break;
+                        }
+                        gen.writeRawValue(docStr);
+                        dataSizeB = sizeB;
+                        rmd.add(doc.getResultMetadata());
+                        if (!warned && warnResultSetSizeB > 0 && dataSizeB > warnResultSetSizeB) {
+                            warned = true;
+                            LOGGER.warn("crud:ResultSizeIsLarge: request={}, responseDataSizeB={}", forRequest, dataSizeB);
+                        }
+                    } else {
+                        DataError error = doc.getDataError();
+                        if (error != null) {
+                            response.getDataErrors().add(error);
+                        }
+                    }
+                }
+            } catch (Error e) {
+                LOGGER.debug("Error during find:{}", e);
+                response.setStatus(OperationStatus.ERROR);
+                response.getErrors().add(e);
+            } catch (RuntimeException e) {
+                LOGGER.debug("Exception during find:{}", e);
+                response.setStatus(OperationStatus.ERROR);
+                response.getErrors().add(Error.get(CrudConstants.ERR_CRUD, e));
+            } finally {
+                docStream.close();
+            }
+            gen.writeEndArray();
+        }
+        response.setMatchCount(response.matchCount == null ? 0 : response.matchCount);
+        for (Iterator<Map.Entry<String, JsonNode>> itr = response.toJson().fields(); itr.hasNext();) {
+            Map.Entry<String, JsonNode> field = itr.next();
+            gen.writeFieldName(field.getKey());
+            gen.writeTree(field.getValue());
+        }
+        if (rmd != null) {
+            gen.writeArrayFieldStart(PROPERTY_RESULT_METADATA);
+            for (ResultMetadata x : rmd) {
+                gen.writeTree(x == null ? nodeFactory.nullNode() : x.toJson());
+            }
+            gen.writeEndArray();
+        }
+        gen.writeEndObject();
+    }
+
+    /**
+     * Returns the number of bytes the string is encoded to in UTF-8,
+     * without encoding it
+     */
+    private static int utf8Length(String s) {
+        int n = 0;
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                n++;
+            } else if (c < 0x800) {
+                n += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                n += 4;
+                i++;
+            } else {
+                n += 3;
+            }
+        }
+        return n;
+    }
+}
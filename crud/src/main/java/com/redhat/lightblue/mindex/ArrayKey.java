@@ -39,9 +39,9 @@ class ArrayKey implements Key {
     @Override
     public int hashCode() {
         if(!hcodeInitialized) {
-            int h=0;
+            int h=1;
             for(Key k:values)
-                h*=k.hashCode()+1;
+                h=h*31+k.hashCode();
             hcode=h;
             hcodeInitialized=true;
         }
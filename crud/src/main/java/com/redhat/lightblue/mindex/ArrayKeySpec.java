@@ -56,6 +56,8 @@ public class ArrayKeySpec implements KeySpec,Comparator<ArrayKey> {
 
     @Override
     public int compareKeys(Key k1,Key k2) {
+        if(BoundKey.isBound(k1,k2))
+            return BoundKey.compare(k1,k2);
         return compare( (ArrayKey)k1,(ArrayKey)k2);
     }
     
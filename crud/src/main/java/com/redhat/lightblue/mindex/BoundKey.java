@@ -0,0 +1,56 @@
+ /*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mindex;
+
+/**
+ * Sentinel keys that sort before and after all other keys. They are
+ * used as the unbounded ends of the key ranges walked in a sorted
+ * index, and are never stored in an index.
+ */
+final class BoundKey implements Key {
+
+    static final BoundKey MIN=new BoundKey("MIN");
+    static final BoundKey MAX=new BoundKey("MAX");
+
+    private final String name;
+
+    private BoundKey(String name) {
+        this.name=name;
+    }
+
+    static boolean isBound(Key k1,Key k2) {
+        return k1 instanceof BoundKey||k2 instanceof BoundKey;
+    }
+
+    /**
+     * Compares two keys, at least one of which is a bound
+     */
+    static int compare(Key k1,Key k2) {
+        if(k1==k2)
+            return 0;
+        if(k1==MIN||k2==MAX)
+            return -1;
+        return 1;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
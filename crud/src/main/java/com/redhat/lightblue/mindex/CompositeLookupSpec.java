@@ -38,6 +38,24 @@ public class CompositeLookupSpec extends LookupSpec {
         return new ArrayKey(keys);
     }
     
+    @Override
+    protected Key lowerBound() {
+        Key[] keys=new Key[values.length];
+        for(int i=0;i<keys.length;i++) {
+            keys[i]=values[i].lowerBound();
+        }
+        return new ArrayKey(keys);
+    }
+
+    @Override
+    protected Key upperBound() {
+        Key[] keys=new Key[values.length];
+        for(int i=0;i<keys.length;i++) {
+            keys[i]=values[i].upperBound();
+        }
+        return new ArrayKey(keys);
+    }
+
     @Override
     public boolean matches(Key k) {
         if(k instanceof ArrayKey) {
@@ -37,18 +37,31 @@ import com.redhat.lightblue.util.Error;
  */
 public class GetIndexKeySpec extends IndexQueryProcessorBase<KeySpec> {
 
+    private boolean rangeLookups;
+
     public GetIndexKeySpec(List<QueryFieldInfo> fields) {
         super(fields);
     }
     
+    /**
+     * Returns true if the key spec built for the query will be used
+     * for range or prefix lookups. A SortedMemDocIndex is better for
+     * those.
+     */
+    public boolean hasRangeLookups() {
+        return rangeLookups;
+    }
     
     @Override
     protected KeySpec processValueComparisonExpression(ValueComparisonExpression q) {
+        if(q.getOp()!=BinaryComparisonOperator._eq)
+            rangeLookups=true;
         return simpleKeySpec(findFieldInfo(q.getField(),q));
     }
     
     @Override
     protected KeySpec processRegexMatchExpression(RegexMatchExpression q) {
+        rangeLookups=true;
         return simpleKeySpec(findFieldInfo(q.getField(),q));
     }
 
@@ -0,0 +1,248 @@
+ /*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mindex;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.redhat.lightblue.assoc.QueryFieldInfo;
+
+import com.redhat.lightblue.metadata.Type;
+
+import com.redhat.lightblue.query.*;
+
+import com.redhat.lightblue.util.Path;
+
+/**
+ * Given a query containing parameter placeholders, builds a lookup spec
+ * template. The placeholders are identified by object identity, the
+ * same way BindQuery identifies the bound values.
+ *
+ * The lookup specs built by binding the template have the same
+ * structure as the key spec built by GetIndexKeySpec for the
+ * query. Where binding the query would give a clause the lookup spec
+ * cannot represent, the template uses a range that contains all the
+ * matching values instead. The lookup spec is used to narrow the
+ * candidate documents, the query is still evaluated for each.
+ *
+ * This class follows the same pattern as GetIndexLookupSpec
+ */
+public class GetIndexLookupSpecTemplate extends IndexQueryProcessorBase<LookupSpecTemplate> {
+
+    private final Map<Object, Integer> parameters = new IdentityHashMap<>();
+
+    public GetIndexLookupSpecTemplate(List<QueryFieldInfo> l, List<?> parameters) {
+        super(l);
+        for (int i = 0; i < parameters.size(); i++) {
+            this.parameters.put(parameters.get(i), i);
+        }
+    }
+
+    private static LookupSpecTemplate constant(LookupSpec spec) {
+        return values -> spec;
+    }
+
+    /**
+     * Returns the values of a parameter, a Value or a list of Values
+     */
+    private static List<Object> parameterValues(Object parameter) {
+        List<Object> ret = new ArrayList<>();
+        if (parameter instanceof List) {
+            for (Object x : (List<?>) parameter) {
+                ret.add(((Value) x).getValue());
+            }
+        } else if (parameter != null) {
+            ret.add(((Value) parameter).getValue());
+        } else {
+            ret.add(null);
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the smallest or the largest of the values, or null if
+     * there is a null value. A comparison with null doesn't bound the
+     * range.
+     */
+    private static Object bound(Type type, List<Object> values, boolean min) {
+        Object ret = null;
+        for (Object x : values) {
+            if (x == null) {
+                return null;
+            }
+            Object v = type.cast(x);
+            if (ret == null || (min ? type.compare(v, ret) < 0 : type.compare(v, ret) > 0)) {
+                ret = v;
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    protected LookupSpecTemplate processValueComparisonExpression(ValueComparisonExpression q) {
+        Integer parameter = parameters.get(q.getRvalue());
+        if (parameter == null) {
+            LookupSpec spec = new GetIndexLookupSpec(fieldInfo).processValueComparisonExpression(q);
+            return spec == null ? null : constant(spec);
+        }
+        int index = parameter;
+        SimpleKeySpec key = simpleKeySpec(findFieldInfo(q.getField(), q));
+        switch (q.getOp()) {
+            case _eq:
+                return values -> {
+                    if (values[index] instanceof List) {
+                        // field = [list] is bound as field $in [list]
+                        return new MultiValueLookupSpec(key, parameterValues(values[index]));
+                    } else {
+                        return new ValueLookupSpec(key, parameterValues(values[index]).get(0));
+                    }
+                };
+            case _lte:
+            case _lt:
+                // field op [list] is bound as an $or of comparisons
+                // with each value, all matching values are at most
+                // the largest value
+                return values -> new RangeLookupSpec(key, null, bound(key.type, parameterValues(values[index]), false));
+            case _gte:
+            case _gt:
+                return values -> new RangeLookupSpec(key, bound(key.type, parameterValues(values[index]), true), null);
+        }
+        return null;
+    }
+
+    @Override
+    protected LookupSpecTemplate processRegexMatchExpression(RegexMatchExpression q) {
+        return constant(new GetIndexLookupSpec(fieldInfo).processRegexMatchExpression(q));
+    }
+
+    @Override
+    protected LookupSpecTemplate processInExpression(NaryValueRelationalExpression q) {
+        Integer parameter = parameters.get(q.getValues());
+        if (parameter == null) {
+            return constant(new GetIndexLookupSpec(fieldInfo).processInExpression(q));
+        }
+        int index = parameter;
+        SimpleKeySpec key = simpleKeySpec(findFieldInfo(q.getField(), q));
+        return values -> new MultiValueLookupSpec(key, parameterValues(values[index]));
+    }
+
+    @Override
+    protected LookupSpecTemplate processAnyExpression(ArrayContainsExpression q) {
+        Integer parameter = parameters.get(q.getValues());
+        if (parameter == null) {
+            return constant(new GetIndexLookupSpec(fieldInfo).processAnyExpression(q));
+        }
+        int index = parameter;
+        SimpleKeySpec key = simpleKeySpec(findFieldInfo(q.getArray(), q));
+        return values -> new MultiValueLookupSpec(key, parameterValues(values[index]));
+    }
+
+    @Override
+    protected LookupSpecTemplate processOrQueries(List<QueryExpression> list, Path context) {
+        // All queries in the list are equality comparisons of the same
+        // field, see GetIndexLookupSpec. Collect the constant values
+        // and the parameters, and build a multi-value lookup spec
+        List<Object> constants = new ArrayList<>();
+        List<Integer> params = new ArrayList<>();
+        QueryExpression firstq = list.get(0);
+        Path firstPath = null;
+        for (QueryExpression q : list) {
+            if (q instanceof ValueComparisonExpression) {
+                ValueComparisonExpression vc = (ValueComparisonExpression) q;
+                if (firstPath == null) {
+                    firstPath = vc.getField();
+                }
+                Integer parameter = parameters.get(vc.getRvalue());
+                if (parameter == null) {
+                    constants.add(vc.getRvalue().getValue());
+                } else {
+                    params.add(parameter);
+                }
+            } else if (q instanceof NaryValueRelationalExpression) {
+                NaryValueRelationalExpression nv = (NaryValueRelationalExpression) q;
+                if (firstPath == null) {
+                    firstPath = nv.getField();
+                }
+                Integer parameter = parameters.get(nv.getValues());
+                if (parameter == null) {
+                    for (Value v : nv.getValues()) {
+                        constants.add(v.getValue());
+                    }
+                } else {
+                    params.add(parameter);
+                }
+            }
+        }
+        SimpleKeySpec key = simpleKeySpec(findFieldInfo(firstPath, firstq));
+        if (params.isEmpty()) {
+            return constant(new MultiValueLookupSpec(key, constants));
+        }
+        return values -> {
+            List<Object> all = new ArrayList<>(constants);
+            for (Integer p : params) {
+                all.addAll(parameterValues(values[p]));
+            }
+            return new MultiValueLookupSpec(key, all);
+        };
+    }
+
+    @Override
+    protected LookupSpecTemplate processAndQueries(List<QueryExpression> list, Path context) {
+        List<LookupSpecTemplate> specs = new ArrayList<>(list.size());
+        for (QueryExpression query : list) {
+            LookupSpecTemplate spec = super.iterate(query, context);
+            if (spec != null) {
+                specs.add(spec);
+            }
+        }
+        if (specs.isEmpty()) {
+            return null;
+        } else {
+            LookupSpecTemplate[] nested = specs.toArray(new LookupSpecTemplate[specs.size()]);
+            return values -> new CompositeLookupSpec(bindAll(nested, values));
+        }
+    }
+
+    private static LookupSpec[] bindAll(LookupSpecTemplate[] templates, Object[] values) {
+        LookupSpec[] specs = new LookupSpec[templates.length];
+        for (int i = 0; i < specs.length; i++) {
+            specs[i] = templates[i].bind(values);
+        }
+        return specs;
+    }
+
+    @Override
+    protected LookupSpecTemplate processArrayMatchExpression(QueryExpression nestedExpression, Path nestedContext) {
+        LookupSpecTemplate nested = iterate(nestedExpression, nestedContext);
+        if (nested == null) {
+            return null;
+        } else {
+            return values -> {
+                LookupSpec nestedSpec = nested.bind(values);
+                if (nestedSpec instanceof CompositeLookupSpec) {
+                    return new ArrayLookupSpec(((CompositeLookupSpec) nestedSpec).values);
+                } else {
+                    return new ArrayLookupSpec(new LookupSpec[]{nestedSpec});
+                }
+            };
+        }
+    }
+}
@@ -28,6 +28,24 @@ public abstract class LookupSpec {
     }
     
     public abstract boolean matches(Key key);
+
+    /**
+     * Returns the smallest key this lookup can match, in the key
+     * ordering of the key spec. Used to walk a sorted index. The
+     * default is unbounded.
+     */
+    protected Key lowerBound() {
+        return BoundKey.MIN;
+    }
+
+    /**
+     * Returns the largest key this lookup can match, in the key
+     * ordering of the key spec. Used to walk a sorted index. The
+     * default is unbounded.
+     */
+    protected Key upperBound() {
+        return BoundKey.MAX;
+    }
     
     /**
      * If returns true, the lookup needs an index scan. Value
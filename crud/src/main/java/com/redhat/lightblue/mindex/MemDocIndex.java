@@ -71,7 +71,9 @@ import com.redhat.lightblue.util.Tuples;
  * structure as the key spec. A lookup spec composed ot only Value
  * lookups and multi-value lookups is a simple lookup. If a range
  * lookup spec or prefix lookup spec is used, the lookup becomes an
- * index scan.
+ * index scan. This index scans all the keys for such lookups, use
+ * {@link SortedMemDocIndex} to scan only the keys in the lookup
+ * range.
  *    
  */
 public class MemDocIndex {
@@ -79,15 +81,23 @@ public class MemDocIndex {
     /**
      * The index keys are ordered based on the keyFields array
      */
-    private final HashMap<Key,Set<JsonDoc>> documents;   
+    protected final Map<Key,Set<JsonDoc>> documents;   
     public final KeySpec keySpec;
     
     /**
      * Constructs a document index using the given key spec
      */
     public MemDocIndex(KeySpec keys) {
+        this(keys,new HashMap<Key,Set<JsonDoc>>());
+    }
+
+    /**
+     * Constructs a document index using the given key spec, keeping
+     * the index entries in the given map
+     */
+    protected MemDocIndex(KeySpec keys,Map<Key,Set<JsonDoc>> documents) {
         this.keySpec=keys;
-        this.documents=new HashMap<Key,Set<JsonDoc>>();
+        this.documents=documents;
     }
     
     /**
@@ -134,7 +144,7 @@ public class MemDocIndex {
         }
     }
 
-    private void indexScan(LookupSpec spec,Set<JsonDoc> results) {
+    protected void indexScan(LookupSpec spec,Set<JsonDoc> results) {
         for(Map.Entry<Key,Set<JsonDoc>> entry:documents.entrySet()) {
             Key indexKey=entry.getKey();
             if(spec.matches(indexKey))
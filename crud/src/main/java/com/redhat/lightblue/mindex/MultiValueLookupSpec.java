@@ -38,6 +38,30 @@ public class MultiValueLookupSpec extends SimpleKeyLookupSpec {
             this.values.add(keyField.type.cast(x));
     }
     
+    @Override
+    protected Key lowerBound() {
+        Object min=null;
+        boolean first=true;
+        for(Object x:values) {
+            if(first||key.type.compare(x,min)<0)
+                min=x;
+            first=false;
+        }
+        return first?BoundKey.MIN:new SimpleKey(min);
+    }
+
+    @Override
+    protected Key upperBound() {
+        Object max=null;
+        boolean first=true;
+        for(Object x:values) {
+            if(first||key.type.compare(x,max)>0)
+                max=x;
+            first=false;
+        }
+        return first?BoundKey.MAX:new SimpleKey(max);
+    }
+
     @Override
     public boolean matches(Key k) {
         if(k instanceof SimpleKey) {
@@ -20,6 +20,7 @@ package com.redhat.lightblue.mindex;
 
 import java.util.Iterator;
 
+import com.redhat.lightblue.metadata.types.StringType;
 import com.redhat.lightblue.util.Tuples;
 
 public class PrefixLookupSpec extends SimpleKeyLookupSpec {
@@ -32,6 +33,41 @@ public class PrefixLookupSpec extends SimpleKeyLookupSpec {
         this.caseInsensitive=caseInsensitive;
     }
     
+    /**
+     * Case sensitive string prefixes start at the prefix itself
+     */
+    @Override
+    protected Key lowerBound() {
+        if(!caseInsensitive&&key.type instanceof StringType) {
+            return new SimpleKey(prefix);
+        } else {
+            return BoundKey.MIN;
+        }
+    }
+
+    /**
+     * Case sensitive string prefixes end before the smallest string
+     * greater than all strings starting with the prefix, that is, the
+     * prefix with its last character incremented
+     */
+    @Override
+    protected Key upperBound() {
+        if(!caseInsensitive&&key.type instanceof StringType) {
+            StringBuilder bld=new StringBuilder(prefix);
+            while(bld.length()>0) {
+                int last=bld.length()-1;
+                char c=bld.charAt(last);
+                if(c==Character.MAX_VALUE) {
+                    bld.setLength(last);
+                } else {
+                    bld.setCharAt(last,(char)(c+1));
+                    return new SimpleKey(bld.toString());
+                }
+            }
+        }
+        return BoundKey.MAX;
+    }
+
     @Override
     public boolean matches(Key k) {
         if(k instanceof SimpleKey) {
@@ -34,12 +34,23 @@ public class RangeLookupSpec extends SimpleKeyLookupSpec {
     @Override
     public boolean matches(Key k) {
         if(k instanceof SimpleKey) {
-            return key.type.compare( from, ((SimpleKey)k).value) <=00 &&
-                key.type.compare( to, ((SimpleKey)k).value) >=0;
+            // A null bound means the range is open on that side
+            return (from==null||key.type.compare( from, ((SimpleKey)k).value) <=0) &&
+                (to==null||key.type.compare( to, ((SimpleKey)k).value) >=0);
         } else {
             return false;
         }
     }
+
+    @Override
+    protected Key lowerBound() {
+        return from==null?BoundKey.MIN:new SimpleKey(from);
+    }
+
+    @Override
+    protected Key upperBound() {
+        return to==null?BoundKey.MAX:new SimpleKey(to);
+    }
     
     @Override protected boolean needsScan() {return true;}
     @Override protected boolean multiValued() {return false;}
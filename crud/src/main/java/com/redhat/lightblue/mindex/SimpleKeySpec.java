@@ -51,6 +51,8 @@ public class SimpleKeySpec implements KeySpec,Comparator<SimpleKey> {
 
     @Override
     public int compareKeys(Key k1,Key k2) {
+        if(BoundKey.isBound(k1,k2))
+            return BoundKey.compare(k1,k2);
         return compare( (SimpleKey)k1,(SimpleKey)k2);
     }
     
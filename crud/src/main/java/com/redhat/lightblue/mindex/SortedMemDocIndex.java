@@ -0,0 +1,63 @@
+ /*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mindex;
+
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.redhat.lightblue.util.JsonDoc;
+
+/**
+ * An in-memory document index that keeps its keys sorted using the
+ * key spec ordering.
+ *
+ * Value lookups work the same as with {@link MemDocIndex}. Range and
+ * prefix lookups only scan the keys between the lower and upper bounds
+ * of the lookup spec instead of all the keys. For composite keys, the
+ * bounds are built from the bounds of each key component, so the scan
+ * is narrowest when the leading components are value lookups. Every
+ * scanned key is still checked using the lookup spec.
+ *
+ * Adding a document costs O(log n) instead of O(1), so this index is
+ * only worth it when there are range or prefix lookups.
+ */
+public class SortedMemDocIndex extends MemDocIndex {
+
+    /**
+     * Constructs a sorted document index using the given key spec
+     */
+    public SortedMemDocIndex(KeySpec keys) {
+        super(keys,new TreeMap<Key,Set<JsonDoc>>(keys::compareKeys));
+    }
+
+    @Override
+    protected void indexScan(LookupSpec spec,Set<JsonDoc> results) {
+        Key from=spec.lowerBound();
+        Key to=spec.upperBound();
+        if(keySpec.compareKeys(from,to)>0)
+            return;
+        NavigableMap<Key,Set<JsonDoc>> range=((NavigableMap<Key,Set<JsonDoc>>)documents).subMap(from,true,to,true);
+        for(Map.Entry<Key,Set<JsonDoc>> entry:range.entrySet()) {
+            if(spec.matches(entry.getKey()))
+                results.addAll(entry.getValue());
+        }
+    }
+}
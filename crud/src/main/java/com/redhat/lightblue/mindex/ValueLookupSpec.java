@@ -38,6 +38,16 @@ public class ValueLookupSpec extends SimpleKeyLookupSpec {
         return new SimpleKey(value);
     }
     
+    @Override
+    protected Key lowerBound() {
+        return new SimpleKey(value);
+    }
+
+    @Override
+    protected Key upperBound() {
+        return new SimpleKey(value);
+    }
+
     @Override
     public boolean matches(Key k) {
         if(k instanceof SimpleKey) {
@@ -0,0 +1,155 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.assoc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+
+import com.redhat.lightblue.TestDataStoreParser;
+import com.redhat.lightblue.assoc.scorers.IndexedFieldScorer;
+import com.redhat.lightblue.metadata.AbstractGetMetadata;
+import com.redhat.lightblue.metadata.CompositeMetadata;
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.metadata.parser.Extensions;
+import com.redhat.lightblue.metadata.parser.JSONMetadataParser;
+import com.redhat.lightblue.metadata.types.DefaultTypes;
+import com.redhat.lightblue.query.Projection;
+import com.redhat.lightblue.query.QueryExpression;
+import com.redhat.lightblue.util.JsonUtils;
+import com.redhat.lightblue.util.Path;
+
+/**
+ * Generates entity trees of a given size for query plan iterator
+ * tests.
+ *
+ * The generated entities are named T0, T1, ... T0 is the root entity,
+ * and entity Ti references entities Ti*fanout+1 ... Ti*fanout+fanout
+ * through the reference fields c1, c2, ...
+ */
+public class EntityTreeGenerator {
+
+    private static final JsonNodeFactory factory = JsonNodeFactory.withExactBigDecimals(true);
+
+    private final int numEntities;
+    private final int fanout;
+
+    public EntityTreeGenerator(int numEntities, int fanout) {
+        this.numEntities = numEntities;
+        this.fanout = fanout;
+    }
+
+    private static JsonNode json(String s) {
+        try {
+            return JsonUtils.json(s.replace('\'', '\"'));
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private int parent(int entity) {
+        return (entity - 1) / fanout;
+    }
+
+    private List<Integer> children(int entity) {
+        List<Integer> list = new ArrayList<>();
+        for (int i = entity * fanout + 1; i <= entity * fanout + fanout && i < numEntities; i++) {
+            list.add(i);
+        }
+        return list;
+    }
+
+    public EntityMetadata getEntityMetadata(int entity) {
+        StringBuilder fields = new StringBuilder();
+        fields.append("'_id':{'type':'string','constraints':{'identity':1}},'objectType':{'type':'string'},'field1':{'type':'string'}");
+        for (int child : children(entity)) {
+            fields.append(",'ref").append(child).append("':{'type':'string'}");
+            fields.append(",'c").append(child).append("':{'type':'reference','entity':'T").append(child)
+                    .append("','versionValue':'1.0.0','query':{'field':'_id','op':'$eq','rfield':'$parent.ref").append(child).append("'}}");
+        }
+        String md = "{'entityInfo':{'name':'T" + entity + "','datastore':{'backend':'mongo','datasource':'d','collection':'c'},"
+                + "'indexes':[{'fields':[{'field':'_id','dir':'$asc'}]},{'fields':[{'field':'field1','dir':'$asc'}]}]},"
+                + "'schema':{'name':'T" + entity + "','version':{'value':'1.0.0','changelog':'x'},'status':{'value':'active'},"
+                + "'access':{'insert':['anyone'],'find':['anyone'],'update':['anyone'],'delete':['anyone']},"
+                + "'fields':{" + fields + "}}}";
+        Extensions<JsonNode> extensions = new Extensions<>();
+        extensions.addDefaultExtensions();
+        extensions.registerDataStoreParser("mongo", new TestDataStoreParser<JsonNode>());
+        JSONMetadataParser parser = new JSONMetadataParser(extensions, new DefaultTypes(), factory);
+        return parser.parseEntityMetadata(json(md));
+    }
+
+    /**
+     * Returns the path of the reference field for the given entity,
+     * relative to the root entity
+     */
+    private String referenceOf(int entity) {
+        String s = "c" + entity;
+        for (int e = parent(entity); e != 0; e = parent(e)) {
+            s = "c" + e + ".*." + s;
+        }
+        return s;
+    }
+
+    public CompositeMetadata getCompositeMetadata() throws Exception {
+        // Include all the references
+        StringBuilder bld = new StringBuilder("[{'field':'*','recursive':1}");
+        for (int i = 1; i < numEntities; i++) {
+            bld.append(",{'field':'").append(referenceOf(i)).append("','include':1}");
+        }
+        bld.append(']');
+        Projection p = Projection.fromJson(json(bld.toString()));
+        return CompositeMetadata.buildCompositeMetadata(getEntityMetadata(0), new AbstractGetMetadata(p, null) {
+            @Override
+            protected EntityMetadata retrieveMetadata(Path injectionField, String entityName, String version) {
+                return getEntityMetadata(Integer.parseInt(entityName.substring(1)));
+            }
+        });
+    }
+
+    /**
+     * Returns the field name for field1 of the given entity, relative
+     * to the root entity
+     */
+    public String fieldOf(int entity) {
+        return entity == 0 ? "field1" : referenceOf(entity) + ".*.field1";
+    }
+
+    /**
+     * Returns a query with a field1 comparison on each of the given
+     * entities
+     */
+    public QueryExpression query(int... entities) throws Exception {
+        StringBuilder bld = new StringBuilder("{'$and':[");
+        for (int i = 0; i < entities.length; i++) {
+            if (i > 0) {
+                bld.append(',');
+            }
+            bld.append("{'field':'").append(fieldOf(entities[i])).append("','op':'=','rvalue':'x'}");
+        }
+        bld.append("]}");
+        return QueryExpression.fromJson(json(bld.toString()));
+    }
+
+    public static QueryPlanChooser chooser(CompositeMetadata md, QueryPlanIterator itr, QueryExpression q) {
+        return new QueryPlanChooser(md, itr, new IndexedFieldScorer(), q, null);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.assoc;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import com.redhat.lightblue.assoc.iterators.BruteForceQueryPlanIterator;
+import com.redhat.lightblue.assoc.scorers.IndexedFieldScorer;
+import com.redhat.lightblue.assoc.scorers.StatisticsScorer;
+import com.redhat.lightblue.metadata.CompositeMetadata;
+import com.redhat.lightblue.query.QueryExpression;
+import com.redhat.lightblue.util.JsonUtils;
+
+public class ExecutionStatisticsTest {
+
+    @Test
+    public void estimatesDecay() {
+        ExecutionStatistics stats = new ExecutionStatistics(0.5);
+        Assert.assertNull(stats.getStat("A", ""));
+        stats.record("A", "", 1, 100, 10);
+        ExecutionStatistics.Stat s = stats.getStat("A", "");
+        Assert.assertEquals(100.0, s.getResultsPerProbe(), 0.001);
+        Assert.assertEquals(10.0, s.getLatencyMsPerSearch(), 0.001);
+        // 10 probes, 10 results: 1 per probe. Old observation weighs half
+        stats.record("A", "", 10, 10, 20);
+        s = stats.getStat("A", "");
+        Assert.assertEquals((50.0 + 10) / (0.5 + 10), s.getResultsPerProbe(), 0.001);
+        Assert.assertEquals((5.0 + 20) / (0.5 + 1), s.getLatencyMsPerSearch(), 0.001);
+        Assert.assertEquals(2, s.getCount());
+        // Most probes returned a single result
+        Assert.assertEquals(1, s.getResultsPerProbePercentile(0.5));
+        Assert.assertEquals(127, s.getResultsPerProbePercentile(1));
+        // Entity level statistics include all query shapes
+        stats.record("A", "x", 1, 0, 0);
+        Assert.assertEquals(3, stats.getStat("A").getCount());
+        Assert.assertEquals(2, stats.getStat("A", "").getCount());
+    }
+
+    private static QueryPlanNode node(QueryPlan qp, String entityName) {
+        for (QueryPlanNode n : qp.getAllNodes()) {
+            if (n.getMetadata().getName().equals(entityName)) {
+                return n;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void queryShapeIgnoresValues() throws Exception {
+        EntityTreeGenerator b = new EntityTreeGenerator(3, 2);
+        CompositeMetadata md = b.getCompositeMetadata();
+        QueryPlanChooser c1 = EntityTreeGenerator.chooser(md, new BruteForceQueryPlanIterator(), b.query(1));
+        QueryPlanChooser c2 = EntityTreeGenerator.chooser(md, new BruteForceQueryPlanIterator(),
+                QueryExpression.fromJson(JsonUtils.json(b.query(1).toJson().toString().replace("\"x\"", "\"y\""))));
+        QueryPlanNode n1 = node(c1.getQueryPlan(), "T1");
+        QueryPlanNode n2 = node(c2.getQueryPlan(), "T1");
+        Assert.assertFalse(n1.getData().getConjuncts().isEmpty());
+        Assert.assertEquals(ExecutionStatistics.getQueryShape(n1.getData().getConjuncts()),
+                ExecutionStatistics.getQueryShape(n2.getData().getConjuncts()));
+        Assert.assertEquals("", ExecutionStatistics.getQueryShape(null));
+    }
+
+    @Test
+    public void statisticsChangeThePlan() throws Exception {
+        EntityTreeGenerator b = new EntityTreeGenerator(2, 1);
+        CompositeMetadata md = b.getCompositeMetadata();
+        QueryExpression q = b.query(0, 1);
+        QueryPlan heuristic = new QueryPlanChooser(md, new BruteForceQueryPlanIterator(), new IndexedFieldScorer(), q, null).choose();
+        String heuristicSource = heuristic.getSources()[0].getMetadata().getName();
+
+        // The statistics say the source of the heuristic plan is slow and
+        // returns many documents, and the other entity is fast and selective
+        ExecutionStatistics stats = new ExecutionStatistics();
+        QueryPlanChooser c = new QueryPlanChooser(md, new BruteForceQueryPlanIterator(), new IndexedFieldScorer(), q, null);
+        for (QueryPlanNode node : c.getQueryPlan().getAllNodes()) {
+            String shape = ExecutionStatistics.getQueryShape(node.getData().getConjuncts());
+            boolean slow = node.getMetadata().getName().equals(heuristicSource);
+            for (int i = 0; i < StatisticsScorer.DEFAULT_MIN_SAMPLES; i++) {
+                stats.record(node.getMetadata().getName(), shape, 1, slow ? 100000 : 1, slow ? 5000 : 1);
+            }
+        }
+        QueryPlan learned = new QueryPlanChooser(md, new BruteForceQueryPlanIterator(), new StatisticsScorer(stats), q, null).choose();
+        Assert.assertEquals(1, learned.getSources().length);
+        Assert.assertNotEquals(heuristicSource, learned.getSources()[0].getMetadata().getName());
+
+        // Not enough samples: same as heuristic
+        QueryPlan few = new QueryPlanChooser(md, new BruteForceQueryPlanIterator(),
+                new StatisticsScorer(stats, StatisticsScorer.DEFAULT_MIN_SAMPLES + 1), q, null).choose();
+        Assert.assertEquals(heuristic.mxToString(), few.mxToString());
+
+        JsonNode json = stats.toJson(Arrays.asList("T0", "T1", "T2"));
+        Assert.assertEquals(StatisticsScorer.DEFAULT_MIN_SAMPLES, json.get("T0").get("count").asInt());
+        Assert.assertEquals(1, json.get("T0").get("queries").size());
+        Assert.assertNull(json.get("T2"));
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.assoc;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.redhat.lightblue.assoc.iterators.BruteForceQueryPlanIterator;
+import com.redhat.lightblue.assoc.iterators.GreedyQueryPlanIterator;
+import com.redhat.lightblue.assoc.scorers.IndexedFieldScorer;
+import com.redhat.lightblue.metadata.CompositeMetadata;
+import com.redhat.lightblue.query.QueryExpression;
+
+public class GreedyQueryPlanIteratorTest {
+
+    private static class CountingIterator extends GreedyQueryPlanIterator {
+        int n = 0;
+
+        CountingIterator(int limit) {
+            super(limit);
+        }
+
+        @Override
+        public boolean next() {
+            boolean b = super.next();
+            if (b) {
+                n++;
+            }
+            return b;
+        }
+    }
+
+    private static Comparable score(QueryPlan qp) {
+        return new IndexedFieldScorer().score(qp);
+    }
+
+    private void compare(EntityTreeGenerator b, CompositeMetadata md, int... entities) throws Exception {
+        QueryExpression q = b.query(entities);
+        QueryPlan brute = EntityTreeGenerator.chooser(md, new BruteForceQueryPlanIterator(), q).choose();
+        QueryPlan greedy = EntityTreeGenerator.chooser(md, new GreedyQueryPlanIterator(0), q).choose();
+        Assert.assertEquals(q.toString(), 0, score(brute).compareTo(score(greedy)));
+    }
+
+    @Test
+    public void sameScoreAsBruteForce() throws Exception {
+        for (int fanout = 1; fanout <= 3; fanout++) {
+            for (int n = 2; n <= 8; n++) {
+                EntityTreeGenerator b = new EntityTreeGenerator(n, fanout);
+                CompositeMetadata md = b.getCompositeMetadata();
+                for (int i = 0; i < n; i++) {
+                    compare(b, md, i);
+                    for (int j = i + 1; j < n; j++) {
+                        compare(b, md, i, j);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void samePlanAsBruteForceOnSmallGraphs() throws Exception {
+        EntityTreeGenerator b = new EntityTreeGenerator(5, 2);
+        CompositeMetadata md = b.getCompositeMetadata();
+        for (int i = 0; i < 5; i++) {
+            QueryExpression q = b.query(i);
+            QueryPlan brute = EntityTreeGenerator.chooser(md, new BruteForceQueryPlanIterator(), q).choose();
+            QueryPlan greedy = EntityTreeGenerator.chooser(md, new GreedyQueryPlanIterator(), q).choose();
+            Assert.assertEquals(brute.mxToString(), greedy.mxToString());
+        }
+    }
+
+    @Test
+    public void polynomialNumberOfPlans() throws Exception {
+        // 15 entities, 14 edges: 16384 plans for brute force
+        EntityTreeGenerator b = new EntityTreeGenerator(15, 2);
+        CompositeMetadata md = b.getCompositeMetadata();
+        CountingIterator itr = new CountingIterator(0);
+        QueryPlan qp = EntityTreeGenerator.chooser(md, itr, b.query(14, 9)).choose();
+        Assert.assertNotNull(qp);
+        // Plans are never scored twice, so the climbs from different
+        // starting plans mostly overlap
+        Assert.assertTrue(itr.n < 16384 / 16);
+    }
+
+    @Test
+    public void stopsAtLowerBound() throws Exception {
+        EntityTreeGenerator b = new EntityTreeGenerator(8, 2);
+        CompositeMetadata md = b.getCompositeMetadata();
+        // No queries: the initial plan scores 0, nothing else is iterated
+        CountingIterator itr = new CountingIterator(0);
+        EntityTreeGenerator.chooser(md, itr, null).choose();
+        Assert.assertEquals(0, itr.n);
+    }
+
+    @Test
+    public void scoredPlansGrowQuadratically() throws Exception {
+        // Brute force scores 2^edges plans. The greedy iterator scores
+        // at most 2*edges^2 plans for any one or two entity query, for
+        // instance at most 338 of 8192 plans for 13 edges.
+        for (int n = 3; n <= 14; n++) {
+            int edges = n - 1;
+            EntityTreeGenerator b = new EntityTreeGenerator(n, 2);
+            CompositeMetadata md = b.getCompositeMetadata();
+            for (int i = 0; i < n; i++) {
+                for (int j = i; j < n; j++) {
+                    CountingIterator itr = new CountingIterator(0);
+                    EntityTreeGenerator.chooser(md, itr, b.query(i, j)).choose();
+                    Assert.assertTrue(edges + " edges, " + itr.n + " plans", itr.n <= 2 * edges * edges);
+                }
+            }
+        }
+    }
+}
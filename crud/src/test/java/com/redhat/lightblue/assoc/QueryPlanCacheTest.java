@@ -0,0 +1,121 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.assoc;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.redhat.lightblue.assoc.iterators.BruteForceQueryPlanIterator;
+import com.redhat.lightblue.assoc.iterators.First;
+import com.redhat.lightblue.assoc.scorers.IndexedFieldScorer;
+import com.redhat.lightblue.metadata.CompositeMetadata;
+import com.redhat.lightblue.query.QueryExpression;
+import com.redhat.lightblue.util.JsonUtils;
+
+public class QueryPlanCacheTest {
+
+    private static QueryExpression query(String s) throws Exception {
+        return QueryExpression.fromJson(JsonUtils.json(s.replaceAll("\'", "\"")));
+    }
+
+    private static QueryPlanCache.CachedPlans plans(String... entities) {
+        return new QueryPlanCache.CachedPlans(null, new ConnMx(1), new HashSet<>(Arrays.asList(entities)));
+    }
+
+    @Test
+    public void keyIgnoresValues() throws Exception {
+        CompositeMetadata md = new EntityTreeGenerator(3, 2).getCompositeMetadata();
+        String k1 = QueryPlanCache.getKey(md, query("{'$and':[{'field':'field1','op':'=','rvalue':'x'},"
+                + "{'field':'c1.*.field1','op':'$in','values':['a','b']}]}"));
+        String k2 = QueryPlanCache.getKey(md, query("{'$and':[{'field':'field1','op':'=','rvalue':'y'},"
+                + "{'field':'c1.*.field1','op':'$in','values':['c']}]}"));
+        Assert.assertEquals(k1, k2);
+        // Different fields
+        String k3 = QueryPlanCache.getKey(md, query("{'$and':[{'field':'field1','op':'=','rvalue':'x'},"
+                + "{'field':'c2.*.field1','op':'$in','values':['a','b']}]}"));
+        Assert.assertNotEquals(k1, k3);
+        // Different operators
+        String k4 = QueryPlanCache.getKey(md, query("{'$and':[{'field':'field1','op':'>','rvalue':'x'},"
+                + "{'field':'c1.*.field1','op':'$in','values':['a','b']}]}"));
+        Assert.assertNotEquals(k1, k4);
+        // Different metadata
+        CompositeMetadata md2 = new EntityTreeGenerator(4, 2).getCompositeMetadata();
+        String k5 = QueryPlanCache.getKey(md2, query("{'$and':[{'field':'field1','op':'=','rvalue':'x'},"
+                + "{'field':'c1.*.field1','op':'$in','values':['a','b']}]}"));
+        Assert.assertNotEquals(k1, k5);
+    }
+
+    @Test
+    public void cachedPlanIsReused() throws Exception {
+        EntityTreeGenerator b = new EntityTreeGenerator(7, 2);
+        CompositeMetadata md = b.getCompositeMetadata();
+        QueryPlan chosen = EntityTreeGenerator.chooser(md, new BruteForceQueryPlanIterator(),
+                b.query(6)).choose();
+        QueryPlan reused = EntityTreeGenerator.chooser(md, new BruteForceQueryPlanIterator(),
+                b.query(6)).choose(chosen.getConnMx());
+        Assert.assertEquals(chosen.mxToString(), reused.mxToString());
+        Assert.assertEquals(chosen.treeToString(), reused.treeToString());
+    }
+
+    @Test
+    public void nodeOrderIsPredictable() throws Exception {
+        // Root with 11 children, c1, c10, c11, c2, ... in path order
+        CompositeMetadata md = new EntityTreeGenerator(12, 11).getCompositeMetadata();
+        QueryPlanNode[] nodes = new QueryPlan(md, new IndexedFieldScorer()).getAllNodes();
+        String[] expected = {"T0", "T1", "T10", "T11", "T2", "T3", "T4", "T5", "T6", "T7", "T8", "T9"};
+        Assert.assertEquals(expected.length, nodes.length);
+        for (int i = 0; i < expected.length; i++) {
+            Assert.assertEquals(expected[i], nodes[i].getMetadata().getName());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mismatchedPlanIsRejected() throws Exception {
+        EntityTreeGenerator b = new EntityTreeGenerator(3, 2);
+        QueryPlan qp = EntityTreeGenerator.chooser(b.getCompositeMetadata(),
+                new First(), null).choose();
+        ConnMx mx = new ConnMx(3);
+        mx.connect(1, 2);
+        qp.setConnMx(mx);
+    }
+
+    @Test
+    public void lruAndInvalidate() {
+        QueryPlanCache cache = new QueryPlanCache(2);
+        cache.put("a", plans("A", "B"));
+        cache.put("b", plans("A", "C"));
+        Assert.assertNotNull(cache.get("a"));
+        // b is the least recently used
+        cache.put("c", plans("D"));
+        Assert.assertNull(cache.get("b"));
+        Assert.assertNotNull(cache.get("a"));
+        Assert.assertNotNull(cache.get("c"));
+        Assert.assertEquals(3, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+
+        cache.invalidate("B");
+        Assert.assertNull(cache.get("a"));
+        Assert.assertEquals(1, cache.size());
+        cache.clear();
+        Assert.assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.assoc.ep;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.redhat.lightblue.query.QueryExpression;
+import com.redhat.lightblue.util.JsonUtils;
+
+public class AdaptiveBatchSizeTest {
+
+    private static QueryExpression query(String s) throws Exception {
+        return QueryExpression.fromJson(JsonUtils.json(s.replaceAll("\'", "\"")));
+    }
+
+    @Test
+    public void querySizeTest() throws Exception {
+        Assert.assertEquals(0, AdaptiveBatchSize.querySize(null));
+        Assert.assertEquals(1, AdaptiveBatchSize.querySize(query("{'field':'a','op':'=','rvalue':1}")));
+        Assert.assertEquals(4, AdaptiveBatchSize.querySize(query("{'$or':[{'field':'a','op':'=','rvalue':1},"
+                + "{'field':'b','op':'$in','values':[1,2,3]}]}")));
+        Assert.assertEquals(2, AdaptiveBatchSize.querySize(query("{'array':'x','elemMatch':{'$and':[{'field':'a','op':'=','rvalue':1},"
+                + "{'$not':{'field':'b','op':'=','rvalue':2}}]}}")));
+    }
+
+    @Test
+    public void fixedBatchSizeDoesNotChange() {
+        AdaptiveBatchSize b = new AdaptiveBatchSize(256);
+        b.update(256, 100000, 100000, Long.MAX_VALUE);
+        Assert.assertEquals(256, b.getBatchSize());
+    }
+
+    @Test
+    public void shrinksToQuerySizeLimit() {
+        AdaptiveBatchSize b = new AdaptiveBatchSize(256, 16, 1024, 1000, 1000, 1000000);
+        // 4 terms per item
+        b.update(256, 1024, 10, 100);
+        Assert.assertEquals(250, b.getBatchSize());
+        // Never below the minimum
+        b.update(250, 100000, 10, 100);
+        Assert.assertEquals(16, b.getBatchSize());
+    }
+
+    @Test
+    public void shrinksWhenSlowOrLarge() {
+        AdaptiveBatchSize b = new AdaptiveBatchSize(256, 16, 1024, 10000, 1000, 1000000);
+        b.update(256, 256, 2000, 100);
+        Assert.assertEquals(128, b.getBatchSize());
+        b.update(128, 128, 600, 2000000);
+        Assert.assertEquals(64, b.getBatchSize());
+        // Between half and full target latency, within limits: no change
+        b.update(64, 64, 600, 100);
+        Assert.assertEquals(64, b.getBatchSize());
+    }
+
+    @Test
+    public void growsWhenFastAndFull() {
+        AdaptiveBatchSize b = new AdaptiveBatchSize(256, 16, 1024, 500, 1000, 1000000);
+        b.update(256, 256, 10, 100);
+        Assert.assertEquals(384, b.getBatchSize());
+        // Growth is limited by the projected query size
+        b.update(384, 384, 10, 100);
+        Assert.assertEquals(500, b.getBatchSize());
+        // Partial batches do not grow the batch size
+        b.update(10, 10, 10, 100);
+        Assert.assertEquals(500, b.getBatchSize());
+        // Never above the maximum
+        b = new AdaptiveBatchSize(1000, 16, 1024, 100000, 1000, 1000000);
+        b.update(1000, 1000, 10, 100);
+        Assert.assertEquals(1024, b.getBatchSize());
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.assoc.ep;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ExecutionContextTest {
+
+    @Test
+    public void runsInCallerThreadWhenParallelismIsReached() throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            ExecutionContext ctx = new ExecutionContext(null, pool, 1);
+            CountDownLatch blocker = new CountDownLatch(1);
+            Future<Thread> first = ctx.submit(() -> {
+                blocker.await();
+                return Thread.currentThread();
+            });
+            Future<Thread> second = ctx.submit(() -> Thread.currentThread());
+            Assert.assertTrue(second.isDone());
+            Assert.assertSame(Thread.currentThread(), second.get());
+            blocker.countDown();
+            Assert.assertNotSame(Thread.currentThread(), first.get(5, TimeUnit.SECONDS));
+
+            Assert.assertEquals(2, ctx.getSubmittedTaskCount());
+            Assert.assertEquals(1, ctx.getInlineTaskCount());
+            Assert.assertEquals(1, ctx.getMaxConcurrentTaskCount());
+
+            // Shared executor is not shut down
+            ctx.close();
+            Assert.assertFalse(pool.isShutdown());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void runsInCallerThreadWhenExecutorIsBusy() throws Exception {
+        // One thread, no queue: shared by two executions
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS, new SynchronousQueue<>());
+        try {
+            ExecutionContext ctx1 = new ExecutionContext(null, pool, 4);
+            ExecutionContext ctx2 = new ExecutionContext(null, pool, 4);
+            CountDownLatch blocker = new CountDownLatch(1);
+            Future<Thread> first = ctx1.submit(() -> {
+                blocker.await();
+                return Thread.currentThread();
+            });
+            // The other execution cannot get a thread, and does not wait for one
+            Future<Thread> second = ctx2.submit(() -> Thread.currentThread());
+            Assert.assertTrue(second.isDone());
+            Assert.assertSame(Thread.currentThread(), second.get());
+            Assert.assertEquals(1, ctx2.getInlineTaskCount());
+            blocker.countDown();
+            Assert.assertNotSame(Thread.currentThread(), first.get(5, TimeUnit.SECONDS));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void runsInCallerThreadWithoutExecutor() throws Exception {
+        ExecutionContext ctx = new ExecutionContext(null, null, 4);
+        Callable<Object> task = () -> {
+            throw new IllegalStateException();
+        };
+        Future<Object> f = ctx.submit(task);
+        Assert.assertTrue(f.isDone());
+        try {
+            f.get();
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+}
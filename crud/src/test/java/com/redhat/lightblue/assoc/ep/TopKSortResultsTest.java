@@ -0,0 +1,125 @@
+ /*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.assoc.ep;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+
+import com.redhat.lightblue.TestDataStoreParser;
+import com.redhat.lightblue.assoc.QueryPlan;
+import com.redhat.lightblue.assoc.scorers.SimpleScorer;
+import com.redhat.lightblue.metadata.AbstractGetMetadata;
+import com.redhat.lightblue.metadata.CompositeMetadata;
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.metadata.PredefinedFields;
+import com.redhat.lightblue.metadata.parser.Extensions;
+import com.redhat.lightblue.metadata.parser.JSONMetadataParser;
+import com.redhat.lightblue.metadata.types.DefaultTypes;
+import com.redhat.lightblue.query.Projection;
+import com.redhat.lightblue.query.Sort;
+import com.redhat.lightblue.util.JsonDoc;
+import com.redhat.lightblue.util.JsonUtils;
+import com.redhat.lightblue.util.Path;
+import com.redhat.lightblue.util.test.AbstractJsonSchemaTest;
+
+public class TopKSortResultsTest extends AbstractJsonSchemaTest {
+
+    private ExecutionBlock block;
+    private List<ResultDocument> docs;
+
+    private EntityMetadata getMd(String fname) throws Exception {
+        JsonNode node = loadJsonNode("composite/" + fname + ".json");
+        Extensions<JsonNode> extensions = new Extensions<>();
+        extensions.addDefaultExtensions();
+        extensions.registerDataStoreParser("mongo", new TestDataStoreParser<JsonNode>());
+        JSONMetadataParser parser = new JSONMetadataParser(extensions, new DefaultTypes(), JsonNodeFactory.instance);
+        EntityMetadata md = parser.parseEntityMetadata(node);
+        PredefinedFields.ensurePredefinedFields(md);
+        return md;
+    }
+
+    @Before
+    public void init() throws Exception {
+        CompositeMetadata amd = CompositeMetadata.buildCompositeMetadata(getMd("A"),
+                new AbstractGetMetadata(Projection.fromJson(JsonUtils.json("{\"field\":\"*\"}")), null) {
+            @Override
+            protected EntityMetadata retrieveMetadata(Path injectionField, String entityName, String version) {
+                return null;
+            }
+        });
+        QueryPlan qp = new QueryPlan(amd, new SimpleScorer());
+        block = new ExecutionBlock(amd, qp.getNode(amd));
+        // field1 values have many duplicates, so the order of equal
+        // docs is tested as well
+        Random rnd = new Random(1);
+        docs = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            JsonDoc doc = new JsonDoc(JsonNodeFactory.instance.objectNode());
+            doc.modify(new Path("_id"), JsonNodeFactory.instance.textNode(Integer.toString(i)), true);
+            doc.modify(new Path("field1"), JsonNodeFactory.instance.textNode("v" + rnd.nextInt(50)), true);
+            docs.add(new ResultDocument(block, doc));
+        }
+    }
+
+    private static List<String> ids(List<ResultDocument> list) {
+        return list.stream().map(d -> d.getDoc().get(new Path("_id")).asText()).collect(Collectors.toList());
+    }
+
+    private void check(String sortStr, int k) throws Exception {
+        Sort sort = Sort.fromJson(JsonUtils.json(sortStr));
+        Source<ResultDocument> source = new Source<>(new JoinTest.TestStep(block, docs));
+        List<ResultDocument> expected = new SortResults(block, source, sort).getResults(null).stream().
+                limit(k).collect(Collectors.toList());
+        TopKSortResults topk = new TopKSortResults(block, source, sort, k);
+        List<ResultDocument> actual = topk.getResults(null).stream().collect(Collectors.toList());
+        Assert.assertEquals(sortStr + " k=" + k, ids(expected), ids(actual));
+    }
+
+    @Test
+    public void sameResultsAsSortAndLimit() throws Exception {
+        for (int k : new int[]{0, 1, 2, 10, 20, 499, 500, 1000}) {
+            check("{\"field1\":\"$asc\"}", k);
+            check("{\"field1\":\"$desc\"}", k);
+            check("[{\"field1\":\"$desc\"},{\"_id\":\"$asc\"}]", k);
+        }
+    }
+
+    @Test
+    public void readsAllSourceDocs() throws Exception {
+        int[] n = new int[1];
+        Source<ResultDocument> source = new Source<>(new JoinTest.TestStep(block, docs) {
+            @Override
+            public StepResult<ResultDocument> getResults(ExecutionContext ctx) {
+                return () -> docs.stream().peek(d -> n[0]++);
+            }
+        });
+        TopKSortResults topk = new TopKSortResults(block, source, Sort.fromJson(JsonUtils.json("{\"field1\":\"$asc\"}")), 5);
+        Assert.assertEquals(5, topk.getResults(null).stream().count());
+        Assert.assertEquals(docs.size(), n[0]);
+    }
+}
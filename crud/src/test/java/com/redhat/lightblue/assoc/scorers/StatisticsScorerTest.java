@@ -0,0 +1,77 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.assoc.scorers;
+
+import java.math.BigInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.redhat.lightblue.assoc.EntityTreeGenerator;
+import com.redhat.lightblue.assoc.ExecutionStatistics;
+import com.redhat.lightblue.assoc.QueryPlan;
+import com.redhat.lightblue.assoc.QueryPlanChooser;
+import com.redhat.lightblue.assoc.QueryPlanNode;
+import com.redhat.lightblue.assoc.iterators.BruteForceQueryPlanIterator;
+import com.redhat.lightblue.metadata.CompositeMetadata;
+import com.redhat.lightblue.query.QueryExpression;
+
+public class StatisticsScorerTest {
+
+    private static QueryPlanNode node(QueryPlan qp, String entityName) {
+        for (QueryPlanNode n : qp.getAllNodes()) {
+            if (n.getMetadata().getName().equals(entityName)) {
+                return n;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void observedLatencyIsUsedOnlyIfAllNodesHaveStatistics() throws Exception {
+        EntityTreeGenerator b = new EntityTreeGenerator(2, 1);
+        CompositeMetadata md = b.getCompositeMetadata();
+        QueryExpression q = b.query(0, 1);
+        ExecutionStatistics stats = new ExecutionStatistics();
+        QueryPlanChooser c = new QueryPlanChooser(md, new BruteForceQueryPlanIterator(), new IndexedFieldScorer(), q, null);
+        QueryPlanNode t1 = node(c.getQueryPlan(), "T1");
+        BigInteger heuristicCost = ((IndexedFieldScorerData) t1.getData()).getCostAndSize().cost;
+        String shape = ExecutionStatistics.getQueryShape(t1.getData().getConjuncts());
+        for (int i = 0; i < StatisticsScorer.DEFAULT_MIN_SAMPLES; i++) {
+            stats.record("T1", shape, 1, 7, 5000);
+        }
+
+        // Only T1 has statistics: observed size, heuristic cost
+        StatisticsScorerData data = (StatisticsScorerData) node(new QueryPlanChooser(md, new BruteForceQueryPlanIterator(),
+                new StatisticsScorer(stats), q, null).getQueryPlan(), "T1").getData();
+        Assert.assertFalse(data.isObservedCost());
+        Assert.assertEquals(BigInteger.valueOf(7), data.getCostAndSize().size);
+        Assert.assertEquals(heuristicCost, data.getCostAndSize().cost);
+
+        // All nodes have statistics: observed latency
+        QueryPlanNode t0 = node(c.getQueryPlan(), "T0");
+        for (int i = 0; i < StatisticsScorer.DEFAULT_MIN_SAMPLES; i++) {
+            stats.record("T0", ExecutionStatistics.getQueryShape(t0.getData().getConjuncts()), 1, 1, 1);
+        }
+        data = (StatisticsScorerData) node(new QueryPlanChooser(md, new BruteForceQueryPlanIterator(),
+                new StatisticsScorer(stats), q, null).getQueryPlan(), "T1").getData();
+        Assert.assertTrue(data.isObservedCost());
+        Assert.assertEquals(BigInteger.valueOf(5000), data.getCostAndSize().cost);
+    }
+}
@@ -27,6 +27,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ForkJoinPool;
 
 import org.junit.Rule;
 import org.junit.Test;
@@ -351,6 +352,27 @@ public class ConstraintValidatorTest extends AbstractJsonSchemaTest {
         System.out.println(errors);
     }
 
+    @Test
+    public void testValueErrorContextHasValuePath() throws IOException {
+        JsonNode node = loadJsonNode("crud/validator/testSimpleArrayEnum.json");
+        Map<String, FieldConstraintParser<JsonNode>> fcp = new HashMap<>();
+        fcp.put(EnumConstraint.ENUM, new EnumConstraintParser<JsonNode>());
+        EntityMetadata md = createEntityMetadata(node, null, fcp);
+
+        Map<String, FieldConstraintChecker> fcc = new HashMap<>();
+        fcc.put(EnumConstraint.ENUM, new EnumChecker());
+        ConstraintValidator validator = createConstraintValidator(md, fcc, null);
+
+        JsonDoc doc = new JsonDoc(loadJsonNode("crud/validator/simple-array-enum-constraint-doc.json"));
+        validator.validateDoc(doc);
+        validator.validateDoc(doc);
+        List<Error> errors = validator.getDocErrors().get(doc);
+        Assert.assertEquals(2, errors.size());
+        for (Error x : errors) {
+            Assert.assertEquals("validateDoc/array1.*/enum/array1.2", x.getContext());
+        }
+    }
+
     /**
      * No {@link FieldConstraintChecker} exists for the {@link FieldConstraint}.
      * This causes the registry to return a null value. A {@link Error} is
@@ -414,6 +436,45 @@ public class ConstraintValidatorTest extends AbstractJsonSchemaTest {
         Assert.assertEquals(1, validator.getDocErrors().size());
     }
 
+    @Test
+    public void testParallelValidationSameAsSequential() throws Exception {
+        EntityMetadata md = EvalTestContext.getMd("./user-complex-md.json");
+        JsonDoc jd = EvalTestContext.getDoc("./user-complex.json");
+        Factory factory = new Factory();
+        factory.addFieldConstraintValidators(new DefaultFieldConstraintValidators());
+        factory.addEntityConstraintValidators(new EmptyEntityConstraintValidators());
+        factory.setValidationExecutorParallelism(2);
+        List<JsonDoc> docs = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            docs.add(jd.copy());
+        }
+
+        factory.setValidationBatchSize(0);
+        ConstraintValidator sequential = factory.getConstraintValidator(md);
+        sequential.validateDocs(docs);
+        factory.setValidationBatchSize(3);
+        ConstraintValidator parallel = factory.getConstraintValidator(md);
+        parallel.validateDocs(docs);
+
+        Assert.assertEquals(docs, new ArrayList<>(parallel.getDocErrors().keySet()));
+        for (JsonDoc doc : docs) {
+            Assert.assertEquals(sequential.getDocErrors().get(doc).toString(), parallel.getDocErrors().get(doc).toString());
+        }
+        Assert.assertEquals(sequential.getErrors(), parallel.getErrors());
+        factory.close();
+    }
+
+    @Test
+    public void testValidationExecutorIsShutDownOnClose() {
+        Factory factory = new Factory();
+        ForkJoinPool executor = factory.getValidationExecutor();
+        factory.close();
+        Assert.assertTrue(executor.isShutdown());
+        // A new executor is created after close
+        Assert.assertNotSame(executor, factory.getValidationExecutor());
+        factory.close();
+    }
+
     @SuppressWarnings("serial")
     protected static class TestEntityConstraint implements EntityConstraint {
 
@@ -0,0 +1,72 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.redhat.lightblue.util.JsonDoc;
+import com.redhat.lightblue.util.JsonUtils;
+import com.redhat.lightblue.util.Path;
+
+public class DocCtxTest {
+
+    private static JsonDoc doc(String s) throws Exception {
+        return new JsonDoc(JsonUtils.json(s.replaceAll("'", "\"")));
+    }
+
+    @Test
+    public void testOutputDocumentSizeAfterModification() throws Exception {
+        DocCtx ctx = new DocCtx(doc("{'a':'value','b':[1,2,3]}"));
+        Assert.assertEquals(JsonUtils.size(ctx.getRoot()), ctx.getOutputDocumentSizeB());
+
+        // The output document is this instance, the size follows modifications
+        int sizeB = ctx.getOutputDocumentSizeB();
+        ctx.modify(new Path("c"), JsonUtils.json("\"more data\""), true);
+        Assert.assertTrue(ctx.getOutputDocumentSizeB() > sizeB);
+        Assert.assertEquals(JsonUtils.size(ctx.getRoot()), ctx.getOutputDocumentSizeB());
+
+        // Replacing the output document discards the cached size
+        JsonDoc projected = doc("{'a':'value'}");
+        ctx.setOutputDocument(projected);
+        Assert.assertEquals(JsonUtils.size(projected.getRoot()), ctx.getOutputDocumentSizeB());
+
+        ctx.setOutputDocument(null);
+        Assert.assertEquals(0, ctx.getOutputDocumentSizeB());
+    }
+
+    @Test
+    public void testOriginalDocumentSize() throws Exception {
+        DocCtx ctx = new DocCtx(doc("{'a':'value','b':[1,2,3]}"));
+        Assert.assertEquals(0, ctx.getOriginalDocumentSizeB());
+
+        ctx.setOriginalDocument(ctx);
+        int sizeB = ctx.getOriginalDocumentSizeB();
+        Assert.assertEquals(JsonUtils.size(ctx.getRoot()), sizeB);
+        ctx.modify(new Path("c"), JsonUtils.json("\"more data\""), true);
+        Assert.assertTrue(ctx.getOriginalDocumentSizeB() > sizeB);
+
+        ctx.copyOriginalFromThis();
+        sizeB = JsonUtils.size(ctx.getRoot());
+        Assert.assertEquals(sizeB, ctx.getOriginalDocumentSizeB());
+        // The copy is not modified
+        ctx.modify(new Path("d"), JsonUtils.json("\"more data\""), true);
+        Assert.assertEquals(sizeB, ctx.getOriginalDocumentSizeB());
+    }
+}
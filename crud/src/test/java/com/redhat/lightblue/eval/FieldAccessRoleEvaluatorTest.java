@@ -155,4 +155,29 @@ public class FieldAccessRoleEvaluatorTest extends AbstractJsonNodeTest {
         Assert.assertEquals(1, list.size());
         Assert.assertTrue(list.contains(new Path("field12.nf1.nnf1.0.nnnf1.arr.1.x1")));
     }
+
+    @Test
+    public void testLastDiffIsFullDiff() throws Exception {
+        EntityMetadata md = EvalTestContext.getMd("./testMetadata-restricted.json");
+        JsonDoc oldDoc = EvalTestContext.getDoc("./doc-restricted.json");
+        JsonDoc newDoc = EvalTestContext.getDoc("./doc-restricted.json");
+        Set<String> roles = new HashSet<>();
+        roles.add("somerole");
+        FieldAccessRoleEvaluator eval = new FieldAccessRoleEvaluator(md, roles);
+
+        // Changing an unrestricted field is allowed
+        newDoc.modify(new Path("field6.nf2"), JSON_NODE_FACTORY.textNode("test"), true);
+        Assert.assertEquals(0, eval.getInaccessibleFields_Update(newDoc, oldDoc).size());
+        // The change is in the full diff, but not in the scoped diff
+        Assert.assertEquals(1, eval.getLastDiff().getDelta().size());
+        Assert.assertEquals(new Path("field6.nf2"), eval.getLastDiff().getDelta().get(0).getField());
+        Assert.assertEquals(0, eval.getLastScopedDiff().getDelta().size());
+
+        newDoc.modify(new Path("field6.nf7.nnf1"), JSON_NODE_FACTORY.textNode("test"), true);
+        Set<Path> list = eval.getInaccessibleFields_Update(newDoc, oldDoc);
+        Assert.assertEquals(1, list.size());
+        Assert.assertTrue(list.contains(new Path("field6.nf7.nnf1")));
+        Assert.assertEquals(2, eval.getLastDiff().getDelta().size());
+        Assert.assertEquals(1, eval.getLastScopedDiff().getDelta().size());
+    }
 }
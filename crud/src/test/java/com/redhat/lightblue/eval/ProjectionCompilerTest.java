@@ -0,0 +1,104 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.eval;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.query.Projection;
+import com.redhat.lightblue.util.JsonDoc;
+import com.redhat.lightblue.util.test.AbstractJsonNodeTest;
+
+public class ProjectionCompilerTest extends AbstractJsonNodeTest {
+
+    private static final String[] COMPILED = {
+        "{'field':'field1'}",
+        "{'field':'*','recursive':1}",
+        "{'field':'field6.*'}",
+        "{'field':'field6.*','recursive':true}",
+        "[{'field':'field2'},{'field':'field6.*'}]",
+        "[{'field':'field2'},{'field':'field6.*','recursive':true}]",
+        "[{'field':'field6.*'},{'field':'field6.nf3','include':false}]",
+        "[{'field':'*','recursive':1},{'field':'field6','include':false}]",
+        "[{'field':'*','recursive':1},{'field':'field6.nf7.*','include':false,'recursive':1}]",
+        "[{'field':'*'},{'field':'field7.*.*'},{'field':'field7.*.elemf1','include':0}]",
+        "[{'field':'*','recursive':1},{'field':'field11', 'include':1, 'match':{ 'field':'f1','op':'=','rvalue':100}}]",
+        "{'field':'field7','range':[1,2],'project':{'field':'elemf3'}}",
+        "{'field':'field7','range':[5,6],'project':{'field':'elemf3'}}",
+        "{'field':'field7','range':[1,null],'projection':{'field':'elemf3'}}",
+        "{'field':'field7','range':[3,1],'projection':{'field':'elemf3'}}",
+        "{'field':'field7','range':[1,-8],'projection':{'field':'elemf3'}}",
+        "[{'field':'field2'},{'field':'field7','range':[0,1],'projection':{'field':'*'}},{'field':'field7.*.elemf1'}]",
+        "{'field':'field7','match':{'field':'elemf3','op':'>','rvalue':4},'project':{'field':'*'}}",
+        "{'field':'field7','match':{'field':'elemf3','op':'>','rvalue':25},'project':{'field':'*'}}",
+        "{'field':'field7','include':true,'match':{'field':'elemf3','op':'>','rvalue':4},'project':[{'field':'*'},{'field':'elemf1','include':false}]}",
+        "{'field':'field7','include':false,'match':{'field':'elemf3','op':'>','rvalue':4},'project':{'field':'*'}}",
+        "[{'field':'field7','match':{'field':'elemf3','op':'>','rvalue':4},'project':{'field':'*'}},{'field':'field7','range':[0,0],'project':{'field':'elemf2'}}]",
+        "{'field':'field12.nf1.nnf1.*.nnnf1.arr','match':{'field':'id','op':'=','rvalue':1}}",
+        "[{'field':'field7.$parent.field2'},{'field':'field7.$parent.field6.*','recursive':true}]",
+        "{'field':'field6.nf7.$parent.$parent.field7','range':[1,2],'project':{'field':'elemf3'}}",
+        "[{'field':'field12','recursive':true},{'field':'field12.nf1.nnf1.*.nnnf1.arr','range':[0,0]}]"
+    };
+
+    private static final String[] NOT_COMPILED = {
+        "{'field':'field7.1.elemf1'}",
+        "{'field':'field7','match':{'field':'elemf3','op':'>=','rvalue':4},'project':{'field':'*'}, 'sort': { 'elemf2':'$desc'}}"
+    };
+
+    private EntityMetadata md;
+
+    @Before
+    public void setup() throws Exception {
+        jsonDoc = EvalTestContext.getDoc("./sample1.json");
+        md = EvalTestContext.getMd("./testMetadata.json");
+    }
+
+    @Test
+    public void compiledSameResultsAsProjector() throws Exception {
+        for (String s : COMPILED) {
+            Projection p = EvalTestContext.projectionFromJson(s);
+            Projector compiled = ProjectionCompiler.compile(p, md);
+            Assert.assertTrue(s, compiled instanceof CompiledProjector);
+            JsonDoc expected = Projector.getInstance(p, md).project(jsonDoc, JSON_NODE_FACTORY);
+            // Project twice, so the second run uses the plan built by the first
+            for (int i = 0; i < 2; i++) {
+                JsonDoc actual = compiled.project(jsonDoc, JSON_NODE_FACTORY);
+                Assert.assertEquals(s, expected.getRoot().toString(), actual.getRoot().toString());
+            }
+        }
+    }
+
+    @Test
+    public void uncompiledFallsBackToProjector() throws Exception {
+        for (String s : NOT_COMPILED) {
+            Projection p = EvalTestContext.projectionFromJson(s);
+            Projector projector = ProjectionCompiler.compile(p, md);
+            Assert.assertFalse(s, projector instanceof CompiledProjector);
+        }
+    }
+
+    @Test
+    public void emptyDocTest() throws Exception {
+        Projection p = EvalTestContext.projectionFromJson("{'field':'*','recursive':1}");
+        JsonDoc doc = new JsonDoc(JSON_NODE_FACTORY.objectNode());
+        Assert.assertEquals("{}", ProjectionCompiler.compile(p, md).project(doc, JSON_NODE_FACTORY).getRoot().toString());
+    }
+}
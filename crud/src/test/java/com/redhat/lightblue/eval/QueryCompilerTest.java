@@ -0,0 +1,309 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.eval;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import com.redhat.lightblue.assoc.BindQuery;
+import com.redhat.lightblue.assoc.Binder;
+import com.redhat.lightblue.assoc.BoundList;
+import com.redhat.lightblue.assoc.BoundObject;
+import com.redhat.lightblue.assoc.BoundValue;
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.query.ArrayContainsExpression;
+import com.redhat.lightblue.query.ArrayMatchExpression;
+import com.redhat.lightblue.query.BinaryComparisonOperator;
+import com.redhat.lightblue.query.ContainsOperator;
+import com.redhat.lightblue.query.NaryLogicalExpression;
+import com.redhat.lightblue.query.NaryLogicalOperator;
+import com.redhat.lightblue.query.NaryRelationalOperator;
+import com.redhat.lightblue.query.NaryValueRelationalExpression;
+import com.redhat.lightblue.query.QueryExpression;
+import com.redhat.lightblue.query.Value;
+import com.redhat.lightblue.query.ValueComparisonExpression;
+import com.redhat.lightblue.util.JsonDoc;
+import com.redhat.lightblue.util.Path;
+import com.redhat.lightblue.util.test.AbstractJsonNodeTest;
+
+public class QueryCompilerTest extends AbstractJsonNodeTest {
+
+    // Queries used in the evaluator tests, and some more
+    private static final String[] QUERIES = {
+        "{ '$and' : [ {'field':'field4','op':'>','rvalue':3.5},{'field':'field6.nf1','op':'>','rvalue':'nvalue0'}] }",
+        "{ '$and' : [ {'field':'field4','op':'>','rvalue':3.5},{'field':'field6.nf7.$parent.nf1','op':'>','rvalue':'nvalue0'}] }",
+        "{ '$and' : [ {'field':'field4','op':'>','rvalue':3.5},{'field':'field6.nf7.nnf1.$parent.$parent.nf1','op':'>','rvalue':'nvalue0'}] }",
+        "{ '$and' : [{'field':'field1','regex':'Val.*','caseInsensitive':1},{'field':'field3','op':'$eq','rvalue':3}]}",
+        "{ '$and' : [{'field':'field1','regex':'Val.*','caseInsensitive':1},{'field':'field7.5.elemf1','op':'$eq','rvalue':'x'}]}",
+        "{'$and': [ {'field':'field2.$parent.field3','op':'$gt','rvalue':2},{'field':'field2.$parent.field7.0.elemf1','op':'$eq','rvalue':'elvalue0_1'}]}",
+        "{'$and': [ {'field':'field3','op':'$gt','rvalue':2},{'field':'field7.0.elemf1','op':'$eq','rvalue':'elvalue0_1'}]}",
+        "{'$and': [{'field':'field1','regex':'Val.*','caseInsensitive':1},{'field':'field3','op':'$eq','rvalue':3}]}",
+        "{'$and': [{'field':'field2.$parent.field1','regex':'Val.*','caseInsensitive':1},{'field':'field2.$parent.field3','op':'$eq','rvalue':3}]}",
+        "{'$not': { '$and' : [{'field':'field1','regex':'Val.*','caseInsensitive':1},{'field':'field3','op':'$eq','rvalue':3}]}}",
+        "{'$not': { '$and' : [{'field':'field2.$parent.field1','regex':'Val.*','caseInsensitive':1},{'field':'field2.$parent.field3','op':'$eq','rvalue':3}]}}",
+        "{'$not': { '$or' : [{'field':'field1','regex':'Val.*'},{'field':'field3','op':'$eq','rvalue':4}]}}",
+        "{'$not': {'$and': [{'field':'field1','regex':'Val.*','caseInsensitive':1},{'field':'field3','op':'$eq','rvalue':3}]}}",
+        "{'$not': {'$or': [{'field':'field1','regex':'Val.*'},{'field':'field3','op':'$eq','rvalue':4}]}}",
+        "{'$not': {'$or': [{'field':'field2.$parent.field1','regex':'Val.*'},{'field':'field2.$parent.field3','op':'$eq','rvalue':4}]}}",
+        "{'$or' : [{'field':'field1','regex':'Val.*'},{'field':'field3','op':'$eq','rvalue':4}]}",
+        "{'$or' : [{'field':'field2.$parent.field1','regex':'Val.*'},{'field':'field2.$parent.field3','op':'$eq','rvalue':4}]}",
+        "{'array':'field1', 'contains':'$any', 'values':[1,2,3,4]}",
+        "{'array':'field12.nf1.nnf1.*.nnnf1.arr','elemMatch':{'field':'id','op':'=','rvalue':1}}",
+        "{'array':'field2','elemMatch':{'field':'elemf3','op':'>','rvalue':3}}",
+        "{'array':'field6.$parent.field7','elemMatch':{'field':'elemf3','op':'>','rvalue':10}}",
+        "{'array':'field6.$parent.field7','elemMatch':{'field':'elemf3','op':'>','rvalue':3}}",
+        "{'array':'field6.$this.$this.nf5', 'contains':'$all', 'values':[5,null,15,20]}",
+        "{'array':'field6.$this.$this.nf5', 'contains':'$all', 'values':[5,null,15,25]}",
+        "{'array':'field6.$this.$this.nf5', 'contains':'$any', 'values':[1,2,3,4,5]}",
+        "{'array':'field6.$this.$this.nf5', 'contains':'$any', 'values':[1,2,3,4]}",
+        "{'array':'field6.$this.$this.nf5', 'contains':'$none', 'values':[1,2,3,4]}",
+        "{'array':'field6.$this.$this.nf5', 'contains':'$none', 'values':[5,null,15,25]}",
+        "{'array':'field6.$this.nf5', 'contains':'$all', 'values':[5,null,15,20]}",
+        "{'array':'field6.$this.nf5', 'contains':'$all', 'values':[5,null,15,25]}",
+        "{'array':'field6.$this.nf5', 'contains':'$any', 'values':[1,2,3,4,5]}",
+        "{'array':'field6.$this.nf5', 'contains':'$any', 'values':[1,2,3,4]}",
+        "{'array':'field6.$this.nf5', 'contains':'$none', 'values':[1,2,3,4]}",
+        "{'array':'field6.$this.nf5', 'contains':'$none', 'values':[5,null,15,25]}",
+        "{'array':'field6.nf4.$parent.nf5', 'contains':'$all', 'values':[5,null,15,20]}",
+        "{'array':'field6.nf4.$parent.nf5', 'contains':'$all', 'values':[5,null,15,25]}",
+        "{'array':'field6.nf4.$parent.nf5', 'contains':'$any', 'values':[1,2,3,4,5]}",
+        "{'array':'field6.nf4.$parent.nf5', 'contains':'$any', 'values':[1,2,3,4]}",
+        "{'array':'field6.nf4.$parent.nf5', 'contains':'$none', 'values':[1,2,3,4]}",
+        "{'array':'field6.nf4.$parent.nf5', 'contains':'$none', 'values':[5,null,15,25]}",
+        "{'array':'field6.nf5', 'contains':'$all', 'values':[5,null,15,20]}",
+        "{'array':'field6.nf5', 'contains':'$all', 'values':[5,null,15,25]}",
+        "{'array':'field6.nf5', 'contains':'$any', 'values':[1,2,3,4,5]}",
+        "{'array':'field6.nf5', 'contains':'$any', 'values':[1,2,3,4]}",
+        "{'array':'field6.nf5', 'contains':'$none', 'values':[1,2,3,4]}",
+        "{'array':'field6.nf5', 'contains':'$none', 'values':[5,null,15,25]}",
+        "{'array':'field6.nf6','contains':'$all','values':['one','five','six']}",
+        "{'array':'field6.nf6','contains':'$all','values':['one','two']}",
+        "{'array':'field6.nf6','contains':'$any','values':['one','five','six']}",
+        "{'array':'field6.nf6','contains':'$none','values':['onet','twot']}",
+        "{'array':'field6.nf7.$parent.$parent.field7','elemMatch':{'field':'elemf3','op':'>','rvalue':10}}",
+        "{'array':'field6.nf7.nnf1.$parent.$parent.nf5', 'contains':'$all', 'values':[5,null,15,20]}",
+        "{'array':'field6.nf7.nnf1.$parent.$parent.nf5', 'contains':'$all', 'values':[5,null,15,25]}",
+        "{'array':'field6.nf7.nnf1.$parent.$parent.nf5', 'contains':'$any', 'values':[1,2,3,4,5]}",
+        "{'array':'field6.nf7.nnf1.$parent.$parent.nf5', 'contains':'$any', 'values':[1,2,3,4]}",
+        "{'array':'field6.nf7.nnf1.$parent.$parent.nf5', 'contains':'$none', 'values':[1,2,3,4]}",
+        "{'array':'field6.nf7.nnf1.$parent.$parent.nf5', 'contains':'$none', 'values':[5,null,15,25]}",
+        "{'array':'field6.nf9','elemMatch':{'field':'elemf3','op':'>','rvalue':3}}",
+        "{'array':'field7', 'contains':'$any', 'values':[1,2,3,4]}",
+        "{'array':'field7','elemMatch':{'field':'elemf3','op':'>','rvalue':10}}",
+        "{'array':'field7','elemMatch':{'field':'elemf3','op':'>','rvalue':3}}",
+        "{'array':'field8.nf1.$this.$this.nnf4','elemMatch':{'field':'elemf3','op':'>','rvalue':50}}",
+        "{'array':'field8.nf1.$this.$this.nnf4','elemMatch':{'field':'elemf3','op':'>','rvalue':5}}",
+        "{'array':'field8.nf1.$this.nnf4','elemMatch':{'field':'elemf3','op':'>','rvalue':50}}",
+        "{'array':'field8.nf1.$this.nnf4','elemMatch':{'field':'elemf3','op':'>','rvalue':5}}",
+        "{'field':'field1','op':'=','rvalue':null}",
+        "{'field':'field1','regex':'Val.*','caseInsensitive':1}",
+        "{'field':'field1','regex':'Val.*'}",
+        "{'field':'field1','regex':'val.*'}",
+        "{'field':'field2.$parent.field1','regex':'Val.*','caseInsensitive':1}",
+        "{'field':'field2.$parent.field1','regex':'Val.*'}",
+        "{'field':'field2.$parent.field1','regex':'val.*'}",
+        "{'field':'field2.$parent.field6.nf1','op':'$in','values':['blah','yada','nothere']}",
+        "{'field':'field2.$parent.field6.nf1','op':'$in','values':['blah','yada','nvalue1']}",
+        "{'field':'field2.$parent.field6.nf3','op':'$in','values':[1,2,3,4]}",
+        "{'field':'field2.$parent.field6.nf3','op':'$nin','values':[1,2,3,4]}",
+        "{'field':'field3','op':'$in','values':[3]}",
+        "{'field':'field4','op':'<','rvalue':3.5}",
+        "{'field':'field4','op':'>','rfield':'field3'}",
+        "{'field':'field4','op':'>','rvalue':3.5}",
+        "{'field':'field6','op':'!=','rvalue':null}",
+        "{'field':'field6.$parent.field4','op':'<','rvalue':3.5}",
+        "{'field':'field6.$parent.field4','op':'>','rvalue':3.5}",
+        "{'field':'field6.$this.$this.nf1','op':'$in','values':['blah','yada','nothere']}",
+        "{'field':'field6.$this.$this.nf1','op':'$in','values':['blah','yada','nvalue1']}",
+        "{'field':'field6.$this.$this.nf3','op':'$in','values':[1,2,3,4]}",
+        "{'field':'field6.$this.$this.nf3','op':'$nin','values':[1,2,3,4]}",
+        "{'field':'field6.$this.$this.nf3','op':'<','rvalue':3.5}",
+        "{'field':'field6.$this.$this.nf3','op':'>','rvalue':3.5}",
+        "{'field':'field6.$this.nf1','op':'$in','values':['blah','yada','nothere']}",
+        "{'field':'field6.$this.nf1','op':'$in','values':['blah','yada','nvalue1']}",
+        "{'field':'field6.$this.nf3','op':'$in','values':[1,2,3,4]}",
+        "{'field':'field6.$this.nf3','op':'$nin','values':[1,2,3,4]}",
+        "{'field':'field6.$this.nf3','op':'<','rvalue':3.5}",
+        "{'field':'field6.$this.nf3','op':'>','rvalue':2.5}",
+        "{'field':'field6.nf1','op':'$in','values':['blah','yada','nothere']}",
+        "{'field':'field6.nf1','op':'$in','values':['blah','yada','nvalue1']}",
+        "{'field':'field6.nf3','op':'$in','values':[1,2,3,4]}",
+        "{'field':'field6.nf3','op':'$nin','values':[1,2,3,4]}",
+        "{'field':'field6.nf7.$parent.$parent.field4','op':'<','rvalue':3.5}",
+        "{'field':'field6.nf7.$parent.$parent.field4','op':'>','rvalue':3.5}",
+        "{'field':'field6.nf7.$parent.$parent.field6.nf1','op':'$in','values':['blah','yada','nothere']}",
+        "{'field':'field6.nf7.$parent.$parent.field6.nf1','op':'$in','values':['blah','yada','nvalue1']}",
+        "{'field':'field6.nf7.$parent.$parent.field6.nf3','op':'$in','values':[1,2,3,4]}",
+        "{'field':'field6.nf7.$parent.$parent.field6.nf3','op':'$nin','values':[1,2,3,4]}",
+        "{'field':'field2','op':'=','rvalue':null}",
+        "{'field':'nosuchfield','op':'=','rvalue':null}",
+        "{'field':'field6.nf11','op':'=','rvalue':null}",
+        "{'field':'field6.nf11','op':'!=','rvalue':null}",
+        "{'field':'field6.nf5.*','op':'=','rvalue':null}",
+        "{'field':'field6.nf5.*','op':'>','rvalue':14}",
+        "{'field':'field7.*.elemf3','op':'>=','rvalue':6}",
+        "{'field':'field7.-1.elemf3','op':'=','rvalue':6}",
+        "{'field':'field7.*.elemf3','op':'$in','values':[7,8]}",
+        "{'field':'field7.*.elemf3','op':'$nin','values':[7,8]}",
+        "{'field':'field6.nf11','op':'$in','values':[null]}",
+        "{'field':'field2','op':'$nin','values':['x']}",
+        "{'field':'field6.nf5.*','op':'$in','values':[null]}",
+        "{'array':'field6.nf5','contains':'$all','values':[5,null]}",
+        "{'array':'field6.nf5','contains':'$none','values':[null]}",
+        "{'array':'field6.nf6','contains':'$any','values':['two','five']}",
+        "{'array':'field7','elemMatch':{'$and':[{'field':'elemf1','regex':'elvalue1.*'},{'field':'elemf3','op':'=','rvalue':4}]}}",
+        "{'array':'field7','elemMatch':{'$not':{'field':'elemf3','op':'>','rvalue':3}}}",
+        "{'array':'field8.nf1.nnf4','elemMatch':{'field':'elemf3','op':'>','rvalue':3}}",
+        "{'field':'field7.*.elemf1','regex':'ELVALUE2.*','caseInsensitive':1}"
+    };
+
+    EntityMetadata md;
+
+    @Before
+    public void setup() throws Exception {
+        jsonDoc = EvalTestContext.getDoc("./sample1.json");
+        md = EvalTestContext.getMd("./testMetadata.json");
+    }
+
+    /**
+     * Returns the interpretive evaluation result, or null if it fails
+     */
+    private Boolean interpret(QueryExpression q, JsonDoc doc) {
+        try {
+            return QueryEvaluator.getInstance(q, md).evaluate(doc).getResult();
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private void compare(JsonDoc doc) throws Exception {
+        for (String s : QUERIES) {
+            QueryExpression q = EvalTestContext.queryExpressionFromJson(s);
+            Boolean expected = interpret(q, doc);
+            if (expected != null) {
+                QueryEvaluator qe = QueryCompiler.compile(q, md);
+                Assert.assertEquals(s, expected, qe.matches(doc));
+                Assert.assertEquals(s, expected, qe.evaluate(doc).getResult());
+            }
+        }
+    }
+
+    @Test
+    public void sameResultsAsInterpreter() throws Exception {
+        compare(jsonDoc);
+    }
+
+    @Test
+    public void sameResultsAsInterpreterWithMissingFields() throws Exception {
+        JsonDoc doc = jsonDoc.copy();
+        doc.modify(new Path("field2"), null, false);
+        doc.modify(new Path("field6.nf5"), null, false);
+        doc.modify(new Path("field7.1.elemf3"), null, false);
+        doc.modify(new Path("field6.nf11"), JsonNodeFactory.instance.textNode("x"), false);
+        compare(doc);
+        doc = new JsonDoc(JsonNodeFactory.instance.objectNode());
+        compare(doc);
+    }
+
+    @Test
+    public void compiledUnlessUnsupported() throws Exception {
+        Assert.assertTrue(QueryCompiler.compile(EvalTestContext.queryExpressionFromJson(
+                "{'$and':[{'field':'field7.*.elemf3','op':'>','rvalue':3},{'array':'field7','elemMatch':{'field':'elemf1','regex':'x.*'}}]}"), md)
+                instanceof CompiledQueryEvaluator);
+        // $parent and field comparisons use the interpretive evaluators
+        Assert.assertFalse(QueryCompiler.compile(EvalTestContext.queryExpressionFromJson(
+                "{'field':'field6.nf7.$parent.nf1','op':'>','rvalue':'nvalue0'}"), md)
+                instanceof CompiledQueryEvaluator);
+        Assert.assertFalse(QueryCompiler.compile(EvalTestContext.queryExpressionFromJson(
+                "{'field':'field4','op':'>','rfield':'field3'}"), md)
+                instanceof CompiledQueryEvaluator);
+    }
+
+    private static List<Value> values(Object... v) {
+        List<Value> list = new ArrayList<>();
+        for (Object x : v) {
+            list.add(new Value(x));
+        }
+        return list;
+    }
+
+    @Test
+    public void boundTemplateSameResultsAsBoundQuery() throws Exception {
+        BoundValue bv = new BoundValue(null);
+        BoundList bl = new BoundList(null);
+        BoundValue nested = new BoundValue(null);
+        List<Object> parameters = Arrays.asList(bv, bl, nested);
+        List<QueryExpression> templates = new ArrayList<>();
+        for (BinaryComparisonOperator op : BinaryComparisonOperator.values()) {
+            templates.add(new ValueComparisonExpression(new Path("field3"), op, bv));
+            templates.add(new ValueComparisonExpression(new Path("field6.nf5.*"), op, bv));
+        }
+        for (NaryRelationalOperator op : NaryRelationalOperator.values()) {
+            templates.add(new NaryValueRelationalExpression(new Path("field6.nf3"), op, bl));
+        }
+        for (ContainsOperator op : ContainsOperator.values()) {
+            templates.add(new ArrayContainsExpression(new Path("field6.nf5"), op, bl));
+        }
+        templates.add(new ArrayMatchExpression(new Path("field7"),
+                new ValueComparisonExpression(new Path("elemf3"), BinaryComparisonOperator._gt, nested)));
+        templates.add(new NaryLogicalExpression(NaryLogicalOperator._and, Arrays.asList(
+                new ValueComparisonExpression(new Path("field4"), BinaryComparisonOperator._gt, bv),
+                new NaryValueRelationalExpression(new Path("field6.nf3"), NaryRelationalOperator._in, bl))));
+
+        Object[][] bindings = {
+            {new Value(3), values(3, 4), new Value(3)},
+            {new Value(null), values(), new Value(10)},
+            {values(2, 3), values(5, null), values(1, 4)},
+            {values(4, null), values(15, 20), values()},
+            {values(), values(1, 2), new Value(null)}
+        };
+        JsonDoc empty = new JsonDoc(JsonNodeFactory.instance.objectNode());
+        for (QueryExpression template : templates) {
+            CompiledQueryTemplate compiled = QueryCompiler.compileTemplate(template, md.getFieldTreeRoot(), parameters);
+            Assert.assertNotNull(template.toString(), compiled);
+            for (Object[] values : bindings) {
+                List<Binder> binders = new ArrayList<>();
+                for (int i = 0; i < values.length; i++) {
+                    binders.add(new Binder((BoundObject) parameters.get(i), values[i]));
+                }
+                QueryExpression bound = new BindQuery(binders).iterate(template);
+                QueryEvaluator qe = compiled.bind(values);
+                for (JsonDoc doc : new JsonDoc[]{jsonDoc, empty}) {
+                    Boolean expected = interpret(bound, doc);
+                    if (expected != null) {
+                        Assert.assertEquals(bound.toString(), expected, qe.matches(doc));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test(expected = com.redhat.lightblue.util.Error.class)
+    public void errorsFromInterpreter() throws Exception {
+        QueryCompiler.compile(EvalTestContext.queryExpressionFromJson("{'field':'nosuchfield','op':'=','rvalue':1}"), md);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.eval;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.query.QueryExpression;
+import com.redhat.lightblue.util.JsonDoc;
+
+/**
+ * Compares the evaluation time of the interpretive query evaluators and
+ * the compiled queries on the sample document. The timings are printed,
+ * and the compiled query must not be slower than the interpretive one.
+ *
+ * The test is skipped unless the lightblue.benchmark system property is
+ * set:
+ * <pre>
+ * mvn -pl crud test -Dtest=QueryEvaluatorTimingTest -Dlightblue.benchmark=true
+ * </pre>
+ */
+public class QueryEvaluatorTimingTest {
+
+    private static final int ITERATIONS = 200000;
+
+    private static final String[] QUERIES = {
+        "{'field':'field3','op':'=','rvalue':3}",
+        "{'$and':[{'field':'field4','op':'>','rvalue':3.5},{'field':'field6.nf1','op':'>','rvalue':'nvalue0'}]}",
+        "{'field':'field7.*.elemf3','op':'>','rvalue':5}",
+        "{'field':'field7.*.elemf1','op':'$in','values':['x','y','elvalue3_1']}",
+        "{'array':'field7','elemMatch':{'$and':[{'field':'elemf1','op':'=','rvalue':'elvalue3_1'},{'field':'elemf3','op':'=','rvalue':6}]}}",
+        "{'array':'field6.nf6','contains':'$all','values':['two','four']}",
+        "{'field':'field1','regex':'val.*'}"
+    };
+
+    @Test
+    public void compiledIsFasterThanInterpreted() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("lightblue.benchmark"));
+        JsonDoc doc = EvalTestContext.getDoc("./sample1.json");
+        EntityMetadata md = EvalTestContext.getMd("./testMetadata.json");
+        for (String s : QUERIES) {
+            QueryExpression q = EvalTestContext.queryExpressionFromJson(s);
+            QueryEvaluator interpreted = QueryEvaluator.getInstance(q, md);
+            QueryEvaluator compiled = QueryCompiler.compile(q, md);
+            // Warm up
+            Assert.assertEquals(s, run(interpreted, doc), run(compiled, doc));
+            long t = System.nanoTime();
+            run(interpreted, doc);
+            long interpretedNanos = System.nanoTime() - t;
+            t = System.nanoTime();
+            run(compiled, doc);
+            long compiledNanos = System.nanoTime() - t;
+            System.out.println(s + ": interpreted " + interpretedNanos / ITERATIONS + " ns/doc, compiled " + compiledNanos / ITERATIONS + " ns/doc");
+            Assert.assertTrue(s, compiledNanos <= interpretedNanos);
+        }
+    }
+
+    private static int run(QueryEvaluator qe, JsonDoc doc) {
+        int n = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            if (qe.matches(doc)) {
+                n++;
+            }
+        }
+        return n;
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.hooks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.codahale.metrics.MetricRegistry;
+
+import com.redhat.lightblue.crud.CRUDOperation;
+import com.redhat.lightblue.crud.Factory;
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.metadata.HookConfiguration;
+
+public class AsyncHookDispatcherTest {
+
+    /**
+     * Records the documents it receives. Blocks until released.
+     */
+    private static class RecordingHook implements CRUDHook {
+        final List<HookDoc> docs = Collections.synchronizedList(new ArrayList<HookDoc>());
+        final List<Integer> callSizes = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<HookConfiguration> cfgs = Collections.synchronizedList(new ArrayList<HookConfiguration>());
+        final CountDownLatch release;
+
+        RecordingHook(CountDownLatch release) {
+            this.release = release;
+        }
+
+        @Override
+        public String getName() {
+            return "recording";
+        }
+
+        @Override
+        public void processHook(EntityMetadata md, HookConfiguration cfg, List<HookDoc> processedDocuments) {
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            callSizes.add(processedDocuments.size());
+            cfgs.add(cfg);
+            docs.addAll(processedDocuments);
+        }
+    }
+
+    private static List<HookDoc> docs(EntityMetadata md, String who) {
+        List<HookDoc> list = new ArrayList<>();
+        list.add(new HookDoc(md, null, null, CRUDOperation.INSERT, who));
+        return list;
+    }
+
+    @Test
+    public void testOrderAndBatching() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingHook hook = new RecordingHook(release);
+        MetricRegistry metrics = new MetricRegistry();
+        AsyncHookDispatcher dispatcher = new AsyncHookDispatcher(100, 2, 10, AsyncHookDispatcher.OverflowPolicy.BLOCK, metrics);
+        EntityMetadata md = new EntityMetadata("test");
+
+        for (int i = 0; i < 25; i++) {
+            dispatcher.dispatch(hook, md, null, docs(md, Integer.toString(i)));
+        }
+        // The worker is blocked by the first batch, the rest are queued
+        Assert.assertTrue(dispatcher.getQueueDepth("recording") >= 15);
+        Assert.assertTrue(metrics.getGauges().containsKey("hooks.recording.queueDepth"));
+        release.countDown();
+        Assert.assertTrue(dispatcher.shutdown(10000));
+
+        Assert.assertEquals(25, hook.docs.size());
+        for (int i = 0; i < 25; i++) {
+            Assert.assertEquals(Integer.toString(i), hook.docs.get(i).getWho());
+        }
+        // Queued calls are combined in batches of up to 10
+        Assert.assertTrue(hook.callSizes.size() < 25);
+        for (Integer x : hook.callSizes) {
+            Assert.assertTrue(x <= 10);
+        }
+        Assert.assertEquals(0, dispatcher.getQueueDepth("recording"));
+    }
+
+    @Test
+    public void testOverflow() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingHook hook = new RecordingHook(release);
+        AsyncHookDispatcher dispatcher = new AsyncHookDispatcher(2, 1, 0, AsyncHookDispatcher.OverflowPolicy.DROP, null);
+        EntityMetadata md = new EntityMetadata("test");
+
+        for (int i = 0; i < 10; i++) {
+            dispatcher.dispatch(hook, md, null, docs(md, Integer.toString(i)));
+        }
+        // One call is being processed, two are queued, the rest dropped
+        Assert.assertTrue(dispatcher.getDropped("recording") >= 7);
+        release.countDown();
+        Assert.assertTrue(dispatcher.shutdown(10000));
+        Assert.assertEquals(10 - dispatcher.getDropped("recording"), hook.docs.size());
+
+        release = new CountDownLatch(0);
+        hook = new RecordingHook(release);
+        dispatcher = new AsyncHookDispatcher(1, 1, 0, AsyncHookDispatcher.OverflowPolicy.SPILL, null);
+        for (int i = 0; i < 10; i++) {
+            dispatcher.dispatch(hook, md, null, docs(md, Integer.toString(i)));
+        }
+        Assert.assertTrue(dispatcher.shutdown(10000));
+        Assert.assertEquals(10, hook.docs.size());
+        Assert.assertEquals(0, dispatcher.getDropped("recording"));
+    }
+
+    @Test
+    public void testDroppedAndSpilledAreCounters() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingHook hook = new RecordingHook(release);
+        MetricRegistry metrics = new MetricRegistry();
+        AsyncHookDispatcher dispatcher = new AsyncHookDispatcher(1, 1, 0, AsyncHookDispatcher.OverflowPolicy.DROP, metrics);
+        EntityMetadata md = new EntityMetadata("test");
+
+        for (int i = 0; i < 5; i++) {
+            dispatcher.dispatch(hook, md, null, docs(md, Integer.toString(i)));
+        }
+        Assert.assertTrue(metrics.getCounters().containsKey("hooks.recording.dropped"));
+        Assert.assertTrue(metrics.getCounters().containsKey("hooks.recording.spilled"));
+        Assert.assertEquals(dispatcher.getDropped("recording"), metrics.getCounters().get("hooks.recording.dropped").getCount());
+        Assert.assertTrue(dispatcher.getDropped("recording") >= 3);
+        release.countDown();
+        Assert.assertTrue(dispatcher.shutdown(10000));
+    }
+
+    @Test
+    public void testSpillPreservesOrder() throws Exception {
+        RecordingHook hook = new RecordingHook(new CountDownLatch(0));
+        AsyncHookDispatcher dispatcher = new AsyncHookDispatcher(1, 1, 0, AsyncHookDispatcher.OverflowPolicy.SPILL, null);
+        EntityMetadata md = new EntityMetadata("test");
+
+        for (int i = 0; i < 200; i++) {
+            dispatcher.dispatch(hook, md, null, docs(md, Integer.toString(i)));
+        }
+        Assert.assertTrue(dispatcher.shutdown(10000));
+        Assert.assertEquals(200, hook.docs.size());
+        for (int i = 0; i < 200; i++) {
+            Assert.assertEquals(Integer.toString(i), hook.docs.get(i).getWho());
+        }
+    }
+
+    private static class TestConfig implements HookConfiguration {
+    }
+
+    @Test
+    public void testCallsWithDifferentConfigurationsAreNotCombined() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingHook hook = new RecordingHook(release);
+        AsyncHookDispatcher dispatcher = new AsyncHookDispatcher(100, 1, 100, AsyncHookDispatcher.OverflowPolicy.BLOCK, null);
+        EntityMetadata md = new EntityMetadata("test");
+        HookConfiguration cfg1 = new TestConfig();
+        HookConfiguration cfg2 = new TestConfig();
+
+        // The first call blocks the worker, the rest are queued
+        dispatcher.dispatch(hook, md, cfg1, docs(md, "0"));
+        for (int i = 1; i < 7; i++) {
+            dispatcher.dispatch(hook, md, i % 2 == 0 ? cfg1 : cfg2, docs(md, Integer.toString(i)));
+        }
+        release.countDown();
+        Assert.assertTrue(dispatcher.shutdown(10000));
+
+        Assert.assertEquals(7, hook.docs.size());
+        Assert.assertEquals(7, hook.cfgs.size());
+        for (int i = 0; i < 7; i++) {
+            Assert.assertSame(i % 2 == 0 ? cfg1 : cfg2, hook.cfgs.get(i));
+        }
+    }
+
+    @Test
+    public void testHookDispatcherIsShutDownOnClose() {
+        Factory factory = new Factory();
+        factory.setAsyncHooks(true);
+        AsyncHookDispatcher dispatcher = factory.getHookDispatcher();
+        factory.close();
+        try {
+            dispatcher.dispatch(null, null, null, null);
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            // Expected, dispatcher is shut down
+        }
+        Assert.assertNotSame(dispatcher, factory.getHookDispatcher());
+        factory.close();
+    }
+}
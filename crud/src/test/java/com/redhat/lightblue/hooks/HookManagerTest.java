@@ -94,6 +94,7 @@ public class HookManagerTest extends AbstractJsonNodeTest {
         EntityMetadata md;
          HookConfiguration cfg;
         List<HookDoc> processed;
+        Thread thread;
 
         public AbstractHook(String n) {
             name = n;
@@ -111,6 +112,7 @@ public class HookManagerTest extends AbstractJsonNodeTest {
             this.md = md;
             this.cfg = cfg;
             this.processed = processedDocuments;
+            this.thread = Thread.currentThread();
         }
     }
 
@@ -123,6 +125,10 @@ public class HookManagerTest extends AbstractJsonNodeTest {
         }
     }
 
+    @SynchronousHook
+    public static class TestSynchronousHook1 extends TestHook1 {
+    }
+
     public static class TestHook2Config implements HookConfiguration {
     }
 
@@ -272,6 +278,39 @@ public class HookManagerTest extends AbstractJsonNodeTest {
         Assert.assertNull(mediatorHook.md);
     }
 
+    @Test
+    public void crudInsertAsyncTest() throws Exception {
+        AsyncHookDispatcher dispatcher = new AsyncHookDispatcher(10, 1, 100, AsyncHookDispatcher.OverflowPolicy.BLOCK, null);
+        HookManager hooks = new HookManager(resolver, nodeFactory, dispatcher);
+        TestOperationContext ctx = setupContext(CRUDOperation.INSERT);
+
+        hooks.queueHooks(ctx);
+        hooks.callQueuedHooks();
+        Assert.assertTrue(dispatcher.shutdown(10000));
+
+        Assert.assertEquals(ctx.md, hook1.md);
+        Assert.assertTrue(hook1.cfg instanceof TestHook1Config);
+        Assert.assertEquals(ctx.getInputDocuments().size(), hook1.processed.size());
+        Assert.assertNull(hook2.md);
+        Assert.assertNull(mediatorHook.md);
+    }
+
+    @Test
+    public void crudInsertAsyncSynchronousHookTest() throws Exception {
+        TestSynchronousHook1 syncHook = new TestSynchronousHook1();
+        AsyncHookDispatcher dispatcher = new AsyncHookDispatcher(10, 1, 100, AsyncHookDispatcher.OverflowPolicy.BLOCK, null);
+        HookManager hooks = new HookManager(new TestHookResolver(syncHook, hook2, mediatorHook, errorHook), nodeFactory, dispatcher);
+        TestOperationContext ctx = setupContext(CRUDOperation.INSERT);
+
+        hooks.queueHooks(ctx);
+        hooks.callQueuedHooks();
+
+        // The hook is called by the calling thread, not by the dispatcher
+        Assert.assertSame(Thread.currentThread(), syncHook.thread);
+        Assert.assertEquals(ctx.getInputDocuments().size(), syncHook.processed.size());
+        Assert.assertTrue(dispatcher.shutdown(10000));
+    }
+
     @Test
     public void crudUpdateQueueTest() throws Exception {
         HookManager hooks = new HookManager(resolver, nodeFactory);
@@ -306,13 +345,13 @@ public class HookManagerTest extends AbstractJsonNodeTest {
         HookManager hooks = new HookManager(resolver, nodeFactory);
         TestOperationContext ctx = setupContext(CRUDOperation.UPDATE);
 
+        // The copies are shared by the 3 update hooks, and the post copy
+        // shares the unchanged parts with the pre copy
         int expectedSizeB = 0;
-        int updateHookCount = 3;
         for(DocCtx doc: ctx.getInputDocuments()) {
-            expectedSizeB += updateHookCount * (
+            expectedSizeB +=
                     JsonUtils.size(doc.getOriginalDocument().getRoot()) + // original doc
-                    JsonUtils.size(doc.getOriginalDocument().getRoot()) + // pre copy
-                    JsonUtils.size(doc.getUpdatedDocument().getRoot()));  // post copy
+                    JsonUtils.size(doc.getOriginalDocument().getRoot());  // pre copy
         }
 
         hooks.setQueuedHooksSizeThresholds(expectedSizeB+10, 1, null, 0);
@@ -332,6 +371,33 @@ public class HookManagerTest extends AbstractJsonNodeTest {
         }
     }
 
+    @Test
+    public void crudUpdateSharedCopiesTest() throws Exception {
+        HookManager hooks = new HookManager(resolver, nodeFactory);
+        TestOperationContext ctx = setupContext(CRUDOperation.UPDATE);
+        for (DocCtx doc : ctx.getInputDocuments()) {
+            doc.getUpdatedDocument().modify(new Path("field2"), nodeFactory.textNode("updated"), false);
+        }
+
+        hooks.queueHooks(ctx);
+        hooks.callQueuedHooks();
+
+        Assert.assertEquals(ctx.getInputDocuments().size(), hook1.processed.size());
+        for (int i = 0; i < hook1.processed.size(); i++) {
+            HookDoc doc1 = hook1.processed.get(i);
+            HookDoc doc2 = hook2.processed.get(i);
+            // Hooks share the same copies
+            Assert.assertSame(doc1.getPreDoc().getRoot(), doc2.getPreDoc().getRoot());
+            Assert.assertSame(doc1.getPostDoc().getRoot(), doc2.getPostDoc().getRoot());
+            Assert.assertEquals("updated", doc1.getPostDoc().get(new Path("field2")).asText());
+            Assert.assertFalse("updated".equals(doc1.getPreDoc().get(new Path("field2")).asText()));
+            // Unchanged parts are shared between pre and post
+            Assert.assertSame(doc1.getPreDoc().get(new Path("field1")), doc1.getPostDoc().get(new Path("field1")));
+            // Copies are not the documents of the operation
+            Assert.assertNotSame(ctx.getInputDocuments().get(i).getUpdatedDocument().getRoot(), doc1.getPostDoc().getRoot());
+        }
+    }
+
     @Test
     public void crudInsertMaxHookQueueSizeTest() throws Exception {
         HookManager hooks = new HookManager(resolver, nodeFactory);
@@ -41,6 +41,7 @@ import com.redhat.lightblue.util.JsonDoc;
 import com.redhat.lightblue.util.Path;
 import com.redhat.lightblue.extensions.valuegenerator.ValueGeneratorSupport;
 import org.junit.Assert;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -135,4 +136,9 @@ public abstract class AbstractMediatorTest extends AbstractJsonSchemaTest {
         mdManager.md = getMd("./testMetadata.json");
         mediator = newMediator(mdManager, factory);
     }
+
+    @After
+    public void closeFactory() {
+        mediator.factory.close();
+    }
 }
@@ -0,0 +1,113 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mediator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.redhat.lightblue.EntityVersion;
+import com.redhat.lightblue.Request;
+import com.redhat.lightblue.TestDataStoreParser;
+import com.redhat.lightblue.crud.FindRequest;
+import com.redhat.lightblue.crud.InsertionRequest;
+import com.redhat.lightblue.crud.UpdateRequest;
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.metadata.PredefinedFields;
+import com.redhat.lightblue.metadata.parser.Extensions;
+import com.redhat.lightblue.metadata.parser.JSONMetadataParser;
+import com.redhat.lightblue.metadata.test.DatabaseMetadata;
+import com.redhat.lightblue.metadata.types.DefaultTypes;
+import com.redhat.lightblue.query.BinaryComparisonOperator;
+import com.redhat.lightblue.query.Value;
+import com.redhat.lightblue.query.ValueComparisonExpression;
+import com.redhat.lightblue.util.Path;
+import com.redhat.lightblue.util.test.AbstractJsonSchemaTest;
+
+public class BulkDependencyAnalyzerTest extends AbstractJsonSchemaTest {
+
+    private static final JsonNodeFactory nodeFactory = JsonNodeFactory.withExactBigDecimals(false);
+
+    private class TestMetadata extends DatabaseMetadata {
+        @Override
+        public EntityMetadata getEntityMetadata(String entityName, String version) {
+            try {
+                JsonNode node = loadJsonNode("composite/" + entityName + ".json");
+                Extensions<JsonNode> extensions = new Extensions<>();
+                extensions.addDefaultExtensions();
+                extensions.registerDataStoreParser("mongo", new TestDataStoreParser<JsonNode>());
+                JSONMetadataParser parser = new JSONMetadataParser(extensions, new DefaultTypes(), nodeFactory);
+                EntityMetadata md = parser.parseEntityMetadata(node);
+                PredefinedFields.ensurePredefinedFields(md);
+                return md;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private static InsertionRequest insert(String entity, String id) {
+        InsertionRequest req = new InsertionRequest();
+        req.setEntityVersion(new EntityVersion(entity, "1.0.0"));
+        req.setEntityData(nodeFactory.objectNode().put("_id", id));
+        return req;
+    }
+
+    private static UpdateRequest update(String entity, String id) {
+        UpdateRequest req = new UpdateRequest();
+        req.setEntityVersion(new EntityVersion(entity, "1.0.0"));
+        req.setQuery(new ValueComparisonExpression(new Path("_id"), BinaryComparisonOperator._eq, new Value(id)));
+        return req;
+    }
+
+    private static FindRequest find(String entity) {
+        FindRequest req = new FindRequest();
+        req.setEntityVersion(new EntityVersion(entity, "1.0.0"));
+        return req;
+    }
+
+    @Test
+    public void dependenciesTest() throws Exception {
+        List<Request> requests = new ArrayList<>();
+        requests.add(insert("B", "1"));   // 0
+        requests.add(insert("B", "2"));   // 1
+        requests.add(update("B", "1"));   // 2
+        requests.add(insert("D", "1"));   // 3
+        requests.add(find("A"));          // 4: A references B, C, and C references D
+        requests.add(find("D"));          // 5
+        requests.add(insert("A", "1"));   // 6
+        requests.add(find("B"));          // 7
+
+        List<List<Integer>> deps = new BulkDependencyAnalyzer(new TestMetadata()).analyze(requests);
+
+        Assert.assertEquals(Arrays.asList(), deps.get(0));
+        Assert.assertEquals(Arrays.asList(), deps.get(1));
+        Assert.assertEquals(Arrays.asList(0), deps.get(2));
+        Assert.assertEquals(Arrays.asList(), deps.get(3));
+        Assert.assertEquals(Arrays.asList(0, 1, 2, 3), deps.get(4));
+        Assert.assertEquals(Arrays.asList(3), deps.get(5));
+        Assert.assertEquals(Arrays.asList(4), deps.get(6));
+        Assert.assertEquals(Arrays.asList(0, 1, 2), deps.get(7));
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mediator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.codahale.metrics.MetricRegistry;
+import com.redhat.lightblue.crud.Factory;
+
+public class BulkSchedulerTest {
+
+    @Test
+    public void roundRobinBetweenKeys() throws Exception {
+        BulkScheduler scheduler = new BulkScheduler(1, 1, 100, BulkScheduler.OverflowPolicy.REJECT);
+        try {
+            CountDownLatch blocker = new CountDownLatch(1);
+            // Occupy the only worker so the queue builds up
+            Future<String> first = scheduler.submit("x", () -> {
+                blocker.await();
+                return "x";
+            });
+            while (scheduler.getActiveCount() == 0) {
+                Thread.sleep(1);
+            }
+            List<String> order = Collections.synchronizedList(new ArrayList<>());
+            List<Future<String>> futures = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                futures.add(scheduler.submit("a", () -> {
+                    order.add("a");
+                    return "a";
+                }));
+            }
+            futures.add(scheduler.submit("b", () -> {
+                order.add("b");
+                return "b";
+            }));
+            Assert.assertEquals(4, scheduler.getQueueDepth());
+            Assert.assertEquals(3, scheduler.getQueueDepth("a"));
+            blocker.countDown();
+            Assert.assertEquals("x", first.get(5, TimeUnit.SECONDS));
+            for (Future<String> f : futures) {
+                f.get(5, TimeUnit.SECONDS);
+            }
+            // b should not wait for all of a's tasks
+            Assert.assertEquals("b", order.get(1));
+            Assert.assertEquals(0, scheduler.getQueueDepth());
+            Assert.assertEquals(4, scheduler.getMaxObservedQueueDepth());
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void rejectWhenQueueIsFull() throws Exception {
+        BulkScheduler scheduler = new BulkScheduler(1, 1, 1, BulkScheduler.OverflowPolicy.REJECT);
+        try {
+            CountDownLatch blocker = new CountDownLatch(1);
+            scheduler.submit("a", () -> {
+                blocker.await();
+                return null;
+            });
+            while (scheduler.getActiveCount() == 0) {
+                Thread.sleep(1);
+            }
+            scheduler.submit("a", () -> null);
+            try {
+                scheduler.submit("a", () -> null);
+                Assert.fail();
+            } catch (RejectedExecutionException e) {
+            }
+            Assert.assertEquals(1, scheduler.getRejectedCount());
+            blocker.countDown();
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void callerRunsWhenQueueIsFull() throws Exception {
+        BulkScheduler scheduler = new BulkScheduler(1, 1, 1, BulkScheduler.OverflowPolicy.CALLER_RUNS);
+        try {
+            CountDownLatch blocker = new CountDownLatch(1);
+            scheduler.submit("a", () -> {
+                blocker.await();
+                return null;
+            });
+            while (scheduler.getActiveCount() == 0) {
+                Thread.sleep(1);
+            }
+            scheduler.submit("a", () -> null);
+            Thread caller = Thread.currentThread();
+            Future<Thread> f = scheduler.submit("a", () -> Thread.currentThread());
+            Assert.assertTrue(f.isDone());
+            Assert.assertSame(caller, f.get());
+            Assert.assertEquals(1, scheduler.getCallerRunsCount());
+            blocker.countDown();
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void metricsAreRegistered() throws Exception {
+        MetricRegistry metrics = new MetricRegistry();
+        BulkScheduler scheduler = new BulkScheduler(1, 1, 10, BulkScheduler.OverflowPolicy.REJECT, metrics);
+        try {
+            scheduler.submit("a", () -> null).get();
+            Assert.assertEquals(1, metrics.counter("bulk.scheduler.submitted").getCount());
+            Assert.assertNotNull(metrics.getGauges().get("bulk.scheduler.queueDepth"));
+            Assert.assertNotNull(metrics.getGauges().get("bulk.scheduler.active"));
+        } finally {
+            scheduler.shutdown();
+        }
+        Assert.assertTrue(metrics.getMetrics().isEmpty());
+    }
+
+    @Test
+    public void factoryLifecycle() throws Exception {
+        Factory factory = new Factory();
+        factory.setBulkMaxConcurrency(2);
+        BulkScheduler scheduler = factory.getBulkScheduler();
+        Assert.assertEquals(2, scheduler.getMaxConcurrency());
+        try {
+            factory.setBulkMaxConcurrency(4);
+            Assert.fail();
+        } catch (IllegalStateException e) {
+        }
+        factory.close();
+        try {
+            scheduler.submit("a", () -> null);
+            Assert.fail();
+        } catch (RejectedExecutionException e) {
+        }
+        // The settings can be changed after close, and a new scheduler is created
+        factory.setBulkMaxConcurrency(4);
+        Assert.assertEquals(4, factory.getBulkScheduler().getMaxConcurrency());
+        factory.close();
+    }
+}
@@ -415,6 +415,48 @@ public class BulkTest extends AbstractMediatorTest {
         Assert.assertTrue(validator.valid);
     }
     
+    @Test
+    public void shutdownWithQueuedEntriesTest() throws Exception {
+        BulkRequest breq = new BulkRequest();
+        breq.setOrdered(false);
+
+        FindRequest freq = new FindRequest();
+        freq.setEntityVersion(new EntityVersion("test", "1.0"));
+        freq.setClientId(new RestClientIdentification(Arrays.asList("test-find")));
+        for (int i = 0; i < 4; i++) {
+            breq.add(freq);
+        }
+
+        PFindCb findCb = new PFindCb();
+        ((TestMediator) mediator).findCb = findCb;
+        // One entry runs, the others are queued
+        mediator.factory.setBulkMaxConcurrency(1);
+
+        BulkResponse[] bresp = new BulkResponse[1];
+        Thread t = new Thread(() -> bresp[0] = mediator.bulkRequest(breq, noopMetrics));
+        t.start();
+        while (findCb.nested.get() < 1) {
+            Thread.sleep(1);
+        }
+        Assert.assertEquals(3, mediator.factory.getBulkScheduler().getQueueDepth());
+        // Cancels the queued entries
+        mediator.factory.close();
+        findCb.sem.release(1);
+        t.join(10000);
+        Assert.assertFalse(t.isAlive());
+
+        Assert.assertEquals(4, bresp[0].getEntries().size());
+        int cancelled = 0;
+        for (Response r : bresp[0].getEntries()) {
+            Assert.assertEquals(OperationStatus.ERROR, r.getStatus());
+            if (!r.getErrors().isEmpty()) {
+                Assert.assertEquals(CrudConstants.ERR_CRUD, r.getErrors().get(0).getErrorCode());
+                cancelled++;
+            }
+        }
+        Assert.assertEquals(3, cancelled);
+    }
+
     @Test
     public void tracksMetricsForRequestsInsideBulkRequest() throws Exception {
         MetricRegistry metricsRegistry = new MetricRegistry();
@@ -25,6 +25,7 @@ import static org.junit.Assert.assertTrue;
 import java.util.ArrayList;
 import java.util.Iterator;
 
+import com.codahale.metrics.MetricRegistry;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ArrayNode;
@@ -181,10 +182,16 @@ public class CompositeFinderTest extends AbstractJsonSchemaTest {
     }
 
     public void initMediator(int memoryIndexThreshold) throws Exception {
+        initMediator(memoryIndexThreshold, 256, 0);
+    }
+
+    public void initMediator(int memoryIndexThreshold, int batchSize, int prefetchBatches) throws Exception {
         Factory factory = new Factory();
         factory.addFieldConstraintValidators(new DefaultFieldConstraintValidators());
         factory.addEntityConstraintValidators(new EmptyEntityConstraintValidators());
         factory.setMemoryIndexThreshold(memoryIndexThreshold);
+        factory.setCompositeBatchSize(batchSize);
+        factory.setCompositePrefetchBatches(prefetchBatches);
         factory.addCRUDController("mongo", new CompositeTestCrudController(new TestCrudController.GetData() {
             public List<JsonDoc> getData(String entityName) {
                 try {
@@ -275,6 +282,27 @@ public class CompositeFinderTest extends AbstractJsonSchemaTest {
         Assert.assertEquals("A", qplan.getSources()[0].getMetadata().getName());
     }
 
+    @Test
+    public void concurrencyMetricsAreRecorded() throws Exception {
+        MetricRegistry metrics = mediator.factory.getMetricRegistry();
+        long finds = metrics.timer("composite.A.wait").getCount();
+        long tasks = metrics.counter("composite.A.executorTasks").getCount()
+                + metrics.counter("composite.A.inlineTasks").getCount();
+
+        FindRequest fr = new FindRequest();
+        fr.setQuery(query("{'field':'_id','op':'=','rvalue':'A01'}"));
+        fr.setProjection(projection("[{'field':'*','recursive':1},{'field':'b'}]"));
+        fr.setEntityVersion(new EntityVersion("A", "1.0.0"));
+        Response response = mediator.find(fr);
+        Assert.assertEquals(1, response.getEntityData().size());
+
+        Assert.assertEquals(finds + 1, metrics.timer("composite.A.wait").getCount());
+        Assert.assertEquals(finds + 1, metrics.histogram("composite.A.parallelism").getCount());
+        Assert.assertEquals(finds + 1, metrics.histogram("composite.A.maxConcurrentTasks").getCount());
+        Assert.assertTrue(metrics.counter("composite.A.executorTasks").getCount()
+                + metrics.counter("composite.A.inlineTasks").getCount() > tasks);
+    }
+
     @Test
     public void retrieveAandB_noproject() throws Exception {
         FindRequest fr = new FindRequest();
@@ -447,6 +475,52 @@ public class CompositeFinderTest extends AbstractJsonSchemaTest {
         Assert.assertEquals("B", qplan.getSources()[0].getMetadata().getName());
     }
 
+    @Test
+    public void retrieveAandBonly_2q_cachedPlan() throws Exception {
+        FindRequest fr = new FindRequest();
+        fr.setProjection(projection("[{'field':'*','recursive':1},{'field':'b'}]"));
+        fr.setEntityVersion(new EntityVersion("A", "1.0.0"));
+
+        fr.setQuery(query("{'$and': [ {'field':'_id','op':'=','rvalue':'A09'}, {'field':'b.*.field1','op':'=','rvalue':'GpP8rweso'} ] }"));
+        Response response = mediator.find(fr);
+        Assert.assertEquals(1, response.getEntityData().size());
+        Assert.assertEquals(0, mediator.factory.getQueryPlanCache().getHits());
+
+        // Same shape, different values: the cached plan is used with the new values
+        fr.setQuery(query("{'$and': [ {'field':'_id','op':'=','rvalue':'A01'}, {'field':'b.*.field1','op':'=','rvalue':'GpP8rweso'} ] }"));
+        response = mediator.find(fr);
+        Assert.assertEquals(0, response.getEntityData().size());
+        Assert.assertEquals(1, mediator.factory.getQueryPlanCache().getHits());
+
+        fr.setQuery(query("{'$and': [ {'field':'_id','op':'=','rvalue':'A09'}, {'field':'b.*.field1','op':'=','rvalue':'GpP8rweso'} ] }"));
+        response = mediator.find(fr);
+        Assert.assertEquals(1, response.getEntityData().size());
+        Assert.assertEquals("A09", response.getEntityData().get(0).get("_id").asText());
+        Assert.assertEquals(2, mediator.factory.getQueryPlanCache().getHits());
+        QueryPlan qplan = (QueryPlan) getLastContext(mediator).getProperty(Mediator.CTX_QPLAN);
+        Assert.assertEquals(1, qplan.getSources().length);
+        Assert.assertEquals("B", qplan.getSources()[0].getMetadata().getName());
+    }
+
+    @Test
+    public void retrieveAandBonly_2q_statistics() throws Exception {
+        mediator.factory.setCompositePlanStatistics(true);
+        FindRequest fr = new FindRequest();
+        fr.setQuery(query("{'$and': [ {'field':'_id','op':'=','rvalue':'A09'}, {'field':'b.*.field1','op':'=','rvalue':'GpP8rweso'} ] }"));
+        fr.setProjection(projection("[{'field':'*','recursive':1},{'field':'b'}]"));
+        fr.setEntityVersion(new EntityVersion("A", "1.0.0"));
+        Response response = mediator.find(fr);
+        Assert.assertEquals(1, response.getEntityData().size());
+        Assert.assertEquals("A09", response.getEntityData().get(0).get("_id").asText());
+        Assert.assertNotNull(mediator.factory.getExecutionStatistics().getStat("A"));
+        Assert.assertNotNull(mediator.factory.getExecutionStatistics().getStat("B"));
+
+        response = mediator.explain(fr);
+        JsonNode stats = response.getEntityData().get(0).get("statistics");
+        Assert.assertNotNull(stats);
+        Assert.assertTrue(stats.get("B").get("count").asInt() > 0);
+    }
+
     @Test
     public void retrieveOneAndNotOther() throws Exception {
         FindRequest fr = new FindRequest();
@@ -513,6 +587,22 @@ public class CompositeFinderTest extends AbstractJsonSchemaTest {
         Assert.assertNull(JsonDoc.get(response.getEntityData().get(0), new Path("_id")));
     }
 
+    @Test
+    public void assocTest2_365_prefetch() throws Exception {
+        FindRequest fr = new FindRequest();
+        fr.setQuery(query("{'field':'A.*.objectType','op':'=','rvalue':'jA'}"));
+        fr.setProjection(projection("[{'field':'*','recursive':1}]"));
+        fr.setEntityVersion(new EntityVersion("jB", "1.0.1-SNAPSHOT"));
+        Response expected = mediator.find(fr);
+
+        // One join tuple per batch, two batches retrieved in advance
+        initMediator(16, 1, 2);
+        mediator.factory.setCompositeAdaptiveBatching(false);
+        Response response = mediator.find(fr);
+        Assert.assertTrue(response.getErrors().isEmpty());
+        Assert.assertEquals(expected.getEntityData(), response.getEntityData());
+    }
+
     @Test
     public void retrieveNestedArrayRef_reversed() throws Exception {
         FindRequest fr = new FindRequest();
@@ -18,6 +18,7 @@
  */
 package com.redhat.lightblue.mediator;
 
+import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 
@@ -27,6 +28,7 @@ import org.junit.Test;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.redhat.lightblue.BaseResponse;
 import com.redhat.lightblue.EntityVersion;
 import com.redhat.lightblue.OperationStatus;
 import com.redhat.lightblue.Response;
@@ -475,6 +477,47 @@ public class MediatorTest extends AbstractMediatorTest {
         Assert.assertEquals("11290B > 11000B", response.getErrors().get(0).getMsg());
     }
 
+    @Test
+    public void findAndWriteTest() throws Exception {
+
+        final JsonNode sampleDoc = loadJsonNode("./sample1.json");
+
+        FindRequest req = new FindRequest();
+        req.setEntityVersion(new EntityVersion("test", "1.0"));
+
+        mdManager.md.getAccess().getFind().setRoles("anyone");
+        mockCrudController.findResponse = new CRUDFindResponse();
+        mockCrudController.findResponse.setSize(10);
+        mockCrudController.findCb=ctx->{
+            ArrayList<DocCtx> docs=new ArrayList<>();
+            for(int i=0;i<10;i++) {
+                docs.add(new DocCtx(new JsonDoc(sampleDoc),getRmd(Integer.toString(i))));
+            }
+            ctx.setDocumentStream(new ListDocumentStream<DocCtx>(docs));
+        };
+
+        mediator.factory.setMaxResultSetSizeForReadsB(-1);
+        Response response = mediator.find(req);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BaseResponse status = mediator.findAndWrite(req, out);
+        Assert.assertEquals(OperationStatus.COMPLETE, status.getStatus());
+        Assert.assertEquals(JsonUtils.json(response.toJson().toString()), JsonUtils.json(out.toString("UTF-8")));
+
+        mediator.factory.setMaxResultSetSizeForReadsB(2000);
+        out = new ByteArrayOutputStream();
+        status = mediator.findAndWrite(req, out);
+        Assert.assertEquals(OperationStatus.ERROR, status.getStatus());
+        Assert.assertEquals(1, status.getErrors().size());
+        Assert.assertEquals("crud:ResultSizeTooLarge", status.getErrors().get(0).getErrorCode());
+        JsonNode written = JsonUtils.json(out.toString("UTF-8"));
+        Assert.assertEquals("ERROR", written.get("status").asText());
+        // The document that would exceed the limit is not written
+        Assert.assertEquals(1, written.get("processed").size());
+        Assert.assertEquals(1, written.get("resultMetadata").size());
+        Assert.assertTrue(JsonUtils.getObjectMapper().writeValueAsBytes(written.get("processed").get(0)).length <= 2000);
+        Assert.assertEquals("crud:ResultSizeTooLarge", written.get("errors").get(0).get("errorCode").asText());
+    }
+
     @Test
     public void updateResultSetTooLargeTest() throws Exception {
 
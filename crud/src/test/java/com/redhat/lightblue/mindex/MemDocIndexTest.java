@@ -43,6 +43,7 @@ import com.redhat.lightblue.metadata.Metadata;
 import com.redhat.lightblue.metadata.types.DefaultTypes;
 import com.redhat.lightblue.metadata.test.DatabaseMetadata;
 
+import com.redhat.lightblue.assoc.BoundValue;
 import com.redhat.lightblue.assoc.QueryFieldInfo;
 
 import com.redhat.lightblue.query.*;
@@ -378,4 +379,156 @@ public class MemDocIndexTest extends AbstractJsonSchemaTest {
         Assert.assertEquals("field1:2",results.iterator().next().get(new Path("field1")).asText());
     }
 
+    @Test
+    public void sortedRangeValueLookupTest() throws Exception {
+        EntityMetadata md=getMd("testMetadata.json");
+        List<JsonDoc> docs=fill();
+
+        SimpleKeySpec spec=new SimpleKeySpec(qfi(md,"field1","field1"));
+        MemDocIndex index=new SortedMemDocIndex(spec);
+        
+        // Add all docs
+        for(JsonDoc doc:docs)
+            index.add(doc);
+
+        Set<JsonDoc> results=index.find(new RangeLookupSpec(spec,"field1:10","field1:15"));
+        Assert.assertEquals(6,results.size());
+        Set<String> values=results.stream().map(d->d.get(new Path("field1")).asText()).collect(Collectors.toSet());
+        for(int i=10;i<=15;i++)
+            Assert.assertTrue(values.contains("field1:"+i));
+
+        results=index.find(new ValueLookupSpec(spec,"field1:10"));
+        Assert.assertEquals(1,results.size());
+
+        results=index.find(new RangeLookupSpec(spec,"field1:15","field1:10"));
+        Assert.assertEquals(0,results.size());
+    }
+
+    @Test
+    public void openRangeLookupTest() throws Exception {
+        EntityMetadata md=getMd("testMetadata.json");
+        List<JsonDoc> docs=fill();
+
+        // field4 is i for even docs, null for odd docs
+        SimpleKeySpec spec=new SimpleKeySpec(qfi(md,"field4","field4"));
+        MemDocIndex index=new MemDocIndex(spec);
+        MemDocIndex sorted=new SortedMemDocIndex(spec);
+        for(JsonDoc doc:docs) {
+            index.add(doc);
+            sorted.add(doc);
+        }
+
+        // field4 >= 90
+        Assert.assertEquals(5,index.find(new RangeLookupSpec(spec,new Integer(90),null)).size());
+        Assert.assertEquals(5,sorted.find(new RangeLookupSpec(spec,new Integer(90),null)).size());
+        // field4 <= 8, includes nulls, the query evaluation filters them out
+        Assert.assertEquals(55,index.find(new RangeLookupSpec(spec,null,new Integer(8))).size());
+        Assert.assertEquals(55,sorted.find(new RangeLookupSpec(spec,null,new Integer(8))).size());
+    }
+
+    @Test
+    public void sortedPrefixLookupTest() throws Exception {
+        EntityMetadata md=getMd("testMetadata.json");
+        List<JsonDoc> docs=fill();
+
+        SimpleKeySpec spec=new SimpleKeySpec(qfi(md,"field1","field1"));
+        MemDocIndex index=new SortedMemDocIndex(spec);
+        for(JsonDoc doc:docs)
+            index.add(doc);
+
+        Assert.assertEquals(11,index.find(new PrefixLookupSpec(spec,"field1:1",false)).size());
+        Assert.assertEquals(11,index.find(new PrefixLookupSpec(spec,"FIELD1:1",true)).size());
+        Assert.assertEquals(0,index.find(new PrefixLookupSpec(spec,"FIELD1:1",false)).size());
+        Assert.assertEquals(100,index.find(new PrefixLookupSpec(spec,"",false)).size());
+    }
+
+    @Test
+    public void sortedCompositeLookupTest() throws Exception {
+        EntityMetadata md=getMd("testMetadata.json");
+        List<JsonDoc> docs=fill();
+
+        SimpleKeySpec spec1=new SimpleKeySpec(qfi(md,"field1","field1"));
+        SimpleKeySpec spec2=new SimpleKeySpec(qfi(md,"field2","field2"));
+        CompositeKeySpec aspec=new CompositeKeySpec(new KeySpec[] {spec1,spec2});
+        MemDocIndex index=new SortedMemDocIndex(aspec);
+        for(JsonDoc doc:docs)
+            index.add(doc);
+
+        Set<JsonDoc> results=index.find(new CompositeLookupSpec(new LookupSpec[] {new ValueLookupSpec(spec1,"field1:10"),
+                                                                                  new RangeLookupSpec(spec2,"field2:1","field2:2")}));
+        Assert.assertEquals(1,results.size());
+        results=index.find(new CompositeLookupSpec(new LookupSpec[] {new RangeLookupSpec(spec1,"field1:10","field1:15"),
+                                                                     new ValueLookupSpec(spec2,"field2:10")}));
+        Assert.assertEquals(1,results.size());
+        HashSet<Object> values=new HashSet<>();
+        values.add("field1:10");
+        values.add("field1:11");
+        results=index.find(new CompositeLookupSpec(new LookupSpec[] {new MultiValueLookupSpec(spec1,values),
+                                                                     new PrefixLookupSpec(spec2,"field2:1",false)}));
+        Assert.assertEquals(2,results.size());
+    }
+
+    @Test
+    public void sortedArrayLookupTest() throws Exception {
+        EntityMetadata md=getMd("testMetadata.json");
+        List<JsonDoc> docs=fill();
+
+        QueryFieldInfo array=qfi(md,"field7","field7");
+        SimpleKeySpec spec1=new SimpleKeySpec(qfi(md,"elemf1","field7.*.elemf1"));
+        SimpleKeySpec spec2=new SimpleKeySpec(qfi(md,"elemf2","field7.*.elemf2"));
+        ArrayKeySpec aspec=new ArrayKeySpec(array,new SimpleKeySpec[] {spec1,spec2});
+        MemDocIndex index=new SortedMemDocIndex(aspec);
+        for(JsonDoc doc:docs)
+            index.add(doc);
+
+        Set<JsonDoc> results=index.find(new ArrayLookupSpec(new LookupSpec[]{new ValueLookupSpec(spec1,"doc:2 elemf1:10"),
+                                                                             new PrefixLookupSpec(spec2,"doc:2 elemf2:1",false)}));
+        Assert.assertEquals(1,results.size());
+        Assert.assertEquals("field1:2",results.iterator().next().get(new Path("field1")).asText());
+    }
+
+    @Test
+    public void boundLookupTemplateTest() throws Exception {
+        EntityMetadata md=getMd("testMetadata.json");
+        List<JsonDoc> docs=fill();
+
+        BoundValue p1=new BoundValue(null);
+        BoundValue p2=new BoundValue(null);
+        ValueComparisonExpression q1=new ValueComparisonExpression(new Path("field1"),BinaryComparisonOperator._eq,p1);
+        ValueComparisonExpression q2=new ValueComparisonExpression(new Path("field4"),BinaryComparisonOperator._gte,p2);
+        QueryExpression q=new NaryLogicalExpression(NaryLogicalOperator._and,q1,q2);
+        List<QueryFieldInfo> fields=new ArrayList<>();
+        fields.add(new QueryFieldInfo(new Path("field1"),null,md.resolve(new Path("field1")),null,new Path("field1"),new Path("field1"),q1,true));
+        fields.add(new QueryFieldInfo(new Path("field4"),null,md.resolve(new Path("field4")),null,new Path("field4"),new Path("field4"),q2,true));
+        KeySpec keySpec=new GetIndexKeySpec(fields).iterate(q);
+        MemDocIndex index=new SortedMemDocIndex(keySpec);
+        for(JsonDoc doc:docs)
+            index.add(doc);
+
+        List<Object> parameters=new ArrayList<>();
+        parameters.add(p1);
+        parameters.add(p2);
+        LookupSpecTemplate template=new GetIndexLookupSpecTemplate(fields,parameters).iterate(q);
+
+        // field1 in [...] and field4>=11. field4 is null for odd docs
+        List<Value> field1s=new ArrayList<>();
+        field1s.add(new Value("field1:10"));
+        field1s.add(new Value("field1:12"));
+        field1s.add(new Value("field1:13"));
+        Set<JsonDoc> results=index.find(template.bind(new Object[] {field1s,new Value(11)}));
+        Assert.assertEquals(1,results.size());
+        Assert.assertEquals("field1:12",results.iterator().next().get(new Path("field1")).asText());
+
+        // field4>=any of [13,11] is field4>=11
+        List<Value> field4s=new ArrayList<>();
+        field4s.add(new Value(13));
+        field4s.add(new Value(11));
+        Assert.assertEquals(results,index.find(template.bind(new Object[] {field1s,field4s})));
+
+        // Comparison with null doesn't bound the range
+        results=index.find(template.bind(new Object[] {new Value("field1:10"),new Value(null)}));
+        Assert.assertEquals(1,results.size());
+        Assert.assertEquals("field1:10",results.iterator().next().get(new Path("field1")).asText());
+    }
+
 }
@@ -0,0 +1,441 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.metadata;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.redhat.lightblue.Response;
+
+/**
+ * A Metadata decorator that caches entity metadata, entity info, entity
+ * names and entity versions retrieved from the underlying metadata.
+ *
+ * <ul>
+ * <li>A cache entry expires ttlMs milliseconds after it is loaded.</li>
+ * <li>If refreshAheadMs is positive, an entry older than refreshAheadMs is
+ * reloaded asynchronously by one of refreshThreads daemon threads, while the
+ * old value is returned until the reload completes. If too many reloads are
+ * pending, the entry is reloaded when it expires.</li>
+ * <li>Concurrent requests for the same missing or expired entry wait for a
+ * single load from the underlying metadata.</li>
+ * <li>Modifications made through this object invalidate the entries of the
+ * modified entity, and the entity names. Modifications made on other
+ * nodes are detected using a {@link ChangeTokenProvider}, if one is
+ * set. The whole cache is invalidated when the change token changes.</li>
+ * </ul>
+ *
+ * The cached objects are shared between callers, so they must not be
+ * modified.
+ *
+ * The cache is not serialized. The change token provider is serialized
+ * only if it is Serializable, otherwise it is lost, and has to be set again
+ * after deserialization.
+ */
+public class CachingMetadata implements Metadata {
+
+    private static final long serialVersionUID = 1l;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CachingMetadata.class);
+
+    public static final int DEFAULT_REFRESH_THREADS = 1;
+
+    private static final int MAX_PENDING_REFRESHES = 1000;
+
+    private static final AtomicInteger threadNumber = new AtomicInteger();
+
+    /**
+     * Provides a token that changes whenever metadata is modified, possibly
+     * on another node. For instance, a timestamp or a counter stored in the
+     * metadata store.
+     */
+    @FunctionalInterface
+    public interface ChangeTokenProvider {
+        Object getChangeToken();
+    }
+
+    private enum KeyType {
+        METADATA, INFO, NAMES, VERSIONS
+    }
+
+    private static final class Key {
+        private final KeyType type;
+        private final String entityName;
+        private final String version;
+
+        Key(KeyType type, String entityName, String version) {
+            this.type = type;
+            this.entityName = entityName;
+            this.version = version;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof Key) {
+                Key k = (Key) o;
+                return type == k.type && Objects.equals(entityName, k.entityName) && Objects.equals(version, k.version);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(type, entityName, version);
+        }
+
+        @Override
+        public String toString() {
+            return type + ":" + entityName + ":" + version;
+        }
+    }
+
+    private static final class Entry {
+        private final CompletableFuture<Object> value = new CompletableFuture<>();
+        private final AtomicBoolean loading = new AtomicBoolean();
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+        private volatile long loadedAt;
+
+        static Entry loaded(Object v) {
+            Entry e = new Entry();
+            e.loading.set(true);
+            e.complete(v);
+            return e;
+        }
+
+        void complete(Object v) {
+            loadedAt = System.currentTimeMillis();
+            value.complete(v);
+        }
+
+        boolean isLoaded() {
+            return value.isDone() && !value.isCompletedExceptionally();
+        }
+
+        boolean isExpired(long now, long ttlMs) {
+            return isLoaded() && now - loadedAt >= ttlMs;
+        }
+    }
+
+    private final Metadata metadata;
+    private final long ttlMs;
+    private final long refreshAheadMs;
+    private final int refreshThreads;
+
+    private transient ConcurrentHashMap<Key, Entry> cache = new ConcurrentHashMap<>();
+    private transient ThreadPoolExecutor refreshExecutor;
+
+    private transient ChangeTokenProvider changeTokenProvider;
+    private long changeTokenCheckMs;
+    private transient AtomicLong lastChangeTokenCheck = new AtomicLong();
+    private transient volatile Object lastChangeToken;
+
+    /**
+     * Constructs a caching metadata
+     *
+     * @param metadata The underlying metadata
+     * @param ttlMs The time an entry stays in the cache after it is loaded
+     * @param refreshAheadMs The age after which an entry is reloaded
+     * asynchronously. If not positive, or not less than ttlMs, entries are not
+     * refreshed ahead of expiry.
+     */
+    public CachingMetadata(Metadata metadata, long ttlMs, long refreshAheadMs) {
+        this(metadata, ttlMs, refreshAheadMs, DEFAULT_REFRESH_THREADS);
+    }
+
+    /**
+     * Constructs a caching metadata
+     *
+     * @param metadata The underlying metadata
+     * @param ttlMs The time an entry stays in the cache after it is loaded
+     * @param refreshAheadMs The age after which an entry is reloaded
+     * asynchronously. If not positive, or not less than ttlMs, entries are not
+     * refreshed ahead of expiry.
+     * @param refreshThreads The maximum number of threads reloading entries
+     * asynchronously
+     */
+    public CachingMetadata(Metadata metadata, long ttlMs, long refreshAheadMs, int refreshThreads) {
+        this.metadata = metadata;
+        this.ttlMs = ttlMs;
+        this.refreshAheadMs = refreshAheadMs > 0 && refreshAheadMs < ttlMs ? refreshAheadMs : 0;
+        this.refreshThreads = refreshThreads > 0 ? refreshThreads : DEFAULT_REFRESH_THREADS;
+        if (this.refreshAheadMs > 0) {
+            refreshExecutor = new ThreadPoolExecutor(this.refreshThreads, this.refreshThreads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(MAX_PENDING_REFRESHES), r -> {
+                        Thread t = new Thread(r, "lightblue-metadata-refresh-" + threadNumber.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    });
+            refreshExecutor.allowCoreThreadTimeOut(true);
+        }
+    }
+
+    /**
+     * Returns the underlying metadata
+     */
+    public Metadata getMetadata() {
+        return metadata;
+    }
+
+    /**
+     * Returns the maximum number of threads reloading entries asynchronously
+     */
+    public int getRefreshThreads() {
+        return refreshThreads;
+    }
+
+    /**
+     * Returns the change token provider, or null if there isn't one
+     */
+    public ChangeTokenProvider getChangeTokenProvider() {
+        return changeTokenProvider;
+    }
+
+    public long getChangeTokenCheckMs() {
+        return changeTokenCheckMs;
+    }
+
+    /**
+     * Sets the change token provider used to detect metadata changes made
+     * on other nodes. The token is checked at most once every checkMs
+     * milliseconds.
+     */
+    public void setChangeTokenProvider(ChangeTokenProvider provider, long checkMs) {
+        this.changeTokenProvider = provider;
+        this.changeTokenCheckMs = checkMs;
+        this.lastChangeToken = null;
+        this.lastChangeTokenCheck.set(0);
+    }
+
+    /**
+     * Removes the cached entries for the entity, and the cached entity names
+     */
+    public void invalidate(String entityName) {
+        LOGGER.debug("Invalidating {}", entityName);
+        cache.keySet().removeIf(k -> k.type == KeyType.NAMES || Objects.equals(k.entityName, entityName));
+    }
+
+    /**
+     * Removes all the cached entries
+     */
+    public void invalidateAll() {
+        LOGGER.debug("Invalidating all");
+        cache.clear();
+    }
+
+    @Override
+    public EntityMetadata getEntityMetadata(String entityName, String version) {
+        EntityMetadata md = get(new Key(KeyType.METADATA, entityName, version),
+                () -> metadata.getEntityMetadata(entityName, version));
+        if (version == null && md != null && md.getVersion() != null) {
+            // Default version resolution also gives the entry for that version
+            cache.putIfAbsent(new Key(KeyType.METADATA, entityName, md.getVersion().getValue()), Entry.loaded(md));
+        }
+        return md;
+    }
+
+    @Override
+    public EntityInfo getEntityInfo(String entityName) {
+        return get(new Key(KeyType.INFO, entityName, null),
+                () -> metadata.getEntityInfo(entityName));
+    }
+
+    @Override
+    public String[] getEntityNames(MetadataStatus... statuses) {
+        MetadataStatus[] s = statuses == null ? new MetadataStatus[0] : statuses.clone();
+        Arrays.sort(s);
+        String[] names = get(new Key(KeyType.NAMES, null, Arrays.toString(s)),
+                () -> metadata.getEntityNames(statuses));
+        return names == null ? null : names.clone();
+    }
+
+    @Override
+    public VersionInfo[] getEntityVersions(String entityName) {
+        VersionInfo[] versions = get(new Key(KeyType.VERSIONS, entityName, null),
+                () -> metadata.getEntityVersions(entityName));
+        return versions == null ? null : versions.clone();
+    }
+
+    @Override
+    public Response getDependencies(String entityName, String version) {
+        return metadata.getDependencies(entityName, version);
+    }
+
+    @Override
+    public Response getAccess(String entityName, String version) {
+        return metadata.getAccess(entityName, version);
+    }
+
+    @Override
+    public Map<MetadataRole, List<String>> getMappedRoles() {
+        return metadata.getMappedRoles();
+    }
+
+    @Override
+    public void createNewMetadata(EntityMetadata md) {
+        try {
+            metadata.createNewMetadata(md);
+        } finally {
+            invalidate(md.getName());
+        }
+    }
+
+    @Override
+    public void createNewSchema(EntityMetadata md) {
+        try {
+            metadata.createNewSchema(md);
+        } finally {
+            invalidate(md.getName());
+        }
+    }
+
+    @Override
+    public void updateEntityInfo(EntityInfo ei) {
+        try {
+            metadata.updateEntityInfo(ei);
+        } finally {
+            invalidate(ei.getName());
+        }
+    }
+
+    @Override
+    public void setMetadataStatus(String entityName, String version, MetadataStatus newStatus, String comment) {
+        try {
+            metadata.setMetadataStatus(entityName, version, newStatus, comment);
+        } finally {
+            invalidate(entityName);
+        }
+    }
+
+    @Override
+    public void removeEntity(String entityName) {
+        try {
+            metadata.removeEntity(entityName);
+        } finally {
+            invalidate(entityName);
+        }
+    }
+
+    /**
+     * Invalidates the cache if the change token changed since the last check
+     */
+    private void checkChangeToken() {
+        if (changeTokenProvider != null) {
+            long now = System.currentTimeMillis();
+            long last = lastChangeTokenCheck.get();
+            // Only one thread checks the token at a time
+            if (now - last >= changeTokenCheckMs && lastChangeTokenCheck.compareAndSet(last, now)) {
+                try {
+                    Object token = changeTokenProvider.getChangeToken();
+                    if (!Objects.equals(token, lastChangeToken)) {
+                        LOGGER.debug("Change token changed from {} to {}", lastChangeToken, token);
+                        invalidateAll();
+                        lastChangeToken = token;
+                    }
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Cannot get metadata change token: {}", e.toString());
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T get(Key key, Supplier<T> loader) {
+        checkChangeToken();
+        long now = System.currentTimeMillis();
+        Entry entry = cache.compute(key, (k, old) -> old == null || old.isExpired(now, ttlMs) ? new Entry() : old);
+        if (entry.loading.compareAndSet(false, true)) {
+            LOGGER.debug("Loading {}", key);
+            try {
+                entry.complete(loader.get());
+            } catch (RuntimeException e) {
+                // Failures are not cached
+                cache.remove(key, entry);
+                entry.value.completeExceptionally(e);
+                throw e;
+            }
+        } else if (refreshAheadMs > 0 && entry.isLoaded() && now - entry.loadedAt >= refreshAheadMs
+                && entry.refreshing.compareAndSet(false, true)) {
+            LOGGER.debug("Refreshing {}", key);
+            try {
+                refreshExecutor.execute(() -> {
+                    try {
+                        // If the entry was invalidated meanwhile, the refreshed value is dropped
+                        cache.replace(key, entry, Entry.loaded(loader.get()));
+                    } catch (RuntimeException e) {
+                        LOGGER.warn("Cannot refresh {}: {}", key, e.toString());
+                        entry.refreshing.set(false);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                LOGGER.debug("Too many pending refreshes, {} is reloaded when it expires", key);
+                entry.refreshing.set(false);
+            }
+        }
+        try {
+            return (T) entry.value.get();
+        } catch (ExecutionException | CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            } else {
+                throw new RuntimeException(e.getCause());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeObject(changeTokenProvider instanceof Serializable ? changeTokenProvider : null);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        changeTokenProvider = (ChangeTokenProvider) in.readObject();
+    }
+
+    private Object readResolve() {
+        CachingMetadata m = new CachingMetadata(metadata, ttlMs, refreshAheadMs, refreshThreads);
+        m.changeTokenProvider = changeTokenProvider;
+        m.changeTokenCheckMs = changeTokenCheckMs;
+        return m;
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.metadata;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.redhat.lightblue.metadata.types.UIDType;
+import com.redhat.lightblue.util.Path;
+
+/**
+ * The fields of an entity that need processing when documents are
+ * inserted or saved: UID fields, generated fields, array size fields, and
+ * fields with constraints.
+ *
+ * The plan is built with a single pass over the metadata field tree, and
+ * lists the fields in field tree order. Document preparation steps
+ * iterate over the fields in the plan instead of walking the whole
+ * metadata field tree for every document. The steps still run
+ * separately, each visiting its own fields of the document, because
+ * they run at different points of the insert/save pipeline.
+ *
+ * Use EntityMetadata.getDocumentFieldPlan to get the plan of an entity.
+ * The plan is built the first time it is requested, and discarded when
+ * the metadata is modified through EntityMetadata, or by calling
+ * EntityMetadata.invalidateDerivedData.
+ */
+public final class DocumentFieldPlan {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DocumentFieldPlan.class);
+
+    /**
+     * A field in the plan
+     */
+    public static class PlannedField {
+        private final Path path;
+        private final FieldTreeNode node;
+
+        public PlannedField(Path path, FieldTreeNode node) {
+            this.path = path;
+            this.node = node;
+        }
+
+        /**
+         * Returns the field name, with '*' for array indexes
+         */
+        public Path getPath() {
+            return path;
+        }
+
+        public FieldTreeNode getNode() {
+            return node;
+        }
+
+        @Override
+        public String toString() {
+            return path.toString();
+        }
+    }
+
+    /**
+     * A field with constraints
+     */
+    public static class ConstrainedField extends PlannedField {
+        private final List<FieldConstraint> constraints;
+
+        public ConstrainedField(Path path, FieldTreeNode node, List<FieldConstraint> constraints) {
+            super(path, node);
+            this.constraints = constraints;
+        }
+
+        public List<FieldConstraint> getConstraints() {
+            return constraints;
+        }
+    }
+
+    /**
+     * An array size field, and the array field it counts
+     */
+    public static class ArraySizeField {
+        private final Path sizeField;
+        private final Path arrayField;
+
+        public ArraySizeField(Path sizeField, Path arrayField) {
+            this.sizeField = sizeField;
+            this.arrayField = arrayField;
+        }
+
+        public Path getSizeField() {
+            return sizeField;
+        }
+
+        public Path getArrayField() {
+            return arrayField;
+        }
+
+        @Override
+        public String toString() {
+            return sizeField.toString();
+        }
+    }
+
+    private final List<PlannedField> uidFields = new ArrayList<>();
+    private final List<PlannedField> generatedFields = new ArrayList<>();
+    private final List<ArraySizeField> arraySizeFields = new ArrayList<>();
+    private final List<ConstrainedField> constrainedFields = new ArrayList<>();
+
+    /**
+     * Builds the plan for the given entity
+     */
+    public DocumentFieldPlan(EntityMetadata md) {
+        FieldCursor cursor = md.getFieldCursor();
+        Path skip = null;
+        while (cursor.next()) {
+            FieldTreeNode node = cursor.getCurrentNode();
+            Path path = cursor.getCurrentPath();
+            if (node.getType().equals(UIDType.TYPE)) {
+                uidFields.add(new PlannedField(path, node));
+            }
+            if (node instanceof SimpleField && ((SimpleField) node).getValueGenerator() != null) {
+                generatedFields.add(new PlannedField(path, node));
+            }
+            if (PredefinedFields.doesFieldNameMatchArrayCountPattern(node.getName())) {
+                addArraySizeField(md, path);
+            }
+            // Constraints are not checked for fields reached by
+            // crossing entity boundaries
+            if (skip != null && !path.prefix(skip.numSegments()).equals(skip)) {
+                skip = null;
+            }
+            if (skip == null && node instanceof ResolvedReferenceField) {
+                skip = node.getFullPath();
+            }
+            if (skip == null) {
+                List<FieldConstraint> constraints = null;
+                if (node instanceof Field) {
+                    constraints = ((Field) node).getConstraints();
+                } else if (node instanceof SimpleArrayElement) {
+                    constraints = ((SimpleArrayElement) node).getConstraints();
+                }
+                if (constraints != null && !constraints.isEmpty()) {
+                    constrainedFields.add(new ConstrainedField(path, node, constraints));
+                }
+            }
+        }
+        LOGGER.debug("Document field plan for {}: uid={} generated={} arraySize={} constrained={}",
+                md.getName(), uidFields, generatedFields, arraySizeFields, constrainedFields);
+    }
+
+    private void addArraySizeField(EntityMetadata md, Path sizeField) {
+        String s = sizeField.toString();
+        Path arrayField = new Path(s.substring(0, s.length() - 1));
+        try {
+            if (md.resolve(arrayField) != null) {
+                arraySizeFields.add(new ArraySizeField(sizeField, arrayField));
+            }
+        } catch (Exception e) {
+            // Not an array size field
+        }
+    }
+
+    /**
+     * Returns the fields of UID type
+     */
+    public List<PlannedField> getUIDFields() {
+        return Collections.unmodifiableList(uidFields);
+    }
+
+    /**
+     * Returns the simple fields with value generators
+     */
+    public List<PlannedField> getGeneratedFields() {
+        return Collections.unmodifiableList(generatedFields);
+    }
+
+    /**
+     * Returns the array size fields whose array fields exist
+     */
+    public List<ArraySizeField> getArraySizeFields() {
+        return Collections.unmodifiableList(arraySizeFields);
+    }
+
+    /**
+     * Returns the fields with constraints, excluding the fields of
+     * referenced entities
+     */
+    public List<ConstrainedField> getConstrainedFields() {
+        return Collections.unmodifiableList(constrainedFields);
+    }
+}
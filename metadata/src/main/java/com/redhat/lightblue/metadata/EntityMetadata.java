@@ -25,6 +25,8 @@ import com.redhat.lightblue.util.JsonCompare;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 
 /**
  * Container for info and schema metadata, gives details of a single version of
@@ -36,6 +38,8 @@ public class EntityMetadata extends MetadataObject {
 
     private final EntityInfo info;
     private final EntitySchema schema;
+    private transient volatile DocumentFieldPlan documentFieldPlan;
+    private transient volatile ConcurrentHashMap<Object, Object> derivedData;
 
     public EntityMetadata(String name) {
         this(new EntityInfo(name), new EntitySchema(name));
@@ -75,6 +79,7 @@ public class EntityMetadata extends MetadataObject {
      */
     public void setStatus(MetadataStatus status) {
         schema.setStatus(status);
+        invalidateDerivedData();
     }
 
     /**
@@ -89,6 +94,7 @@ public class EntityMetadata extends MetadataObject {
      */
     public void setStatusChangeLog(Collection<StatusChange> log) {
         schema.setStatusChangeLog(log);
+        invalidateDerivedData();
     }
 
     /**
@@ -107,6 +113,7 @@ public class EntityMetadata extends MetadataObject {
      */
     public void setVersion(Version argVersion) {
         schema.setVersion(argVersion);
+        invalidateDerivedData();
     }
 
     /**
@@ -130,6 +137,7 @@ public class EntityMetadata extends MetadataObject {
      */
     public void setConstraints(Collection<EntityConstraint> constraints) {
         schema.setConstraints(constraints);
+        invalidateDerivedData();
     }
 
     /**
@@ -148,6 +156,7 @@ public class EntityMetadata extends MetadataObject {
      */
     public void setDataStore(DataStore argDataStore) {
         info.setDataStore(argDataStore);
+        invalidateDerivedData();
     }
 
     /**
@@ -182,6 +191,59 @@ public class EntityMetadata extends MetadataObject {
         return schema.resolve(p);
     }
 
+    /**
+     * Returns the fields that need processing when documents are inserted
+     * or saved. The plan is built on the first call, and reused until
+     * the metadata is modified.
+     */
+    public DocumentFieldPlan getDocumentFieldPlan() {
+        DocumentFieldPlan plan = documentFieldPlan;
+        if (plan == null) {
+            plan = new DocumentFieldPlan(this);
+            documentFieldPlan = plan;
+        }
+        return plan;
+    }
+
+    /**
+     * Returns the data derived from this metadata for the given key,
+     * building it with the given function if there isn't one. This is
+     * used to cache per-entity structures built by other modules, such
+     * as compiled constraints. The key is compared using equals.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getDerivedData(Object key, Function<EntityMetadata, T> builder) {
+        ConcurrentHashMap<Object, Object> data = derivedData;
+        if (data == null) {
+            synchronized (this) {
+                data = derivedData;
+                if (data == null) {
+                    derivedData = data = new ConcurrentHashMap<>();
+                }
+            }
+        }
+        Object value = data.get(key);
+        if (value == null) {
+            value = builder.apply(this);
+            Object old = data.putIfAbsent(key, value);
+            if (old != null) {
+                value = old;
+            }
+        }
+        return (T) value;
+    }
+
+    /**
+     * Discards the document field plan and all derived data, so they
+     * are built again the next time they are requested. The setters of
+     * this class call this. Code that modifies the field tree directly,
+     * using getFields(), must call this after the modification.
+     */
+    public void invalidateDerivedData() {
+        documentFieldPlan = null;
+        derivedData = null;
+    }
+
     /**
      * Verifies that the entity info and entity schema as a whole are valid. For
      * example, are all enum constraints in entity schema referencing an enum
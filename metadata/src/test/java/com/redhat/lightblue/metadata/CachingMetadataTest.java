@@ -0,0 +1,296 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.metadata;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.redhat.lightblue.Response;
+
+public class CachingMetadataTest {
+
+    /**
+     * Counts the calls, and returns a new metadata object for every call
+     */
+    private static class CountingMetadata implements Metadata {
+
+        private static final long serialVersionUID = 1l;
+
+        final AtomicInteger mdCalls = new AtomicInteger();
+        final AtomicInteger namesCalls = new AtomicInteger();
+        final AtomicInteger versionsCalls = new AtomicInteger();
+        volatile long delayMs = 0;
+        volatile boolean fail = false;
+        volatile String lastThread;
+
+        @Override
+        public EntityMetadata getEntityMetadata(String entityName, String version) {
+            mdCalls.incrementAndGet();
+            lastThread = Thread.currentThread().getName();
+            if (delayMs > 0) {
+                try {
+                    Thread.sleep(delayMs);
+                } catch (InterruptedException e) {
+                }
+            }
+            if (fail) {
+                throw new IllegalStateException("fail");
+            }
+            EntityMetadata md = new EntityMetadata(entityName);
+            md.getEntitySchema().setVersion(new Version(version == null ? "1.0.0" : version, null, null));
+            return md;
+        }
+
+        @Override
+        public EntityInfo getEntityInfo(String entityName) {
+            return new EntityInfo(entityName);
+        }
+
+        @Override
+        public String[] getEntityNames(MetadataStatus... statuses) {
+            namesCalls.incrementAndGet();
+            return new String[]{"a", "b"};
+        }
+
+        @Override
+        public VersionInfo[] getEntityVersions(String entityName) {
+            versionsCalls.incrementAndGet();
+            return new VersionInfo[0];
+        }
+
+        @Override
+        public Response getDependencies(String entityName, String version) {
+            return null;
+        }
+
+        @Override
+        public Response getAccess(String entityName, String version) {
+            return null;
+        }
+
+        @Override
+        public void createNewMetadata(EntityMetadata md) {
+        }
+
+        @Override
+        public void createNewSchema(EntityMetadata md) {
+        }
+
+        @Override
+        public void updateEntityInfo(EntityInfo ei) {
+        }
+
+        @Override
+        public void setMetadataStatus(String entityName, String version, MetadataStatus newStatus, String comment) {
+        }
+
+        @Override
+        public void removeEntity(String entityName) {
+        }
+
+        @Override
+        public Map<MetadataRole, List<String>> getMappedRoles() {
+            return null;
+        }
+    }
+
+    @Test
+    public void testCacheAndInvalidate() {
+        CountingMetadata md = new CountingMetadata();
+        CachingMetadata cmd = new CachingMetadata(md, 60000, 0);
+
+        EntityMetadata x = cmd.getEntityMetadata("a", "1.0.0");
+        Assert.assertSame(x, cmd.getEntityMetadata("a", "1.0.0"));
+        Assert.assertEquals(1, md.mdCalls.get());
+
+        // Default version resolution also caches the resolved version
+        EntityMetadata def = cmd.getEntityMetadata("b", null);
+        Assert.assertSame(def, cmd.getEntityMetadata("b", null));
+        Assert.assertSame(def, cmd.getEntityMetadata("b", "1.0.0"));
+        Assert.assertEquals(2, md.mdCalls.get());
+
+        cmd.getEntityNames();
+        cmd.getEntityNames(MetadataStatus.ACTIVE, MetadataStatus.DEPRECATED);
+        cmd.getEntityNames(MetadataStatus.DEPRECATED, MetadataStatus.ACTIVE);
+        cmd.getEntityVersions("a");
+        cmd.getEntityVersions("a");
+        Assert.assertEquals(2, md.namesCalls.get());
+        Assert.assertEquals(1, md.versionsCalls.get());
+
+        // Modifying b invalidates b and the names, but not a
+        cmd.setMetadataStatus("b", "1.0.0", MetadataStatus.DISABLED, null);
+        Assert.assertNotSame(def, cmd.getEntityMetadata("b", "1.0.0"));
+        Assert.assertSame(x, cmd.getEntityMetadata("a", "1.0.0"));
+        cmd.getEntityNames();
+        cmd.getEntityVersions("a");
+        Assert.assertEquals(3, md.mdCalls.get());
+        Assert.assertEquals(3, md.namesCalls.get());
+        Assert.assertEquals(1, md.versionsCalls.get());
+
+        cmd.removeEntity("a");
+        Assert.assertNotSame(x, cmd.getEntityMetadata("a", "1.0.0"));
+        Assert.assertEquals(4, md.mdCalls.get());
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        CountingMetadata md = new CountingMetadata();
+        CachingMetadata cmd = new CachingMetadata(md, 50, 0);
+
+        EntityMetadata x = cmd.getEntityMetadata("a", "1.0.0");
+        Assert.assertSame(x, cmd.getEntityMetadata("a", "1.0.0"));
+        Thread.sleep(100);
+        Assert.assertNotSame(x, cmd.getEntityMetadata("a", "1.0.0"));
+        Assert.assertEquals(2, md.mdCalls.get());
+    }
+
+    @Test
+    public void testSingleLoadForConcurrentRequests() throws Exception {
+        CountingMetadata md = new CountingMetadata();
+        md.delayMs = 200;
+        CachingMetadata cmd = new CachingMetadata(md, 60000, 0);
+
+        int n = 10;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        List<EntityMetadata> results = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                }
+                EntityMetadata x = cmd.getEntityMetadata("a", "1.0.0");
+                synchronized (results) {
+                    results.add(x);
+                }
+            });
+            t.start();
+            threads.add(t);
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        Assert.assertEquals(1, md.mdCalls.get());
+        Assert.assertEquals(n, results.size());
+        for (EntityMetadata x : results) {
+            Assert.assertSame(results.get(0), x);
+        }
+    }
+
+    @Test
+    public void testRefreshAhead() throws Exception {
+        CountingMetadata md = new CountingMetadata();
+        CachingMetadata cmd = new CachingMetadata(md, 60000, 50);
+
+        EntityMetadata x = cmd.getEntityMetadata("a", "1.0.0");
+        Thread.sleep(100);
+        // The old value is returned, and a reload starts
+        Assert.assertSame(x, cmd.getEntityMetadata("a", "1.0.0"));
+        for (int i = 0; i < 100 && md.mdCalls.get() < 2; i++) {
+            Thread.sleep(10);
+        }
+        EntityMetadata y = null;
+        for (int i = 0; i < 100 && (y = cmd.getEntityMetadata("a", "1.0.0")) == x; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertNotSame(x, y);
+        Assert.assertSame(y, cmd.getEntityMetadata("a", "1.0.0"));
+        // Reloaded by the refresh executor of the cache
+        Assert.assertTrue(md.lastThread.startsWith("lightblue-metadata-refresh-"));
+    }
+
+    @Test
+    public void testFailuresAreNotCached() {
+        CountingMetadata md = new CountingMetadata();
+        CachingMetadata cmd = new CachingMetadata(md, 60000, 0);
+
+        md.fail = true;
+        try {
+            cmd.getEntityMetadata("a", "1.0.0");
+            Assert.fail();
+        } catch (IllegalStateException e) {
+        }
+        md.fail = false;
+        Assert.assertNotNull(cmd.getEntityMetadata("a", "1.0.0"));
+        Assert.assertEquals(2, md.mdCalls.get());
+    }
+
+    @Test
+    public void testChangeToken() {
+        CountingMetadata md = new CountingMetadata();
+        CachingMetadata cmd = new CachingMetadata(md, 60000, 0);
+        AtomicInteger token = new AtomicInteger();
+        cmd.setChangeTokenProvider(() -> token.get(), 0);
+
+        EntityMetadata x = cmd.getEntityMetadata("a", "1.0.0");
+        Assert.assertSame(x, cmd.getEntityMetadata("a", "1.0.0"));
+        // Changed on another node
+        token.incrementAndGet();
+        Assert.assertNotSame(x, cmd.getEntityMetadata("a", "1.0.0"));
+        Assert.assertEquals(2, md.mdCalls.get());
+    }
+
+    private static class SerializableTokenProvider implements CachingMetadata.ChangeTokenProvider, java.io.Serializable {
+        private static final long serialVersionUID = 1l;
+
+        @Override
+        public Object getChangeToken() {
+            return "token";
+        }
+    }
+
+    private static CachingMetadata serializeAndDeserialize(CachingMetadata cmd) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(cmd);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return (CachingMetadata) in.readObject();
+        }
+    }
+
+    @Test
+    public void testSerialization() throws Exception {
+        CachingMetadata cmd = new CachingMetadata(new CountingMetadata(), 60000, 50, 2);
+        cmd.setChangeTokenProvider(new SerializableTokenProvider(), 500);
+        CachingMetadata copy = serializeAndDeserialize(cmd);
+        Assert.assertEquals(2, copy.getRefreshThreads());
+        Assert.assertEquals(500, copy.getChangeTokenCheckMs());
+        Assert.assertTrue(copy.getChangeTokenProvider() instanceof SerializableTokenProvider);
+        Assert.assertNotNull(copy.getEntityMetadata("a", "1.0.0"));
+
+        // A provider that is not serializable is lost
+        cmd.setChangeTokenProvider(() -> "token", 500);
+        copy = serializeAndDeserialize(cmd);
+        Assert.assertNull(copy.getChangeTokenProvider());
+        Assert.assertNotNull(copy.getEntityMetadata("a", "1.0.0"));
+    }
+}
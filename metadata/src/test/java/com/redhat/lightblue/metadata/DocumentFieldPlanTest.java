@@ -0,0 +1,119 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.metadata;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.redhat.lightblue.metadata.constraints.RequiredConstraint;
+import com.redhat.lightblue.metadata.types.IntegerType;
+import com.redhat.lightblue.metadata.types.StringType;
+import com.redhat.lightblue.metadata.types.UIDType;
+import com.redhat.lightblue.util.JsonDoc;
+import com.redhat.lightblue.util.Path;
+
+public class DocumentFieldPlanTest {
+
+    private EntityMetadata getMD() {
+        EntityMetadata md = new EntityMetadata("test");
+        SimpleField uid = new SimpleField("uid", UIDType.TYPE);
+        List<FieldConstraint> constraints = new ArrayList<>();
+        constraints.add(new RequiredConstraint());
+        uid.setConstraints(constraints);
+        md.getFields().addNew(uid);
+        md.getFields().addNew(new SimpleField("simpleString", StringType.TYPE));
+        md.getFields().addNew(new SimpleField("generated", IntegerType.TYPE,
+                new ValueGenerator(ValueGenerator.ValueGeneratorType.IntSequence)));
+        ObjectArrayElement element = new ObjectArrayElement();
+        element.getFields().addNew(new SimpleField("elemUid", UIDType.TYPE));
+        element.getFields().addNew(new SimpleField("elemString", StringType.TYPE));
+        md.getFields().addNew(new ArrayField("arr", element));
+        PredefinedFields.ensurePredefinedFields(md);
+        return md;
+    }
+
+    private static List<String> names(List<?> list) {
+        List<String> ret = new ArrayList<>();
+        for (Object x : list) {
+            ret.add(x.toString());
+        }
+        return ret;
+    }
+
+    @Test
+    public void planListsOnlyRelevantFields() {
+        DocumentFieldPlan plan = getMD().getDocumentFieldPlan();
+        Assert.assertEquals("[uid, arr.*.elemUid]", names(plan.getUIDFields()).toString());
+        Assert.assertEquals("[generated]", names(plan.getGeneratedFields()).toString());
+        Assert.assertEquals("[arr#]", names(plan.getArraySizeFields()).toString());
+        Assert.assertEquals(new Path("arr"), plan.getArraySizeFields().get(0).getArrayField());
+        // uid is required, objectType is required with minimum length
+        Assert.assertEquals("[uid, objectType]", names(plan.getConstrainedFields()).toString());
+    }
+
+    @Test
+    public void planIsCached() {
+        EntityMetadata md = getMD();
+        Assert.assertSame(md.getDocumentFieldPlan(), md.getDocumentFieldPlan());
+    }
+
+    @Test
+    public void planIsRebuiltAfterModification() {
+        EntityMetadata md = getMD();
+        DocumentFieldPlan plan = md.getDocumentFieldPlan();
+        md.setConstraints(new ArrayList<EntityConstraint>());
+        Assert.assertNotSame(plan, md.getDocumentFieldPlan());
+
+        plan = md.getDocumentFieldPlan();
+        md.getFields().addNew(new SimpleField("uid2", UIDType.TYPE));
+        md.invalidateDerivedData();
+        Assert.assertNotSame(plan, md.getDocumentFieldPlan());
+        Assert.assertEquals("[uid, arr.*.elemUid, uid2]", names(md.getDocumentFieldPlan().getUIDFields()).toString());
+    }
+
+    @Test
+    public void derivedDataIsCachedUntilModification() {
+        EntityMetadata md = getMD();
+        Object data = md.getDerivedData("key", m -> new Object());
+        Assert.assertSame(data, md.getDerivedData("key", m -> new Object()));
+        md.setConstraints(new ArrayList<EntityConstraint>());
+        Assert.assertNotSame(data, md.getDerivedData("key", m -> new Object()));
+    }
+
+    @Test
+    public void documentPreparationUsesPlan() throws Exception {
+        EntityMetadata md = getMD();
+        JsonNodeFactory factory = JsonNodeFactory.instance;
+        JsonDoc doc = new JsonDoc(factory.objectNode());
+        doc.modify(new Path("arr"), factory.arrayNode(), true);
+        doc.modify(new Path("arr.0"), factory.objectNode(), true);
+        doc.modify(new Path("arr.0.elemUid"), factory.nullNode(), true);
+        doc.modify(new Path("arr.1"), factory.objectNode(), true);
+        UIDFields.initializeUIDFields(factory, md, doc);
+        PredefinedFields.updateArraySizes(md, factory, doc);
+        Assert.assertTrue(doc.get(new Path("uid")).asText().length() > 0);
+        Assert.assertTrue(doc.get(new Path("arr.0.elemUid")).asText().length() > 0);
+        Assert.assertNull(doc.get(new Path("arr.1.elemUid")));
+        Assert.assertEquals(2, doc.get(new Path("arr#")).asInt());
+    }
+}
@@ -26,7 +26,6 @@ import java.util.HashMap;
 import java.util.ListIterator;
 import java.util.LinkedList;
 import java.util.Iterator;
-import java.util.HashSet;
 
 /**
  * Compares two documents represented as an object tree, and builds an list of
@@ -409,8 +408,16 @@ public abstract class DocComparator<BaseType, ValueType, ObjectType, ArrayType>
         }
     }
 
+    /**
+     * Default maximum number of element comparisons done to find the
+     * closest matches of array elements without identities
+     */
+    public static final int DEFAULT_MAX_NEAREST_MATCH_COMPARISONS = 1000000;
+
     private final Map<Path, ArrayIdentityFields> arrayIdentities = new HashMap<>();
 
+    private int maxNearestMatchComparisons = DEFAULT_MAX_NEAREST_MATCH_COMPARISONS;
+
     protected abstract boolean isValue(BaseType value);
 
     protected abstract boolean isArray(BaseType value);
@@ -427,6 +434,16 @@ public abstract class DocComparator<BaseType, ValueType, ObjectType, ArrayType>
 
     protected abstract boolean equals(ValueType v1, ValueType v2);
 
+    /**
+     * Returns a hash code for the value, such that values equal to each
+     * other have the same hash code. The default implementation returns
+     * 0 for all values, which is correct, but puts all elements of an
+     * array in the same bucket when looking for exact matches.
+     */
+    protected int hashValue(ValueType value) {
+        return 0;
+    }
+
     protected abstract Iterator<Map.Entry<String, BaseType>> getFields(ObjectType o);
 
     protected abstract boolean hasField(ObjectType value, String field);
@@ -470,6 +487,20 @@ public abstract class DocComparator<BaseType, ValueType, ObjectType, ArrayType>
         return arrayIdentities;
     }
 
+    public int getMaxNearestMatchComparisons() {
+        return maxNearestMatchComparisons;
+    }
+
+    /**
+     * Sets the maximum number of element comparisons done to find the
+     * closest matches of array elements without identities. Once this
+     * many comparisons are done for an array, the remaining elements are
+     * reported as removed and added.
+     */
+    public void setMaxNearestMatchComparisons(int n) {
+        maxNearestMatchComparisons = n;
+    }
+
     /**
      * Compares two documents and returns the difference
      */
@@ -619,31 +650,25 @@ public abstract class DocComparator<BaseType, ValueType, ObjectType, ArrayType>
         return ret;
     }
 
-    private static class Pair {
-        private final int i1, i2;
-
-        public int hashCode() {
-            return i1 * 1001 + i2;
-        }
-
-        public boolean equals(Object o) {
-            try {
-                return ((Pair) o).i1 == i1
-                        && ((Pair) o).i2 == i2;
-            } catch (Exception e) {
-                return false;
-            }
-        }
-
-        public Pair(int i1, int i2) {
-            this.i1 = i1;
-            this.i2 = i2;
-        }
-    }
-
     /**
      * Computes difference between arrays by comparing every element recursively
-     * and trying to find the closest match
+     * and trying to find the closest match.
+     *
+     * Elements are first associated with their exact matches. An element
+     * of the first array is associated with the first unassociated element
+     * of the second array with no differences. Exact matches are looked up
+     * using content hashes of the elements of the second array, so they
+     * are not compared with every other element. Every element of the
+     * first array without an exact match is then compared to all elements
+     * of the second array that were unassociated at the time it was
+     * considered for an exact match, and is associated with the closest.
+     *
+     * The closest match search is quadratic in the number of elements
+     * without exact matches. No more elements of the first array are
+     * compared once maxNearestMatchComparisons element comparisons are
+     * done. The elements of the first array that were not compared are
+     * reported as removed, and the unassociated elements of the second
+     * array as added.
      */
     public Difference<BaseType> compareArraysNoId(MutablePath field1,
                                                   ArrayType node1,
@@ -651,62 +676,81 @@ public abstract class DocComparator<BaseType, ValueType, ObjectType, ArrayType>
                                                   ArrayType node2)
             throws InvalidArrayIdentity, DuplicateArrayIdentity {
         Difference<BaseType> ret = new Difference<>();
-        IndexAssoc assoc = new IndexAssoc(size(node1), size(node2));
-        HashSet<Pair> comparedPairs = new HashSet<>();
-
-        // First associate exact matches
-        // We loop through the unassociated elements of node1, and node2
-        // If the nodes are equal, we associate them
-        // if they are not, we note the distance between the two, so later
-        // we don't need to re-compare them
-        for (assoc.start1(); assoc.hasNext1();) {
-            int index1 = assoc.next1();
-            BaseType element1 = getElement(node1, index1);
-            field1.push(index1);
-
-            for (assoc.start2(); assoc.hasNext2();) {
-                int index2 = assoc.next2();
-                BaseType element2 = getElement(node2, index2);
-                field2.push(index2);
-
-                comparedPairs.add(new Pair(index1, index2));
+        int size1 = size(node1);
+        int size2 = size(node2);
+        IndexAssoc assoc = new IndexAssoc(size1, size2);
+
+        // Bucket the elements of node2 by content hash, keeping the
+        // indexes in each bucket in ascending order
+        Map<Integer, List<Integer>> buckets = new HashMap<>();
+        for (int index2 = 0; index2 < size2; index2++) {
+            Integer hash = contentHash(getElement(node2, index2));
+            List<Integer> bucket = buckets.get(hash);
+            if (bucket == null) {
+                bucket = new ArrayList<>(1);
+                buckets.put(hash, bucket);
+            }
+            bucket.add(index2);
+        }
 
-                Difference diff = compareNodes(field1, element1, field2, element2);
-                if (diff.same()) {
-                    assoc.associate(index1, index2);
+        // First associate exact matches. associatedBy[index2] is the
+        // index1 node2 element is associated with, or -1
+        int[] associatedBy = new int[size2];
+        Arrays.fill(associatedBy, -1);
+        List<Integer> unmatched1 = new ArrayList<>();
+        for (int index1 = 0; index1 < size1; index1++) {
+            BaseType element1 = getElement(node1, index1);
+            List<Integer> bucket = buckets.get(contentHash(element1));
+            boolean matched = false;
+            if (bucket != null) {
+                field1.push(index1);
+                for (Iterator<Integer> itr = bucket.iterator(); itr.hasNext();) {
+                    int index2 = itr.next();
+                    field2.push(index2);
+                    Difference diff = compareNodes(field1, element1, field2, getElement(node2, index2));
                     field2.pop();
-                    break;
-                } else {
+                    if (diff.same()) {
+                        itr.remove();
+                        associatedBy[index2] = index1;
+                        assoc.associate(index1, index2);
+                        matched = true;
+                        break;
+                    }
+                }
+                field1.pop();
+            }
+            if (!matched) {
+                unmatched1.add(index1);
+            }
+        }
+
+        // Here, we associated all exact matching nodes. The remaining
+        // nodes of node1 are compared to the nodes of node2 that were not
+        // associated with an earlier node1 element.
+        int comparisons = 0;
+        for (int index1 : unmatched1) {
+            if (comparisons >= maxNearestMatchComparisons) {
+                break;
+            }
+            BaseType element1 = getElement(node1, index1);
+            field1.push(index1);
+            for (int index2 = 0; index2 < size2; index2++) {
+                if (associatedBy[index2] == -1 || associatedBy[index2] > index1) {
+                    comparisons++;
+                    field2.push(index2);
+                    Difference diff = compareNodes(field1, element1, field2, getElement(node2, index2));
                     assoc.recordDistance(index1, index2, diff);
+                    field2.pop();
                 }
-                field2.pop();
             }
             field1.pop();
         }
 
-        // Here, we associated all exact matching nodes
-        // All remaining nodes need to be compared to each other
-        // First compare all node1 elements to node2 elements
+        // Associate the remaining nodes with the closest match
         for (assoc.start1(); assoc.hasNext1();) {
             int index1 = assoc.next1();
             BaseType element1 = getElement(node1, index1);
             field1.push(index1);
-
-            for (assoc.start2(); assoc.hasNext2();) {
-                int index2 = assoc.next2();
-                BaseType element2 = getElement(node2, index2);
-                field2.push(index2);
-
-                Pair p = new Pair(index1, index2);
-                // Do we have a distance recorded for these nodes?
-                if (comparedPairs.contains(p)) {
-                    // No distance: compare the nodes
-                    Difference diff = compareNodes(field1, element1, field2, element2);
-                    assoc.recordDistance(index1, index2, diff);
-                    comparedPairs.add(p);
-                }
-                field2.pop();
-            }
             IxDiff ixdiff = assoc.getMin(index1);
             // If an object has changed more that 0.5 (more than half
             // of its fields are changed), then it is not a match
@@ -743,6 +787,35 @@ public abstract class DocComparator<BaseType, ValueType, ObjectType, ArrayType>
         return ret;
     }
 
+    /**
+     * Returns a hash of the contents of a node. Nodes that have no
+     * differences between them have the same hash. Object fields are
+     * combined independent of their order, array elements in order.
+     */
+    protected int contentHash(BaseType node) {
+        if (isNull(node)) {
+            return 0;
+        } else if (isValue(node)) {
+            return hashValue(asValue(node));
+        } else if (isArray(node)) {
+            ArrayType array = asArray(node);
+            int n = size(array);
+            int hash = 1;
+            for (int i = 0; i < n; i++) {
+                hash = 31 * hash + contentHash(getElement(array, i));
+            }
+            return hash;
+        } else if (isObject(node)) {
+            int hash = 7;
+            for (Iterator<Map.Entry<String, BaseType>> fields = getFields(asObject(node)); fields.hasNext();) {
+                Map.Entry<String, BaseType> field = fields.next();
+                hash += field.getKey().hashCode() ^ contentHash(field.getValue());
+            }
+            return hash;
+        }
+        return 0;
+    }
+
     /**
      * Keeps the distance between two array indexes.
      */
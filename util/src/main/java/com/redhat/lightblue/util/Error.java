@@ -19,6 +19,8 @@
 package com.redhat.lightblue.util;
 
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.StringTokenizer;
 
 import org.slf4j.Logger;
@@ -43,9 +45,10 @@ public final class Error extends RuntimeException {
 
     private static final JsonNodeFactory FACTORY = JsonNodeFactory.withExactBigDecimals(true);
 
-    private static final ThreadLocal<ArrayDeque<String>> THREAD_CONTEXT = new ThreadLocal< ArrayDeque<String>>() {
+    // Context entries are strings, or objects rendered when an error captures the context
+    private static final ThreadLocal<ArrayDeque<Object>> THREAD_CONTEXT = new ThreadLocal< ArrayDeque<Object>>() {
         @Override
-        protected ArrayDeque<String> initialValue() {
+        protected ArrayDeque<Object> initialValue() {
             return new ArrayDeque<>();
         }
     };
@@ -67,13 +70,27 @@ public final class Error extends RuntimeException {
         THREAD_CONTEXT.get().addLast(context);
     }
 
+    /**
+     * Pushes the given context information to the current thread stack.
+     * The context string is built using the toString() of the object only
+     * when an error captures the context, so the object must not change
+     * until it is popped.
+     */
+    public static void push(Object context) {
+        if (null == context) {
+            context = "null";
+        }
+        LOGGER.debug("push: {}", context);
+        THREAD_CONTEXT.get().addLast(context);
+    }
+
     /**
      * Pops the context information from current thread stack
      */
     public static void pop() {
-        ArrayDeque<String> c = THREAD_CONTEXT.get();
+        ArrayDeque<Object> c = THREAD_CONTEXT.get();
         if (!c.isEmpty()) {
-            String context = c.removeLast();
+            Object context = c.removeLast();
             LOGGER.debug("pop: {}", context);
         }
         if (c.isEmpty()) {
@@ -81,6 +98,23 @@ public final class Error extends RuntimeException {
         }
     }
 
+    /**
+     * Returns a copy of the context information of the current thread
+     * stack, bottom first. Tasks running on other threads can push it to
+     * report errors in the same context.
+     */
+    public static List<String> getCurrentContext() {
+        ArrayDeque<Object> c = THREAD_CONTEXT.get();
+        List<String> ret = new ArrayList<>(c.size());
+        for (Object x : c) {
+            ret.add(x.toString());
+        }
+        if (c.isEmpty()) {
+            reset();
+        }
+        return ret;
+    }
+
     /**
      * Constructs a new error object by pushing the given context on top of the
      * current context
@@ -149,8 +183,11 @@ public final class Error extends RuntimeException {
         LOGGER.error(this.toString());
     }
 
-    private Error(ArrayDeque<String> context, String errorCode, String msg) {
-        this.context = context.clone();
+    private Error(ArrayDeque<Object> context, String errorCode, String msg) {
+        this.context = new ArrayDeque<>(context.size());
+        for (Object x : context) {
+            this.context.addLast(x.toString());
+        }
         this.errorCode = errorCode;
         this.msg = msg;
         LOGGER.error(this.toString());
@@ -73,6 +73,52 @@ public class JsonDoc implements Serializable {
         }
     }
 
+    /**
+     * The chain of nodes from the document root to the node being
+     * resolved. Used to resolve $parent without searching the document
+     * for the parent of a node. Every path segment descends at most one
+     * level, so the chain is never longer than the path.
+     */
+    private static final class Ancestors {
+        private final JsonNode[] nodes;
+        // The depth of the chain after resolving each path level
+        private final int[] depthAt;
+        private int depth;
+
+        Ancestors(int numSegments, JsonNode root) {
+            nodes = new JsonNode[numSegments + 1];
+            depthAt = new int[numSegments];
+            nodes[0] = root;
+            depth = 1;
+        }
+
+        void push(JsonNode node) {
+            nodes[depth++] = node;
+        }
+
+        /**
+         * Removes the current node from the chain, and returns its
+         * parent, or null if the current node is the root
+         */
+        JsonNode pop() {
+            if (depth > 1) {
+                nodes[--depth] = null;
+                return nodes[depth - 1];
+            } else {
+                return null;
+            }
+        }
+
+        /**
+         * Restores the chain to the state after resolving the given level,
+         * with node as the node at that level
+         */
+        void resume(int level, JsonNode node) {
+            depth = depthAt[level];
+            nodes[depth - 1] = node;
+        }
+    }
+
     /**
      * Internal class that overrides the behavior for '*' processing during path
      * resolution
@@ -120,22 +166,58 @@ public class JsonDoc implements Serializable {
      */
     private static class Resolver {
         public NodeAndLevel resolve(Path p, final JsonNode root, final JsonNode node, int level) {
+            return resolve(p, root, node, level, root == node && level == 0 ? ancestors(p, root) : null);
+        }
+
+        /**
+         * Returns the ancestor chain to track while resolving p from the
+         * root, or null if p has no $parent
+         */
+        static Ancestors ancestors(Path p, JsonNode root) {
+            PathRep rep = p.getData();
+            for (int i = rep.size() - 1; i >= 0; i--) {
+                if (rep.kind(i) == PathRep.PARENT) {
+                    return new Ancestors(rep.size(), root);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Resolves p starting at the given node and level. If ancestors
+         * is not null, it contains the chain of nodes from the root to
+         * node, and $parent is resolved using it. Otherwise, parents are
+         * searched from the root.
+         */
+        protected NodeAndLevel resolve(Path p, final JsonNode root, final JsonNode node, int level, Ancestors ancestors) {
             JsonNode output = node;
 
-            int n = p.numSegments();
+            PathRep rep = p.getData();
+            int n = rep.size();
             int newLevel = level;
             for (int l = level; l < n; l++) {
                 newLevel = l;
-                String name = p.head(l);
+                byte kind = rep.kind(l);
                 JsonNode newOutput;
-                if (name.equals(Path.ANY)) {
+                if (kind == PathRep.ANY) {
                     newOutput = handleAny(p, output, l);
-                } else if (name.equals(Path.THIS)) {
+                } else if (kind == PathRep.THIS) {
+                    if (ancestors != null) {
+                        ancestors.depthAt[l] = ancestors.depth;
+                    }
                     continue;
-                } else if (name.equals(Path.PARENT)) {
-                    output = findParent(root, output);
-                    if (output instanceof ArrayNode) {
+                } else if (kind == PathRep.PARENT) {
+                    if (ancestors != null) {
+                        output = ancestors.pop();
+                        if (output instanceof ArrayNode) {
+                            output = ancestors.pop();
+                        }
+                        ancestors.depthAt[l] = ancestors.depth;
+                    } else {
                         output = findParent(root, output);
+                        if (output instanceof ArrayNode) {
+                            output = findParent(root, output);
+                        }
                     }
                     if (output == null) {
                         throw new IllegalArgumentException(node.toString());
@@ -143,14 +225,18 @@ public class JsonDoc implements Serializable {
 
                     continue;
                 } else if (output instanceof ArrayNode) {
-                    int index = Integer.valueOf(name);
+                    int index = rep.index(l);
+                    if (index == PathRep.NOT_AN_INDEX) {
+                        // Fails for non-numeric segments
+                        index = Integer.valueOf(rep.get(l));
+                    }
                     if (index < 0) {
                         newOutput = ((ArrayNode) output).get(((ArrayNode) output).size() + index);
                     } else {
                         newOutput = ((ArrayNode) output).get(index);
                     }
                 } else if (output instanceof ObjectNode) {
-                    newOutput = output.get(name);
+                    newOutput = output.get(rep.get(l));
                 } else {
                     newOutput = null;
                 }
@@ -163,6 +249,10 @@ public class JsonDoc implements Serializable {
                 if (output == null) {
                     break;
                 }
+                if (ancestors != null) {
+                    ancestors.push(output);
+                    ancestors.depthAt[l] = ancestors.depth;
+                }
 
             }
             return new NodeAndLevel(output, newLevel);
@@ -275,6 +365,7 @@ public class JsonDoc implements Serializable {
         private final Path path;
         private final MutablePath mpath;
         private final CursorResolver resolver = new CursorResolver();
+        private final Ancestors ancestors;
         private final boolean returnMissingNodes;
 
         private JsonNode nextNode;
@@ -286,7 +377,8 @@ public class JsonDoc implements Serializable {
         public PathCursor(Path p, boolean returnMissingNodes) {
             this.returnMissingNodes = returnMissingNodes;
             path = p;
-            NodeAndLevel nl = resolver.resolve(path, docRoot, docRoot, 0);
+            ancestors = Resolver.ancestors(path, docRoot);
+            NodeAndLevel nl = resolver.resolve(path, docRoot, docRoot, 0, ancestors);
             nextNode = nl.node;
             if (nextNode != null || (returnMissingNodes && nl.level == path.numSegments() - 1)) {
                 nextFound = true;
@@ -354,7 +446,10 @@ public class JsonDoc implements Serializable {
                 do {
                     Iteration itr = resolver.iterators[level];
                     if (itr != null && itr.next()) {
-                        NodeAndLevel nl = resolver.resolve(path, docRoot, itr.getCurrentNode(), level + 1);
+                        if (ancestors != null) {
+                            ancestors.resume(level, itr.getCurrentNode());
+                        }
+                        NodeAndLevel nl = resolver.resolve(path, docRoot, itr.getCurrentNode(), level + 1, ancestors);
                         node = nl.node;
                         level = nl.level;
                         if (node != null) {
@@ -583,6 +678,58 @@ public class JsonDoc implements Serializable {
         return new JsonDoc(docRoot.deepCopy());
     }
 
+    /**
+     * Returns a copy of the current document that shares the unchanged
+     * parts of the base document. The subtrees of this document that are
+     * equal to the subtrees at the same location in the base document are
+     * not copied, the base document nodes are used instead. The base
+     * document should not be modified after this call, usually it is
+     * another copy.
+     */
+    public JsonDoc copySharing(JsonDoc base) {
+        return new JsonDoc(copySharing(docRoot, base == null ? null : base.getRoot()));
+    }
+
+    /**
+     * Returns a copy of node that shares the subtrees of base equal to the
+     * subtrees of node at the same location. If node is equal to base,
+     * returns base.
+     */
+    public static JsonNode copySharing(JsonNode node, JsonNode base) {
+        if (base == null || node.getNodeType() != base.getNodeType()) {
+            return node.deepCopy();
+        } else if (node instanceof ObjectNode) {
+            ObjectNode baseObject = (ObjectNode) base;
+            ObjectNode copy = ((ObjectNode) node).objectNode();
+            boolean same = node.size() == base.size();
+            Iterator<String> baseNames = baseObject.fieldNames();
+            for (Iterator<Map.Entry<String, JsonNode>> itr = node.fields(); itr.hasNext();) {
+                Map.Entry<String, JsonNode> field = itr.next();
+                JsonNode baseValue = baseObject.get(field.getKey());
+                JsonNode value = copySharing(field.getValue(), baseValue);
+                copy.set(field.getKey(), value);
+                // Keep the field order of node
+                same = same && value == baseValue && field.getKey().equals(baseNames.next());
+            }
+            return same ? base : copy;
+        } else if (node instanceof ArrayNode) {
+            ArrayNode copy = ((ArrayNode) node).arrayNode();
+            int n = node.size();
+            boolean same = n == base.size();
+            for (int i = 0; i < n; i++) {
+                JsonNode baseElement = base.get(i);
+                JsonNode element = copySharing(node.get(i), baseElement);
+                copy.add(element);
+                same = same && element == baseElement;
+            }
+            return same ? base : copy;
+        } else if (node.equals(base)) {
+            return base;
+        } else {
+            return node.deepCopy();
+        }
+    }
+
     private static JsonNode getParentNode(JsonNode docRoot, Path parent, boolean createPath, Path p) {
         JsonNode parentNode = DEFAULT_RESOLVER.resolve(parent, docRoot, docRoot, 0).node;
         if (parentNode == null && createPath) {
@@ -474,6 +474,36 @@ public final class JsonUtils {
         return size;
     }
 
+    /**
+     * Same as {@link #size(JsonNode)}, but the subtrees of node that are
+     * the same objects as the subtrees of shared at the same location are
+     * not counted. This is the size of the parts of a copy made by
+     * {@link JsonDoc#copySharing(JsonNode, JsonNode)} that are not shared.
+     */
+    public static int size(JsonNode node, JsonNode shared) {
+        if (node == null || node == shared) {
+            return 0;
+        } else if (shared == null || node.getNodeType() != shared.getNodeType()) {
+            return size(node);
+        }
+        int size = 0;
+        if (node instanceof ArrayNode) {
+            int n = node.size();
+            for (int i = 0; i < n; i++) {
+                size += size(node.get(i), shared.get(i));
+            }
+        } else if (node instanceof ObjectNode) {
+            for (Iterator<Map.Entry<String, JsonNode>> fields = ((ObjectNode) node).fields(); fields.hasNext();) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                size += field.getKey().length();
+                size += size(field.getValue(), shared.get(field.getKey()));
+            }
+        } else {
+            size = size(node);
+        }
+        return size;
+    }
+
     private JsonUtils() {
     }
 }
@@ -91,6 +91,22 @@ public class MemoryMonitor<T> {
         return value;
     }
 
+    /**
+     * Add the given size to the total for a value whose size is already
+     * known.
+     *
+     * @param value
+     * @param sizeB
+     * @return
+     */
+    public T apply(final T value, int sizeB) {
+        dataSizeB += sizeB;
+
+        checkThresholdMonitors(value);
+
+        return value;
+    }
+
     public int getDataSizeB() {
         return dataSizeB;
     }
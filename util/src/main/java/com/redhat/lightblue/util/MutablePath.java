@@ -122,7 +122,9 @@ public class MutablePath extends Path {
      * @return the updated path
      */
     public MutablePath push(int x) {
-        return push(Integer.toString(x));
+        own();
+        getData().appendIndex(x);
+        return this;
     }
 
     /**
@@ -174,7 +176,9 @@ public class MutablePath extends Path {
     }
 
     public Path set(int i, int value) {
-        return set(i, Integer.toString(value));
+        own();
+        getData().setIndex(i, value);
+        return this;
     }
 
     /**
@@ -20,7 +20,6 @@ package com.redhat.lightblue.util;
 
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 
 /**
@@ -208,7 +207,8 @@ public class Path implements Comparable<Path>, Serializable {
      * @return
      */
     public int getIndex(int i) {
-        return Integer.valueOf(data.get(i));
+        int index = data.index(i);
+        return index == PathRep.NOT_AN_INDEX ? Integer.valueOf(data.get(i)) : index;
     }
 
     /**
@@ -219,7 +219,7 @@ public class Path implements Comparable<Path>, Serializable {
      * @return
      */
     public boolean isIndex(int i) {
-        return Util.isNumber(data.get(i));
+        return data.kind(i) == PathRep.INDEX;
     }
 
     /**
@@ -227,8 +227,8 @@ public class Path implements Comparable<Path>, Serializable {
      */
     public int nAnys() {
         int n = 0;
-        for (Iterator<String> itr = data.iterator(); itr.hasNext();) {
-            if (ANY.equals(itr.next())) {
+        for (int i = data.size() - 1; i >= 0; i--) {
+            if (data.kind(i) == PathRep.ANY) {
                 n++;
             }
         }
@@ -293,13 +293,10 @@ public class Path implements Comparable<Path>, Serializable {
      * @return true if it matches, else false
      */
     public boolean matches(Path pattern) {
-        if (data.size() == pattern.data.size()) {
-            Iterator<String> patternDataItr = pattern.data.iterator();
-            Iterator<String> dataItr = data.iterator();
-            while (patternDataItr.hasNext() && dataItr.hasNext()) {
-                String pat = patternDataItr.next();
-                String val = dataItr.next();
-                if (!(val.equals(pat) || pat.equals(ANY))) {
+        int n = data.size();
+        if (n == pattern.data.size()) {
+            for (int i = 0; i < n; i++) {
+                if (pattern.data.kind(i) != PathRep.ANY && !data.get(i).equals(pattern.data.get(i))) {
                     return false;
                 }
             }
@@ -349,23 +346,22 @@ public class Path implements Comparable<Path>, Serializable {
      */
     public Path normalize() {
         boolean parentThisPresent = false;
-        Iterator<String> dataItr = data.iterator();
-        while (dataItr.hasNext()) {
-            String s = dataItr.next();
-            if (PARENT.equals(s) || THIS.equals(s)) {
+        int n = data.size();
+        for (int i = 0; i < n; i++) {
+            byte kind = data.kind(i);
+            if (kind == PathRep.PARENT || kind == PathRep.THIS) {
                 parentThisPresent = true;
                 break;
             }
         }
         if (parentThisPresent) {
             MutablePath p = new MutablePath();
-            dataItr = data.iterator();
-            while (dataItr.hasNext()) {
-                String s = dataItr.next();
-                if (PARENT.equals(s) && p.numSegments() > 0) {
+            for (int i = 0; i < n; i++) {
+                byte kind = data.kind(i);
+                if (kind == PathRep.PARENT && p.numSegments() > 0) {
                     p.pop();
-                } else if (!THIS.equals(s)) {
-                    p.push(s);
+                } else if (kind != PathRep.THIS) {
+                    p.push(data.get(i));
                 }
             }
             return p.immutableCopy();
@@ -18,18 +18,69 @@
  */
 package com.redhat.lightblue.util;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Internal representation of Path
+ *
+ * Segments are kept in arrays along with their kinds and pre-parsed
+ * array indexes, so path resolution does not parse or compare segment
+ * strings. Field name segments are interned in a bounded symbol table,
+ * so the paths built from the same metadata share the segment strings
+ * and their cached hash codes. Copies and prefixes share the segment
+ * arrays until one of them is modified.
  */
 class PathRep implements Serializable, Comparable<PathRep> {
     private static final long serialVersionUID = 1l;
 
-    private final List<String> segments;
+    /**
+     * The serialized form is the list of segment strings, the same as
+     * before the segments were kept in arrays, so paths serialized by
+     * either version can be read by the other
+     */
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("segments", List.class)
+    };
+
+    /**
+     * Segment kinds
+     */
+    static final byte FIELD = 0;
+    static final byte INDEX = 1;
+    static final byte ANY = 2;
+    static final byte THIS = 3;
+    static final byte PARENT = 4;
+
+    /**
+     * The index of a segment that is not an array index, or that is too
+     * large to be an int
+     */
+    static final int NOT_AN_INDEX = Integer.MIN_VALUE;
+
+    private static final int MAX_SYMBOLS = 8192;
+    private static final ConcurrentHashMap<String, String> SYMBOLS = new ConcurrentHashMap<>();
+
+    private static final String[] NO_SEGMENTS = new String[0];
+    private static final byte[] NO_KINDS = new byte[0];
+    private static final int[] NO_INDEXES = new int[0];
+
+    private String[] segments;
+    private byte[] kinds;
+    private int[] indexes;
+    private int size;
+    // If true, the arrays are shared with another PathRep, and must be
+    // copied before modification
+    private boolean shared;
 
     private transient String stringValue = null;
     private transient int hashValue = 0;
@@ -38,14 +89,21 @@ class PathRep implements Serializable, Comparable<PathRep> {
      * Creates an empty path
      */
     public PathRep() {
-        segments = new ArrayList<>(10);
+        segments = NO_SEGMENTS;
+        kinds = NO_KINDS;
+        indexes = NO_INDEXES;
     }
 
     /**
      * Copy ctor
      */
     public PathRep(PathRep data) {
-        segments = new ArrayList<>(data.segments);
+        segments = data.segments;
+        kinds = data.kinds;
+        indexes = data.indexes;
+        size = data.size;
+        shared = true;
+        data.shared = true;
         stringValue = data.stringValue;
         hashValue = data.hashValue;
     }
@@ -58,20 +116,83 @@ class PathRep implements Serializable, Comparable<PathRep> {
      * elements from the end are removed
      */
     public PathRep(PathRep data, int x) {
-        int k = data.segments.size();
-        segments = new ArrayList<>(k);
+        int k = data.size;
         int n;
         if (x >= 0) {
             n = k > x ? x : k;
         } else {
             n = k + x;
         }
-        for (String s : data.segments) {
-            if (n <= 0) {
-                break;
+        segments = data.segments;
+        kinds = data.kinds;
+        indexes = data.indexes;
+        size = n > 0 ? n : 0;
+        shared = true;
+        data.shared = true;
+    }
+
+    /**
+     * Returns the interned segment string
+     */
+    private static String intern(String s) {
+        String x = SYMBOLS.get(s);
+        if (x == null) {
+            if (SYMBOLS.size() < MAX_SYMBOLS) {
+                x = SYMBOLS.putIfAbsent(s, s);
+                if (x == null) {
+                    x = s;
+                }
+            } else {
+                x = s;
             }
-            segments.add(s);
-            n--;
+        }
+        return x;
+    }
+
+    /**
+     * Sets the segment at index, along with its kind and index
+     */
+    private void setSegment(int index, String s) {
+        if (Path.ANY.equals(s)) {
+            segments[index] = Path.ANY;
+            kinds[index] = ANY;
+            indexes[index] = NOT_AN_INDEX;
+        } else if (Path.THIS.equals(s)) {
+            segments[index] = Path.THIS;
+            kinds[index] = THIS;
+            indexes[index] = NOT_AN_INDEX;
+        } else if (Path.PARENT.equals(s)) {
+            segments[index] = Path.PARENT;
+            kinds[index] = PARENT;
+            indexes[index] = NOT_AN_INDEX;
+        } else if (Util.isNumber(s)) {
+            segments[index] = s;
+            kinds[index] = INDEX;
+            int ix;
+            try {
+                ix = Integer.parseInt(s);
+            } catch (NumberFormatException e) {
+                ix = NOT_AN_INDEX;
+            }
+            indexes[index] = ix;
+        } else {
+            segments[index] = intern(s);
+            kinds[index] = FIELD;
+            indexes[index] = NOT_AN_INDEX;
+        }
+    }
+
+    /**
+     * Makes sure the arrays are owned by this instance and can hold
+     * capacity elements
+     */
+    private void ensureWritable(int capacity) {
+        if (shared || capacity > segments.length) {
+            int n = Math.max(capacity, shared ? size : Math.max(segments.length * 2, 4));
+            segments = Arrays.copyOf(segments, n);
+            kinds = Arrays.copyOf(kinds, n);
+            indexes = Arrays.copyOf(indexes, n);
+            shared = false;
         }
     }
 
@@ -79,7 +200,13 @@ class PathRep implements Serializable, Comparable<PathRep> {
      * Clears the path
      */
     public void clear() {
-        segments.clear();
+        if (shared) {
+            segments = NO_SEGMENTS;
+            kinds = NO_KINDS;
+            indexes = NO_INDEXES;
+            shared = false;
+        }
+        size = 0;
         resetState();
     }
 
@@ -95,21 +222,57 @@ class PathRep implements Serializable, Comparable<PathRep> {
      * Returns the number of segments
      */
     public int size() {
-        return segments.size();
+        return size;
     }
 
     /**
      * Returns the element at the index
      */
     public String get(int index) {
-        return segments.get(index);
+        checkIndex(index);
+        return segments[index];
+    }
+
+    /**
+     * Returns the kind of the element at index: FIELD, INDEX, ANY, THIS,
+     * or PARENT
+     */
+    public byte kind(int index) {
+        checkIndex(index);
+        return kinds[index];
+    }
+
+    /**
+     * Returns the array index value of the element at index, or
+     * NOT_AN_INDEX
+     */
+    public int index(int index) {
+        checkIndex(index);
+        return indexes[index];
+    }
+
+    private void checkIndex(int index) {
+        if (index >= size || index < 0) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
     }
 
     /**
      * Removes the element at index
      */
     public void remove(int index) {
-        segments.remove(index);
+        checkIndex(index);
+        if (index == size - 1 && !shared) {
+            segments[index] = null;
+        } else {
+            ensureWritable(size);
+            int k = size - index - 1;
+            System.arraycopy(segments, index + 1, segments, index, k);
+            System.arraycopy(kinds, index + 1, kinds, index, k);
+            System.arraycopy(indexes, index + 1, indexes, index, k);
+            segments[size - 1] = null;
+        }
+        size--;
         resetState();
     }
 
@@ -117,21 +280,64 @@ class PathRep implements Serializable, Comparable<PathRep> {
      * Sets the element at index
      */
     public void set(int index, String x) {
-        segments.set(index, x);
+        checkIndex(index);
+        ensureWritable(size);
+        setSegment(index, x);
         resetState();
     }
 
+    /**
+     * Sets the element at index to an array index
+     */
+    public void setIndex(int index, int value) {
+        checkIndex(index);
+        ensureWritable(size);
+        segments[index] = Integer.toString(value);
+        kinds[index] = INDEX;
+        indexes[index] = value;
+        resetState();
+    }
+
+    /**
+     * Appends an array index to the end of this
+     */
+    public void appendIndex(int value) {
+        ensureWritable(size + 1);
+        size++;
+        setIndex(size - 1, value);
+    }
+
     /**
      * Returns an iterator over segments
      */
     public Iterator<String> iterator() {
-        return segments.iterator();
+        return new Iterator<String>() {
+            private int i = 0;
+
+            @Override
+            public boolean hasNext() {
+                return i < size;
+            }
+
+            @Override
+            public String next() {
+                if (i >= size) {
+                    throw new NoSuchElementException();
+                }
+                return segments[i++];
+            }
+        };
     }
 
     @Override
     public int hashCode() {
         if (hashValue == 0) {
-            hashValue = segments.hashCode();
+            // Same as the hash code of the list of segments
+            int h = 1;
+            for (int i = 0; i < size; i++) {
+                h = 31 * h + segments[i].hashCode();
+            }
+            hashValue = h;
         }
         return hashValue;
     }
@@ -140,7 +346,21 @@ class PathRep implements Serializable, Comparable<PathRep> {
     public boolean equals(Object o) {
         if (o instanceof PathRep) {
             PathRep r = (PathRep) o;
-            return r.segments.equals(segments);
+            if (r.size != size) {
+                return false;
+            }
+            if (r.segments == segments) {
+                return true;
+            }
+            if (hashValue != 0 && r.hashValue != 0 && hashValue != r.hashValue) {
+                return false;
+            }
+            for (int i = size - 1; i >= 0; i--) {
+                if (!segments[i].equals(r.segments[i])) {
+                    return false;
+                }
+            }
+            return true;
         }
         return false;
     }
@@ -150,20 +370,21 @@ class PathRep implements Serializable, Comparable<PathRep> {
      */
     public void shiftLeft(final int from) {
         if (from > 0) {
-            int n = segments.size();
-            if (from >= n) {
-                segments.clear();
+            if (from >= size) {
+                clear();
             } else {
-                int iFrom = from;
-                int k = n - iFrom;
-                int to = 0;
-                for (int i = 0; i < k; i++) {
-                    segments.set(to++, segments.get(iFrom++));
-                }
-                k = n - k;
-                for (int i = 0; i < k; i++) {
-                    segments.remove(--n);
-                }
+                int k = size - from;
+                String[] s = new String[k];
+                byte[] kn = new byte[k];
+                int[] ix = new int[k];
+                System.arraycopy(segments, from, s, 0, k);
+                System.arraycopy(kinds, from, kn, 0, k);
+                System.arraycopy(indexes, from, ix, 0, k);
+                segments = s;
+                kinds = kn;
+                indexes = ix;
+                size = k;
+                shared = false;
             }
             resetState();
         }
@@ -173,7 +394,24 @@ class PathRep implements Serializable, Comparable<PathRep> {
      * Appends p to the end of this
      */
     public void append(PathRep p) {
-        append(p.segments);
+        int n = p.size;
+        if (n > 0) {
+            if (size == 0 && !shared) {
+                // Share the segments of p
+                segments = p.segments;
+                kinds = p.kinds;
+                indexes = p.indexes;
+                size = n;
+                shared = true;
+                p.shared = true;
+            } else {
+                ensureWritable(size + n);
+                System.arraycopy(p.segments, 0, segments, size, n);
+                System.arraycopy(p.kinds, 0, kinds, size, n);
+                System.arraycopy(p.indexes, 0, indexes, size, n);
+                size += n;
+            }
+        }
         resetState();
     }
 
@@ -181,18 +419,40 @@ class PathRep implements Serializable, Comparable<PathRep> {
      * Appends the string segments to the end of this
      */
     public void append(List<String> x) {
-        segments.addAll(x);
+        ensureWritable(size + x.size());
+        for (String s : x) {
+            setSegment(size++, s);
+        }
         resetState();
     }
 
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("segments", new ArrayList<>(Arrays.asList(segments).subList(0, size)));
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        @SuppressWarnings("unchecked")
+        List<String> list = (List<String>) fields.get("segments", null);
+        segments = NO_SEGMENTS;
+        kinds = NO_KINDS;
+        indexes = NO_INDEXES;
+        size = 0;
+        if (list != null) {
+            append(list);
+        }
+    }
+
     @Override
     public int compareTo(PathRep x) {
-        int tn = segments.size();
-        int xn = x.segments.size();
+        int tn = size;
+        int xn = x.size;
         int n = tn > xn ? xn : tn;
         int index = 0;
         while (index < n) {
-            int cmp = segments.get(index).compareTo(x.segments.get(index));
+            int cmp = segments[index].compareTo(x.segments[index]);
             if (cmp != 0) {
                 return cmp;
             }
@@ -204,15 +464,12 @@ class PathRep implements Serializable, Comparable<PathRep> {
     @Override
     public String toString() {
         if (stringValue == null) {
-            StringBuilder buf = new StringBuilder(segments.size() * 8);
-            boolean first = true;
-            for (String x : segments) {
-                if (first) {
-                    first = false;
-                } else {
+            StringBuilder buf = new StringBuilder(size * 8);
+            for (int i = 0; i < size; i++) {
+                if (i > 0) {
                     buf.append('.');
                 }
-                buf.append(x);
+                buf.append(segments[i]);
             }
             stringValue = buf.toString();
         }
@@ -64,6 +64,31 @@ public class ErrorTest {
         Assert.assertEquals(errorCode, e.getErrorCode());
     }
 
+    @Test
+    public void testPushDeferred() {
+        int[] rendered = new int[1];
+        Object deferred = new Object() {
+            @Override
+            public String toString() {
+                rendered[0]++;
+                return "deferred";
+            }
+        };
+        Error.push("1");
+        Error.push(deferred);
+        Error.push("2");
+        // Not rendered unless an error captures the context
+        Assert.assertEquals(0, rendered[0]);
+
+        Error e = Error.get("code");
+        Assert.assertEquals(1, rendered[0]);
+        Assert.assertEquals("1/deferred/2", e.getContext());
+        Error.pop();
+        Error.pop();
+        Assert.assertEquals("1", Error.get("code").getContext());
+        Assert.assertEquals(1, rendered[0]);
+    }
+
     /**
      * Test of pop method, of class Error.
      */
@@ -46,6 +46,33 @@ public class JsonCompareTest {
         Assert.assertTrue(diff.same());
     }
 
+    /**
+     * Reversing a large array of objects without identities shows up as
+     * moves only
+     */
+    @Test
+    public void testLargeArrayReversed() throws Exception {
+        JsonCompare cmp = new JsonCompare();
+        StringBuilder arr1 = new StringBuilder();
+        StringBuilder arr2 = new StringBuilder();
+        int n = 2001;
+        for (int i = 0; i < n; i++) {
+            if (i > 0) {
+                arr1.append(',');
+                arr2.append(',');
+            }
+            arr1.append("{'x':").append(i).append(",'y':'v").append(i % 7).append("'}");
+            arr2.append("{'y':'v").append((n - 1 - i) % 7).append("','x':").append(n - 1 - i).append('}');
+        }
+        JsonNode doc1 = json("{'a':[" + arr1 + "]}");
+        JsonNode doc2 = json("{'a':[" + arr2 + "]}");
+        JsonCompare.Difference diff = cmp.compareNodes(doc1, doc2);
+        Assert.assertEquals(0, diff.getNumChangedFields());
+        Assert.assertEquals(n - 1, diff.getDelta().size());
+        Assert.assertTrue(hasDelta(diff.getDelta(), JsonCompare.Move.class, "a.0", "a.2000"));
+        Assert.assertFalse(hasDelta(diff.getDelta(), JsonCompare.Move.class, "a.1000", null));
+    }
+
     /**
      * Compare docs with one change to a field
      */
@@ -134,6 +161,24 @@ public class JsonCompareTest {
         Assert.assertTrue(hasDelta(diff.getDelta(), JsonCompare.Modification.class, null, "d.0.w"));
     }
 
+    /**
+     * Elements without exact matches are not compared once the comparison
+     * limit is reached
+     */
+    @Test
+    public void testObjectArrayDiff_maxNearestMatchComparisons() throws Exception {
+        JsonCompare cmp = new JsonCompare();
+        cmp.setMaxNearestMatchComparisons(0);
+        JsonNode doc1 = json("{'d':[ {'q':'1','w':'2'}, {'q':'3','w':'4'},{'q':'5','w':'6'}]}");
+        JsonNode doc2 = json("{'d':[ {'q':'1','w':'22'}, {'q':'3','w':'4'},{'q':'7','w':'8'}]}");
+        JsonCompare.Difference diff = cmp.compareNodes(doc1, doc2);
+        Assert.assertEquals(4, diff.getDelta().size());
+        Assert.assertTrue(hasDelta(diff.getDelta(), JsonCompare.Removal.class, "d.0", null));
+        Assert.assertTrue(hasDelta(diff.getDelta(), JsonCompare.Addition.class, null, "d.0"));
+        Assert.assertTrue(hasDelta(diff.getDelta(), JsonCompare.Removal.class, "d.2", null));
+        Assert.assertTrue(hasDelta(diff.getDelta(), JsonCompare.Addition.class, null, "d.2"));
+    }
+
     /**
      * Modifications to array of objects
      */
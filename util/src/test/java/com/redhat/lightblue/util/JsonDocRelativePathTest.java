@@ -19,6 +19,9 @@
 package com.redhat.lightblue.util;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.databind.node.TextNode;
 import com.redhat.lightblue.util.test.AbstractJsonNodeTest;
 import org.junit.Assert;
@@ -26,6 +29,8 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 public class JsonDocRelativePathTest extends AbstractJsonNodeTest {
 
@@ -130,4 +135,29 @@ public class JsonDocRelativePathTest extends AbstractJsonNodeTest {
         Assert.assertEquals("triplenestedvalue2", ((TextNode) result).textValue());
     }
 
+    @Test
+    public void $parent_after_any_resolves_to_the_iterated_element() {
+        // The same node instance is under both elements of the array
+        ObjectNode shared = JsonNodeFactory.instance.objectNode();
+        shared.put("c", 1);
+        ObjectNode root = JsonNodeFactory.instance.objectNode();
+        ArrayNode arr = root.putArray("a");
+        for (int i = 0; i < 3; i++) {
+            ObjectNode elem = arr.addObject();
+            elem.put("x", i);
+            if (i != 1) {
+                elem.set("b", shared);
+            }
+        }
+        KeyValueCursor<Path, JsonNode> cursor = new JsonDoc(root).getAllNodes(new Path("a.*.b.$parent.x"));
+        List<String> values = new ArrayList<>();
+        while (cursor.hasNext()) {
+            cursor.next();
+            values.add(cursor.getCurrentKey() + "=" + cursor.getCurrentValue());
+        }
+        Assert.assertEquals("[a.0.b.$parent.x=0, a.2.b.$parent.x=2]", values.toString());
+        Assert.assertEquals(2, new JsonDoc(root).get(new Path("a.2.b.$parent.x")).asInt());
+        Assert.assertEquals(root, new JsonDoc(root).get(new Path("a.1.$parent")));
+    }
+
 }
@@ -162,4 +162,25 @@ public class JsonUtilsTest {
     public void testSizeForNullNode() throws Exception {
         Assert.assertEquals(0, JsonUtils.size(null));
     }
+
+    @Test
+    public void testCopySharingSize() throws Exception {
+        JsonNode base = JsonUtils.json("{\"a\":{\"x\":1,\"y\":[1,2]},\"b\":\"text\",\"c\":[{\"q\":1},{\"q\":2}]}");
+        JsonNode node = base.deepCopy();
+        ((ObjectNode) node.get("c").get(1)).put("q", 3);
+
+        JsonNode copy = JsonDoc.copySharing(node, base);
+        Assert.assertEquals(node, copy);
+        Assert.assertNotSame(node, copy);
+        Assert.assertSame(base.get("a"), copy.get("a"));
+        Assert.assertSame(base.get("c").get(0), copy.get("c").get(0));
+        Assert.assertNotSame(base.get("c"), copy.get("c"));
+        // Field names a, b, c, q of the copied objects and the value of c.1.q
+        Assert.assertEquals(4 + 4, JsonUtils.size(copy, base));
+
+        // Unchanged document is the base itself
+        Assert.assertSame(base, JsonDoc.copySharing(base.deepCopy(), base));
+        Assert.assertEquals(0, JsonUtils.size(base, base));
+        Assert.assertEquals(JsonUtils.size(node), JsonUtils.size(node, null));
+    }
 }
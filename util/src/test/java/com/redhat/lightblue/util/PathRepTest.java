@@ -0,0 +1,122 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.ObjectStreamField;
+import java.util.Base64;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PathRepTest {
+
+    @Test
+    public void segmentKinds() {
+        Path p = new Path("a.1.*.$this.$parent.-2.b");
+        PathRep rep = p.getData();
+        Assert.assertEquals(PathRep.FIELD, rep.kind(0));
+        Assert.assertEquals(PathRep.INDEX, rep.kind(1));
+        Assert.assertEquals(1, rep.index(1));
+        Assert.assertEquals(PathRep.ANY, rep.kind(2));
+        Assert.assertEquals(PathRep.THIS, rep.kind(3));
+        Assert.assertEquals(PathRep.PARENT, rep.kind(4));
+        Assert.assertEquals(-2, p.getIndex(5));
+        Assert.assertTrue(p.isIndex(5));
+        Assert.assertFalse(p.isIndex(6));
+        Assert.assertEquals(PathRep.NOT_AN_INDEX, rep.index(6));
+        Assert.assertEquals(1, p.nAnys());
+        // Interned field names
+        Assert.assertSame(p.head(0), new Path("x.a").head(1));
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void getIndexOfField() {
+        new Path("a.b").getIndex(1);
+    }
+
+    @Test
+    public void sharedPrefixIsCopiedOnWrite() {
+        MutablePath mp = new MutablePath("a.b.c");
+        Path prefix = mp.prefix(2).immutableCopy();
+        Path copy = new Path(mp);
+        mp.pop();
+        mp.push("x");
+        mp.set(0, 5);
+        Assert.assertEquals("5.b.x", mp.toString());
+        Assert.assertEquals(new Path("a.b"), prefix);
+        Assert.assertEquals(new Path("a.b.c"), copy);
+        Assert.assertEquals(new Path("a.b.c").hashCode(), copy.hashCode());
+        Assert.assertTrue(mp.isIndex(0));
+        Assert.assertEquals(5, mp.getIndex(0));
+
+        MutablePath p2 = new MutablePath(prefix);
+        p2.push(3);
+        Assert.assertEquals("a.b.3", p2.toString());
+        Assert.assertEquals(3, p2.getIndex(2));
+        Assert.assertEquals("a.b", prefix.toString());
+    }
+
+    @Test
+    public void serialize() throws Exception {
+        MutablePath mp = new MutablePath("a.b.c");
+        Path prefix = mp.prefix(2);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (ObjectOutputStream os = new ObjectOutputStream(bos)) {
+            os.writeObject(new Object[]{mp, prefix});
+        }
+        Object[] read;
+        try (ObjectInputStream is = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()))) {
+            read = (Object[]) is.readObject();
+        }
+        MutablePath rmp = (MutablePath) read[0];
+        Path rprefix = (Path) read[1];
+        rmp.set(1, "y");
+        Assert.assertEquals("a.y.c", rmp.toString());
+        Assert.assertEquals("a.b", rprefix.toString());
+        Assert.assertEquals(PathRep.FIELD, rprefix.getData().kind(1));
+    }
+
+    /**
+     * new Path("a.1.*.b"), serialized when PathRep kept the segments
+     * in a list
+     */
+    private static final String OLD_SERIALIZED_PATH = "rO0ABXNyAB5jb20ucmVkaGF0LmxpZ2h0Ymx1ZS51dGlsLlBhdGgAAAAAAAAAAQIAAUwABGRhdGF0ACNMY29tL3JlZGhhdC9saWdodGJsdWUvdXRpbC9QYXRoUmVwO3hwc3IAIWNvbS5yZWRoYXQubGlnaHRibHVlLnV0aWwuUGF0aFJlcAAAAAAAAAABAgABTAAIc2VnbWVudHN0ABBMamF2YS91dGlsL0xpc3Q7eHBzcgATamF2YS51dGlsLkFycmF5TGlzdHiB0h2Zx2GdAwABSQAEc2l6ZXhwAAAABHcEAAAABHQAAWF0AAExdAABKnQAAWJ4";
+
+    @Test
+    public void serializedFormIsCompatible() throws Exception {
+        byte[] old = Base64.getDecoder().decode(OLD_SERIALIZED_PATH);
+        Path p = (Path) new ObjectInputStream(new ByteArrayInputStream(old)).readObject();
+        Assert.assertEquals(new Path("a.1.*.b"), p);
+        Assert.assertEquals(1, p.getIndex(1));
+        Assert.assertEquals(PathRep.ANY, p.getData().kind(2));
+
+        // Paths are written with the same fields
+        ObjectStreamField[] fields = ObjectStreamClass.lookup(PathRep.class).getFields();
+        Assert.assertEquals(1, fields.length);
+        Assert.assertEquals("segments", fields[0].getName());
+        Assert.assertEquals(List.class, fields[0].getType());
+        Assert.assertEquals(1L, ObjectStreamClass.lookup(PathRep.class).getSerialVersionUID());
+    }
+}